@@ -0,0 +1,115 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.engine.benchmarks;
+
+import org.openhim.mediator.engine.CoreResponse;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures serialization and parsing of OpenHIM responses.
+ * <br/><br/>
+ * The response contains <code>orchestrationCount</code> orchestrations, each with a request and response body
+ * of <code>bodySize</code> characters.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CoreResponseBenchmark {
+
+    @Param({"0", "5", "20"})
+    public int orchestrationCount;
+
+    @Param({"256", "16384"})
+    public int bodySize;
+
+    private CoreResponse response;
+    private String json;
+    private StringBuilder out;
+
+    @Setup
+    public void setup() {
+        String body = body(bodySize);
+
+        response = new CoreResponse();
+        response.setStatus("Successful");
+        response.setResponse(response(body));
+        response.putProperty("patient-id", "1234");
+
+        for (int o=0; o<orchestrationCount; o++) {
+            CoreResponse.Request request = new CoreResponse.Request();
+            request.setHost("upstream-" + o);
+            request.setPort("8080");
+            request.setPath("/fhir/Patient/" + o);
+            request.setMethod("GET");
+            request.putHeader("Accept", "application/json");
+            request.setBody(body);
+
+            CoreResponse.Orchestration orchestration = new CoreResponse.Orchestration();
+            orchestration.setName("orchestration-" + o);
+            orchestration.setRequest(request);
+            orchestration.setResponse(response(body));
+            response.addOrchestration(orchestration);
+        }
+
+        json = response.toJSON();
+        out = new StringBuilder(json.length());
+    }
+
+    private static CoreResponse.Response response(String body) {
+        CoreResponse.Response response = new CoreResponse.Response();
+        response.setStatus(200);
+        response.putHeader("Content-Type", "application/json");
+        response.setBody(body);
+        return response;
+    }
+
+    /**
+     * A JSON-like body, so that quotes are escaped as they would be for a real payload
+     */
+    private static String body(int size) {
+        char[] chars = new char[size];
+        Arrays.fill(chars, 'a');
+        for (int i=0; i<size; i+=16) {
+            chars[i] = '"';
+        }
+        return new String(chars);
+    }
+
+    @Benchmark
+    public String toJSON() {
+        return response.toJSON();
+    }
+
+    @Benchmark
+    public int writeJSON() throws IOException {
+        out.setLength(0);
+        response.writeJSON(out);
+        return out.length();
+    }
+
+    @Benchmark
+    public CoreResponse parse() throws CoreResponse.ParseException {
+        return CoreResponse.parse(json);
+    }
+}
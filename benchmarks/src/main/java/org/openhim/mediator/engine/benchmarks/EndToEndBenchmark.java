@@ -0,0 +1,179 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.engine.benchmarks;
+
+import akka.actor.ActorSelection;
+import akka.actor.UntypedActor;
+import org.apache.commons.io.IOUtils;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
+import org.glassfish.grizzly.http.server.HttpHandler;
+import org.glassfish.grizzly.http.server.HttpServer;
+import org.glassfish.grizzly.http.server.NetworkListener;
+import org.glassfish.grizzly.http.server.Request;
+import org.glassfish.grizzly.http.server.Response;
+import org.openhim.mediator.engine.MediatorConfig;
+import org.openhim.mediator.engine.MediatorServer;
+import org.openhim.mediator.engine.RoutingTable;
+import org.openhim.mediator.engine.messages.FinishRequest;
+import org.openhim.mediator.engine.messages.MediatorHTTPRequest;
+import org.openhim.mediator.engine.messages.MediatorHTTPResponse;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures request throughput through a running {@link MediatorServer}.
+ * <br/><br/>
+ * The <code>direct</code> benchmark hits a route that responds immediately, which measures the engine overhead alone.
+ * The <code>proxied</code> benchmark hits a route that forwards the request to an in-process stub upstream server
+ * using the http-connector, which is how most mediators are used.
+ * <br/><br/>
+ * Requests are sent over pooled keep-alive connections from several client threads. Sample time mode is included
+ * so that latency percentiles are reported along with the throughput.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(8)
+@State(Scope.Benchmark)
+public class EndToEndBenchmark {
+    private static final String HOST = "localhost";
+    private static final int MEDIATOR_PORT = 8532;
+    private static final int UPSTREAM_PORT = 8533;
+
+    @Param({"256", "16384"})
+    public int responseSize;
+
+    private HttpServer upstream;
+    private MediatorServer mediator;
+    private PoolingHttpClientConnectionManager connectionManager;
+    private CloseableHttpClient client;
+
+
+    @Setup
+    public void setup() throws Exception {
+        char[] chars = new char[responseSize];
+        Arrays.fill(chars, 'a');
+        final String body = new String(chars);
+
+        upstream = new HttpServer();
+        upstream.addListener(new NetworkListener("upstream", HOST, UPSTREAM_PORT));
+        upstream.getServerConfiguration().addHttpHandler(new HttpHandler() {
+            @Override
+            public void service(Request request, Response response) throws Exception {
+                response.setContentType("text/plain");
+                response.getWriter().write(body);
+            }
+        }, "/upstream");
+        upstream.start();
+
+        MediatorConfig config = new MediatorConfig("benchmark-mediator", HOST, MEDIATOR_PORT);
+        RoutingTable table = new RoutingTable();
+        table.addRoute("/direct", DirectActor.class);
+        table.addRoute("/proxied", ProxyActor.class);
+        config.setRoutingTable(table);
+        config.getDynamicConfig().put("body", body);
+
+        mediator = new MediatorServer(config);
+        mediator.start(false);
+
+        connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(64);
+        connectionManager.setDefaultMaxPerRoute(64);
+        client = HttpClientBuilder.create().setConnectionManager(connectionManager).build();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        IOUtils.closeQuietly(client);
+        mediator.stop();
+        upstream.shutdownNow();
+    }
+
+    private int execute(String path) throws IOException {
+        HttpGet get = new HttpGet("http://" + HOST + ":" + MEDIATOR_PORT + path);
+        try (CloseableHttpResponse response = client.execute(get)) {
+            EntityUtils.consume(response.getEntity());
+            return response.getStatusLine().getStatusCode();
+        }
+    }
+
+    @Benchmark
+    public int direct() throws IOException {
+        return execute("/direct");
+    }
+
+    @Benchmark
+    public int proxied() throws IOException {
+        return execute("/proxied");
+    }
+
+
+    public static class DirectActor extends UntypedActor {
+        private final String body;
+
+        public DirectActor(MediatorConfig config) {
+            this.body = (String) config.getDynamicConfig().get("body");
+        }
+
+        @Override
+        public void onReceive(Object msg) throws Exception {
+            if (msg instanceof MediatorHTTPRequest) {
+                FinishRequest fr = new FinishRequest(body, "text/plain", 200);
+                ((MediatorHTTPRequest) msg).getRequestHandler().tell(fr, getSelf());
+            } else {
+                unhandled(msg);
+            }
+        }
+    }
+
+    public static class ProxyActor extends UntypedActor {
+        private final MediatorConfig config;
+        private MediatorHTTPRequest originalRequest;
+
+        public ProxyActor(MediatorConfig config) {
+            this.config = config;
+        }
+
+        @Override
+        public void onReceive(Object msg) throws Exception {
+            if (msg instanceof MediatorHTTPRequest) {
+                originalRequest = (MediatorHTTPRequest) msg;
+                MediatorHTTPRequest upstreamRequest = new MediatorHTTPRequest(
+                        originalRequest.getRequestHandler(), getSelf(), "upstream", "GET", "http", HOST, UPSTREAM_PORT, "/upstream"
+                );
+                ActorSelection httpConnector = getContext().actorSelection(config.userPathFor("http-connector"));
+                httpConnector.tell(upstreamRequest, getSelf());
+            } else if (msg instanceof MediatorHTTPResponse) {
+                originalRequest.getRequestHandler().tell(((MediatorHTTPResponse) msg).toFinishRequest(), getSelf());
+            } else {
+                unhandled(msg);
+            }
+        }
+    }
+}
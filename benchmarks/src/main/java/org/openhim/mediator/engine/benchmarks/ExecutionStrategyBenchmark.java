@@ -0,0 +1,146 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.engine.benchmarks;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
+import org.glassfish.grizzly.http.server.HttpHandler;
+import org.glassfish.grizzly.http.server.HttpServer;
+import org.glassfish.grizzly.http.server.NetworkListener;
+import org.glassfish.grizzly.http.server.Request;
+import org.glassfish.grizzly.http.server.Response;
+import org.openhim.mediator.engine.MediatorConfig;
+import org.openhim.mediator.engine.MediatorServer;
+import org.openhim.mediator.engine.RoutingTable;
+import org.openhim.mediator.engine.ThreadPoolExecutionStrategy;
+import org.openhim.mediator.engine.VirtualThreadExecutionStrategy;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the execution strategies for blocking connector calls under a high number of concurrent requests.
+ * <br/><br/>
+ * Each request is proxied by the http-connector to an in-process stub upstream server that responds after
+ * <code>upstreamDelayMillis</code>, without holding a thread of its own. With the thread pool strategy, throughput
+ * is bounded by the size of the http-connector's pool; with virtual threads it should only be bounded by the
+ * number of client threads.
+ * <br/><br/>
+ * Virtual threads require Java 21 or later. On older JVMs the <code>virtual-thread</code> runs fall back to
+ * thread pools, so both strategies will give the same results.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@Threads(256)
+@State(Scope.Benchmark)
+public class ExecutionStrategyBenchmark {
+    private static final String HOST = "localhost";
+    private static final int MEDIATOR_PORT = 8534;
+    private static final int UPSTREAM_PORT = 8535;
+    private static final int MAX_CONNECTIONS = 1024;
+
+    @Param({"thread-pool", "virtual-thread"})
+    public String strategy;
+
+    @Param({"20"})
+    public int upstreamDelayMillis;
+
+    private ScheduledExecutorService upstreamScheduler;
+    private HttpServer upstream;
+    private MediatorServer mediator;
+    private PoolingHttpClientConnectionManager connectionManager;
+    private CloseableHttpClient client;
+
+
+    @Setup
+    public void setup() throws Exception {
+        upstreamScheduler = Executors.newScheduledThreadPool(4);
+        upstream = new HttpServer();
+        upstream.addListener(new NetworkListener("upstream", HOST, UPSTREAM_PORT));
+        upstream.getServerConfiguration().addHttpHandler(new HttpHandler() {
+            @Override
+            public void service(Request request, final Response response) throws Exception {
+                //respond after the delay without holding one of the server's threads
+                response.suspend();
+                upstreamScheduler.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            response.setContentType("text/plain");
+                            response.getWriter().write("ok");
+                        } catch (IOException e) {
+                            response.setStatus(500);
+                        } finally {
+                            response.resume();
+                        }
+                    }
+                }, upstreamDelayMillis, TimeUnit.MILLISECONDS);
+            }
+        }, "/upstream");
+        upstream.start();
+
+        MediatorConfig config = new MediatorConfig("benchmark-mediator", HOST, MEDIATOR_PORT);
+        RoutingTable table = new RoutingTable();
+        table.addRoute("/proxied", EndToEndBenchmark.ProxyActor.class);
+        config.setRoutingTable(table);
+        config.getHTTPConnectionPool().setMaxTotal(MAX_CONNECTIONS);
+        config.getHTTPConnectionPool().setMaxPerRoute(MAX_CONNECTIONS);
+        if ("virtual-thread".equals(strategy)) {
+            config.setExecutionStrategy(new VirtualThreadExecutionStrategy());
+        } else {
+            config.setExecutionStrategy(new ThreadPoolExecutionStrategy());
+        }
+
+        mediator = new MediatorServer(config);
+        mediator.start(false);
+
+        connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(MAX_CONNECTIONS);
+        connectionManager.setDefaultMaxPerRoute(MAX_CONNECTIONS);
+        client = HttpClientBuilder.create().setConnectionManager(connectionManager).build();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        IOUtils.closeQuietly(client);
+        mediator.stop();
+        upstream.shutdownNow();
+        upstreamScheduler.shutdownNow();
+    }
+
+    @Benchmark
+    public int proxied() throws IOException {
+        HttpGet get = new HttpGet("http://" + HOST + ":" + MEDIATOR_PORT + "/proxied");
+        try (CloseableHttpResponse response = client.execute(get)) {
+            EntityUtils.consume(response.getEntity());
+            return response.getStatusLine().getStatusCode();
+        }
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.engine.benchmarks;
+
+import org.openhim.mediator.engine.connectors.MLLPConnector;
+import org.openhim.mediator.engine.connectors.MLLPFrameDecoder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures MLLP frame decoding.
+ * <br/><br/>
+ * Each invocation decodes {@link #FRAMES} pipelined frames of <code>messageSize</code> bytes from a single stream.
+ * The <code>byteAtATime</code> benchmark reads the stream a byte at a time as a baseline for the bulk decoder.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MLLPFrameDecoderBenchmark {
+    private static final int FRAMES = 16;
+
+    @Param({"512", "8192", "65536"})
+    public int messageSize;
+
+    private byte[] stream;
+
+    @Setup
+    public void setup() {
+        StringBuilder message = new StringBuilder(messageSize);
+        message.append("MSH|^~\\&|SENDING|FACILITY|RECEIVING|FACILITY|20150101000000||ADT^A04|1|P|2.5\r");
+        while (message.length() < messageSize) {
+            message.append("OBX|1|ST|CODE^Observation||value||||||F\r");
+        }
+        message.setLength(messageSize);
+
+        String frame = MLLPConnector.wrapMLLP(message.toString());
+        StringBuilder frames = new StringBuilder(frame.length() * FRAMES);
+        for (int f=0; f<FRAMES; f++) {
+            frames.append(frame);
+        }
+        stream = frames.toString().getBytes();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public void decoder(Blackhole bh) throws IOException {
+        MLLPFrameDecoder decoder = new MLLPFrameDecoder(new ByteArrayInputStream(stream));
+        byte[] frame;
+        while ((frame = decoder.readFrame()) != null) {
+            bh.consume(frame);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public void byteAtATime(Blackhole bh) throws IOException {
+        InputStream in = new ByteArrayInputStream(stream);
+        StringBuilder frame = new StringBuilder();
+        int lastByte = -1;
+        int b;
+        while ((b = in.read()) != -1) {
+            frame.append((char) b);
+            if (lastByte == MLLPConnector.MLLP_FOOTER_FS && b == MLLPConnector.MLLP_FOOTER_CR) {
+                bh.consume(frame.toString());
+                frame.setLength(0);
+            }
+            lastByte = b;
+        }
+    }
+}
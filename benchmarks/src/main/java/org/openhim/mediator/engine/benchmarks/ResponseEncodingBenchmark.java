@@ -0,0 +1,118 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.engine.benchmarks;
+
+import org.openhim.mediator.engine.CoreResponse;
+import org.openhim.mediator.engine.messages.EncodedHTTPResponse;
+import org.openhim.mediator.engine.messages.MediatorHTTPResponse;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of encoding a response body and handing it to the server's output buffer.
+ * <br/><br/>
+ * The <code>string</code> benchmarks encode the body the way responses used to be written: once to compute the
+ * content length and again through the response writer. The <code>encoded</code> benchmarks encode the body once
+ * and copy the bytes into the output buffer. The output buffer is simulated by a reused byte buffer.
+ * <br/><br/>
+ * Run with JMH's GC profiler to report the bytes allocated per response (<code>gc.alloc.rate.norm</code>):
+ * <pre>java -jar target/benchmarks.jar ResponseEncoding -prof gc</pre>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ResponseEncodingBenchmark {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    @Param({"256", "16384"})
+    public int bodySize;
+
+    private String body;
+    private CoreResponse coreResponse;
+    private CharsetEncoder encoder;
+    private ByteBuffer outputBuffer;
+
+
+    @Setup
+    public void setup() {
+        char[] chars = new char[bodySize];
+        Arrays.fill(chars, 'a');
+        body = new String(chars);
+
+        CoreResponse.Response response = new CoreResponse.Response();
+        response.setStatus(200);
+        response.putHeader("Content-Type", "text/plain");
+        response.setBody(body);
+        coreResponse = new CoreResponse();
+        coreResponse.setStatus("Successful");
+        coreResponse.setResponse(response);
+
+        encoder = UTF8.newEncoder();
+        outputBuffer = ByteBuffer.allocate(coreResponse.toJSON().length() * 2);
+    }
+
+    private int writeChars(String s) {
+        outputBuffer.clear();
+        encoder.reset();
+        encoder.encode(CharBuffer.wrap(s), outputBuffer, true);
+        return outputBuffer.position();
+    }
+
+    private int writeBytes(ByteBuffer bytes) {
+        outputBuffer.clear();
+        outputBuffer.put(bytes);
+        return outputBuffer.position();
+    }
+
+    @Benchmark
+    public int stringBody() {
+        MediatorHTTPResponse response = new MediatorHTTPResponse(body, 200, Collections.<String, String>emptyMap());
+        int contentLength = response.getBody().getBytes(UTF8).length;
+        return contentLength + writeChars(response.getBody());
+    }
+
+    @Benchmark
+    public int encodedBody() {
+        MediatorHTTPResponse response = new MediatorHTTPResponse(body, 200, Collections.<String, String>emptyMap());
+        ByteBuffer bytes = response.getEncodedBody();
+        return bytes.remaining() + writeBytes(bytes);
+    }
+
+    @Benchmark
+    public int stringCoreResponse() {
+        String json = coreResponse.toJSON();
+        int contentLength = json.getBytes(UTF8).length;
+        return contentLength + writeChars(json);
+    }
+
+    @Benchmark
+    public int encodedCoreResponse() {
+        MediatorHTTPResponse response = new EncodedHTTPResponse(coreResponse.toJSONBytes(), 200, Collections.<String, String>emptyMap());
+        ByteBuffer bytes = response.getEncodedBody();
+        return bytes.remaining() + writeBytes(bytes);
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.engine.benchmarks;
+
+import akka.actor.UntypedActor;
+import org.openhim.mediator.engine.RoutingTable;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures route lookup cost as the routing table grows.
+ * <br/><br/>
+ * The table contains <code>routeCount</code> exact routes, followed by <code>routeCount</code> path templates
+ * and <code>routeCount</code> regex routes. Lookups for the last mapped routes are the worst case for a linear scan.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RoutingTableBenchmark {
+    private static final int DISTINCT_PATHS = 64;
+
+    @Param({"10", "100", "1000"})
+    public int routeCount;
+
+    private RoutingTable table;
+    private String[] exactPaths;
+    private String[] templatePaths;
+    private String[] regexPaths;
+    private String[] unmappedPaths;
+    private int i;
+
+    @Setup
+    public void setup() throws RoutingTable.RouteAlreadyMappedException {
+        table = new RoutingTable();
+        for (int r=0; r<routeCount; r++) {
+            table.addRoute("/exact/" + r, DummyActor.class);
+        }
+        for (int r=0; r<routeCount; r++) {
+            table.addTemplateRoute("/template" + r + "/{id}", DummyActor.class);
+        }
+        for (int r=0; r<routeCount; r++) {
+            table.addRegexRoute("/regex" + r + "/\\d+", DummyActor.class);
+        }
+
+        exactPaths = new String[DISTINCT_PATHS];
+        templatePaths = new String[DISTINCT_PATHS];
+        regexPaths = new String[DISTINCT_PATHS];
+        unmappedPaths = new String[DISTINCT_PATHS];
+        for (int p=0; p<DISTINCT_PATHS; p++) {
+            exactPaths[p] = "/exact/" + (routeCount - 1 - (p % routeCount));
+            templatePaths[p] = "/template" + (routeCount - 1) + "/patient-" + p;
+            regexPaths[p] = "/regex" + (routeCount - 1) + "/" + p;
+            unmappedPaths[p] = "/unmapped/" + p;
+        }
+    }
+
+    private int next() {
+        i = (i + 1) & (DISTINCT_PATHS - 1);
+        return i;
+    }
+
+    @Benchmark
+    public Object exactLookup() {
+        return table.getActorClassForPath(exactPaths[next()]);
+    }
+
+    @Benchmark
+    public Object templateLookup() {
+        return table.getActorClassForPath(templatePaths[next()]);
+    }
+
+    @Benchmark
+    public Object regexLookup() {
+        return table.getActorClassForPath(regexPaths[next()]);
+    }
+
+    @Benchmark
+    public Object unmappedLookup() {
+        return table.getActorClassForPath(unmappedPaths[next()]);
+    }
+
+
+    public static class DummyActor extends UntypedActor {
+        @Override
+        public void onReceive(Object msg) throws Exception {
+            unhandled(msg);
+        }
+    }
+}
@@ -6,12 +6,18 @@
 
 package org.openhim.mediator.engine;
 
-import com.google.gson.*;
+import com.google.gson.JsonIOException;
+import com.google.gson.JsonParseException;
 import com.google.gson.annotations.SerializedName;
-import org.joda.time.format.ISODateTimeFormat;
+import org.openhim.mediator.engine.json.JSON;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
 import java.io.Serializable;
-import java.lang.reflect.Type;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
@@ -23,6 +29,7 @@ import java.util.Map;
  */
 public class CoreResponse implements Serializable {
     private static final long serialVersionUID = 792029209702844889L;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
 
     public static class Request implements Serializable {
         private static final long serialVersionUID = 8237061791963580185L;
@@ -264,7 +271,37 @@ public class CoreResponse implements Serializable {
     }
 
     public String toJSON() {
-        return new GsonBuilder().setDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ").create().toJson(this);
+        return JSON.getGson().toJson(this);
+    }
+
+    /**
+     * Write the JSON representation of the response directly to a writer,
+     * without building an intermediate string.
+     */
+    public void writeJSON(Appendable writer) throws IOException {
+        try {
+            JSON.getGson().toJson(this, CoreResponse.class, writer);
+        } catch (JsonIOException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw ex;
+        }
+    }
+
+    /**
+     * Serialize the response straight to UTF-8 encoded JSON, without building an intermediate string.
+     * The returned buffer wraps the serialized bytes without copying them.
+     */
+    public ByteBuffer toJSONBytes() {
+        EncodedJSON out = new EncodedJSON();
+        try (Writer writer = new OutputStreamWriter(out, UTF8)) {
+            writeJSON(writer);
+        } catch (IOException ex) {
+            //not thrown when writing to memory
+            throw new IllegalStateException(ex);
+        }
+        return out.toByteBuffer();
     }
 
     @Override
@@ -272,33 +309,20 @@ public class CoreResponse implements Serializable {
         return toJSON();
     }
 
+    private static class EncodedJSON extends ByteArrayOutputStream {
+        EncodedJSON() {
+            super(1024);
+        }
 
-    public static CoreResponse parse(String content) throws ParseException {
-        try {
-            //get gson builder and setup with a custom date parser
-            Gson gson = new GsonBuilder().registerTypeAdapter(Date.class, new JsonDeserializer<Date>() {
-                @Override
-                public Date deserialize(final JsonElement json, final Type typeOfT, final JsonDeserializationContext context) throws JsonParseException {
-                    //try parse as millis
-                    try {
-                        long value = json.getAsLong();
-                        return new Date(value);
-                    } catch (NumberFormatException ex) {
-                        //not a long
-                    }
-
-                    //try parse as ISO date
-                    try {
-                        String value = json.getAsString();
-                        return ISODateTimeFormat.dateTime().parseDateTime(value).toDate();
-                    } catch (IllegalArgumentException ex) {
-                        throw new JsonParseException(ex);
-                    }
-                }
-            }).create();
+        ByteBuffer toByteBuffer() {
+            return ByteBuffer.wrap(buf, 0, count);
+        }
+    }
 
-            return gson.fromJson(content, CoreResponse.class);
 
+    public static CoreResponse parse(String content) throws ParseException {
+        try {
+            return JSON.getGson().fromJson(content, CoreResponse.class);
         } catch (JsonParseException ex) {
             throw new ParseException(ex);
         }
@@ -0,0 +1,42 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.engine;
+
+import org.openhim.mediator.engine.metrics.MetricsRegistry;
+import scala.concurrent.ExecutionContext;
+
+/**
+ * Decides which threads run the blocking work of the engine: the I/O of the connectors, and the writing of
+ * responses to clients once a request has been handled.
+ * <br/><br/>
+ * Each component creates an {@link Executor} when it starts and shuts it down when it stops.
+ *
+ * @see ThreadPoolExecutionStrategy
+ * @see VirtualThreadExecutionStrategy
+ * @see MediatorConfig#setExecutionStrategy(ExecutionStrategy)
+ */
+public interface ExecutionStrategy {
+
+    interface Executor {
+        /**
+         * @return the execution context for blocking work
+         */
+        ExecutionContext getExecutionContext();
+
+        void shutdown();
+    }
+
+    /**
+     * Create an executor for a component.
+     *
+     * @param name The name of the component, used to name its threads and metrics
+     * @param config The thread pool configuration for the component, or null if it has none
+     * @param metrics The registry for the executor's metrics
+     * @param dispatcher The dispatcher of the component's actor, for strategies that don't use their own threads
+     */
+    Executor newExecutor(String name, MediatorConfig.ConnectorDispatcher config, MetricsRegistry metrics, ExecutionContext dispatcher);
+}
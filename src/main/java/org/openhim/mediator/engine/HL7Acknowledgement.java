@@ -0,0 +1,159 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.engine;
+
+import org.joda.time.DateTime;
+import org.joda.time.format.DateTimeFormat;
+import org.joda.time.format.DateTimeFormatter;
+
+import java.util.UUID;
+import java.util.regex.Pattern;
+
+/**
+ * Generates HL7v2 acknowledgement messages for the inbound MLLP listener.
+ */
+public class HL7Acknowledgement {
+    /**
+     * Application Accept
+     */
+    public static final String AA = "AA";
+    /**
+     * Application Error
+     */
+    public static final String AE = "AE";
+    /**
+     * Application Reject
+     */
+    public static final String AR = "AR";
+
+    private static final DateTimeFormatter TIMESTAMP = DateTimeFormat.forPattern("yyyyMMddHHmmss");
+    private static final int MAX_TEXT_LENGTH = 80;
+
+    private HL7Acknowledgement() {}
+
+
+    /**
+     * @return true if the message is an HL7v2 message, i.e. if it starts with an MSH segment
+     */
+    public static boolean isHL7(String message) {
+        return message!=null && message.trim().startsWith("MSH") && message.trim().length() > 8;
+    }
+
+    /**
+     * Map an HTTP status to an acknowledgement code: 2xx and 3xx statuses are accepted (AA),
+     * 4xx statuses indicate an error in the message (AE) and any other status indicates that the message
+     * could not be processed (AR).
+     */
+    public static String codeForStatus(Integer status) {
+        if (status==null || status >= 500) {
+            return AR;
+        }
+        return status >= 400 ? AE : AA;
+    }
+
+    /**
+     * Generate an ACK message in response to a message. The sender and receiver fields of the original MSH segment
+     * are swapped and MSA-2 is set to the original message control id.
+     *
+     * @param message The original message
+     * @param code The acknowledgement code
+     * @param text An optional text message (MSA-3)
+     */
+    public static String generate(String message, String code, String text) {
+        char fieldSep = '|';
+        String encodingChars = "^~\\&";
+        String[] msh = new String[0];
+
+        if (isHL7(message)) {
+            String trimmed = message.trim();
+            fieldSep = trimmed.charAt(3);
+            int end = segmentEnd(trimmed);
+            msh = trimmed.substring(0, end).split(Pattern.quote(String.valueOf(fieldSep)), -1);
+            if (msh.length > 1 && !msh[1].isEmpty()) {
+                encodingChars = msh[1];
+            }
+        }
+        char componentSep = encodingChars.charAt(0);
+
+        String trigger = "";
+        String messageType = field(msh, 9);
+        int c1 = messageType.indexOf(componentSep);
+        if (c1 != -1) {
+            int c2 = messageType.indexOf(componentSep, c1 + 1);
+            trigger = c2 != -1 ? messageType.substring(c1 + 1, c2) : messageType.substring(c1 + 1);
+        }
+
+        StringBuilder ack = new StringBuilder();
+        ack.append("MSH").append(fieldSep).append(encodingChars)
+                .append(fieldSep).append(field(msh, 5))
+                .append(fieldSep).append(field(msh, 6))
+                .append(fieldSep).append(field(msh, 3))
+                .append(fieldSep).append(field(msh, 4))
+                .append(fieldSep).append(TIMESTAMP.print(new DateTime()))
+                .append(fieldSep)
+                .append(fieldSep).append("ACK").append(componentSep).append(trigger).append(componentSep).append("ACK")
+                .append(fieldSep).append(UUID.randomUUID().toString().replace("-", "").substring(0, 20))
+                .append(fieldSep).append(field(msh, 11).isEmpty() ? "P" : field(msh, 11))
+                .append(fieldSep).append(field(msh, 12).isEmpty() ? "2.5" : field(msh, 12))
+                .append('\r');
+
+        ack.append("MSA").append(fieldSep).append(code).append(fieldSep).append(field(msh, 10));
+        if (text!=null && !text.isEmpty()) {
+            ack.append(fieldSep).append(escape(truncate(text), fieldSep, encodingChars));
+        }
+        ack.append('\r');
+
+        return ack.toString();
+    }
+
+    private static int segmentEnd(String message) {
+        for (int i=0; i<message.length(); i++) {
+            if (message.charAt(i)=='\r' || message.charAt(i)=='\n') {
+                return i;
+            }
+        }
+        return message.length();
+    }
+
+    /**
+     * @return MSH-n, where MSH-1 is the field separator
+     */
+    private static String field(String[] msh, int n) {
+        return n-1 < msh.length ? msh[n-1] : "";
+    }
+
+    private static String truncate(String text) {
+        text = text.replace('\r', ' ').replace('\n', ' ');
+        return text.length() > MAX_TEXT_LENGTH ? text.substring(0, MAX_TEXT_LENGTH) : text;
+    }
+
+    private static String escape(String text, char fieldSep, String encodingChars) {
+        char escapeChar = encodingChars.length() > 2 ? encodingChars.charAt(2) : '\\';
+        StringBuilder sb = new StringBuilder(text.length());
+        for (char c : text.toCharArray()) {
+            String seq = null;
+            if (c==fieldSep) {
+                seq = "F";
+            } else if (c==encodingChars.charAt(0)) {
+                seq = "S";
+            } else if (encodingChars.length() > 1 && c==encodingChars.charAt(1)) {
+                seq = "R";
+            } else if (c==escapeChar) {
+                seq = "E";
+            } else if (encodingChars.length() > 3 && c==encodingChars.charAt(3)) {
+                seq = "T";
+            }
+
+            if (seq!=null) {
+                sb.append(escapeChar).append(seq).append(escapeChar);
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+}
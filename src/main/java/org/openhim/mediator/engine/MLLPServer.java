@@ -0,0 +1,195 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.engine;
+
+import akka.actor.ActorRef;
+import org.glassfish.grizzly.Buffer;
+import org.glassfish.grizzly.Connection;
+import org.glassfish.grizzly.attributes.Attribute;
+import org.glassfish.grizzly.attributes.AttributeBuilder;
+import org.glassfish.grizzly.filterchain.BaseFilter;
+import org.glassfish.grizzly.filterchain.FilterChainBuilder;
+import org.glassfish.grizzly.filterchain.FilterChainContext;
+import org.glassfish.grizzly.filterchain.NextAction;
+import org.glassfish.grizzly.filterchain.TransportFilter;
+import org.glassfish.grizzly.memory.Buffers;
+import org.glassfish.grizzly.nio.transport.TCPNIOTransport;
+import org.glassfish.grizzly.nio.transport.TCPNIOTransportBuilder;
+import org.openhim.mediator.engine.connectors.MLLPConnector;
+import org.openhim.mediator.engine.messages.GrizzlyMLLPRequest;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The mediator engine MLLP server.
+ * <br/><br/>
+ * Inbound messages are framed using non-blocking IO and passed to the root actor as {@link GrizzlyMLLPRequest}
+ * messages. Responses are written back to the sender in the order that the messages were received,
+ * so senders may pipeline messages on a connection.
+ *
+ * @see MediatorConfig.MLLPListener
+ */
+public class MLLPServer {
+    private static final Attribute<Integer> SCANNED_BYTES =
+            AttributeBuilder.DEFAULT_ATTRIBUTE_BUILDER.createAttribute("MLLPServer.scannedBytes");
+    private static final Attribute<ResponseSequence> RESPONSE_SEQUENCE =
+            AttributeBuilder.DEFAULT_ATTRIBUTE_BUILDER.createAttribute("MLLPServer.responseSequence");
+
+    /**
+     * Splits the inbound byte stream into MLLP frames
+     */
+    private static class MLLPFrameFilter extends BaseFilter {
+        private final int maxMessageSize;
+
+        MLLPFrameFilter(int maxMessageSize) {
+            this.maxMessageSize = maxMessageSize;
+        }
+
+        @Override
+        public NextAction handleRead(FilterChainContext ctx) throws IOException {
+            Connection<?> connection = ctx.getConnection();
+            Buffer buffer = ctx.getMessage();
+
+            //don't rescan bytes that were already scanned when the frame was incomplete
+            Integer scanned = SCANNED_BYTES.remove(connection);
+            int from = buffer.position() + (scanned != null ? scanned : 0);
+
+            int frameEnd = -1;
+            for (int i=from; i<buffer.limit()-1; i++) {
+                if (buffer.get(i)==MLLPConnector.MLLP_FOOTER_FS && buffer.get(i+1)==MLLPConnector.MLLP_FOOTER_CR) {
+                    frameEnd = i + 2;
+                    break;
+                }
+            }
+
+            if (frameEnd == -1) {
+                if (buffer.remaining() > maxMessageSize) {
+                    throw new IOException("Message exceeds the maximum size of " + maxMessageSize + " bytes");
+                }
+                SCANNED_BYTES.set(connection, Math.max(0, buffer.remaining() - 1));
+                return ctx.getStopAction(buffer);
+            }
+
+            Buffer remainder = frameEnd < buffer.limit() ? buffer.split(frameEnd) : null;
+            ctx.setMessage(buffer);
+            return ctx.getInvokeAction(remainder);
+        }
+    }
+
+    /**
+     * Ensures that responses are written in the same order as the messages were received on a connection
+     */
+    private static class ResponseSequence {
+        private final Connection<?> connection;
+        private long nextReceived = 0;
+        private long nextToWrite = 0;
+        private final Map<Long, Buffer> pending = new HashMap<>();
+
+        ResponseSequence(Connection<?> connection) {
+            this.connection = connection;
+        }
+
+        synchronized long next() {
+            return nextReceived++;
+        }
+
+        @SuppressWarnings("unchecked")
+        synchronized void write(long sequence, Buffer response) {
+            pending.put(sequence, response);
+            Buffer next;
+            while ((next = pending.remove(nextToWrite)) != null) {
+                connection.write(next);
+                nextToWrite++;
+            }
+        }
+    }
+
+    /**
+     * Decodes frames and dispatches them to the root actor
+     */
+    private class MLLPMessageFilter extends BaseFilter {
+        @Override
+        public NextAction handleRead(FilterChainContext ctx) throws IOException {
+            final Connection<?> connection = ctx.getConnection();
+            Buffer frame = ctx.getMessage();
+
+            //strip the header and footer, as well as anything before the header
+            int start = frame.position();
+            while (start < frame.limit() && frame.get(start)!=MLLPConnector.MLLP_HEADER_VT) {
+                start++;
+            }
+            String message = "";
+            if (start < frame.limit()) {
+                message = frame.toStringContent(charset, start + 1, frame.limit() - 2);
+            }
+            frame.tryDispose();
+
+            ResponseSequence sequence = RESPONSE_SEQUENCE.get(connection);
+            if (sequence == null) {
+                sequence = new ResponseSequence(connection);
+                RESPONSE_SEQUENCE.set(connection, sequence);
+            }
+            final ResponseSequence responseSequence = sequence;
+            final long seq = sequence.next();
+
+            InetSocketAddress local = (InetSocketAddress) connection.getLocalAddress();
+            rootActor.tell(new GrizzlyMLLPRequest(message, local.getHostString(), local.getPort(), new GrizzlyMLLPRequest.ResponseHandle() {
+                @Override
+                public void respond(String response) {
+                    byte[] bytes = MLLPConnector.wrapMLLP(response).getBytes(charset);
+                    responseSequence.write(seq, Buffers.wrap(connection.getMemoryManager(), bytes));
+                }
+            }), ActorRef.noSender());
+
+            return ctx.getStopAction();
+        }
+    }
+
+
+    private final MediatorConfig.MLLPListener config;
+    private final String host;
+    private final ActorRef rootActor;
+    private final Charset charset;
+    private final TCPNIOTransport transport;
+
+
+    /**
+     * @param defaultHost The host to listen on if the listener config doesn't specify one
+     */
+    public MLLPServer(MediatorConfig.MLLPListener config, String defaultHost, ActorRef rootActor) {
+        this.config = config;
+        this.host = config.getHost() != null ? config.getHost() : defaultHost;
+        this.rootActor = rootActor;
+        this.charset = Charset.forName(config.getCharset());
+
+        FilterChainBuilder filterChainBuilder = FilterChainBuilder.stateless();
+        filterChainBuilder.add(new TransportFilter());
+        filterChainBuilder.add(new MLLPFrameFilter(config.getMaxMessageSize()));
+        filterChainBuilder.add(new MLLPMessageFilter());
+
+        transport = TCPNIOTransportBuilder.newInstance().build();
+        transport.setProcessor(filterChainBuilder.build());
+    }
+
+
+    public void start() throws IOException {
+        transport.bind(host, config.getPort());
+        transport.start();
+    }
+
+    public void stop() {
+        try {
+            transport.shutdownNow();
+        } catch (IOException ex) {
+            //ignore
+        }
+    }
+}
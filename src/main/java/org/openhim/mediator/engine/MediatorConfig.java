@@ -7,10 +7,14 @@
 package org.openhim.mediator.engine;
 
 import org.apache.commons.io.IOUtils;
+import org.openhim.mediator.engine.metrics.MetricsRegistry;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 
@@ -121,11 +125,1017 @@ public class MediatorConfig {
         }
     }
 
+    /**
+     * Connection pooling configuration for the http-connector.
+     *
+     * The http-connector keeps a single long-lived pool of connections that is shared by all requests,
+     * so that connections (and TLS sessions) to the same host can be reused across orchestrations.
+     *
+     * @see MediatorConfig#setHTTPConnectionPool(HTTPConnectionPool)
+     */
+    public static class HTTPConnectionPool {
+        private int maxTotal = 200;
+        private int maxPerRoute = 20;
+        private long keepAliveMillis = 30000;
+        private long maxIdleMillis = 60000;
+        private int validateAfterInactivityMillis = 2000;
+
+        /**
+         * @see #setMaxTotal(int)
+         */
+        public int getMaxTotal() {
+            return maxTotal;
+        }
+
+        /**
+         * The maximum number of connections in the pool. Defaults to 200.
+         */
+        public void setMaxTotal(int maxTotal) {
+            this.maxTotal = maxTotal;
+        }
+
+        /**
+         * @see #setMaxPerRoute(int)
+         */
+        public int getMaxPerRoute() {
+            return maxPerRoute;
+        }
+
+        /**
+         * The maximum number of connections per route (scheme, host and port). Defaults to 20.
+         */
+        public void setMaxPerRoute(int maxPerRoute) {
+            this.maxPerRoute = maxPerRoute;
+        }
+
+        /**
+         * @see #setKeepAliveMillis(long)
+         */
+        public long getKeepAliveMillis() {
+            return keepAliveMillis;
+        }
+
+        /**
+         * How long a connection may be kept alive if the server does not specify a 'Keep-Alive' timeout.
+         * Defaults to 30 seconds.
+         */
+        public void setKeepAliveMillis(long keepAliveMillis) {
+            this.keepAliveMillis = keepAliveMillis;
+        }
+
+        /**
+         * @see #setMaxIdleMillis(long)
+         */
+        public long getMaxIdleMillis() {
+            return maxIdleMillis;
+        }
+
+        /**
+         * Idle connections will be evicted from the pool after this time. Defaults to 60 seconds.
+         */
+        public void setMaxIdleMillis(long maxIdleMillis) {
+            this.maxIdleMillis = maxIdleMillis;
+        }
+
+        /**
+         * @see #setValidateAfterInactivityMillis(int)
+         */
+        public int getValidateAfterInactivityMillis() {
+            return validateAfterInactivityMillis;
+        }
+
+        /**
+         * Pooled connections that have been inactive for longer than this period will be checked
+         * for staleness before being reused. Defaults to 2 seconds.
+         */
+        public void setValidateAfterInactivityMillis(int validateAfterInactivityMillis) {
+            this.validateAfterInactivityMillis = validateAfterInactivityMillis;
+        }
+    }
+
+    /**
+     * Configuration for the http-connector response cache.
+     *
+     * If enabled, responses to GET requests are cached according to their <code>Cache-Control</code>,
+     * <code>Expires</code>, <code>ETag</code> and <code>Last-Modified</code> headers. Fresh responses are served
+     * from the cache, and stale responses with validators are revalidated with a conditional request.
+     * Responses are cached per URI and the values of the configured key headers.
+     * The least recently used responses are evicted once the cache is full.
+     *
+     * @see MediatorConfig#setHTTPResponseCache(HTTPResponseCache)
+     */
+    public static class HTTPResponseCache {
+        private boolean enabled = false;
+        private int maxEntries = 1000;
+        private long maxBytes = 32 * 1024 * 1024;
+        private List<String> keyHeaders = new ArrayList<>(Arrays.asList("Accept", "Accept-Language", "Authorization"));
+
+        /**
+         * @see #setEnabled(boolean)
+         */
+        public boolean getEnabled() {
+            return enabled;
+        }
+
+        /**
+         * Enable the response cache. Disabled by default.
+         */
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        /**
+         * @see #setMaxEntries(int)
+         */
+        public int getMaxEntries() {
+            return maxEntries;
+        }
+
+        /**
+         * The maximum number of cached responses. Defaults to 1000.
+         */
+        public void setMaxEntries(int maxEntries) {
+            this.maxEntries = maxEntries;
+        }
+
+        /**
+         * @see #setMaxBytes(long)
+         */
+        public long getMaxBytes() {
+            return maxBytes;
+        }
+
+        /**
+         * The maximum total size of the cached response bodies, in bytes when encoded in their declared charset
+         * (or UTF-8). Defaults to 32 MB.
+         */
+        public void setMaxBytes(long maxBytes) {
+            this.maxBytes = maxBytes;
+        }
+
+        /**
+         * @see #setKeyHeaders(List)
+         */
+        public List<String> getKeyHeaders() {
+            return keyHeaders;
+        }
+
+        /**
+         * The request headers that distinguish cached responses for the same URI.
+         * Defaults to <code>Accept</code>, <code>Accept-Language</code> and <code>Authorization</code>.
+         * Responses that <code>Vary</code> on other headers are still cached, but are only used for requests
+         * with the same values for those headers.
+         */
+        public void setKeyHeaders(List<String> keyHeaders) {
+            this.keyHeaders = keyHeaders;
+        }
+    }
+
+    /**
+     * Circuit breaker configuration for the http-connector and mllp-connector.
+     *
+     * If enabled, the connectors track the outcome of the calls to each upstream host. Once the rate of failed or
+     * slow calls over the last <code>windowSize</code> calls reaches the configured thresholds, the circuit is opened
+     * and calls to the host fail immediately for <code>openDurationMillis</code>. After that a limited number of
+     * probe calls are let through: if they all succeed the circuit is closed again, else it is reopened.
+     *
+     * @see MediatorConfig#setCircuitBreaker(CircuitBreaker)
+     */
+    public static class CircuitBreaker {
+        private boolean enabled = false;
+        private int failureRateThreshold = 50;
+        private int slowCallRateThreshold = 100;
+        private long slowCallDurationMillis = 10000;
+        private int windowSize = 100;
+        private int minimumCalls = 20;
+        private long openDurationMillis = 30000;
+        private int halfOpenCalls = 5;
+
+        /**
+         * @see #setEnabled(boolean)
+         */
+        public boolean getEnabled() {
+            return enabled;
+        }
+
+        /**
+         * Enable the circuit breakers. Disabled by default.
+         */
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        /**
+         * @see #setFailureRateThreshold(int)
+         */
+        public int getFailureRateThreshold() {
+            return failureRateThreshold;
+        }
+
+        /**
+         * The percentage of failed calls at which the circuit is opened. Calls fail if no response is received,
+         * or for HTTP, if the response has a 5xx status. Defaults to 50.
+         */
+        public void setFailureRateThreshold(int failureRateThreshold) {
+            this.failureRateThreshold = failureRateThreshold;
+        }
+
+        /**
+         * @see #setSlowCallRateThreshold(int)
+         */
+        public int getSlowCallRateThreshold() {
+            return slowCallRateThreshold;
+        }
+
+        /**
+         * The percentage of slow calls at which the circuit is opened. Defaults to 100.
+         *
+         * @see #setSlowCallDurationMillis(long)
+         */
+        public void setSlowCallRateThreshold(int slowCallRateThreshold) {
+            this.slowCallRateThreshold = slowCallRateThreshold;
+        }
+
+        /**
+         * @see #setSlowCallDurationMillis(long)
+         */
+        public long getSlowCallDurationMillis() {
+            return slowCallDurationMillis;
+        }
+
+        /**
+         * Calls that take longer than this are considered slow. Defaults to 10000 ms.
+         */
+        public void setSlowCallDurationMillis(long slowCallDurationMillis) {
+            this.slowCallDurationMillis = slowCallDurationMillis;
+        }
+
+        /**
+         * @see #setWindowSize(int)
+         */
+        public int getWindowSize() {
+            return windowSize;
+        }
+
+        /**
+         * The number of most recent calls to each host that the failure and slow call rates are calculated over.
+         * Defaults to 100.
+         */
+        public void setWindowSize(int windowSize) {
+            this.windowSize = windowSize;
+        }
+
+        /**
+         * @see #setMinimumCalls(int)
+         */
+        public int getMinimumCalls() {
+            return minimumCalls;
+        }
+
+        /**
+         * The minimum number of calls to a host before its circuit can be opened. Defaults to 20.
+         */
+        public void setMinimumCalls(int minimumCalls) {
+            this.minimumCalls = minimumCalls;
+        }
+
+        /**
+         * @see #setOpenDurationMillis(long)
+         */
+        public long getOpenDurationMillis() {
+            return openDurationMillis;
+        }
+
+        /**
+         * How long a circuit stays open before probe calls are let through. Defaults to 30000 ms.
+         */
+        public void setOpenDurationMillis(long openDurationMillis) {
+            this.openDurationMillis = openDurationMillis;
+        }
+
+        /**
+         * @see #setHalfOpenCalls(int)
+         */
+        public int getHalfOpenCalls() {
+            return halfOpenCalls;
+        }
+
+        /**
+         * The number of probe calls that must succeed before a circuit is closed again. Defaults to 5.
+         */
+        public void setHalfOpenCalls(int halfOpenCalls) {
+            this.halfOpenCalls = halfOpenCalls;
+        }
+    }
+
+    /**
+     * Bulkhead configuration for the http-connector and mllp-connector.
+     *
+     * If enabled, the number of concurrent calls to each upstream host is limited, and calls over the limit fail
+     * immediately rather than waiting, so that a slow host can't tie up the threads used for calls to other hosts.
+     *
+     * @see MediatorConfig#setBulkhead(Bulkhead)
+     */
+    public static class Bulkhead {
+        private boolean enabled = false;
+        private int maxConcurrentCalls = 50;
+
+        /**
+         * @see #setEnabled(boolean)
+         */
+        public boolean getEnabled() {
+            return enabled;
+        }
+
+        /**
+         * Enable the bulkheads. Disabled by default.
+         */
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        /**
+         * @see #setMaxConcurrentCalls(int)
+         */
+        public int getMaxConcurrentCalls() {
+            return maxConcurrentCalls;
+        }
+
+        /**
+         * The maximum number of concurrent calls to each host, per connector. Defaults to 50.
+         */
+        public void setMaxConcurrentCalls(int maxConcurrentCalls) {
+            this.maxConcurrentCalls = maxConcurrentCalls;
+        }
+    }
+
+    /**
+     * Timeout configuration for the http-connector and mllp-connector.
+     *
+     * These timeouts apply to all outbound calls, unless a shorter timeout is set on the request
+     * or the deadline of the request being handled is sooner.
+     *
+     * @see MediatorConfig#setConnectorTimeouts(ConnectorTimeouts)
+     * @see org.openhim.mediator.engine.messages.MediatorRequestMessage#getTimeoutMillis()
+     */
+    public static class ConnectorTimeouts {
+        private int connectTimeoutMillis = 10000;
+        private int socketTimeoutMillis = 60000;
+
+        /**
+         * @see #setConnectTimeoutMillis(int)
+         */
+        public int getConnectTimeoutMillis() {
+            return connectTimeoutMillis;
+        }
+
+        /**
+         * The maximum time to wait for a connection to be established. Defaults to 10000 ms.
+         */
+        public void setConnectTimeoutMillis(int connectTimeoutMillis) {
+            this.connectTimeoutMillis = connectTimeoutMillis;
+        }
+
+        /**
+         * @see #setSocketTimeoutMillis(int)
+         */
+        public int getSocketTimeoutMillis() {
+            return socketTimeoutMillis;
+        }
+
+        /**
+         * The maximum time to wait for data from the server once connected. Defaults to 60000 ms.
+         */
+        public void setSocketTimeoutMillis(int socketTimeoutMillis) {
+            this.socketTimeoutMillis = socketTimeoutMillis;
+        }
+    }
+
+    /**
+     * Configuration for the threads that a connector uses for blocking I/O.
+     *
+     * By default each connector runs its blocking calls on its own fixed size thread pool, so that slow upstream
+     * systems can't starve the dispatcher that processes actor messages. Calls are queued while all threads are busy.
+     * This configuration is ignored by the {@link VirtualThreadExecutionStrategy}.
+     *
+     * @see MediatorConfig#setHTTPConnectorDispatcher(ConnectorDispatcher)
+     * @see MediatorConfig#setMLLPConnectorDispatcher(ConnectorDispatcher)
+     * @see MediatorConfig#setUDPConnectorDispatcher(ConnectorDispatcher)
+     */
+    public static class ConnectorDispatcher {
+        private boolean enabled = true;
+        private int threads;
+        private long keepAliveMillis = 60000;
+
+        public ConnectorDispatcher() {
+            this(16);
+        }
+
+        public ConnectorDispatcher(int threads) {
+            this.threads = threads;
+        }
+
+        /**
+         * @see #setEnabled(boolean)
+         */
+        public boolean getEnabled() {
+            return enabled;
+        }
+
+        /**
+         * Run blocking calls on a dedicated thread pool. If disabled, they are run on the actor's dispatcher.
+         * Enabled by default.
+         */
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        /**
+         * @see #setThreads(int)
+         */
+        public int getThreads() {
+            return threads;
+        }
+
+        /**
+         * The maximum number of concurrent blocking calls. Defaults to 64 for the http-connector,
+         * 32 for the mllp-connector and 4 for the udp-fire-forget-connector.
+         */
+        public void setThreads(int threads) {
+            this.threads = threads;
+        }
+
+        /**
+         * @see #setKeepAliveMillis(long)
+         */
+        public long getKeepAliveMillis() {
+            return keepAliveMillis;
+        }
+
+        /**
+         * How long idle threads are kept before they are stopped. Defaults to 60000 ms.
+         */
+        public void setKeepAliveMillis(long keepAliveMillis) {
+            this.keepAliveMillis = keepAliveMillis;
+        }
+    }
+
+    /**
+     * Configuration for the non-blocking http-connector.
+     *
+     * By default the http-connector uses a blocking HTTP client, and each outstanding call holds one of the threads
+     * configured by {@link MediatorConfig#setHTTPConnectorDispatcher(ConnectorDispatcher)}. If enabled, the
+     * http-connector is replaced by {@link org.openhim.mediator.engine.connectors.AsyncHTTPConnector}, which sends
+     * requests and reads responses on a few selector threads without waiting for them. Connections are pooled using
+     * the {@link HTTPConnectionPool} configuration.
+     *
+     * @see MediatorConfig#setNonBlockingHTTP(NonBlockingHTTP)
+     */
+    public static class NonBlockingHTTP {
+        private boolean enabled = false;
+        private int ioThreads = Runtime.getRuntime().availableProcessors();
+
+        /**
+         * @see #setEnabled(boolean)
+         */
+        public boolean getEnabled() {
+            return enabled;
+        }
+
+        /**
+         * Use the non-blocking http-connector. Disabled by default.
+         */
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        /**
+         * @see #setIOThreads(int)
+         */
+        public int getIOThreads() {
+            return ioThreads;
+        }
+
+        /**
+         * The number of selector threads that send requests and read responses.
+         * Defaults to the number of available processors.
+         */
+        public void setIOThreads(int ioThreads) {
+            this.ioThreads = ioThreads;
+        }
+    }
+
+    /**
+     * Connection pooling configuration for the mllp-connector.
+     *
+     * By default the mllp-connector opens a new connection for every message. If enabled, connections to the same
+     * endpoint are kept open and reused, and optionally several messages may be pipelined on a single connection.
+     * Only enable this for endpoints that support persistent MLLP connections.
+     *
+     * @see MediatorConfig#setMLLPConnectionPool(MLLPConnectionPool)
+     */
+    public static class MLLPConnectionPool {
+        private boolean enabled = false;
+        private int maxPerEndpoint = 4;
+        private int maxPipelinedMessages = 1;
+        private long maxIdleMillis = 60000;
+        private long acquireTimeoutMillis = 30000;
+
+        /**
+         * @see #setEnabled(boolean)
+         */
+        public boolean getEnabled() {
+            return enabled;
+        }
+
+        /**
+         * Enable persistent, pooled connections. Disabled by default.
+         */
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        /**
+         * @see #setMaxPerEndpoint(int)
+         */
+        public int getMaxPerEndpoint() {
+            return maxPerEndpoint;
+        }
+
+        /**
+         * The maximum number of connections per endpoint (host, port and security). Defaults to 4.
+         */
+        public void setMaxPerEndpoint(int maxPerEndpoint) {
+            this.maxPerEndpoint = maxPerEndpoint;
+        }
+
+        /**
+         * @see #setMaxPipelinedMessages(int)
+         */
+        public int getMaxPipelinedMessages() {
+            return maxPipelinedMessages;
+        }
+
+        /**
+         * The maximum number of messages that may be sent on a connection before their responses have been received.
+         * Responses are matched to messages in the order that they were sent.
+         * Defaults to 1, i.e. no pipelining.
+         */
+        public void setMaxPipelinedMessages(int maxPipelinedMessages) {
+            this.maxPipelinedMessages = maxPipelinedMessages;
+        }
+
+        /**
+         * @see #setMaxIdleMillis(long)
+         */
+        public long getMaxIdleMillis() {
+            return maxIdleMillis;
+        }
+
+        /**
+         * Idle connections will be closed after this time. Defaults to 60 seconds.
+         */
+        public void setMaxIdleMillis(long maxIdleMillis) {
+            this.maxIdleMillis = maxIdleMillis;
+        }
+
+        /**
+         * @see #setAcquireTimeoutMillis(long)
+         */
+        public long getAcquireTimeoutMillis() {
+            return acquireTimeoutMillis;
+        }
+
+        /**
+         * How long a message may wait for a connection if all connections to the endpoint are busy.
+         * Defaults to 30 seconds.
+         */
+        public void setAcquireTimeoutMillis(long acquireTimeoutMillis) {
+            this.acquireTimeoutMillis = acquireTimeoutMillis;
+        }
+    }
+
+    /**
+     * Configuration for dispatching asynchronous transaction updates to core.
+     *
+     * By default, a request handler in async mode sends its transaction update straight to the core-api-connector
+     * when it finishes. If enabled, the updates are queued with the transaction-update-dispatcher instead, which
+     * coalesces updates for the same transaction, limits the number of concurrent updates sent to core and retries
+     * failed updates with an exponential backoff.
+     * <br/><br/>
+     * The queue is bounded. When it is full, request handlers hold on to their update and offer it again later,
+     * so that a slow core applies backpressure rather than the mediator running out of memory. Updates that are
+     * only kept in memory are limited by {@link #setMaxQueueSize(int)}, and updates written to the journal by
+     * {@link #setMaxJournalSize(long)}.
+     *
+     * @see MediatorConfig#setTransactionUpdates(TransactionUpdates)
+     */
+    public static class TransactionUpdates {
+        private boolean enabled = false;
+        private int maxQueueSize = 10000;
+        private int maxInFlight = 8;
+        private long flushIntervalMillis = 100;
+        private int maxRetries = 10;
+        private long initialBackoffMillis = 1000;
+        private long maxBackoffMillis = 60000;
+        private long enqueueTimeoutMillis = 300000;
+        private String journalDirectory;
+        private int journalSegmentSize = TransactionUpdateJournal.DEFAULT_SEGMENT_SIZE;
+        private long maxJournalSize = 1024L * 1024 * 1024;
+
+        /**
+         * @see #setEnabled(boolean)
+         */
+        public boolean getEnabled() {
+            return enabled;
+        }
+
+        /**
+         * Enable the transaction-update-dispatcher. Disabled by default.
+         */
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        /**
+         * @see #setMaxQueueSize(int)
+         */
+        public int getMaxQueueSize() {
+            return maxQueueSize;
+        }
+
+        /**
+         * The maximum number of updates waiting to be sent that are only kept in memory. Journaled updates only keep
+         * their sequence number in memory, so they don't count towards this limit. Defaults to 10000.
+         */
+        public void setMaxQueueSize(int maxQueueSize) {
+            this.maxQueueSize = maxQueueSize;
+        }
+
+        /**
+         * @see #setMaxInFlight(int)
+         */
+        public int getMaxInFlight() {
+            return maxInFlight;
+        }
+
+        /**
+         * The maximum number of updates that may be sent to core at once. Queued updates are flushed immediately
+         * once this many are waiting. Defaults to 8.
+         */
+        public void setMaxInFlight(int maxInFlight) {
+            this.maxInFlight = maxInFlight;
+        }
+
+        /**
+         * @see #setFlushIntervalMillis(long)
+         */
+        public long getFlushIntervalMillis() {
+            return flushIntervalMillis;
+        }
+
+        /**
+         * How long updates may wait in the queue before they are sent. Defaults to 100 milliseconds.
+         */
+        public void setFlushIntervalMillis(long flushIntervalMillis) {
+            this.flushIntervalMillis = flushIntervalMillis;
+        }
+
+        /**
+         * @see #setMaxRetries(int)
+         */
+        public int getMaxRetries() {
+            return maxRetries;
+        }
+
+        /**
+         * The number of times a failed update will be retried before it is dropped. Defaults to 10.
+         */
+        public void setMaxRetries(int maxRetries) {
+            this.maxRetries = maxRetries;
+        }
+
+        /**
+         * @see #setInitialBackoffMillis(long)
+         */
+        public long getInitialBackoffMillis() {
+            return initialBackoffMillis;
+        }
+
+        /**
+         * The delay before the first retry of a failed update. The delay doubles for every further retry.
+         * Defaults to 1 second.
+         */
+        public void setInitialBackoffMillis(long initialBackoffMillis) {
+            this.initialBackoffMillis = initialBackoffMillis;
+        }
+
+        /**
+         * @see #setMaxBackoffMillis(long)
+         */
+        public long getMaxBackoffMillis() {
+            return maxBackoffMillis;
+        }
+
+        /**
+         * The maximum delay between retries. Defaults to 60 seconds.
+         */
+        public void setMaxBackoffMillis(long maxBackoffMillis) {
+            this.maxBackoffMillis = maxBackoffMillis;
+        }
+
+        /**
+         * @see #setEnqueueTimeoutMillis(long)
+         */
+        public long getEnqueueTimeoutMillis() {
+            return enqueueTimeoutMillis;
+        }
+
+        /**
+         * How long a request handler will keep offering its update while the queue is full before giving up.
+         * Defaults to 5 minutes.
+         */
+        public void setEnqueueTimeoutMillis(long enqueueTimeoutMillis) {
+            this.enqueueTimeoutMillis = enqueueTimeoutMillis;
+        }
+
+        /**
+         * @see #setJournalDirectory(String)
+         */
+        public String getJournalDirectory() {
+            return journalDirectory;
+        }
+
+        /**
+         * A directory for a durable journal of queued updates. Queued updates are written to the journal and
+         * replayed when the mediator restarts, and updates that fail because core is unavailable are retried
+         * until they succeed rather than being dropped after the maximum retries.
+         * Null (the default) keeps queued updates in memory only.
+         *
+         * @see TransactionUpdateJournal
+         */
+        public void setJournalDirectory(String journalDirectory) {
+            this.journalDirectory = journalDirectory;
+        }
+
+        /**
+         * @see #setJournalSegmentSize(int)
+         */
+        public int getJournalSegmentSize() {
+            return journalSegmentSize;
+        }
+
+        /**
+         * The size of the journal segment files. Defaults to 16 MB.
+         */
+        public void setJournalSegmentSize(int journalSegmentSize) {
+            this.journalSegmentSize = journalSegmentSize;
+        }
+
+        /**
+         * @see #setMaxJournalSize(long)
+         */
+        public long getMaxJournalSize() {
+            return maxJournalSize;
+        }
+
+        /**
+         * The maximum size of the journal on disk, in bytes. New updates are rejected while the journal is this
+         * large, so that a long core outage doesn't fill the disk. Defaults to 1 GB.
+         */
+        public void setMaxJournalSize(long maxJournalSize) {
+            this.maxJournalSize = maxJournalSize;
+        }
+    }
+
+    /**
+     * Configuration for an inbound MLLP listener.
+     *
+     * Messages received on the listener are dispatched to the routing table as POST requests on the configured path.
+     *
+     * @see MediatorConfig#setMLLPListener(MLLPListener)
+     */
+    public static class MLLPListener {
+        private String host;
+        private int port;
+        private String path = "/mllp";
+        private String charset = "UTF-8";
+        private int maxMessageSize = 10 * 1024 * 1024;
+
+        public MLLPListener() {}
+
+        public MLLPListener(int port) {
+            this.port = port;
+        }
+
+        /**
+         * @see #setHost(String)
+         */
+        public String getHost() {
+            return host;
+        }
+
+        /**
+         * The host to listen on. If not set, the mediator server host will be used.
+         */
+        public void setHost(String host) {
+            this.host = host;
+        }
+
+        /**
+         * @see #setPort(int)
+         */
+        public int getPort() {
+            return port;
+        }
+
+        /**
+         * The port to listen on.
+         */
+        public void setPort(int port) {
+            this.port = port;
+        }
+
+        /**
+         * @see #setPath(String)
+         */
+        public String getPath() {
+            return path;
+        }
+
+        /**
+         * The routing table path to dispatch received messages to. Defaults to <code>/mllp</code>.
+         */
+        public void setPath(String path) {
+            this.path = path;
+        }
+
+        /**
+         * @see #setCharset(String)
+         */
+        public String getCharset() {
+            return charset;
+        }
+
+        /**
+         * The character set used to decode received messages and to encode responses. Defaults to UTF-8.
+         */
+        public void setCharset(String charset) {
+            this.charset = charset;
+        }
+
+        /**
+         * @see #setMaxMessageSize(int)
+         */
+        public int getMaxMessageSize() {
+            return maxMessageSize;
+        }
+
+        /**
+         * The maximum size of a received message in bytes. If a sender exceeds this size, the connection will be closed.
+         * Defaults to 10 MB.
+         */
+        public void setMaxMessageSize(int maxMessageSize) {
+            this.maxMessageSize = maxMessageSize;
+        }
+    }
+
+    /**
+     * Configuration for the metrics endpoint, which exposes the {@link MetricsRegistry} in the Prometheus text format.
+     *
+     * @see MediatorConfig#setMetricsEndpoint(MetricsEndpoint)
+     */
+    public static class MetricsEndpoint {
+        private String path = "/metrics";
+        private Integer port;
+
+        /**
+         * @see #setPath(String)
+         */
+        public String getPath() {
+            return path;
+        }
+
+        /**
+         * The path to serve the metrics on. Defaults to <code>/metrics</code>.
+         */
+        public void setPath(String path) {
+            this.path = path;
+        }
+
+        /**
+         * @see #setPort(Integer)
+         */
+        public Integer getPort() {
+            return port;
+        }
+
+        /**
+         * If set, the metrics will be served on a separate internal listener on this port, else they will be served
+         * by the mediator server itself (in which case the path takes precedence over any route with the same path).
+         */
+        public void setPort(Integer port) {
+            this.port = port;
+        }
+    }
+
+    /**
+     * Content encoding configuration for the mediator server, the http-connectors and the updates sent to core.
+     *
+     * @see MediatorConfig#setCompression(Compression)
+     */
+    public static class Compression {
+        private boolean serverResponses = false;
+        private int minResponseSize = 1024;
+        private List<String> mimeTypes = new ArrayList<>(Arrays.asList(
+                "application/json", "application/xml", "application/fhir+json", "application/fhir+xml",
+                "application/hl7-v2", "text/"
+        ));
+        private boolean upstreamResponses = true;
+        private boolean transactionUpdates = false;
+
+        /**
+         * @see #setServerResponses(boolean)
+         */
+        public boolean getServerResponses() {
+            return serverResponses;
+        }
+
+        /**
+         * Compress the responses of the mediator server with gzip when the client accepts it.
+         * Responses that already have a content encoding are sent as is. Disabled by default.
+         */
+        public void setServerResponses(boolean serverResponses) {
+            this.serverResponses = serverResponses;
+        }
+
+        /**
+         * @see #setMinResponseSize(int)
+         */
+        public int getMinResponseSize() {
+            return minResponseSize;
+        }
+
+        /**
+         * Responses smaller than this number of bytes aren't compressed. Defaults to 1024.
+         */
+        public void setMinResponseSize(int minResponseSize) {
+            this.minResponseSize = minResponseSize;
+        }
+
+        /**
+         * @see #setMimeTypes(List)
+         */
+        public List<String> getMimeTypes() {
+            return mimeTypes;
+        }
+
+        /**
+         * The content types of the responses to compress. A response is compressed if its content type starts with
+         * one of these, e.g. <code>application/json</code> matches <code>application/json+openhim</code> and
+         * <code>text/</code> matches all text types. Defaults to JSON, XML, HL7v2 and text.
+         */
+        public void setMimeTypes(List<String> mimeTypes) {
+            this.mimeTypes = mimeTypes;
+        }
+
+        /**
+         * @see #setUpstreamResponses(boolean)
+         */
+        public boolean getUpstreamResponses() {
+            return upstreamResponses;
+        }
+
+        /**
+         * Send <code>Accept-Encoding: gzip, deflate</code> on http-connector requests, and decompress the responses
+         * before they are passed on. Enabled by default.
+         */
+        public void setUpstreamResponses(boolean upstreamResponses) {
+            this.upstreamResponses = upstreamResponses;
+        }
+
+        /**
+         * @see #setTransactionUpdates(boolean)
+         */
+        public boolean getTransactionUpdates() {
+            return transactionUpdates;
+        }
+
+        /**
+         * Send the transaction updates to core compressed with gzip. Only enable this if core (or the proxy in front
+         * of it) accepts gzip request bodies. Disabled by default.
+         */
+        public void setTransactionUpdates(boolean transactionUpdates) {
+            this.transactionUpdates = transactionUpdates;
+        }
+    }
+
     private String name;
 
     private String serverHost;
     private Integer serverPort;
     private Integer rootTimeout;
+    private int streamingBodyMemoryThreshold = StreamingBody.DEFAULT_MEMORY_THRESHOLD;
 
     private String coreHost;
     private Integer coreAPIPort = 8080;
@@ -138,10 +1148,30 @@ public class MediatorConfig {
     private RegistrationConfig registrationConfig;
 
     private SSLContext sslContext;
+    private HTTPConnectionPool httpConnectionPool = new HTTPConnectionPool();
+    private HTTPResponseCache httpResponseCache = new HTTPResponseCache();
+    private CircuitBreaker circuitBreaker = new CircuitBreaker();
+    private Bulkhead bulkhead = new Bulkhead();
+    private ConnectorTimeouts connectorTimeouts = new ConnectorTimeouts();
+    private RequestDeadlines requestDeadlines = new RequestDeadlines();
+    private ConnectorDispatcher httpConnectorDispatcher = new ConnectorDispatcher(64);
+    private ConnectorDispatcher mllpConnectorDispatcher = new ConnectorDispatcher(32);
+    private ConnectorDispatcher udpConnectorDispatcher = new ConnectorDispatcher(4);
+    private NonBlockingHTTP nonBlockingHTTP = new NonBlockingHTTP();
+    private ExecutionStrategy executionStrategy = new ThreadPoolExecutionStrategy();
+    private MLLPConnectionPool mllpConnectionPool = new MLLPConnectionPool();
+    private MLLPListener mllpListener;
+    private MetricsRegistry metricsRegistry = new MetricsRegistry();
+    private MetricsEndpoint metricsEndpoint;
+    private TransactionUpdates transactionUpdates = new TransactionUpdates();
+    private Compression compression = new Compression();
+    private OrchestrationCaptures orchestrationCaptures = new OrchestrationCaptures();
 
     private boolean heartbeatsEnabled = false;
     private int heartbeatPeriodSeconds = 10;
 
+    private int coreAPIAuthCacheSeconds = 300;
+
     private Properties properties;
     private Map<String, Object> dynamicConfig = new HashMap<>();
 
@@ -226,6 +1256,23 @@ public class MediatorConfig {
         this.rootTimeout = rootTimeout;
     }
 
+    /**
+     * @see #setStreamingBodyMemoryThreshold(int)
+     */
+    public int getStreamingBodyMemoryThreshold() {
+        return streamingBodyMemoryThreshold;
+    }
+
+    /**
+     * The maximum number of bytes of a streaming request body to keep in memory. Larger bodies are spilled to disk.
+     * Default: 1 MB
+     *
+     * @see RoutingTable.RouteOptions#setStreamingBody(boolean)
+     */
+    public void setStreamingBodyMemoryThreshold(int streamingBodyMemoryThreshold) {
+        this.streamingBodyMemoryThreshold = streamingBodyMemoryThreshold;
+    }
+
     /**
      * @see #setCoreHost(String)
      */
@@ -386,6 +1433,24 @@ public class MediatorConfig {
         this.heartbeatPeriodSeconds = heartbeatPeriodSeconds;
     }
 
+    /**
+     * @see #setCoreAPIAuthCacheSeconds(int)
+     */
+    public int getCoreAPIAuthCacheSeconds() {
+        return coreAPIAuthCacheSeconds;
+    }
+
+    /**
+     * How long the core-api-connector may reuse the authentication details it fetched from core
+     * before it has to fetch them again. While the details are in use, they will be refreshed in the background
+     * before they expire.
+     *
+     * Set to 0 to fetch the authentication details for every request. Default: 300 seconds
+     */
+    public void setCoreAPIAuthCacheSeconds(int coreAPIAuthCacheSeconds) {
+        this.coreAPIAuthCacheSeconds = coreAPIAuthCacheSeconds;
+    }
+
     /**
      * @see #setProperties(java.util.Properties)
      */
@@ -450,4 +1515,290 @@ public class MediatorConfig {
     public void setSSLContext(SSLContext sslContext) {
         this.sslContext = sslContext;
     }
+
+    /**
+     * @see #setHTTPConnectionPool(HTTPConnectionPool)
+     */
+    public HTTPConnectionPool getHTTPConnectionPool() {
+        return httpConnectionPool;
+    }
+
+    /**
+     * Sets the connection pooling configuration for the {@link org.openhim.mediator.engine.connectors.HTTPConnector}.
+     * If not set, the pool defaults will be used.
+     *
+     * @see HTTPConnectionPool
+     */
+    public void setHTTPConnectionPool(HTTPConnectionPool httpConnectionPool) {
+        this.httpConnectionPool = httpConnectionPool;
+    }
+
+    /**
+     * @see #setHTTPResponseCache(HTTPResponseCache)
+     */
+    public HTTPResponseCache getHTTPResponseCache() {
+        return httpResponseCache;
+    }
+
+    /**
+     * Response cache configuration for the http-connector.
+     *
+     * @see HTTPResponseCache
+     */
+    public void setHTTPResponseCache(HTTPResponseCache httpResponseCache) {
+        this.httpResponseCache = httpResponseCache;
+    }
+
+    /**
+     * @see #setCircuitBreaker(CircuitBreaker)
+     */
+    public CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    /**
+     * Circuit breaker configuration for the http-connector and mllp-connector.
+     *
+     * @see CircuitBreaker
+     */
+    public void setCircuitBreaker(CircuitBreaker circuitBreaker) {
+        this.circuitBreaker = circuitBreaker;
+    }
+
+    /**
+     * @see #setBulkhead(Bulkhead)
+     */
+    public Bulkhead getBulkhead() {
+        return bulkhead;
+    }
+
+    /**
+     * Bulkhead configuration for the http-connector and mllp-connector.
+     *
+     * @see Bulkhead
+     */
+    public void setBulkhead(Bulkhead bulkhead) {
+        this.bulkhead = bulkhead;
+    }
+
+    /**
+     * @see #setConnectorTimeouts(ConnectorTimeouts)
+     */
+    public ConnectorTimeouts getConnectorTimeouts() {
+        return connectorTimeouts;
+    }
+
+    /**
+     * Timeout configuration for the http-connector and mllp-connector.
+     *
+     * @see ConnectorTimeouts
+     */
+    public void setConnectorTimeouts(ConnectorTimeouts connectorTimeouts) {
+        this.connectorTimeouts = connectorTimeouts;
+    }
+
+    /**
+     * @see #setHTTPConnectorDispatcher(ConnectorDispatcher)
+     */
+    public ConnectorDispatcher getHTTPConnectorDispatcher() {
+        return httpConnectorDispatcher;
+    }
+
+    /**
+     * Blocking I/O thread pool configuration for the http-connector.
+     *
+     * @see ConnectorDispatcher
+     */
+    public void setHTTPConnectorDispatcher(ConnectorDispatcher httpConnectorDispatcher) {
+        this.httpConnectorDispatcher = httpConnectorDispatcher;
+    }
+
+    /**
+     * @see #setMLLPConnectorDispatcher(ConnectorDispatcher)
+     */
+    public ConnectorDispatcher getMLLPConnectorDispatcher() {
+        return mllpConnectorDispatcher;
+    }
+
+    /**
+     * Blocking I/O thread pool configuration for the mllp-connector.
+     *
+     * @see ConnectorDispatcher
+     */
+    public void setMLLPConnectorDispatcher(ConnectorDispatcher mllpConnectorDispatcher) {
+        this.mllpConnectorDispatcher = mllpConnectorDispatcher;
+    }
+
+    /**
+     * @see #setUDPConnectorDispatcher(ConnectorDispatcher)
+     */
+    public ConnectorDispatcher getUDPConnectorDispatcher() {
+        return udpConnectorDispatcher;
+    }
+
+    /**
+     * Blocking I/O thread pool configuration for the udp-fire-forget-connector.
+     *
+     * @see ConnectorDispatcher
+     */
+    public void setUDPConnectorDispatcher(ConnectorDispatcher udpConnectorDispatcher) {
+        this.udpConnectorDispatcher = udpConnectorDispatcher;
+    }
+
+    /**
+     * @see #setNonBlockingHTTP(NonBlockingHTTP)
+     */
+    public NonBlockingHTTP getNonBlockingHTTP() {
+        return nonBlockingHTTP;
+    }
+
+    /**
+     * Configure the http-connector to use a non-blocking HTTP client.
+     *
+     * @see NonBlockingHTTP
+     */
+    public void setNonBlockingHTTP(NonBlockingHTTP nonBlockingHTTP) {
+        this.nonBlockingHTTP = nonBlockingHTTP;
+    }
+
+    /**
+     * @see #setExecutionStrategy(ExecutionStrategy)
+     */
+    public ExecutionStrategy getExecutionStrategy() {
+        return executionStrategy;
+    }
+
+    /**
+     * The strategy for running the blocking work of the connectors and writing responses to clients.
+     * Defaults to {@link ThreadPoolExecutionStrategy}.
+     *
+     * @see VirtualThreadExecutionStrategy
+     */
+    public void setExecutionStrategy(ExecutionStrategy executionStrategy) {
+        this.executionStrategy = executionStrategy;
+    }
+
+    /**
+     * @see #setMLLPConnectionPool(MLLPConnectionPool)
+     */
+    public MLLPConnectionPool getMLLPConnectionPool() {
+        return mllpConnectionPool;
+    }
+
+    /**
+     * Connection pooling configuration for the mllp-connector.
+     *
+     * @see MLLPConnectionPool
+     */
+    public void setMLLPConnectionPool(MLLPConnectionPool mllpConnectionPool) {
+        this.mllpConnectionPool = mllpConnectionPool;
+    }
+
+    /**
+     * @see #setMLLPListener(MLLPListener)
+     */
+    public MLLPListener getMLLPListener() {
+        return mllpListener;
+    }
+
+    /**
+     * Enables an inbound MLLP listener alongside the HTTP server. Null (the default) disables the listener.
+     *
+     * @see MLLPListener
+     */
+    public void setMLLPListener(MLLPListener mllpListener) {
+        this.mllpListener = mllpListener;
+    }
+
+    /**
+     * @see #setMetricsRegistry(MetricsRegistry)
+     */
+    public MetricsRegistry getMetricsRegistry() {
+        return metricsRegistry;
+    }
+
+    /**
+     * The registry that the engine records its metrics in. Mediators can use it to record their own metrics too.
+     */
+    public void setMetricsRegistry(MetricsRegistry metricsRegistry) {
+        this.metricsRegistry = metricsRegistry;
+    }
+
+    /**
+     * @see #setRequestDeadlines(RequestDeadlines)
+     */
+    public RequestDeadlines getRequestDeadlines() {
+        return requestDeadlines;
+    }
+
+    /**
+     * The deadlines of the requests being handled, which the connectors use to limit the time taken by outbound calls.
+     */
+    public void setRequestDeadlines(RequestDeadlines requestDeadlines) {
+        this.requestDeadlines = requestDeadlines;
+    }
+
+    /**
+     * @see #setMetricsEndpoint(MetricsEndpoint)
+     */
+    public MetricsEndpoint getMetricsEndpoint() {
+        return metricsEndpoint;
+    }
+
+    /**
+     * Enables the metrics endpoint. Null (the default) disables the endpoint.
+     *
+     * @see MetricsEndpoint
+     */
+    public void setMetricsEndpoint(MetricsEndpoint metricsEndpoint) {
+        this.metricsEndpoint = metricsEndpoint;
+    }
+
+    /**
+     * @see #setTransactionUpdates(TransactionUpdates)
+     */
+    public TransactionUpdates getTransactionUpdates() {
+        return transactionUpdates;
+    }
+
+    /**
+     * Configuration for dispatching asynchronous transaction updates to core.
+     *
+     * @see TransactionUpdates
+     */
+    public void setTransactionUpdates(TransactionUpdates transactionUpdates) {
+        this.transactionUpdates = transactionUpdates;
+    }
+
+    /**
+     * @see #setCompression(Compression)
+     */
+    public Compression getCompression() {
+        return compression;
+    }
+
+    /**
+     * Configure the content encodings used for server responses, upstream responses and transaction updates.
+     *
+     * @see Compression
+     */
+    public void setCompression(Compression compression) {
+        this.compression = compression;
+    }
+
+    /**
+     * @see #setOrchestrationCaptures(OrchestrationCaptures)
+     */
+    public OrchestrationCaptures getOrchestrationCaptures() {
+        return orchestrationCaptures;
+    }
+
+    /**
+     * The policies that the connectors use to limit how much of each call is recorded in its orchestration.
+     *
+     * @see OrchestrationCapture
+     */
+    public void setOrchestrationCaptures(OrchestrationCaptures orchestrationCaptures) {
+        this.orchestrationCaptures = orchestrationCaptures;
+    }
 }
@@ -12,10 +12,12 @@ import akka.event.LoggingAdapter;
 import akka.japi.Function;
 import org.apache.http.HttpStatus;
 import org.openhim.mediator.engine.messages.*;
+import org.openhim.mediator.engine.metrics.MetricsRegistry;
 import scala.concurrent.duration.Duration;
 
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
 
 import static akka.actor.SupervisorStrategy.stop;
 
@@ -47,12 +49,33 @@ public class MediatorRequestHandler extends UntypedActor {
     protected boolean async = false;
     //finalizingRequest becomes true as soon as we "respondAndEnd()"
     protected boolean finalizingRequest = false;
+    private StreamingBody streamingBody;
+
+    //queued transaction updates
+    private String transactionUpdate;
+    private long transactionUpdateDeadline;
+    private Cancellable transactionUpdateRetry;
+
+    private static class RetryQueueTransactionUpdate {}
+
+    //request deadline
+    private long requestTimeoutMillis;
+    private Cancellable deadlineTask;
+
+    private static class DeadlineExceeded {}
+
+    //metrics
+    private long requestStartNanos;
+    private String requestRoute;
+    private String requestMethod;
+    private final MetricsRegistry metrics;
 
     protected final MediatorConfig config;
 
 
     public MediatorRequestHandler(MediatorConfig config) {
         this.config = config;
+        this.metrics = config.getMetricsRegistry()!=null ? config.getMetricsRegistry() : new MetricsRegistry();
 
         try {
             if (config.getRegistrationConfig()!=null) {
@@ -87,27 +110,22 @@ public class MediatorRequestHandler extends UntypedActor {
     }
 
 
-    private void routeToActor(Class<? extends Actor> clazz, MediatorHTTPRequest request) {
-        ActorRef actor = null;
-        try {
-            //can we pass the mediator config through?
-            if (clazz.getConstructor(MediatorConfig.class) != null) {
-                actor = getContext().actorOf(Props.create(clazz, config));
-            }
-        } catch (NoSuchMethodException | SecurityException ex) {
-            //no matter. use default
-            actor = getContext().actorOf(Props.create(clazz));
+    private void routeToActor(Props props, RoutingTable.RouteOptions options, MediatorHTTPRequest request) {
+        if (options!=null && options.getPoolSize() > 0) {
+            //pooled routes are served by the root actor's route pools
+            getContext().parent().tell(new MediatorRootActor.RouteToPool(request), getSelf());
+        } else {
+            getContext().actorOf(props).tell(request, getSelf());
         }
-
-        actor.tell(request, getSelf());
     }
 
     private void routeRequest(MediatorHTTPRequest request) {
         log.info("Received request: " + request.getMethod() + " " + request.getPath());
 
-        Class<? extends Actor> routeTo = config.getRoutingTable().getActorClassForPath(request.getPath());
+        RoutingTable routingTable = config.getRoutingTable();
+        Props routeTo = routingTable.getPropsForPath(request.getPath(), config);
         if (routeTo!=null) {
-            routeToActor(routeTo, request);
+            routeToActor(routeTo, routingTable.getRouteOptionsForPath(request.getPath()), request);
         } else {
             CoreResponse.Response resp = new CoreResponse.Response();
             resp.setStatus(HttpStatus.SC_NOT_FOUND);
@@ -118,6 +136,64 @@ public class MediatorRequestHandler extends UntypedActor {
         }
     }
 
+    /**
+     * Register the deadline for the request, so that outbound calls are limited to the time remaining,
+     * and schedule a timeout for when it passes. The orchestration capture policy of the route is registered too.
+     *
+     * @see RequestDeadlines
+     * @see OrchestrationCaptures
+     */
+    private void startDeadline(MediatorHTTPRequest request) {
+        requestTimeoutMillis = config.getRootTimeout()!=null ? config.getRootTimeout() : MediatorRootActor.DEFAULT_ROOT_TIMEOUT_MILLIS;
+        RoutingTable.RouteOptions options = config.getRoutingTable()!=null ?
+                config.getRoutingTable().getRouteOptionsForPath(request.getPath()) : null;
+        if (options!=null && options.getTimeoutMillis()!=null) {
+            requestTimeoutMillis = Math.min(requestTimeoutMillis, options.getTimeoutMillis());
+        }
+
+        if (config.getRequestDeadlines()!=null) {
+            config.getRequestDeadlines().register(getSelf(), System.currentTimeMillis() + requestTimeoutMillis);
+        }
+        if (options!=null && options.getOrchestrationCapture()!=null && config.getOrchestrationCaptures()!=null) {
+            config.getOrchestrationCaptures().register(getSelf(), options.getOrchestrationCapture());
+        }
+        deadlineTask = getContext().system().scheduler().scheduleOnce(
+                Duration.create(requestTimeoutMillis, TimeUnit.MILLISECONDS),
+                getSelf(),
+                new DeadlineExceeded(),
+                getContext().dispatcher(),
+                getSelf()
+        );
+    }
+
+    private void clearDeadline() {
+        if (deadlineTask!=null) {
+            deadlineTask.cancel();
+            deadlineTask = null;
+        }
+        if (config.getRequestDeadlines()!=null) {
+            config.getRequestDeadlines().remove(getSelf());
+        }
+        if (config.getOrchestrationCaptures()!=null) {
+            config.getOrchestrationCaptures().remove(getSelf());
+        }
+    }
+
+    private void deadlineExceeded() {
+        deadlineTask = null;
+        if (async || finalizingRequest) {
+            return;
+        }
+
+        log.warning("Request timed out after " + requestTimeoutMillis + "ms");
+        CoreResponse.Response resp = new CoreResponse.Response();
+        resp.setStatus(HttpStatus.SC_GATEWAY_TIMEOUT);
+        resp.setBody("Request timed out after " + requestTimeoutMillis + "ms");
+        resp.putHeader("Content-Type", "text/plain");
+        response.setResponse(resp);
+        respondAndEnd(HttpStatus.SC_GATEWAY_TIMEOUT);
+    }
+
     private void enableAsyncProcessing() {
         if (coreTransactionID==null || coreTransactionID.isEmpty()) {
             exceptError(new RuntimeException("Cannot enable asynchronous processing if X-OpenHIM-TransactionID is unknown"));
@@ -126,6 +202,8 @@ public class MediatorRequestHandler extends UntypedActor {
 
         log.info("Accepted async request. Responding to client.");
         async = true;
+        //the client has its response, so processing may continue past the deadline
+        clearDeadline();
 
         //store existing response
         CoreResponse.Response _resp = response.getResponse();
@@ -161,6 +239,9 @@ public class MediatorRequestHandler extends UntypedActor {
 
     private void exceptError(Throwable t) {
         log.error(t, "Exception while processing request");
+        if (requestRoute!=null) {
+            metrics.counter("mediator_request_errors_total", "Requests that ended with an error", "route", requestRoute).inc();
+        }
 
         if (response.getResponse()==null) {
             CoreResponse.Response resp = new CoreResponse.Response();
@@ -175,6 +256,10 @@ public class MediatorRequestHandler extends UntypedActor {
     private void updateTransactionToCoreAPI() {
         Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
         headers.put("Content-Type", "application/json");
+        if (config.getCompression()!=null && config.getCompression().getTransactionUpdates()) {
+            //the http-connector compresses the body
+            headers.put("Content-Encoding", "gzip");
+        }
 
         MediatorHTTPRequest request = new MediatorHTTPRequest(
                 getSelf(),
@@ -195,6 +280,39 @@ public class MediatorRequestHandler extends UntypedActor {
         coreConnector.tell(request, getSelf());
     }
 
+    private void queueTransactionUpdate() {
+        if (transactionUpdate==null) {
+            //the response won't change anymore, so it only needs to be serialized once
+            transactionUpdate = response.toJSON();
+            transactionUpdateDeadline = System.currentTimeMillis() + config.getTransactionUpdates().getEnqueueTimeoutMillis();
+        }
+
+        ActorSelection dispatcher = getContext().actorSelection(config.userPathFor("transaction-update-dispatcher"));
+        dispatcher.tell(new QueueTransactionUpdate(coreTransactionID, transactionUpdate), getSelf());
+    }
+
+    private void processQueueTransactionUpdateResponse(QueueTransactionUpdateResponse msg) {
+        if (msg.isQueued()) {
+            endRequest();
+            return;
+        }
+
+        if (System.currentTimeMillis() + msg.getRetryAfterMillis() > transactionUpdateDeadline) {
+            log.error("Transaction update queue is full. The update for transaction " + coreTransactionID + " will not be sent to core");
+            endRequest();
+            return;
+        }
+
+        //the queue is full; hold on to the update and offer it again later
+        transactionUpdateRetry = getContext().system().scheduler().scheduleOnce(
+                Duration.create(msg.getRetryAfterMillis(), TimeUnit.MILLISECONDS),
+                getSelf(),
+                new RetryQueueTransactionUpdate(),
+                getContext().dispatcher(),
+                getSelf()
+        );
+    }
+
     private void processResponseFromCoreAPI(MediatorHTTPResponse response) {
         try {
             log.info("Received response from core - status " + response.getStatusCode());
@@ -212,7 +330,11 @@ public class MediatorRequestHandler extends UntypedActor {
         finalizingRequest = true;
 
         if (async) {
-            updateTransactionToCoreAPI();
+            if (config.getTransactionUpdates().getEnabled()) {
+                queueTransactionUpdate();
+            } else {
+                updateTransactionToCoreAPI();
+            }
         } else {
             try {
                 respondToCaller(status);
@@ -231,9 +353,16 @@ public class MediatorRequestHandler extends UntypedActor {
             Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
             headers.put("Content-Type", OPENHIM_MIME_TYPE);
 
-            MediatorHTTPResponse serverResponse = new MediatorHTTPResponse(null, response.toJSON(), status, headers);
+            MediatorHTTPResponse serverResponse;
+            if (async) {
+                //the response will still be updated, so it has to be serialized now
+                serverResponse = new EncodedHTTPResponse(response.toJSONBytes(), status, headers);
+            } else {
+                serverResponse = new CoreResponseHTTPResponse(response, status, headers);
+            }
             requestCaller.tell(serverResponse, getSelf());
             requestCaller = null;
+            recordResponseMetrics(status);
         } else {
             log.warning("FinishRequestMessage received but request caller is gone");
         }
@@ -247,11 +376,51 @@ public class MediatorRequestHandler extends UntypedActor {
         getContext().stop(getSelf());
     }
 
+    private void recordRequestReceived(MediatorHTTPRequest request) {
+        requestStartNanos = System.nanoTime();
+        requestMethod = request.getMethod();
+        requestRoute = config.getRoutingTable().getRouteForPath(request.getPath());
+        if (requestRoute==null) {
+            requestRoute = "unmatched";
+        }
+        metrics.gauge("mediator_requests_in_flight", "Requests currently being processed").inc();
+    }
+
+    private void recordResponseMetrics(Integer status) {
+        if (requestRoute==null) {
+            return;
+        }
+        metrics.counter("mediator_requests_total", "Requests handled, by route, method and response status",
+                "route", requestRoute, "method", requestMethod, "status", String.valueOf(status)).inc();
+        metrics.histogram("mediator_request_duration_seconds", "Time taken to respond to requests, by route",
+                "route", requestRoute).recordNanos(System.nanoTime() - requestStartNanos);
+    }
+
+    @Override
+    public void postStop() {
+        if (transactionUpdateRetry!=null) {
+            transactionUpdateRetry.cancel();
+        }
+        clearDeadline();
+
+        if (requestRoute!=null) {
+            metrics.gauge("mediator_requests_in_flight", "Requests currently being processed").dec();
+        }
+
+        //the request is done, so the body is no longer needed
+        if (streamingBody!=null) {
+            streamingBody.release();
+        }
+    }
+
     @Override
     public void onReceive(Object msg) throws Exception {
         if (msg instanceof MediatorHTTPRequest) {
             requestCaller = getSender();
+            streamingBody = ((MediatorHTTPRequest) msg).getStreamingBody();
             coreTransactionID = ((MediatorHTTPRequest) msg).getHeaders().get("X-OpenHIM-TransactionID");
+            recordRequestReceived((MediatorHTTPRequest) msg);
+            startDeadline((MediatorHTTPRequest) msg);
             routeRequest((MediatorHTTPRequest) msg);
 
         } else if (msg instanceof AcceptedAsyncRequest) {
@@ -276,6 +445,16 @@ public class MediatorRequestHandler extends UntypedActor {
         } else if (msg instanceof MediatorHTTPResponse) {
             processResponseFromCoreAPI((MediatorHTTPResponse) msg);
 
+        } else if (msg instanceof QueueTransactionUpdateResponse) {
+            processQueueTransactionUpdateResponse((QueueTransactionUpdateResponse) msg);
+
+        } else if (msg instanceof DeadlineExceeded) {
+            deadlineExceeded();
+
+        } else if (msg instanceof RetryQueueTransactionUpdate) {
+            transactionUpdateRetry = null;
+            queueTransactionUpdate();
+
         } else {
             unhandled(msg);
         }
@@ -7,24 +7,39 @@
 package org.openhim.mediator.engine;
 
 import akka.actor.ActorRef;
-import akka.actor.Inbox;
+import akka.actor.ActorSelection;
+import akka.actor.OneForOneStrategy;
 import akka.actor.Props;
+import akka.actor.SupervisorStrategy;
 import akka.actor.UntypedActor;
 import akka.dispatch.OnComplete;
 import akka.event.Logging;
 import akka.event.LoggingAdapter;
+import akka.japi.Function;
+import akka.pattern.Patterns;
+import akka.routing.RoundRobinPool;
+import akka.routing.SmallestMailboxPool;
+import akka.util.Timeout;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.tuple.Pair;
 import org.glassfish.grizzly.ReadHandler;
+import org.glassfish.grizzly.http.io.NIOInputStream;
 import org.glassfish.grizzly.http.io.NIOReader;
 import org.glassfish.grizzly.http.server.Response;
+import org.openhim.mediator.engine.connectors.AsyncHTTPConnector;
 import org.openhim.mediator.engine.connectors.CoreAPIConnector;
 import org.openhim.mediator.engine.connectors.HTTPConnector;
 import org.openhim.mediator.engine.connectors.MLLPConnector;
 import org.openhim.mediator.engine.connectors.UDPFireForgetConnector;
+import org.openhim.mediator.engine.messages.CoreResponseHTTPResponse;
+import org.openhim.mediator.engine.messages.ExceptError;
 import org.openhim.mediator.engine.messages.GrizzlyHTTPRequest;
+import org.openhim.mediator.engine.messages.GrizzlyMLLPRequest;
 import org.openhim.mediator.engine.messages.MediatorHTTPRequest;
 import org.openhim.mediator.engine.messages.MediatorHTTPResponse;
+import org.openhim.mediator.engine.messages.QueueTransactionUpdate;
+import org.openhim.mediator.engine.messages.QueueTransactionUpdateResponse;
+import org.openhim.mediator.engine.metrics.MetricsRegistry;
 import scala.concurrent.ExecutionContext;
 import scala.concurrent.Future;
 import scala.concurrent.duration.Duration;
@@ -32,30 +47,94 @@ import scala.concurrent.duration.FiniteDuration;
 
 import java.io.IOException;
 import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
-import java.util.concurrent.Callable;
 import java.util.concurrent.TimeUnit;
 
-import static akka.dispatch.Futures.future;
-
 /**
  * The root actor for the mediator.
  * <br/><br/>
  * Its roles are to:
  * <ul>
  * <li>launch new request actors,</li>
+ * <li>provide the actor pools for pooled routes,</li>
  * <li>contain the request context, and</li>
  * <li>launch all single instance actors on startup.</li>
  * </ul>
  */
 public class MediatorRootActor extends UntypedActor {
+    /**
+     * The root timeout used if none is configured
+     *
+     * @see MediatorConfig#setRootTimeout(Integer)
+     */
+    static final int DEFAULT_ROOT_TIMEOUT_MILLIS = 60000;
+
+    /**
+     * Sent by a request handler to dispatch a request to the actor pool of a pooled route.
+     *
+     * @see RoutingTable.RouteOptions#setPoolSize(int)
+     */
+    static class RouteToPool {
+        private final MediatorHTTPRequest request;
+
+        RouteToPool(MediatorHTTPRequest request) {
+            this.request = request;
+        }
+    }
+
+    /**
+     * Sent once a request on a passthrough route is complete, to report its orchestration to core
+     */
+    private static class PassthroughOrchestration {
+        private final String transactionId;
+        private final CoreResponse.Orchestration orchestration;
+
+        PassthroughOrchestration(String transactionId, CoreResponse.Orchestration orchestration) {
+            this.transactionId = transactionId;
+            this.orchestration = orchestration;
+        }
+    }
+
+    public static final String HL7_MIME_TYPE = "application/hl7-v2";
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
 
     LoggingAdapter log = Logging.getLogger(getContext().system(), this);
 
     private final MediatorConfig config;
+    private final MetricsRegistry metrics;
+
+    //route pools, by route and actor class
+    private final Map<String, ActorRef> routePools = new HashMap<>();
+
+    private ExecutionStrategy executionStrategy;
+    //runs the completion of contained requests, which writes the response to the client
+    private ExecutionStrategy.Executor containmentExecutor;
+
+    //forwards requests on passthrough routes; started when a passthrough route is first used
+    private PassthroughProxy passthroughProxy;
+    private ExecutionStrategy.Executor passthroughExecutor;
+
+    /**
+     * Supervision for pooled route actors: restart the failed actor only
+     */
+    private final SupervisorStrategy routePoolStrategy = new OneForOneStrategy(
+            -1, Duration.Inf(),
+            new Function<Throwable, SupervisorStrategy.Directive>() {
+                @Override
+                public SupervisorStrategy.Directive apply(Throwable t) {
+                    log.error(t, "Exception in pooled route actor");
+                    return SupervisorStrategy.restart();
+                }
+            },
+            false
+    );
 
 
     public MediatorRootActor(MediatorConfig config) {
@@ -63,6 +142,7 @@ public class MediatorRootActor extends UntypedActor {
             throw new NullPointerException("Routing table is required");
         }
         this.config = config;
+        this.metrics = config.getMetricsRegistry()!=null ? config.getMetricsRegistry() : new MetricsRegistry();
 
         if (config.getStartupActors()!=null && config.getStartupActors().getActors().size()>0) {
             for (StartupActorsConfig.ActorToLaunch actor : config.getStartupActors().getActors()) {
@@ -78,52 +158,74 @@ public class MediatorRootActor extends UntypedActor {
             }
         }
 
-        getContext().actorOf(Props.create(HTTPConnector.class), "http-connector");
+        if (config.getNonBlockingHTTP()!=null && config.getNonBlockingHTTP().getEnabled()) {
+            getContext().actorOf(Props.create(AsyncHTTPConnector.class, config), "http-connector");
+        } else {
+            getContext().actorOf(Props.create(HTTPConnector.class, config), "http-connector");
+        }
         getContext().actorOf(Props.create(CoreAPIConnector.class, config), "core-api-connector");
-        getContext().actorOf(Props.create(MLLPConnector.class), "mllp-connector");
-        getContext().actorOf(Props.create(UDPFireForgetConnector.class), "udp-fire-forget-connector");
+        getContext().actorOf(Props.create(MLLPConnector.class, config), "mllp-connector");
+        getContext().actorOf(Props.create(UDPFireForgetConnector.class, config), "udp-fire-forget-connector");
 
         getContext().actorOf(Props.create(HeartbeatActor.class, config), "heartbeat");
+        getContext().actorOf(Props.create(TransactionUpdateDispatcher.class, config), "transaction-update-dispatcher");
     }
 
+    /**
+     * Contains the request context until the request handler responds.
+     * <br/><br/>
+     * This is fully asynchronous: the request body is read using non-blocking IO and the request handler response
+     * is awaited using the ask pattern, so no threads are held while a request is in-flight.
+     * The suspended Grizzly response is resumed once the request handler responds (or the root timeout expires).
+     * The response is written on a thread chosen by the {@link MediatorConfig#getExecutionStrategy() execution strategy}.
+     */
     private void containRequest(final GrizzlyHTTPRequest request, final ActorRef requestHandler) {
-        ExecutionContext ec = getContext().dispatcher();
+        final ExecutionContext ec = containmentExecutor.getExecutionContext();
 
-        Future<Object> f = future(new Callable<Object>() {
-            public Object call() throws IOException {
-                Inbox inbox = Inbox.create(getContext().system());
-                processGrizzlyRequest(inbox, requestHandler, request);
-                return inbox.receive(getRootTimeout());
+        try {
+            processGrizzlyRequest(requestHandler, request, ec);
+        } catch (IOException ex) {
+            log.error(ex, "Request containment exception");
+            completeRequest(request, ex, null);
+        }
+    }
+
+    private void completeRequest(GrizzlyHTTPRequest request, Throwable throwable, Object result) {
+        try {
+            if (throwable != null) {
+                handleResponse(request.getResponseHandle(), 500, "text/plain", throwable.getMessage());
+            } else if (result == null || !(result instanceof MediatorHTTPResponse)) {
+                String err = "Request handler responded with unexpected result: " + result;
+                log.warning(err);
+                handleResponse(request.getResponseHandle(), 500, "text/plain", err);
+            } else {
+                MediatorHTTPResponse mediatorHTTPResponse = (MediatorHTTPResponse) result;
+                handleResponse(request.getResponseHandle(), mediatorHTTPResponse);
             }
-        }, ec);
+        } catch (IOException ex) {
+            log.error(ex, "Error while writing response");
+        } finally {
+            //trigger response to client
+            request.getResponseHandle().resume();
+        }
+    }
+
+    private void dispatchToRequestHandler(final ActorRef requestHandler, final GrizzlyHTTPRequest request,
+                                          MediatorHTTPRequest mediatorHTTPRequest, ExecutionContext ec) {
+        Future<Object> f = Patterns.ask(requestHandler, mediatorHTTPRequest, new Timeout(getRootTimeout()));
 
         f.onComplete(new OnComplete<Object>() {
             @Override
             public void onComplete(Throwable throwable, Object result) throws Throwable {
-                try {
-                    if (throwable != null) {
-                        log.error(throwable, "Request containment exception");
-                        handleResponse(request.getResponseHandle(), 500, "text/plain", throwable.getMessage());
-                    } else if (result == null || !(result instanceof MediatorHTTPResponse)) {
-                        String err = "Request handler responded with unexpected result: " + result;
-                        log.warning(err);
-                        handleResponse(request.getResponseHandle(), 500, "text/plain", err);
-                    } else {
-                        MediatorHTTPResponse mediatorHTTPResponse = (MediatorHTTPResponse) result;
-                        handleResponse(request.getResponseHandle(), mediatorHTTPResponse);
-                    }
-                } finally {
-                    //trigger response to client
-                    request.getResponseHandle().resume();
+                if (throwable != null) {
+                    log.error(throwable, "Request containment exception");
                 }
+                completeRequest(request, throwable, result);
             }
         }, ec);
     }
 
-
-    private void processGrizzlyRequest(final Inbox handlerInbox, final ActorRef requestHandler, final GrizzlyHTTPRequest request) throws IOException {
-        final NIOReader in = request.getRequest().getNIOReader();
-
+    private void processGrizzlyRequest(final ActorRef requestHandler, final GrizzlyHTTPRequest request, final ExecutionContext ec) throws IOException {
         final Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
         for (String hdr : request.getRequest().getHeaderNames()) {
             headers.put(hdr, request.getRequest().getHeader(hdr));
@@ -136,6 +238,22 @@ public class MediatorRootActor extends UntypedActor {
             }
         }
 
+        RoutingTable.RouteOptions routeOptions = null;
+        if (config.getRoutingTable()!=null) {
+            routeOptions = config.getRoutingTable().getRouteOptionsForPath(request.getRequest().getRequestURI());
+        }
+
+        if (routeOptions!=null && routeOptions.getStreamingBody()) {
+            readStreamingBody(requestHandler, request, headers, params, ec);
+        } else {
+            readBody(requestHandler, request, headers, params, ec);
+        }
+    }
+
+    private void readBody(final ActorRef requestHandler, final GrizzlyHTTPRequest request,
+                          final Map<String, String> headers, final List<Pair<String, String>> params, final ExecutionContext ec) {
+        final NIOReader in = request.getRequest().getNIOReader();
+
         in.notifyAvailable(new ReadHandler() {
             final StringWriter bodyBuffer = new StringWriter();
             char[] readBuffer = new char[1024];
@@ -157,25 +275,69 @@ public class MediatorRootActor extends UntypedActor {
 
             @Override
             public void onError(Throwable throwable) {
+                log.error(throwable, "Error during reading of request body");
+                completeRequest(request, throwable, null);
+            }
+
+            @Override
+            public void onAllDataRead() throws Exception {
                 try {
-                    log.error(throwable, "Error during reading of request body");
-                    handleResponse(request.getResponseHandle(), 500, "text/plain", throwable.getMessage());
-                } catch (IOException ex) {
-                    log.error(ex, "Error during reading of request body");
+                    read();
+                    MediatorHTTPRequest mediatorHTTPRequest = buildMediatorHTTPRequest(requestHandler, request, bodyBuffer.toString(), headers, params);
+                    dispatchToRequestHandler(requestHandler, request, mediatorHTTPRequest, ec);
                 } finally {
-                    request.getResponseHandle().resume();
+                    IOUtils.closeQuietly(in);
+                }
+            }
+        });
+    }
+
+    private void readStreamingBody(final ActorRef requestHandler, final GrizzlyHTTPRequest request,
+                                   final Map<String, String> headers, final List<Pair<String, String>> params, final ExecutionContext ec) {
+        final NIOInputStream in = request.getRequest().getNIOInputStream();
+        final StreamingBody body = new StreamingBody(config.getStreamingBodyMemoryThreshold());
+
+        in.notifyAvailable(new ReadHandler() {
+            byte[] readBuffer = new byte[8192];
+
+            private void read() throws IOException {
+                while (in.isReady()) {
+                    int len = in.read(readBuffer);
+                    if (len > 0) {
+                        body.write(readBuffer, 0, len);
+                    }
                 }
             }
 
+            @Override
+            public void onDataAvailable() throws Exception {
+                read();
+                in.notifyAvailable(this);
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                log.error(throwable, "Error during reading of request body");
+                body.release();
+                completeRequest(request, throwable, null);
+            }
+
             @Override
             public void onAllDataRead() throws Exception {
                 try {
                     read();
-                    MediatorHTTPRequest mediatorHTTPRequest = buildMediatorHTTPRequest(requestHandler, request, bodyBuffer.toString(), headers, params);
-                    handlerInbox.send(requestHandler, mediatorHTTPRequest);
+                    body.complete();
+                } catch (IOException ex) {
+                    onError(ex);
+                    return;
                 } finally {
                     IOUtils.closeQuietly(in);
                 }
+
+                MediatorHTTPRequest mediatorHTTPRequest = new MediatorHTTPRequest(
+                        buildMediatorHTTPRequest(requestHandler, request, null, headers, params), body
+                );
+                dispatchToRequestHandler(requestHandler, request, mediatorHTTPRequest, ec);
             }
         });
     }
@@ -197,32 +359,263 @@ public class MediatorRootActor extends UntypedActor {
         );
     }
 
+    /**
+     * Dispatches a message received on the MLLP listener to the request handler as a POST on the listener path.
+     * The sender receives the response body if it is an HL7 message, else an acknowledgement is generated
+     * based on the response status.
+     */
+    private void containMLLPRequest(final GrizzlyMLLPRequest request, final ActorRef requestHandler) {
+        Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        headers.put("Content-Type", HL7_MIME_TYPE);
+
+        MediatorHTTPRequest mediatorHTTPRequest = new MediatorHTTPRequest(
+                requestHandler,
+                requestHandler,
+                null,
+                "POST",
+                "mllp",
+                request.getLocalHost(),
+                request.getLocalPort(),
+                config.getMLLPListener().getPath(),
+                request.getMessage(),
+                headers,
+                new ArrayList<Pair<String, String>>()
+        );
+
+        Future<Object> f = Patterns.ask(requestHandler, mediatorHTTPRequest, new Timeout(getRootTimeout()));
+        f.onComplete(new OnComplete<Object>() {
+            @Override
+            public void onComplete(Throwable throwable, Object result) throws Throwable {
+                if (throwable != null) {
+                    log.error(throwable, "Request containment exception");
+                    request.getResponseHandle().respond(
+                            HL7Acknowledgement.generate(request.getMessage(), HL7Acknowledgement.AR, throwable.getMessage())
+                    );
+                } else {
+                    request.getResponseHandle().respond(buildMLLPResponse(request, result));
+                }
+            }
+        }, getContext().dispatcher());
+    }
+
+    private String buildMLLPResponse(GrizzlyMLLPRequest request, Object result) {
+        if (!(result instanceof MediatorHTTPResponse)) {
+            String err = "Request handler responded with unexpected result: " + result;
+            log.warning(err);
+            return HL7Acknowledgement.generate(request.getMessage(), HL7Acknowledgement.AR, err);
+        }
+
+        Integer status = ((MediatorHTTPResponse) result).getStatusCode();
+        String body = null;
+        if (result instanceof CoreResponseHTTPResponse) {
+            CoreResponse.Response response = ((CoreResponseHTTPResponse) result).getCoreResponse().getResponse();
+            if (response!=null) {
+                body = response.getBody();
+                if (response.getStatus()!=null) {
+                    status = response.getStatus();
+                }
+            }
+        }
+
+        if (HL7Acknowledgement.isHL7(body)) {
+            return body;
+        }
+        String code = HL7Acknowledgement.codeForStatus(status);
+        return HL7Acknowledgement.generate(request.getMessage(), code, HL7Acknowledgement.AA.equals(code) ? null : body);
+    }
+
     private void handleResponse(Response grizzlyResponseHandle, MediatorHTTPResponse response) throws IOException {
-        handleResponse(grizzlyResponseHandle, response.getStatusCode(), response.getHeaders().get("Content-Type"), response.getBody());
+        //the body is encoded once and the bytes are handed straight to the output buffer
+        writeResponse(grizzlyResponseHandle, response.getStatusCode(), response.getHeaders().get("Content-Type"), response.getEncodedBody());
     }
 
     private void handleResponse(Response grizzlyResponseHandle, Integer status, String contentType, String body) throws IOException {
+        writeResponse(grizzlyResponseHandle, status, contentType, body!=null ? ByteBuffer.wrap(body.getBytes(UTF8)) : null);
+    }
+
+    private void writeResponse(Response grizzlyResponseHandle, Integer status, String contentType, ByteBuffer body) throws IOException {
         grizzlyResponseHandle.setStatus(status);
         if (contentType!=null && body!=null) {
             grizzlyResponseHandle.setContentType(contentType);
-            grizzlyResponseHandle.setContentLength(body.getBytes().length);
             grizzlyResponseHandle.setCharacterEncoding("UTF-8");
-            grizzlyResponseHandle.getWriter().write(body);
+            grizzlyResponseHandle.setContentLength(body.remaining());
+            grizzlyResponseHandle.getOutputBuffer().writeByteBuffer(body);
+        }
+    }
+
+    /**
+     * Forward a request on a passthrough route to its upstream server. No request handler is involved: the call
+     * blocks on the passthrough executor while the bodies are streamed, and the response is resumed once it's done.
+     *
+     * @see RoutingTable.Passthrough
+     */
+    private void passthrough(final GrizzlyHTTPRequest request, final RoutingTable.Passthrough passthrough) {
+        if (passthroughProxy==null) {
+            passthroughProxy = new PassthroughProxy(config);
+            //the passthrough calls are sized like the http-connector's, since they make the same kind of calls
+            passthroughExecutor = executionStrategy.newExecutor("passthrough", config.getHTTPConnectorDispatcher(),
+                    metrics, getContext().dispatcher());
+        }
+
+        final PassthroughProxy proxy = passthroughProxy;
+        final ActorRef self = getSelf();
+        final String route = config.getRoutingTable().getRouteForPath(request.getRequest().getRequestURI());
+        final String method = request.getRequest().getMethod().getMethodString();
+        final String transactionId = request.getRequest().getHeader("X-OpenHIM-TransactionID");
+        final long start = System.nanoTime();
+
+        passthroughExecutor.getExecutionContext().execute(new Runnable() {
+            @Override
+            public void run() {
+                CoreResponse.Orchestration orchestration;
+                try {
+                    orchestration = proxy.forward(request.getRequest(), request.getResponseHandle(), passthrough);
+                } catch (RuntimeException ex) {
+                    log.error(ex, "Passthrough exception");
+                    if (!request.getResponseHandle().isCommitted()) {
+                        request.getResponseHandle().setStatus(500);
+                    }
+                    return;
+                } finally {
+                    request.getResponseHandle().resume();
+                }
+
+                Integer status = orchestration.getResponse().getStatus();
+                metrics.counter("mediator_requests_total", "Requests handled, by route, method and response status",
+                        "route", route, "method", method, "status", String.valueOf(status)).inc();
+                metrics.histogram("mediator_request_duration_seconds", "Time taken to respond to requests, by route",
+                        "route", route).recordNanos(System.nanoTime() - start);
+
+                if (transactionId!=null && !transactionId.isEmpty()) {
+                    self.tell(new PassthroughOrchestration(transactionId, orchestration), ActorRef.noSender());
+                }
+            }
+        });
+    }
+
+    /**
+     * Add the orchestration of a passthrough request to its transaction in core
+     */
+    private void reportPassthroughOrchestration(PassthroughOrchestration msg) {
+        CoreResponse update = new CoreResponse();
+        update.setProperties(null);
+        update.addOrchestration(msg.orchestration);
+
+        if (config.getTransactionUpdates().getEnabled()) {
+            ActorSelection dispatcher = getContext().actorSelection(config.userPathFor("transaction-update-dispatcher"));
+            //the update only adds the orchestration, so it mustn't be coalesced with the transaction's other updates
+            dispatcher.tell(new QueueTransactionUpdate(msg.transactionId, update.toJSON(), true), getSelf());
+        } else {
+            Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+            headers.put("Content-Type", "application/json");
+            if (config.getCompression()!=null && config.getCompression().getTransactionUpdates()) {
+                //the http-connector compresses the body
+                headers.put("Content-Encoding", "gzip");
+            }
+
+            MediatorHTTPRequest request = new MediatorHTTPRequest(
+                    getSelf(),
+                    getSelf(),
+                    "core-api-update-transaction",
+                    "PUT",
+                    config.getCoreAPIScheme(),
+                    config.getCoreHost(),
+                    config.getCoreAPIPort(),
+                    "/transactions/" + msg.transactionId,
+                    update.toJSON(),
+                    headers,
+                    null
+            );
+            ActorSelection coreConnector = getContext().actorSelection(config.userPathFor("core-api-connector"));
+            coreConnector.tell(request, getSelf());
+        }
+    }
+
+    private void routeToPool(RouteToPool msg) {
+        RoutingTable routingTable = config.getRoutingTable();
+        String path = msg.request.getPath();
+        String route = routingTable.getRouteForPath(path);
+        Props props = routingTable.getPropsForPath(path, config);
+        RoutingTable.RouteOptions options = routingTable.getRouteOptionsForPath(path);
+
+        if (route==null || options.getPoolSize() <= 0) {
+            //the route was changed in the meantime
+            getSender().tell(new ExceptError(new RuntimeException("No pooled route for " + path)), getSelf());
+            return;
         }
+
+        String key = route + "#" + props.actorClass().getName();
+        ActorRef pool = routePools.get(key);
+        if (pool==null) {
+            if (options.getPoolRouter()==RoutingTable.RouteOptions.PoolRouter.SMALLEST_MAILBOX) {
+                pool = getContext().actorOf(new SmallestMailboxPool(options.getPoolSize()).withSupervisorStrategy(routePoolStrategy).props(props));
+            } else {
+                pool = getContext().actorOf(new RoundRobinPool(options.getPoolSize()).withSupervisorStrategy(routePoolStrategy).props(props));
+            }
+            routePools.put(key, pool);
+        }
+
+        pool.tell(msg.request, getSender());
     }
 
     private FiniteDuration getRootTimeout() {
         if (config.getRootTimeout()!=null) {
             return Duration.create(config.getRootTimeout(), TimeUnit.MILLISECONDS);
         }
-        return Duration.create(1, TimeUnit.MINUTES);
+        return Duration.create(DEFAULT_ROOT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void preStart() throws Exception {
+        executionStrategy = config.getExecutionStrategy()!=null ? config.getExecutionStrategy() : new ThreadPoolExecutionStrategy();
+        if (executionStrategy instanceof VirtualThreadExecutionStrategy && !VirtualThreadExecutionStrategy.isSupported()) {
+            log.warning("Virtual threads are not supported by this JVM. Falling back to thread pools.");
+        }
+        //without a thread pool configuration, the default strategy completes requests on this actor's dispatcher
+        containmentExecutor = executionStrategy.newExecutor("request-containment", null, metrics, getContext().dispatcher());
+    }
+
+    @Override
+    public void postStop() throws Exception {
+        containmentExecutor.shutdown();
+        if (passthroughProxy!=null) {
+            passthroughExecutor.shutdown();
+            passthroughProxy.close();
+        }
     }
 
     @Override
     public void onReceive(Object msg) throws Exception {
         if (msg instanceof GrizzlyHTTPRequest) {
+            GrizzlyHTTPRequest request = (GrizzlyHTTPRequest) msg;
+            RoutingTable.Passthrough passthrough = config.getRoutingTable()!=null ?
+                    config.getRoutingTable().getPassthroughForPath(request.getRequest().getRequestURI()) : null;
+
+            if (passthrough!=null) {
+                passthrough(request, passthrough);
+            } else {
+                ActorRef requestHandler = getContext().actorOf(Props.create(MediatorRequestHandler.class, config));
+                containRequest(request, requestHandler);
+            }
+
+        } else if (msg instanceof GrizzlyMLLPRequest) {
             ActorRef requestHandler = getContext().actorOf(Props.create(MediatorRequestHandler.class, config));
-            containRequest((GrizzlyHTTPRequest) msg, requestHandler);
+            containMLLPRequest((GrizzlyMLLPRequest) msg, requestHandler);
+
+        } else if (msg instanceof RouteToPool) {
+            routeToPool((RouteToPool) msg);
+
+        } else if (msg instanceof PassthroughOrchestration) {
+            reportPassthroughOrchestration((PassthroughOrchestration) msg);
+        } else if (msg instanceof QueueTransactionUpdateResponse) {
+            if (!((QueueTransactionUpdateResponse) msg).isQueued()) {
+                log.warning("Transaction update queue is full. A passthrough orchestration will not be sent to core");
+            }
+        } else if (msg instanceof MediatorHTTPResponse) {
+            //core's response to a passthrough orchestration update
+            log.info("Received response from core - status " + ((MediatorHTTPResponse) msg).getStatusCode());
+        } else if (msg instanceof ExceptError) {
+            log.error(((ExceptError) msg).getError(), "Could not send a passthrough orchestration to core");
 
         } else {
             unhandled(msg);
@@ -13,6 +13,7 @@ import akka.actor.Props;
 import akka.actor.UntypedActor;
 import akka.event.Logging;
 import akka.event.LoggingAdapter;
+import org.glassfish.grizzly.http.CompressionConfig;
 import org.glassfish.grizzly.http.server.HttpHandler;
 import org.glassfish.grizzly.http.server.HttpServer;
 import org.glassfish.grizzly.http.server.NetworkListener;
@@ -21,8 +22,10 @@ import org.glassfish.grizzly.http.server.Response;
 import org.openhim.mediator.engine.messages.GrizzlyHTTPRequest;
 import org.openhim.mediator.engine.messages.SetupSSLContext;
 import org.openhim.mediator.engine.messages.SetupSSLContextResponse;
+import org.openhim.mediator.engine.metrics.MetricsRegistry;
 
 import java.io.IOException;
+import java.util.HashSet;
 
 /**
  * The mediator engine HTTP server.
@@ -30,6 +33,8 @@ import java.io.IOException;
  * Its roles are to:
  * <ul>
  * <li>provide the http server for the mediator,</li>
+ * <li>provide the mllp server for the mediator, if configured,</li>
+ * <li>provide the metrics endpoint, if configured,</li>
  * <li>launch default actor system if none are provided, and</li>
  * <li>start/stop the heartbeat service.</li>
  * </ul>
@@ -72,6 +77,24 @@ public class MediatorServer {
         }
     }
 
+    /**
+     * Serves the metrics registry in the Prometheus text format
+     */
+    private static class MetricsHandler extends HttpHandler {
+        private final MetricsRegistry registry;
+
+        MetricsHandler(MetricsRegistry registry) {
+            this.registry = registry;
+        }
+
+        @Override
+        public void service(Request request, Response response) throws Exception {
+            response.setContentType(MetricsRegistry.PROMETHEUS_CONTENT_TYPE);
+            response.setCharacterEncoding("UTF-8");
+            registry.writePrometheus(response.getWriter());
+        }
+    }
+
     private final LoggingAdapter log;
 
     private final ActorSystem system;
@@ -79,6 +102,8 @@ public class MediatorServer {
     private final ActorRef rootActor;
     private final MediatorConfig config;
     private final HttpServer httpServer;
+    private final MLLPServer mllpServer;
+    private final HttpServer metricsServer;
 
 
     public MediatorServer(ActorSystem system, MediatorConfig config) {
@@ -89,6 +114,14 @@ public class MediatorServer {
 
         httpServer = new HttpServer();
         configureHttpServer();
+
+        if (config.getMLLPListener() != null) {
+            mllpServer = new MLLPServer(config.getMLLPListener(), config.getServerHost(), rootActor);
+        } else {
+            mllpServer = null;
+        }
+
+        metricsServer = configureMetricsEndpoint();
     }
 
     public MediatorServer(MediatorConfig config) {
@@ -98,6 +131,7 @@ public class MediatorServer {
 
     private void configureHttpServer() {
         NetworkListener listener = new NetworkListener(config.getName(), config.getServerHost(), config.getServerPort());
+        configureCompression(listener);
         httpServer.addListener(listener);
 
         httpServer.getServerConfiguration().addHttpHandler(new HttpHandler() {
@@ -110,12 +144,55 @@ public class MediatorServer {
     }
 
 
+    /**
+     * Let Grizzly gzip responses for clients that accept it, if enabled
+     */
+    private void configureCompression(NetworkListener listener) {
+        MediatorConfig.Compression compression = config.getCompression();
+        if (compression == null || !compression.getServerResponses()) {
+            return;
+        }
+
+        CompressionConfig compressionConfig = listener.getCompressionConfig();
+        compressionConfig.setCompressionMode(CompressionConfig.CompressionMode.ON);
+        compressionConfig.setCompressionMinSize(compression.getMinResponseSize());
+        compressionConfig.setCompressableMimeTypes(new HashSet<>(compression.getMimeTypes()));
+    }
+
+    /**
+     * @return A separate server for the metrics endpoint, if configured to use its own port
+     */
+    private HttpServer configureMetricsEndpoint() {
+        MediatorConfig.MetricsEndpoint endpoint = config.getMetricsEndpoint();
+        if (endpoint == null) {
+            return null;
+        }
+
+        MetricsHandler handler = new MetricsHandler(config.getMetricsRegistry());
+        if (endpoint.getPort() == null) {
+            httpServer.getServerConfiguration().addHttpHandler(handler, endpoint.getPath());
+            return null;
+        }
+
+        HttpServer server = new HttpServer();
+        server.addListener(new NetworkListener(config.getName() + "-metrics", config.getServerHost(), endpoint.getPort()));
+        server.getServerConfiguration().addHttpHandler(handler, endpoint.getPath());
+        return server;
+    }
+
+
     public void start() throws IOException {
         start(true);
     }
 
     public void start(boolean registerMediatorWithCore) throws IOException {
         httpServer.start();
+        if (mllpServer != null) {
+            mllpServer.start();
+        }
+        if (metricsServer != null) {
+            metricsServer.start();
+        }
 
         if (config.getSSLContext() != null) {
             ActorRef coordinator = system.actorOf(Props.create(SSLContextStartupCoordinator.class, config, registerMediatorWithCore), "ssl-context-coordinator");
@@ -131,6 +208,12 @@ public class MediatorServer {
         heartbeat.tell(new HeartbeatActor.Stop(), ActorRef.noSender());
 
         httpServer.shutdownNow();
+        if (mllpServer != null) {
+            mllpServer.stop();
+        }
+        if (metricsServer != null) {
+            metricsServer.shutdownNow();
+        }
 
         if (isDefaultActorSystem) {
             system.shutdown();
@@ -0,0 +1,196 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.engine;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * A policy for how much of each outbound call is recorded in its orchestration.
+ * <br/><br/>
+ * Orchestrations are held in memory until the request completes and are then sent to core, so recording multi-MB
+ * bodies for every call is expensive. By default a policy limits the recorded bodies to {@link #getMaxBodyBytes()}
+ * and keeps all headers. Calls that fail, and the calls of a sample of transactions, can be recorded in full.
+ * <br/><br/>
+ * The sample is chosen per transaction, so either all or none of the calls made for a request are recorded in full.
+ *
+ * @see OrchestrationCaptures
+ */
+public class OrchestrationCapture {
+    public static final String TRUNCATED_MARKER = "[truncated]";
+
+    private int maxBodyBytes = 64 * 1024;
+    private Set<String> headers;
+    private int fullCapturePercent = 0;
+    private boolean fullCaptureOnError = true;
+
+
+    /**
+     * @see #setMaxBodyBytes(int)
+     */
+    public int getMaxBodyBytes() {
+        return maxBodyBytes;
+    }
+
+    /**
+     * The maximum size of each recorded body, in UTF-8 bytes. Longer bodies are cut short and end with
+     * {@link #TRUNCATED_MARKER}. Zero records no bodies at all, and a negative value records bodies in full.
+     * <br/><br/>
+     * Default: 64 KB
+     */
+    public void setMaxBodyBytes(int maxBodyBytes) {
+        this.maxBodyBytes = maxBodyBytes;
+    }
+
+    /**
+     * @see #setHeaders(List)
+     */
+    public Set<String> getHeaders() {
+        return headers;
+    }
+
+    /**
+     * The names of the headers to record. Other headers are left out of the orchestration.
+     * <br/><br/>
+     * Default: null (all headers)
+     */
+    public void setHeaders(List<String> headers) {
+        if (headers==null) {
+            this.headers = null;
+            return;
+        }
+        this.headers = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+        this.headers.addAll(headers);
+    }
+
+    /**
+     * @see #setFullCapturePercent(int)
+     */
+    public int getFullCapturePercent() {
+        return fullCapturePercent;
+    }
+
+    /**
+     * The percentage of transactions for which all calls are recorded in full.
+     * <br/><br/>
+     * Default: 0
+     */
+    public void setFullCapturePercent(int fullCapturePercent) {
+        this.fullCapturePercent = fullCapturePercent;
+    }
+
+    /**
+     * @see #setFullCaptureOnError(boolean)
+     */
+    public boolean getFullCaptureOnError() {
+        return fullCaptureOnError;
+    }
+
+    /**
+     * Record calls in full if they fail, i.e. if they don't get a response or the response has a <code>4xx</code>
+     * or <code>5xx</code> status.
+     * <br/><br/>
+     * Default: true
+     */
+    public void setFullCaptureOnError(boolean fullCaptureOnError) {
+        this.fullCaptureOnError = fullCaptureOnError;
+    }
+
+
+    /**
+     * Apply the policy to an orchestration. The bodies and headers are replaced, so the maps in the orchestration
+     * may be shared with the request and response messages.
+     *
+     * @param transactionKey Identifies the transaction for sampling, e.g. the request handler. May be null.
+     */
+    public void apply(CoreResponse.Orchestration orchestration, Object transactionKey) {
+        if (isFullCapture(orchestration, transactionKey)) {
+            return;
+        }
+
+        CoreResponse.Request request = orchestration.getRequest();
+        if (request!=null) {
+            request.setBody(captureBody(request.getBody()));
+            request.setHeaders(captureHeaders(request.getHeaders()));
+        }
+        CoreResponse.Response response = orchestration.getResponse();
+        if (response!=null) {
+            response.setBody(captureBody(response.getBody()));
+            response.setHeaders(captureHeaders(response.getHeaders()));
+        }
+    }
+
+    private boolean isFullCapture(CoreResponse.Orchestration orchestration, Object transactionKey) {
+        if (fullCaptureOnError) {
+            CoreResponse.Response response = orchestration.getResponse();
+            if (response==null || (response.getStatus()!=null && response.getStatus() >= 400)) {
+                return true;
+            }
+        }
+        return fullCapturePercent > 0 && transactionKey!=null && sampleBucket(transactionKey) < fullCapturePercent;
+    }
+
+    /**
+     * @return a bucket between 0 and 99 for the transaction
+     */
+    static int sampleBucket(Object transactionKey) {
+        //spread the hash codes, since they're often sequential or aligned
+        int h = transactionKey.hashCode() * 0x9E3779B9;
+        h ^= h >>> 16;
+        return (h & 0x7fffffff) % 100;
+    }
+
+    String captureBody(String body) {
+        if (body==null || maxBodyBytes < 0) {
+            return body;
+        }
+        if (maxBodyBytes==0) {
+            return null;
+        }
+
+        //find the longest prefix that fits, without splitting a surrogate pair
+        int bytes = 0;
+        for (int i=0; i<body.length(); i++) {
+            char c = body.charAt(i);
+            int len;
+            if (c < 0x80) {
+                len = 1;
+            } else if (c < 0x800) {
+                len = 2;
+            } else if (Character.isHighSurrogate(c) && i+1 < body.length() && Character.isLowSurrogate(body.charAt(i+1))) {
+                len = 4;
+            } else {
+                len = 3;
+            }
+
+            if (bytes + len > maxBodyBytes) {
+                return body.substring(0, i) + TRUNCATED_MARKER;
+            }
+            bytes += len;
+            if (len==4) {
+                i++;
+            }
+        }
+        return body;
+    }
+
+    private Map<String, String> captureHeaders(Map<String, String> headers) {
+        if (headers==null || this.headers==null) {
+            return headers;
+        }
+        Map<String, String> captured = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            if (this.headers.contains(header.getKey())) {
+                captured.put(header.getKey(), header.getValue());
+            }
+        }
+        return captured;
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.engine;
+
+import akka.actor.ActorRef;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The orchestration capture policies used by the connectors.
+ * <br/><br/>
+ * A policy can be set for an orchestration name, for a route (see
+ * {@link RoutingTable.RouteOptions#setOrchestrationCapture(OrchestrationCapture)}) or as the default, in that order
+ * of precedence. Request handlers register the policy of their route when they receive a request, and the connectors
+ * look it up using the request handler of each outbound request, in the same way as {@link RequestDeadlines}.
+ * <br/><br/>
+ * Without any policies, orchestrations are recorded in full.
+ *
+ * @see MediatorConfig#getOrchestrationCaptures()
+ */
+public class OrchestrationCaptures {
+    private final ConcurrentMap<String, OrchestrationCapture> byOrchestration = new ConcurrentHashMap<>();
+    private final ConcurrentMap<ActorRef, OrchestrationCapture> byRequestHandler = new ConcurrentHashMap<>();
+    private volatile OrchestrationCapture defaultCapture;
+
+
+    /**
+     * @see #setDefault(OrchestrationCapture)
+     */
+    public OrchestrationCapture getDefault() {
+        return defaultCapture;
+    }
+
+    /**
+     * The policy for orchestrations that don't have a more specific one. Null (the default) records them in full.
+     */
+    public void setDefault(OrchestrationCapture defaultCapture) {
+        this.defaultCapture = defaultCapture;
+    }
+
+    /**
+     * Set the policy for all orchestrations with a given name
+     */
+    public void put(String orchestrationName, OrchestrationCapture capture) {
+        byOrchestration.put(orchestrationName, capture);
+    }
+
+    public void register(ActorRef requestHandler, OrchestrationCapture capture) {
+        byRequestHandler.put(requestHandler, capture);
+    }
+
+    public void remove(ActorRef requestHandler) {
+        byRequestHandler.remove(requestHandler);
+    }
+
+    /**
+     * @return the policy for an orchestration, or null if it should be recorded in full
+     */
+    public OrchestrationCapture get(ActorRef requestHandler, String orchestrationName) {
+        OrchestrationCapture capture = orchestrationName!=null ? byOrchestration.get(orchestrationName) : null;
+        if (capture==null && requestHandler!=null) {
+            capture = byRequestHandler.get(requestHandler);
+        }
+        return capture!=null ? capture : defaultCapture;
+    }
+
+    /**
+     * Apply the policy for an orchestration, if there is one. Transactions are sampled by their request handler.
+     *
+     * @return the orchestration
+     */
+    public CoreResponse.Orchestration apply(ActorRef requestHandler, CoreResponse.Orchestration orchestration) {
+        OrchestrationCapture capture = get(requestHandler, orchestration.getName());
+        if (capture!=null) {
+            capture.apply(orchestration, requestHandler);
+        }
+        return orchestration;
+    }
+}
@@ -0,0 +1,285 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.engine;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.RequestBuilder;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.glassfish.grizzly.http.server.Request;
+import org.glassfish.grizzly.http.server.Response;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Forwards requests on passthrough routes to their upstream server.
+ * <br/><br/>
+ * The request body is piped from the client connection to the upstream connection, and the upstream response
+ * is copied back to the client in chunks of {@link #BUFFER_SIZE} bytes, so no body is ever held in memory beyond
+ * the prefix recorded in the orchestration. Calls block, so they must not be made on the actor dispatcher.
+ * <br/><br/>
+ * Connections are pooled using {@link MediatorConfig.HTTPConnectionPool} and limited by
+ * {@link MediatorConfig.ConnectorTimeouts}.
+ *
+ * @see RoutingTable.Passthrough
+ */
+class PassthroughProxy implements Closeable {
+    static final int BUFFER_SIZE = 8192;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    //headers that apply to a single connection, and are therefore not forwarded
+    private static final Set<String> HOP_BY_HOP_HEADERS = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+    static {
+        HOP_BY_HOP_HEADERS.addAll(Arrays.asList(
+                "Connection", "Keep-Alive", "Proxy-Authenticate", "Proxy-Authorization", "TE", "Trailer",
+                "Transfer-Encoding", "Upgrade", "Host", "Content-Length"
+        ));
+    }
+
+    private final CloseableHttpClient client;
+
+
+    PassthroughProxy(MediatorConfig config) {
+        MediatorConfig.HTTPConnectionPool poolConfig = config.getHTTPConnectionPool()!=null ?
+                config.getHTTPConnectionPool() : new MediatorConfig.HTTPConnectionPool();
+        MediatorConfig.ConnectorTimeouts timeouts = config.getConnectorTimeouts()!=null ?
+                config.getConnectorTimeouts() : new MediatorConfig.ConnectorTimeouts();
+
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(poolConfig.getMaxTotal());
+        connectionManager.setDefaultMaxPerRoute(poolConfig.getMaxPerRoute());
+        connectionManager.setValidateAfterInactivity(poolConfig.getValidateAfterInactivityMillis());
+
+        client = HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .evictExpiredConnections()
+                .evictIdleConnections(poolConfig.getMaxIdleMillis(), TimeUnit.MILLISECONDS)
+                .disableContentCompression()
+                .disableRedirectHandling()
+                .setDefaultRequestConfig(RequestConfig.custom()
+                        .setConnectTimeout(timeouts.getConnectTimeoutMillis())
+                        .setConnectionRequestTimeout(timeouts.getConnectTimeoutMillis())
+                        .setSocketTimeout(timeouts.getSocketTimeoutMillis())
+                        .build())
+                .build();
+    }
+
+
+    /**
+     * Forward a request upstream and stream the response back to the client. If the upstream server can't be
+     * reached, the client receives a <code>502</code> response, or a <code>504</code> if the call timed out.
+     * <br/><br/>
+     * The Grizzly response isn't resumed.
+     *
+     * @return The orchestration for the call
+     */
+    CoreResponse.Orchestration forward(Request request, Response response, RoutingTable.Passthrough passthrough) {
+        URI uri = buildURI(request, passthrough);
+        BodyPrefix requestBody = new BodyPrefix(passthrough.getOrchestrationBodyLimit());
+        BodyPrefix responseBody = new BodyPrefix(passthrough.getOrchestrationBodyLimit());
+
+        CoreResponse.Request orchRequest = new CoreResponse.Request();
+        orchRequest.setHost(uri.getHost());
+        orchRequest.setPort(Integer.toString(uri.getPort()));
+        orchRequest.setPath(uri.getRawPath());
+        orchRequest.setQueryString(uri.getRawQuery());
+        orchRequest.setMethod(request.getMethod().getMethodString());
+
+        RequestBuilder builder = RequestBuilder.create(request.getMethod().getMethodString()).setUri(uri);
+        for (String name : request.getHeaderNames()) {
+            if (!HOP_BY_HOP_HEADERS.contains(name) && !passthrough.getHeaders().containsKey(name)) {
+                for (String value : request.getHeaders(name)) {
+                    builder.addHeader(name, value);
+                }
+                orchRequest.putHeader(name, request.getHeader(name));
+            }
+        }
+        for (Map.Entry<String, String> header : passthrough.getHeaders().entrySet()) {
+            builder.addHeader(header.getKey(), header.getValue());
+            orchRequest.putHeader(header.getKey(), header.getValue());
+        }
+
+        long contentLength = request.getContentLengthLong();
+        boolean chunked = "chunked".equalsIgnoreCase(request.getHeader("Transfer-Encoding"));
+        if (contentLength > 0 || chunked) {
+            InputStream in = requestBody.capture(request.getInputStream());
+            builder.setEntity(new InputStreamEntity(in, chunked ? -1 : contentLength));
+        }
+
+        CoreResponse.Response orchResponse = new CoreResponse.Response();
+        try (CloseableHttpResponse upstreamResponse = client.execute(builder.build())) {
+            orchRequest.setBody(requestBody.decode(request.getContentType()));
+
+            response.setStatus(upstreamResponse.getStatusLine().getStatusCode(), upstreamResponse.getStatusLine().getReasonPhrase());
+            orchResponse.setStatus(upstreamResponse.getStatusLine().getStatusCode());
+            for (Header header : upstreamResponse.getAllHeaders()) {
+                if (HOP_BY_HOP_HEADERS.contains(header.getName())) {
+                    continue;
+                }
+                if ("Content-Type".equalsIgnoreCase(header.getName())) {
+                    response.setContentType(header.getValue());
+                } else {
+                    response.addHeader(header.getName(), header.getValue());
+                }
+                orchResponse.putHeader(header.getName(), header.getValue());
+            }
+
+            HttpEntity entity = upstreamResponse.getEntity();
+            if (entity!=null) {
+                if (entity.getContentLength() >= 0) {
+                    response.setContentLengthLong(entity.getContentLength());
+                }
+                try (InputStream in = entity.getContent()) {
+                    copy(in, response.getOutputStream(), responseBody);
+                }
+            }
+            orchResponse.setBody(responseBody.decode(orchResponse.getHeaders().get("Content-Type")));
+        } catch (IOException ex) {
+            int status = ex instanceof SocketTimeoutException || ex instanceof ConnectTimeoutException ?
+                    HttpStatus.SC_GATEWAY_TIMEOUT : HttpStatus.SC_BAD_GATEWAY;
+            String message = "Passthrough to " + uri.getHost() + " failed: " + ex.getMessage();
+            orchResponse.setStatus(status);
+            orchResponse.setBody(message);
+
+            //the response can only be changed if nothing has been sent to the client yet
+            if (!response.isCommitted()) {
+                response.reset();
+                response.setStatus(status);
+                response.setContentType("text/plain");
+                response.setCharacterEncoding("UTF-8");
+                try {
+                    response.getWriter().write(message);
+                } catch (IOException writeEx) {
+                    //the client is gone
+                }
+            }
+        }
+        orchResponse.setTimestamp(new Date());
+
+        CoreResponse.Orchestration orchestration = new CoreResponse.Orchestration();
+        orchestration.setName(passthrough.getOrchestrationName());
+        orchestration.setRequest(orchRequest);
+        orchestration.setResponse(orchResponse);
+        return orchestration;
+    }
+
+    private static URI buildURI(Request request, RoutingTable.Passthrough passthrough) {
+        StringBuilder uri = new StringBuilder()
+                .append(passthrough.getScheme()).append("://")
+                .append(passthrough.getHost()).append(':').append(passthrough.getPort())
+                .append(passthrough.getPath()!=null ? passthrough.getPath() : request.getRequestURI());
+        if (request.getQueryString()!=null) {
+            uri.append('?').append(request.getQueryString());
+        }
+        return URI.create(uri.toString());
+    }
+
+    private static void copy(InputStream in, OutputStream out, BodyPrefix prefix) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            prefix.write(buffer, 0, n);
+            out.write(buffer, 0, n);
+        }
+        out.flush();
+    }
+
+    @Override
+    public void close() {
+        IOUtils.closeQuietly(client);
+    }
+
+
+    /**
+     * Keeps the first bytes of a body for the orchestration
+     */
+    private static class BodyPrefix {
+        private final int limit;
+        private final ByteArrayOutputStream bytes;
+
+        BodyPrefix(int limit) {
+            this.limit = limit;
+            this.bytes = limit > 0 ? new ByteArrayOutputStream(Math.min(limit, BUFFER_SIZE)) : null;
+        }
+
+        void write(byte[] b, int off, int len) {
+            if (bytes!=null && bytes.size() < limit) {
+                bytes.write(b, off, Math.min(len, limit - bytes.size()));
+            }
+        }
+
+        InputStream capture(InputStream in) {
+            if (bytes==null) {
+                return in;
+            }
+            return new FilterInputStream(in) {
+                @Override
+                public int read() throws IOException {
+                    int b = super.read();
+                    if (b != -1) {
+                        BodyPrefix.this.write(new byte[]{(byte) b}, 0, 1);
+                    }
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    int n = super.read(b, off, len);
+                    if (n > 0) {
+                        BodyPrefix.this.write(b, off, n);
+                    }
+                    return n;
+                }
+            };
+        }
+
+        /**
+         * @return the prefix decoded with the charset declared in the content type, or null if bodies aren't recorded
+         */
+        String decode(String contentType) {
+            if (bytes==null) {
+                return null;
+            }
+            Charset charset = UTF8;
+            if (contentType!=null) {
+                try {
+                    Charset declared = ContentType.parse(contentType).getCharset();
+                    if (declared!=null) {
+                        charset = declared;
+                    }
+                } catch (RuntimeException ex) {
+                    //keep the default
+                }
+            }
+            return new String(bytes.toByteArray(), charset);
+        }
+    }
+}
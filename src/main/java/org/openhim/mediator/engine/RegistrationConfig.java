@@ -6,9 +6,8 @@
 
 package org.openhim.mediator.engine;
 
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
 import org.apache.commons.io.IOUtils;
+import org.openhim.mediator.engine.json.JSON;
 
 import java.io.IOException;
 import java.io.InputStream;
@@ -43,7 +42,7 @@ public class RegistrationConfig {
      */
     public RegistrationConfig(String content) {
         this.content = content;
-        parsedConfig = new GsonBuilder().create().fromJson(content, ParsedConfig.class);
+        parsedConfig = JSON.getGson().fromJson(content, ParsedConfig.class);
     }
 
     /**
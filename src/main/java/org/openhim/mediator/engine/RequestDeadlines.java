@@ -0,0 +1,58 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.engine;
+
+import akka.actor.ActorRef;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Tracks the deadlines of the requests that are being handled, keyed on their request handlers.
+ * <br/><br/>
+ * Request handlers register a deadline when they receive a request, and the connectors look up the deadline
+ * using the request handler of each outbound request. Outbound calls are therefore limited to the time remaining
+ * for the request, without having to pass the deadline along in every message.
+ *
+ * @see MediatorConfig#getRequestDeadlines()
+ * @see RoutingTable.RouteOptions#setTimeoutMillis(Integer)
+ */
+public class RequestDeadlines {
+    private final ConcurrentMap<ActorRef, Long> deadlines = new ConcurrentHashMap<>();
+
+    /**
+     * @param deadline The time, in milliseconds since the epoch, by which the request must be completed
+     */
+    public void register(ActorRef requestHandler, long deadline) {
+        deadlines.put(requestHandler, deadline);
+    }
+
+    public void remove(ActorRef requestHandler) {
+        deadlines.remove(requestHandler);
+    }
+
+    /**
+     * @return the deadline for the request being handled, or null if there is no deadline
+     */
+    public Long get(ActorRef requestHandler) {
+        return requestHandler!=null ? deadlines.get(requestHandler) : null;
+    }
+
+    /**
+     * Limit a timeout to the time remaining before the deadline of a request.
+     *
+     * @param timeoutMillis The timeout to apply if there is no deadline, or if it's sooner than the deadline
+     * @return the timeout in milliseconds, which may be zero or negative if the deadline has already passed
+     */
+    public long remainingMillis(ActorRef requestHandler, long timeoutMillis) {
+        Long deadline = get(requestHandler);
+        if (deadline==null) {
+            return timeoutMillis;
+        }
+        return Math.min(timeoutMillis, deadline - System.currentTimeMillis());
+    }
+}
@@ -7,50 +7,440 @@
 package org.openhim.mediator.engine;
 
 import akka.actor.Actor;
+import akka.actor.Props;
+import org.apache.commons.lang3.tuple.Pair;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 /**
  * The engine routing table.
+ * <br/><br/>
+ * Routes are indexed when they are added: exact paths are kept in a hash map and regular expressions
+ * (as well as path templates) are compiled once. Lookups that need to evaluate pattern routes are cached
+ * in a bounded, segmented LRU cache, so that the lookup cost stays flat as the table grows.
  */
 public class RoutingTable {
+    public static final int DEFAULT_CACHE_SIZE = 1024;
+
+    private static final Pattern TEMPLATE_VARIABLE = Pattern.compile("\\{[^/{}]+\\}");
+
+    /**
+     * Options for how requests on a route should be handled
+     */
+    public static class RouteOptions {
+        /**
+         * The routing strategy for pooled routes
+         *
+         * @see #setPoolRouter(PoolRouter)
+         */
+        public enum PoolRouter {
+            ROUND_ROBIN, SMALLEST_MAILBOX
+        }
+
+        private boolean streamingBody = false;
+        private int poolSize = 0;
+        private PoolRouter poolRouter = PoolRouter.ROUND_ROBIN;
+        private Integer timeoutMillis;
+        private OrchestrationCapture orchestrationCapture;
+
+        /**
+         * @see #setStreamingBody(boolean)
+         */
+        public boolean getStreamingBody() {
+            return streamingBody;
+        }
+
+        /**
+         * If enabled, the request body will not be read into a string. Instead it will be available as bytes via
+         * {@link org.openhim.mediator.engine.messages.MediatorHTTPRequest#getStreamingBody()},
+         * which will spill to disk for large payloads.
+         * <br/><br/>
+         * Default: disabled
+         *
+         * @see StreamingBody
+         */
+        public void setStreamingBody(boolean streamingBody) {
+            this.streamingBody = streamingBody;
+        }
+
+        /**
+         * @see #setPoolSize(int)
+         */
+        public int getPoolSize() {
+            return poolSize;
+        }
+
+        /**
+         * If greater than 0, requests on the route will be served by a pool of this many actors,
+         * rather than by a new actor for every request. The pool is started when the route is first used
+         * and is kept for the lifetime of the mediator.
+         * <br/><br/>
+         * Pooled actors handle many requests, so they must not keep any request state. They should respond
+         * to the request handler of each request (see
+         * {@link org.openhim.mediator.engine.messages.MediatorRequestMessage#getRequestHandler()}), and should
+         * report errors using {@link org.openhim.mediator.engine.messages.ExceptError}: an unhandled exception
+         * will restart the actor, but the request will only end once the root timeout expires.
+         * <br/><br/>
+         * Default: 0 (a new actor per request)
+         */
+        public void setPoolSize(int poolSize) {
+            this.poolSize = poolSize;
+        }
+
+        /**
+         * @see #setPoolRouter(PoolRouter)
+         */
+        public PoolRouter getPoolRouter() {
+            return poolRouter;
+        }
+
+        /**
+         * The strategy for distributing requests to the actors in a pool.
+         * <br/><br/>
+         * Default: {@link PoolRouter#ROUND_ROBIN}
+         *
+         * @see #setPoolSize(int)
+         */
+        public void setPoolRouter(PoolRouter poolRouter) {
+            this.poolRouter = poolRouter;
+        }
+
+        /**
+         * @see #setTimeoutMillis(Integer)
+         */
+        public Integer getTimeoutMillis() {
+            return timeoutMillis;
+        }
+
+        /**
+         * The time allowed for handling a request on the route. If the request isn't complete by then, the client
+         * receives a <code>504</code> response and the actors handling the request are stopped. Outbound calls made
+         * for the request are limited to the time remaining. The root timeout still applies if it's shorter.
+         * <br/><br/>
+         * Default: null (the root timeout)
+         *
+         * @see MediatorConfig#setRootTimeout(Integer)
+         * @see RequestDeadlines
+         */
+        public void setTimeoutMillis(Integer timeoutMillis) {
+            this.timeoutMillis = timeoutMillis;
+        }
+
+        /**
+         * @see #setOrchestrationCapture(OrchestrationCapture)
+         */
+        public OrchestrationCapture getOrchestrationCapture() {
+            return orchestrationCapture;
+        }
+
+        /**
+         * The policy for recording the orchestrations of outbound calls made for requests on the route.
+         * A policy for the orchestration name takes precedence.
+         * <br/><br/>
+         * Default: null (the default policy)
+         *
+         * @see OrchestrationCaptures
+         */
+        public void setOrchestrationCapture(OrchestrationCapture orchestrationCapture) {
+            this.orchestrationCapture = orchestrationCapture;
+        }
+    }
+
+    /**
+     * The upstream server for a passthrough route.
+     * <br/><br/>
+     * Requests on a passthrough route aren't handled by an actor. Instead the request body is piped straight to the
+     * upstream server and the upstream response is streamed back to the client as is, without being wrapped in an
+     * OpenHIM response. Only the metadata of the call (and optionally a prefix of each body) is recorded as an
+     * orchestration, which is sent to core as a transaction update if the request has an
+     * <code>X-OpenHIM-TransactionID</code> header.
+     *
+     * @see #addPassthroughRoute(String, Passthrough)
+     */
+    public static class Passthrough {
+        private final String scheme;
+        private final String host;
+        private final int port;
+        private String path;
+        private final Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        private String orchestrationName = "passthrough";
+        private int orchestrationBodyLimit = 0;
+
+        public Passthrough(String scheme, String host, int port) {
+            this.scheme = scheme;
+            this.host = host;
+            this.port = port;
+        }
+
+
+        public String getScheme() {
+            return scheme;
+        }
+
+        public String getHost() {
+            return host;
+        }
+
+        public int getPort() {
+            return port;
+        }
+
+        /**
+         * @see #setPath(String)
+         */
+        public String getPath() {
+            return path;
+        }
+
+        /**
+         * The upstream path to forward requests to. The query string of the request is kept.
+         * <br/><br/>
+         * Default: null (the path of the request)
+         */
+        public void setPath(String path) {
+            this.path = path;
+        }
+
+        /**
+         * @see #putHeader(String, String)
+         */
+        public Map<String, String> getHeaders() {
+            return headers;
+        }
+
+        /**
+         * Set a header on every request forwarded upstream, replacing the header sent by the client if there is one
+         */
+        public void putHeader(String name, String value) {
+            headers.put(name, value);
+        }
+
+        /**
+         * @see #setOrchestrationName(String)
+         */
+        public String getOrchestrationName() {
+            return orchestrationName;
+        }
+
+        /**
+         * The name of the orchestration recorded for each call.
+         * <br/><br/>
+         * Default: passthrough
+         */
+        public void setOrchestrationName(String orchestrationName) {
+            this.orchestrationName = orchestrationName;
+        }
+
+        /**
+         * @see #setOrchestrationBodyLimit(int)
+         */
+        public int getOrchestrationBodyLimit() {
+            return orchestrationBodyLimit;
+        }
+
+        /**
+         * The maximum number of bytes of the request and response bodies to record in the orchestration.
+         * Only this prefix of each body is kept in memory.
+         * <br/><br/>
+         * Default: 0 (bodies aren't recorded)
+         */
+        public void setOrchestrationBodyLimit(int orchestrationBodyLimit) {
+            this.orchestrationBodyLimit = orchestrationBodyLimit;
+        }
+    }
+
     private static class Route {
-        String path;
-        boolean isRegex;
+        final String path;
+        final Pattern pattern;
+        final Class<? extends Actor> actorClass;
+        final RouteOptions options;
+        final Passthrough passthrough;
+        final long order;
+        final boolean acceptsConfig;
 
-        public Route(String path, boolean isRegex) {
+        //the props for the last config used, see propsFor(MediatorConfig)
+        private volatile Pair<MediatorConfig, Props> props;
+
+        public Route(String path, Pattern pattern, Class<? extends Actor> actorClass, RouteOptions options, Passthrough passthrough, long order) {
             this.path = path;
-            this.isRegex = isRegex;
+            this.pattern = pattern;
+            this.actorClass = actorClass;
+            this.options = options;
+            this.passthrough = passthrough;
+            this.order = order;
+            this.acceptsConfig = actorClass!=null && hasConfigConstructor(actorClass);
         }
 
-        @Override
-        public boolean equals(Object o) {
-            if (this == o){ return true; }
-            if (o == null || getClass() != o.getClass()){ return false; }
+        private static boolean hasConfigConstructor(Class<? extends Actor> actorClass) {
+            try {
+                return actorClass.getConstructor(MediatorConfig.class) != null;
+            } catch (NoSuchMethodException | SecurityException ex) {
+                return false;
+            }
+        }
+
+        Props propsFor(MediatorConfig config) {
+            Pair<MediatorConfig, Props> cached = props;
+            if (cached!=null && cached.getLeft()==config) {
+                return cached.getRight();
+            }
+
+            //can we pass the mediator config through?
+            Props newProps = acceptsConfig ? Props.create(actorClass, config) : Props.create(actorClass);
+            props = Pair.of(config, newProps);
+            return newProps;
+        }
+
+        boolean isPattern() {
+            return pattern!=null;
+        }
+
+        boolean matches(String path) {
+            Matcher m = pattern.matcher(path);
+            return m.matches();
+        }
+    }
+
+    /**
+     * An immutable snapshot of the indexed routes. A new index is built whenever the table is modified.
+     */
+    private static class RouteIndex {
+        final Map<String, Route> exactRoutes;
+        final List<Route> patternRoutes;
+        final long firstPatternOrder;
+
+        RouteIndex(Map<String, Route> exactRoutes, List<Route> patternRoutes) {
+            this.exactRoutes = exactRoutes;
+            this.patternRoutes = patternRoutes;
+            this.firstPatternOrder = patternRoutes.isEmpty() ? Long.MAX_VALUE : patternRoutes.get(0).order;
+        }
+    }
+
+    /**
+     * A bounded cache of path to route resolutions. The cache is split into segments that each hold an LRU map
+     * and have their own lock, so that lookups on different dispatcher threads rarely contend.
+     */
+    private static class ResolutionCache {
+        private static final int MAX_SEGMENTS = 16;
+
+        private final Segment[] segments;
+
+        ResolutionCache(int maxSize) {
+            int n = 1;
+            while (n < MAX_SEGMENTS && n * 2 <= maxSize) {
+                n *= 2;
+            }
+            segments = new Segment[n];
+            for (int i=0; i<n; i++) {
+                segments[i] = new Segment(Math.max(maxSize, 0) / n);
+            }
+        }
+
+        private Segment segmentFor(String path) {
+            int h = path.hashCode();
+            h ^= h >>> 16;
+            return segments[h & (segments.length - 1)];
+        }
+
+        Route get(String path) {
+            Segment segment = segmentFor(path);
+            synchronized (segment) {
+                return segment.get(path);
+            }
+        }
+
+        /**
+         * Cache a resolution, as long as the index it was resolved from is still current
+         */
+        void put(String path, Route route, RouteIndex resolvedFrom, RoutingTable table) {
+            Segment segment = segmentFor(path);
+            synchronized (segment) {
+                //the table clears each segment after replacing the index, so this can't race with a change
+                if (resolvedFrom==table.index) {
+                    segment.put(path, route);
+                }
+            }
+        }
+
+        void clear() {
+            for (Segment segment : segments) {
+                synchronized (segment) {
+                    segment.clear();
+                }
+            }
+        }
+    }
 
-            Route route1 = (Route) o;
+    private static class Segment extends LinkedHashMap<String, Route> {
+        private static final long serialVersionUID = 1L;
 
-            if (!path.equals(route1.path)){ return false; }
+        private final int maxSize;
 
-            return true;
+        Segment(int maxSize) {
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
         }
 
         @Override
-        public int hashCode() {
-            return path.hashCode();
+        protected boolean removeEldestEntry(Map.Entry<String, Route> eldest) {
+            return size() > maxSize;
         }
     }
 
-    private Map<Route, Class<? extends Actor>> routes = new LinkedHashMap<>();
+    private static final Route NO_ROUTE = new Route(null, null, null, null, null, Long.MAX_VALUE);
+
+    private final Map<String, Route> routes = new LinkedHashMap<>();
+    private final ResolutionCache cache;
+    private volatile RouteIndex index = new RouteIndex(Collections.<String, Route>emptyMap(), Collections.<Route>emptyList());
+    private long nextOrder = 0;
+
 
-    private void addRoute(Route route, Class<? extends Actor> actorClass) throws RouteAlreadyMappedException {
-        if (routes.containsKey(route)) {
+    public RoutingTable() {
+        this(DEFAULT_CACHE_SIZE);
+    }
+
+    /**
+     * @param cacheSize The maximum number of path resolutions to cache
+     */
+    public RoutingTable(int cacheSize) {
+        this.cache = new ResolutionCache(cacheSize);
+    }
+
+
+    private synchronized void addRoute(String path, Pattern pattern, Class<? extends Actor> actorClass, RouteOptions options,
+                                       Passthrough passthrough) throws RouteAlreadyMappedException {
+        if (routes.containsKey(path)) {
             throw new RouteAlreadyMappedException();
         }
-        routes.put(route, actorClass);
+        if (options==null) {
+            options = new RouteOptions();
+        }
+        routes.put(path, new Route(path, pattern, actorClass, options, passthrough, nextOrder++));
+        reindex();
+    }
+
+    private void reindex() {
+        Map<String, Route> exactRoutes = new HashMap<>();
+        List<Route> patternRoutes = new ArrayList<>();
+
+        for (Route route : routes.values()) {
+            if (route.isPattern()) {
+                patternRoutes.add(route);
+            } else {
+                exactRoutes.put(route.path, route);
+            }
+        }
+
+        index = new RouteIndex(exactRoutes, patternRoutes);
+        cache.clear();
     }
 
     /**
@@ -59,7 +449,17 @@ public class RoutingTable {
      * @throws RouteAlreadyMappedException
      */
     public void addRoute(String path, Class<? extends Actor> actorClass) throws RouteAlreadyMappedException {
-        addRoute(new Route(path, false), actorClass);
+        addRoute(path, actorClass, null);
+    }
+
+    /**
+     * Add an exact path to the routing table.
+     *
+     * @param options Options for handling requests on the route
+     * @throws RouteAlreadyMappedException
+     */
+    public void addRoute(String path, Class<? extends Actor> actorClass, RouteOptions options) throws RouteAlreadyMappedException {
+        addRoute(path, null, actorClass, options, null);
     }
 
     /**
@@ -69,7 +469,82 @@ public class RoutingTable {
      * @throws RouteAlreadyMappedException
      */
     public void addRegexRoute(String urlPattern, Class<? extends Actor> actorClass) throws RouteAlreadyMappedException {
-        addRoute(new Route(urlPattern, true), actorClass);
+        addRegexRoute(urlPattern, actorClass, null);
+    }
+
+    /**
+     * Add a URL pattern to the routing table.
+     *
+     * @param urlPattern A regular expression
+     * @param options Options for handling requests on the route
+     * @throws RouteAlreadyMappedException
+     */
+    public void addRegexRoute(String urlPattern, Class<? extends Actor> actorClass, RouteOptions options) throws RouteAlreadyMappedException {
+        addRoute(urlPattern, Pattern.compile(urlPattern), actorClass, options, null);
+    }
+
+    /**
+     * Add a path template to the routing table, e.g. <code>/patients/{id}</code>.
+     * <br/><br/>
+     * Each <code>{variable}</code> will match a single (non-empty) path segment. The rest of the template is matched exactly.
+     *
+     * @param pathTemplate A path template
+     * @throws RouteAlreadyMappedException
+     */
+    public void addTemplateRoute(String pathTemplate, Class<? extends Actor> actorClass) throws RouteAlreadyMappedException {
+        addTemplateRoute(pathTemplate, actorClass, null);
+    }
+
+    /**
+     * Add a path template to the routing table, e.g. <code>/patients/{id}</code>.
+     *
+     * @param pathTemplate A path template
+     * @param options Options for handling requests on the route
+     * @throws RouteAlreadyMappedException
+     * @see #addTemplateRoute(String, Class)
+     */
+    public void addTemplateRoute(String pathTemplate, Class<? extends Actor> actorClass, RouteOptions options) throws RouteAlreadyMappedException {
+        addRoute(pathTemplate, compileTemplate(pathTemplate), actorClass, options, null);
+    }
+
+    /**
+     * Add an exact path to the routing table that forwards requests to an upstream server.
+     *
+     * @throws RouteAlreadyMappedException
+     * @see Passthrough
+     */
+    public void addPassthroughRoute(String path, Passthrough passthrough) throws RouteAlreadyMappedException {
+        addRoute(path, null, null, null, passthrough);
+    }
+
+    /**
+     * Add a URL pattern to the routing table that forwards requests to an upstream server.
+     *
+     * @param urlPattern A regular expression
+     * @throws RouteAlreadyMappedException
+     * @see Passthrough
+     */
+    public void addRegexPassthroughRoute(String urlPattern, Passthrough passthrough) throws RouteAlreadyMappedException {
+        addRoute(urlPattern, Pattern.compile(urlPattern), null, null, passthrough);
+    }
+
+    private static Pattern compileTemplate(String pathTemplate) {
+        StringBuilder regex = new StringBuilder();
+        Matcher m = TEMPLATE_VARIABLE.matcher(pathTemplate);
+        int pos = 0;
+
+        while (m.find()) {
+            if (m.start() > pos) {
+                regex.append(Pattern.quote(pathTemplate.substring(pos, m.start())));
+            }
+            regex.append("[^/]+");
+            pos = m.end();
+        }
+        if (pos < pathTemplate.length()) {
+            regex.append(Pattern.quote(pathTemplate.substring(pos)));
+        }
+
+        return Pattern.compile(regex.toString());
     }
 
     /**
@@ -79,24 +554,95 @@ public class RoutingTable {
      *
      * @see #addRoute(String, Class)
      * @see #addRegexRoute(String, Class)
+     * @see #addTemplateRoute(String, Class)
      */
     public Class<? extends Actor> getActorClassForPath(String path) {
-        for (Route route : routes.keySet()) {
-            if (route.isRegex) {
-                Pattern p = Pattern.compile(route.path);
-                Matcher m = p.matcher(path);
-                if (m.matches()) {
-                    return routes.get(route);
-                }
-            } else if (route.path.equals(path)) {
-                return routes.get(route);
+        return resolve(path).actorClass;
+    }
+
+    /**
+     * Retrieve the route options for a specific path.
+     *
+     * @return The options for the matching route, or null if no route matches
+     * @see #getActorClassForPath(String)
+     */
+    public RouteOptions getRouteOptionsForPath(String path) {
+        return resolve(path).options;
+    }
+
+    /**
+     * Retrieve the upstream server for a specific path.
+     *
+     * @return The upstream server if the matching route is a passthrough route, else null
+     * @see #addPassthroughRoute(String, Passthrough)
+     */
+    public Passthrough getPassthroughForPath(String path) {
+        return resolve(path).passthrough;
+    }
+
+    /**
+     * Retrieve the route that matches a specific path.
+     *
+     * @return The path, pattern or template that the matching route was added with, or null if no route matches
+     * @see #getActorClassForPath(String)
+     */
+    public String getRouteForPath(String path) {
+        return resolve(path).path;
+    }
+
+    /**
+     * Retrieve the props for creating an actor to handle a specific path.
+     * <br/><br/>
+     * If the actor class has a constructor that accepts a {@link MediatorConfig}, the config will be passed through.
+     * The constructor is resolved once when the route is added.
+     *
+     * @return The props for the matching route, or null if no route matches or the route is a passthrough route
+     * @see #getActorClassForPath(String)
+     */
+    public Props getPropsForPath(String path, MediatorConfig config) {
+        Route route = resolve(path);
+        return route.actorClass!=null ? route.propsFor(config) : null;
+    }
+
+    private Route resolve(String path) {
+        RouteIndex index = this.index;
+        Route exact = index.exactRoutes.get(path);
+
+        //fast path: an exact route that was added before any pattern routes always wins
+        if (exact!=null && exact.order < index.firstPatternOrder) {
+            return exact;
+        }
+        if (exact==null && index.patternRoutes.isEmpty()) {
+            return NO_ROUTE;
+        }
+
+        Route cached = cache.get(path);
+        if (cached!=null) {
+            return cached;
+        }
+
+        Route resolved = exact!=null ? exact : NO_ROUTE;
+        for (Route route : index.patternRoutes) {
+            if (route.order > resolved.order) {
+                break;
+            }
+            if (route.matches(path)) {
+                resolved = route;
+                break;
             }
         }
-        return null;
+
+        cache.put(path, resolved, index, this);
+        return resolved;
     }
 
-    public Class<? extends Actor> removeRoute(String route) {
-        return routes.remove(new Route(route, false));
+    public synchronized Class<? extends Actor> removeRoute(String route) {
+        Route removed = routes.remove(route);
+        if (removed==null) {
+            return null;
+        }
+        reindex();
+        return removed.actorClass;
     }
 
 
@@ -0,0 +1,303 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.engine;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A byte buffer for request bodies that don't need to be materialized as a string.
+ * <br/><br/>
+ * The body is kept in memory as a chain of fixed-size chunks until it grows beyond the memory threshold,
+ * after which it is spilled to a temporary file. Once complete, the body can be read any number of times
+ * using {@link #getInputStream()}.
+ * <br/><br/>
+ * Bodies that have been spilled to disk must be released using {@link #release()} when no longer needed.
+ * The engine will release the body of a request when the request ends.
+ *
+ * @see RoutingTable.RouteOptions#setStreamingBody(boolean)
+ */
+public class StreamingBody implements Closeable {
+    public static final int DEFAULT_MEMORY_THRESHOLD = 1024 * 1024;
+
+    private static final int CHUNK_SIZE = 8 * 1024;
+
+    private final int memoryThreshold;
+    private final File tempDirectory;
+
+    private final List<byte[]> chunks = new ArrayList<>();
+    private int lastChunkLength = CHUNK_SIZE;
+    private long size = 0;
+
+    private File file;
+    private OutputStream fileOut;
+
+    private volatile boolean complete = false;
+    private volatile boolean released = false;
+
+
+    public StreamingBody() {
+        this(DEFAULT_MEMORY_THRESHOLD);
+    }
+
+    /**
+     * @param memoryThreshold The maximum number of bytes to keep in memory before spilling to disk
+     */
+    public StreamingBody(int memoryThreshold) {
+        this(memoryThreshold, null);
+    }
+
+    /**
+     * @param memoryThreshold The maximum number of bytes to keep in memory before spilling to disk
+     * @param tempDirectory The directory to use for temporary files. If null, the system default will be used.
+     */
+    public StreamingBody(int memoryThreshold, File tempDirectory) {
+        this.memoryThreshold = memoryThreshold;
+        this.tempDirectory = tempDirectory;
+    }
+
+    /**
+     * Create a complete body from a byte array
+     */
+    public static StreamingBody wrap(byte[] bytes) {
+        StreamingBody body = new StreamingBody(Integer.MAX_VALUE);
+        try {
+            body.write(bytes, 0, bytes.length);
+            body.complete();
+        } catch (IOException ex) {
+            //won't happen for an in-memory body
+            throw new IllegalStateException(ex);
+        }
+        return body;
+    }
+
+
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+        if (complete) {
+            throw new IllegalStateException("Body is already complete");
+        }
+
+        if (file==null && size + len > memoryThreshold) {
+            spill();
+        }
+
+        if (file!=null) {
+            fileOut.write(b, off, len);
+        } else {
+            int pos = off;
+            int remaining = len;
+            while (remaining > 0) {
+                if (lastChunkLength==CHUNK_SIZE) {
+                    chunks.add(new byte[CHUNK_SIZE]);
+                    lastChunkLength = 0;
+                }
+                int n = Math.min(remaining, CHUNK_SIZE - lastChunkLength);
+                System.arraycopy(b, pos, chunks.get(chunks.size()-1), lastChunkLength, n);
+                lastChunkLength += n;
+                pos += n;
+                remaining -= n;
+            }
+        }
+
+        size += len;
+    }
+
+    public void write(byte[] b) throws IOException {
+        write(b, 0, b.length);
+    }
+
+    /**
+     * Write the remaining contents of a stream to the body. The stream is not closed.
+     */
+    public void write(InputStream in) throws IOException {
+        byte[] buffer = new byte[CHUNK_SIZE];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            write(buffer, 0, n);
+        }
+    }
+
+    private void spill() throws IOException {
+        file = File.createTempFile("mediator-body-", ".tmp", tempDirectory);
+        fileOut = new BufferedOutputStream(new FileOutputStream(file), CHUNK_SIZE);
+
+        for (int i=0; i<chunks.size(); i++) {
+            int len = i==chunks.size()-1 ? lastChunkLength : CHUNK_SIZE;
+            fileOut.write(chunks.get(i), 0, len);
+        }
+        chunks.clear();
+        lastChunkLength = CHUNK_SIZE;
+    }
+
+    /**
+     * Mark the body as complete. No more data can be written after this point.
+     */
+    public synchronized void complete() throws IOException {
+        if (complete) {
+            return;
+        }
+        complete = true;
+        if (fileOut!=null) {
+            fileOut.close();
+            fileOut = null;
+        }
+    }
+
+    public boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * @return The body size in bytes
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    /**
+     * @return true if the body is held in memory, false if it has been spilled to disk
+     */
+    public synchronized boolean isInMemory() {
+        return file==null;
+    }
+
+    /**
+     * @return A new stream for reading the body
+     */
+    public synchronized InputStream getInputStream() throws IOException {
+        if (!complete) {
+            throw new IllegalStateException("Body is not yet complete");
+        }
+        if (released) {
+            throw new IllegalStateException("Body has been released");
+        }
+
+        if (file!=null) {
+            return new BufferedInputStream(new FileInputStream(file), CHUNK_SIZE);
+        }
+        return new ChunkInputStream(new ArrayList<>(chunks), lastChunkLength);
+    }
+
+    /**
+     * Write the body to an output stream
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        try (InputStream in = getInputStream()) {
+            IOUtils.copyLarge(in, out);
+        }
+    }
+
+    /**
+     * Read the entire body into a byte array. This will materialize the body in memory.
+     */
+    public byte[] toByteArray() throws IOException {
+        if (getSize() > Integer.MAX_VALUE) {
+            throw new IOException("Body is too large to fit into an array");
+        }
+        try (InputStream in = getInputStream()) {
+            return IOUtils.toByteArray(in, getSize());
+        }
+    }
+
+    /**
+     * Decode the entire body. This will materialize the body in memory.
+     */
+    public String toString(Charset charset) throws IOException {
+        return new String(toByteArray(), charset);
+    }
+
+    /**
+     * Release the body, deleting any temporary file.
+     */
+    public synchronized void release() {
+        if (released) {
+            return;
+        }
+        released = true;
+        chunks.clear();
+
+        if (fileOut!=null) {
+            IOUtils.closeQuietly(fileOut);
+            fileOut = null;
+        }
+        if (file!=null && !file.delete()) {
+            file.deleteOnExit();
+        }
+    }
+
+    @Override
+    public void close() {
+        release();
+    }
+
+
+    private static class ChunkInputStream extends InputStream {
+        private final List<byte[]> chunks;
+        private final int lastChunkLength;
+        private int chunk = 0;
+        private int pos = 0;
+
+        ChunkInputStream(List<byte[]> chunks, int lastChunkLength) {
+            this.chunks = chunks;
+            this.lastChunkLength = lastChunkLength;
+        }
+
+        private int chunkLength(int i) {
+            return i==chunks.size()-1 ? lastChunkLength : CHUNK_SIZE;
+        }
+
+        private boolean nextChunk() {
+            while (chunk < chunks.size() && pos >= chunkLength(chunk)) {
+                chunk++;
+                pos = 0;
+            }
+            return chunk < chunks.size();
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!nextChunk()) {
+                return -1;
+            }
+            return chunks.get(chunk)[pos++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len==0) {
+                return 0;
+            }
+            if (!nextChunk()) {
+                return -1;
+            }
+            int n = Math.min(len, chunkLength(chunk) - pos);
+            System.arraycopy(chunks.get(chunk), pos, b, off, n);
+            pos += n;
+            return n;
+        }
+
+        @Override
+        public int available() throws IOException {
+            if (!nextChunk()) {
+                return 0;
+            }
+            return chunkLength(chunk) - pos;
+        }
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.engine;
+
+import akka.dispatch.ExecutionContexts;
+import org.openhim.mediator.engine.metrics.Gauge;
+import org.openhim.mediator.engine.metrics.MetricsRegistry;
+import scala.concurrent.ExecutionContext;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The default execution strategy. Each connector runs its blocking work on a dedicated fixed size thread pool,
+ * with gauges for the pool's queue depth and active threads.
+ * <br/><br/>
+ * If a component has no thread pool configuration, or its pool is disabled, its actor's dispatcher is used instead.
+ *
+ * @see MediatorConfig.ConnectorDispatcher
+ */
+public class ThreadPoolExecutionStrategy implements ExecutionStrategy {
+
+    private static class PoolExecutor implements Executor {
+        private final String connector;
+        private final MetricsRegistry metrics;
+        private final ThreadPoolExecutor executor;
+        private final ExecutionContext executionContext;
+
+        PoolExecutor(final String connector, MediatorConfig.ConnectorDispatcher config, MetricsRegistry metrics) {
+            this.connector = connector;
+            this.metrics = metrics;
+
+            executor = new ThreadPoolExecutor(
+                    config.getThreads(), config.getThreads(), config.getKeepAliveMillis(), TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<Runnable>(),
+                    new ThreadFactory() {
+                        private final AtomicInteger count = new AtomicInteger();
+
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread thread = new Thread(r, connector + "-io-" + count.incrementAndGet());
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    }
+            );
+            executor.allowCoreThreadTimeOut(true);
+            executionContext = ExecutionContexts.fromExecutorService(executor);
+            registerGauges();
+        }
+
+        private void registerGauges() {
+            metrics.register("mediator_connector_io_queue_depth", "Blocking connector calls waiting for a thread, by connector", new Gauge() {
+                @Override
+                public double getValue() {
+                    return executor.getQueue().size();
+                }
+            }, "connector", connector);
+            metrics.register("mediator_connector_io_active_threads", "Threads busy with blocking connector calls, by connector", new Gauge() {
+                @Override
+                public double getValue() {
+                    return executor.getActiveCount();
+                }
+            }, "connector", connector);
+        }
+
+        @Override
+        public ExecutionContext getExecutionContext() {
+            return executionContext;
+        }
+
+        @Override
+        public void shutdown() {
+            metrics.remove("mediator_connector_io_queue_depth", "connector", connector);
+            metrics.remove("mediator_connector_io_active_threads", "connector", connector);
+            executor.shutdown();
+        }
+    }
+
+    private static class DispatcherExecutor implements Executor {
+        private final ExecutionContext dispatcher;
+
+        DispatcherExecutor(ExecutionContext dispatcher) {
+            this.dispatcher = dispatcher;
+        }
+
+        @Override
+        public ExecutionContext getExecutionContext() {
+            return dispatcher;
+        }
+
+        @Override
+        public void shutdown() {
+            //the dispatcher belongs to the actor system
+        }
+    }
+
+
+    @Override
+    public Executor newExecutor(String name, MediatorConfig.ConnectorDispatcher config, MetricsRegistry metrics, ExecutionContext dispatcher) {
+        if (config==null || !config.getEnabled()) {
+            return new DispatcherExecutor(dispatcher);
+        }
+        return new PoolExecutor(name, config, metrics);
+    }
+}
@@ -0,0 +1,408 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.engine;
+
+import akka.actor.ActorSelection;
+import akka.actor.Cancellable;
+import akka.actor.UntypedActor;
+import akka.event.Logging;
+import akka.event.LoggingAdapter;
+import org.openhim.mediator.engine.messages.ExceptError;
+import org.openhim.mediator.engine.messages.MediatorHTTPRequest;
+import org.openhim.mediator.engine.messages.MediatorHTTPResponse;
+import org.openhim.mediator.engine.messages.QueueTransactionUpdate;
+import org.openhim.mediator.engine.messages.QueueTransactionUpdateResponse;
+import org.openhim.mediator.engine.metrics.MetricsRegistry;
+import scala.concurrent.duration.Duration;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An actor that sends asynchronous transaction updates to core on behalf of request handlers.
+ * <br/><br/>
+ * Its roles are to:
+ * <ul>
+ * <li>Queue updates in a bounded queue, coalescing updates for the same transaction,</li>
+ * <li>flush the queue to the core-api-connector once enough updates are waiting or the flush interval has passed,
+ * while limiting the number of updates in flight,</li>
+ * <li>retry failed updates with an exponential backoff, and</li>
+ * <li>reject updates while the queue is full, so that request handlers back off.</li>
+ * </ul>
+ * Partial updates, such as the orchestration of a passthrough request, only add to a transaction and so are never
+ * coalesced. Updates for the same transaction are still sent one at a time, in the order they were queued.
+ * <br/><br/>
+ * Core doesn't provide a bulk update endpoint, so each update is still sent as its own
+ * <code>PUT /transactions/{id}</code>.
+ * <br/><br/>
+ * If a journal directory is configured, queued updates are written to a {@link TransactionUpdateJournal} before
+ * they are acknowledged and are only removed from it once core has accepted them. Any updates left in the journal
+ * are queued again when the dispatcher starts. Journaled updates only keep their sequence number in memory, so
+ * they are bounded by the size of the journal rather than the maximum queue size.
+ *
+ * @see MediatorConfig.TransactionUpdates
+ */
+public class TransactionUpdateDispatcher extends UntypedActor {
+
+    private static class Flush {}
+
+    private static class PendingUpdate {
+        //the queue key: the transaction ID, or a unique key for partial updates
+        final String key;
+        final String transactionId;
+        //null if the body is kept in the journal
+        final String body;
+        //the journal sequence number, or -1 if the update isn't journaled
+        final long sequence;
+        int attempts = 0;
+        long nextAttemptAt = 0;
+
+        PendingUpdate(String key, String transactionId, String body, long sequence) {
+            this.key = key;
+            this.transactionId = transactionId;
+            this.body = body;
+            this.sequence = sequence;
+        }
+    }
+
+    private static final String ORCHESTRATION = "core-api-update-transaction";
+
+    LoggingAdapter log = Logging.getLogger(getContext().system(), this);
+
+    private final MediatorConfig config;
+    private final MediatorConfig.TransactionUpdates updatesConfig;
+
+    //insertion ordered, so that updates are sent in the order they were queued
+    private final LinkedHashMap<String, PendingUpdate> queue = new LinkedHashMap<>();
+    private final Map<String, PendingUpdate> inFlight = new HashMap<>();
+    //queued updates that are only kept in memory
+    private int memoryOnlyCount = 0;
+    private long nextPartialId = 1;
+    private Cancellable flushTask;
+    private TransactionUpdateJournal journal;
+
+
+    public TransactionUpdateDispatcher(MediatorConfig config) {
+        this.config = config;
+        this.updatesConfig = config.getTransactionUpdates();
+    }
+
+
+    @Override
+    public void preStart() {
+        if (updatesConfig.getJournalDirectory()==null) {
+            return;
+        }
+
+        try {
+            journal = new TransactionUpdateJournal(new File(updatesConfig.getJournalDirectory()), updatesConfig.getJournalSegmentSize());
+        } catch (IOException ex) {
+            log.error(ex, "Could not open the transaction update journal. Queued updates will only be kept in memory.");
+            return;
+        }
+
+        for (TransactionUpdateJournal.Entry entry : journal.getPendingEntries()) {
+            //entries are in the order they were appended, so later updates replace earlier ones
+            String key = keyFor(entry.getTransactionId(), entry.isPartial());
+            PendingUpdate replaced = enqueue(new PendingUpdate(key, entry.getTransactionId(), null, entry.getSequence()));
+            if (replaced!=null) {
+                ack(replaced);
+            }
+        }
+        if (!queue.isEmpty()) {
+            log.info("Replaying " + queue.size() + " transaction updates from the journal");
+            updatePendingGauge();
+            flush();
+        }
+    }
+
+    /**
+     * Partial updates are never replaced, so each gets a key of its own
+     */
+    private String keyFor(String transactionId, boolean partial) {
+        return partial ? transactionId + "#" + (nextPartialId++) : transactionId;
+    }
+
+    private PendingUpdate journal(QueueTransactionUpdate msg) {
+        String key = keyFor(msg.getTransactionId(), msg.isPartial());
+        if (journal!=null) {
+            try {
+                long sequence = journal.append(msg.getTransactionId(), msg.getBody(), msg.isPartial());
+                return new PendingUpdate(key, msg.getTransactionId(), null, sequence);
+            } catch (IOException ex) {
+                log.error(ex, "Could not write transaction update to the journal. The update will only be kept in memory.");
+            }
+        }
+        return new PendingUpdate(key, msg.getTransactionId(), msg.getBody(), -1);
+    }
+
+    private void ack(PendingUpdate update) {
+        if (journal!=null && update.sequence>=0) {
+            try {
+                journal.ack(update.sequence);
+            } catch (IOException ex) {
+                log.error(ex, "Could not acknowledge transaction update in the journal. The update may be sent again after a restart.");
+            }
+        }
+    }
+
+    private String bodyFor(PendingUpdate update) throws IOException {
+        if (update.body!=null) {
+            return update.body;
+        }
+        return journal.read(update.sequence);
+    }
+
+    /**
+     * @return the update that was replaced, if any
+     */
+    private PendingUpdate enqueue(PendingUpdate update) {
+        PendingUpdate replaced = queue.put(update.key, update);
+        if (update.sequence<0) {
+            memoryOnlyCount++;
+        }
+        if (replaced!=null && replaced.sequence<0) {
+            memoryOnlyCount--;
+        }
+        return replaced;
+    }
+
+    /**
+     * Updates kept in memory are limited by the maximum queue size, and journaled updates by the size of the journal
+     */
+    private boolean isFull() {
+        if (journal!=null && journal.getSize() >= updatesConfig.getMaxJournalSize()) {
+            return true;
+        }
+        return memoryOnlyCount >= updatesConfig.getMaxQueueSize();
+    }
+
+    private void queueUpdate(QueueTransactionUpdate msg) {
+        if ((msg.isPartial() || !queue.containsKey(msg.getTransactionId())) && isFull()) {
+            recordUpdate("rejected");
+            getSender().tell(new QueueTransactionUpdateResponse(false, updatesConfig.getFlushIntervalMillis()), getSelf());
+            return;
+        }
+
+        PendingUpdate update = journal(msg);
+        PendingUpdate replaced = enqueue(update);
+        if (replaced!=null) {
+            //only the latest state of the transaction needs to be sent
+            ack(replaced);
+            recordUpdate("coalesced");
+        }
+
+        getSender().tell(new QueueTransactionUpdateResponse(true, 0), getSelf());
+        updatePendingGauge();
+
+        if (queue.size() >= updatesConfig.getMaxInFlight()) {
+            flush();
+        } else {
+            scheduleFlush(updatesConfig.getFlushIntervalMillis());
+        }
+    }
+
+    private void flush() {
+        if (flushTask!=null) {
+            flushTask.cancel();
+            flushTask = null;
+        }
+
+        long now = System.currentTimeMillis();
+        long nextAttemptAt = Long.MAX_VALUE;
+
+        Iterator<PendingUpdate> iter = queue.values().iterator();
+        while (iter.hasNext() && inFlight.size() < updatesConfig.getMaxInFlight()) {
+            PendingUpdate update = iter.next();
+            if (update.nextAttemptAt > now) {
+                nextAttemptAt = Math.min(nextAttemptAt, update.nextAttemptAt);
+            } else if (!inFlight.containsKey(update.transactionId)) {
+                iter.remove();
+                if (update.sequence<0) {
+                    memoryOnlyCount--;
+                }
+                send(update);
+            }
+        }
+
+        if (!queue.isEmpty()) {
+            long delay = nextAttemptAt!=Long.MAX_VALUE ? nextAttemptAt - now : updatesConfig.getFlushIntervalMillis();
+            scheduleFlush(Math.max(delay, updatesConfig.getFlushIntervalMillis()));
+        }
+    }
+
+    private void scheduleFlush(long delayMillis) {
+        if (flushTask!=null) {
+            return;
+        }
+        flushTask = getContext().system().scheduler().scheduleOnce(
+                Duration.create(delayMillis, TimeUnit.MILLISECONDS),
+                getSelf(),
+                new Flush(),
+                getContext().dispatcher(),
+                getSelf()
+        );
+    }
+
+    private void send(PendingUpdate update) {
+        String body;
+        try {
+            body = bodyFor(update);
+        } catch (IOException ex) {
+            log.error(ex, "Could not read transaction update " + update.transactionId + " from the journal");
+            recordUpdate("dropped");
+            return;
+        }
+
+        Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        headers.put("Content-Type", "application/json");
+        if (config.getCompression()!=null && config.getCompression().getTransactionUpdates()) {
+            //the http-connector compresses the body
+            headers.put("Content-Encoding", "gzip");
+        }
+
+        MediatorHTTPRequest request = new MediatorHTTPRequest(
+                getSelf(),
+                getSelf(),
+                ORCHESTRATION,
+                "PUT",
+                config.getCoreAPIScheme(),
+                config.getCoreHost(),
+                config.getCoreAPIPort(),
+                "/transactions/" + update.transactionId,
+                body,
+                headers,
+                null,
+                update.transactionId
+        );
+
+        update.attempts++;
+        inFlight.put(update.transactionId, update);
+
+        ActorSelection coreConnector = getContext().actorSelection(config.userPathFor("core-api-connector"));
+        coreConnector.tell(request, getSelf());
+    }
+
+    private void processResponse(MediatorHTTPResponse response) {
+        PendingUpdate update = inFlight.remove(response.getOriginalRequest().getCorrelationId());
+        if (update==null) {
+            return;
+        }
+
+        Integer status = response.getStatusCode();
+        if (status!=null && status >= 200 && status < 300) {
+            ack(update);
+            recordUpdate("sent");
+        } else if (status==null || status >= 500 || status==408 || status==429) {
+            retry(update, "Core responded with " + status);
+        } else {
+            //retrying won't help
+            log.error("Failed to update transaction " + update.transactionId + ". Core responded with " + status + " (" + response.getBody() + ")");
+            ack(update);
+            recordUpdate("dropped");
+        }
+
+        updatePendingGauge();
+        flush();
+    }
+
+    private void processError(ExceptError error) {
+        if (!(error.getOriginalRequest() instanceof MediatorHTTPRequest)) {
+            log.error(error.getError(), "Unexpected error while updating transactions");
+            return;
+        }
+
+        PendingUpdate update = inFlight.remove(((MediatorHTTPRequest) error.getOriginalRequest()).getCorrelationId());
+        if (update!=null) {
+            retry(update, error.getError().getMessage());
+            updatePendingGauge();
+            flush();
+        }
+    }
+
+    private void retry(PendingUpdate update, String reason) {
+        if (queue.containsKey(update.key)) {
+            //a newer update for the transaction is already waiting
+            ack(update);
+            recordUpdate("coalesced");
+            return;
+        }
+
+        //journaled updates are kept until core is available again
+        if (update.sequence<0 && update.attempts > updatesConfig.getMaxRetries()) {
+            log.error("Failed to update transaction " + update.transactionId + " after " + update.attempts + " attempts: " + reason);
+            recordUpdate("dropped");
+            return;
+        }
+
+        long backoff = updatesConfig.getInitialBackoffMillis() << Math.min(update.attempts - 1, 30);
+        if (backoff <= 0 || backoff > updatesConfig.getMaxBackoffMillis()) {
+            backoff = updatesConfig.getMaxBackoffMillis();
+        }
+        log.warning("Failed to update transaction " + update.transactionId + " (" + reason + "). Retrying in " + backoff + "ms");
+
+        //retries were already accepted, so they may exceed the queue size
+        update.nextAttemptAt = System.currentTimeMillis() + backoff;
+        enqueue(update);
+        recordUpdate("retried");
+    }
+
+    private MetricsRegistry metrics() {
+        return config.getMetricsRegistry();
+    }
+
+    private void recordUpdate(String result) {
+        metrics().counter("mediator_transaction_updates_total", "Asynchronous transaction updates, by result",
+                "result", result).inc();
+    }
+
+    private void updatePendingGauge() {
+        metrics().gauge("mediator_transaction_updates_pending", "Asynchronous transaction updates queued or in flight")
+                .set(queue.size() + inFlight.size());
+    }
+
+    @Override
+    public void onReceive(Object msg) throws Exception {
+        if (msg instanceof QueueTransactionUpdate) {
+            queueUpdate((QueueTransactionUpdate) msg);
+
+        } else if (msg instanceof Flush) {
+            flushTask = null;
+            flush();
+
+        } else if (msg instanceof MediatorHTTPResponse) {
+            processResponse((MediatorHTTPResponse) msg);
+
+        } else if (msg instanceof ExceptError) {
+            processError((ExceptError) msg);
+
+        } else {
+            unhandled(msg);
+        }
+    }
+
+    @Override
+    public void postStop() {
+        if (flushTask!=null) {
+            flushTask.cancel();
+        }
+        if (journal!=null) {
+            journal.close();
+            if (journal.getPendingCount() > 0) {
+                log.info(journal.getPendingCount() + " transaction updates will be sent to core when the mediator restarts");
+            }
+        } else if (!queue.isEmpty() || !inFlight.isEmpty()) {
+            log.warning((queue.size() + inFlight.size()) + " transaction updates were not sent to core");
+        }
+    }
+}
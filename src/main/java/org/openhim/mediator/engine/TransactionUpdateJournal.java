@@ -0,0 +1,452 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.engine;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only, memory-mapped journal of pending transaction updates.
+ * <br/><br/>
+ * Updates are appended to fixed size segment files in the journal directory and acknowledged once they've been
+ * sent to core. Segments are rotated when full. Segments at the head of the journal are deleted once all of their
+ * updates have been acknowledged, and if the oldest segment is mostly acknowledged its remaining updates are
+ * copied forward so that it can be deleted. When the journal is opened, the existing segments are replayed
+ * and any unacknowledged updates are available from {@link #getPendingEntries()}.
+ * <br/><br/>
+ * Each record is written as:
+ * <code>[length:int][type:byte][sequence:long][crc32:int][payload]</code>, with the length written last
+ * and the checksum covering the type, sequence and payload.
+ * Replay of a segment stops at the first record with a zero length or an invalid checksum, i.e. a record that
+ * was being written when the process died.
+ * <br/><br/>
+ * Update bodies are not kept in memory; they are read back from the mapped segments when needed.
+ * The journal is not thread-safe.
+ *
+ * @see MediatorConfig.TransactionUpdates#setJournalDirectory(String)
+ */
+public class TransactionUpdateJournal implements Closeable {
+    public static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String SEGMENT_SUFFIX = ".journal";
+
+    private static final byte APPEND = 1;
+    private static final byte ACK = 2;
+    private static final byte APPEND_PARTIAL = 3;
+    //type + sequence + crc
+    private static final int RECORD_HEADER_SIZE = 1 + 8 + 4;
+
+    /**
+     * An unacknowledged update
+     */
+    public static class Entry {
+        private final long sequence;
+        private final String transactionId;
+        private final boolean partial;
+
+        Entry(long sequence, String transactionId, boolean partial) {
+            this.sequence = sequence;
+            this.transactionId = transactionId;
+            this.partial = partial;
+        }
+
+        public long getSequence() {
+            return sequence;
+        }
+
+        public String getTransactionId() {
+            return transactionId;
+        }
+
+        /**
+         * @see #append(String, String, boolean)
+         */
+        public boolean isPartial() {
+            return partial;
+        }
+    }
+
+    private static class Segment {
+        final long id;
+        final File file;
+        final MappedByteBuffer buffer;
+        int writePosition = 0;
+        //the number of unacknowledged updates in the segment and their size
+        int live = 0;
+        int liveBytes = 0;
+
+        Segment(long id, File file, int size) throws IOException {
+            this.id = id;
+            this.file = file;
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                if (raf.length() < size) {
+                    raf.setLength(size);
+                }
+                //the mapping remains valid after the file is closed
+                this.buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+            }
+        }
+    }
+
+    private static class Location {
+        final Segment segment;
+        final int offset;
+        final int size;
+        final String transactionId;
+        final boolean partial;
+
+        Location(Segment segment, int offset, int size, String transactionId, boolean partial) {
+            this.segment = segment;
+            this.offset = offset;
+            this.size = size;
+            this.transactionId = transactionId;
+            this.partial = partial;
+        }
+    }
+
+
+    private final File directory;
+    private final int segmentSize;
+    private final LinkedList<Segment> segments = new LinkedList<>();
+    private final TreeMap<Long, Location> live = new TreeMap<>();
+    private long nextSequence = 1;
+    private boolean closed = false;
+
+
+    public TransactionUpdateJournal(File directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Open the journal, replaying any existing segments in the directory.
+     *
+     * @param segmentSize The size of each segment file. Larger updates get a segment of their own.
+     */
+    public TransactionUpdateJournal(File directory, int segmentSize) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create journal directory " + directory);
+        }
+
+        replay();
+        //new updates always go to a new segment, so that a partially written record is never appended to
+        rotate(0);
+        compact();
+    }
+
+
+    private void replay() throws IOException {
+        File[] files = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        if (files == null) {
+            throw new IOException("Could not list journal directory " + directory);
+        }
+        Arrays.sort(files);
+
+        for (File file : files) {
+            long id = Long.parseLong(file.getName().substring(0, file.getName().length() - SEGMENT_SUFFIX.length()));
+            Segment segment = new Segment(id, file, 0);
+            segments.add(segment);
+            replay(segment);
+        }
+
+        for (Location location : live.values()) {
+            location.segment.live++;
+            location.segment.liveBytes += location.size;
+        }
+    }
+
+    private void replay(Segment segment) {
+        ByteBuffer buf = segment.buffer;
+        int pos = 0;
+
+        while (pos + 4 + RECORD_HEADER_SIZE <= buf.capacity()) {
+            int length = buf.getInt(pos);
+            if (length < RECORD_HEADER_SIZE || pos + 4 + length > buf.capacity()) {
+                break;
+            }
+
+            byte type = buf.get(pos + 4);
+            long sequence = buf.getLong(pos + 5);
+            int crc = buf.getInt(pos + 13);
+            byte[] payload = new byte[length - RECORD_HEADER_SIZE];
+            ByteBuffer dup = buf.duplicate();
+            dup.position(pos + 4 + RECORD_HEADER_SIZE);
+            dup.get(payload);
+            if (crc != crc(type, sequence, payload)) {
+                break;
+            }
+
+            if (type == APPEND || type == APPEND_PARTIAL) {
+                live.put(sequence, new Location(segment, pos, 4 + length, readTransactionId(payload), type == APPEND_PARTIAL));
+            } else if (type == ACK) {
+                live.remove(sequence);
+            }
+            nextSequence = Math.max(nextSequence, sequence + 1);
+            pos += 4 + length;
+        }
+
+        segment.writePosition = pos;
+    }
+
+    private static int crc(byte type, long sequence, byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(ByteBuffer.allocate(9).put(type).putLong(sequence).array());
+        crc.update(payload);
+        return (int) crc.getValue();
+    }
+
+    private static String readTransactionId(byte[] payload) {
+        int idLength = ByteBuffer.wrap(payload).getInt();
+        return new String(payload, 4, idLength, UTF8);
+    }
+
+    private static byte[] appendPayload(String transactionId, String body) {
+        byte[] id = transactionId.getBytes(UTF8);
+        byte[] bodyBytes = body.getBytes(UTF8);
+        ByteBuffer payload = ByteBuffer.allocate(4 + id.length + bodyBytes.length);
+        payload.putInt(id.length);
+        payload.put(id);
+        payload.put(bodyBytes);
+        return payload.array();
+    }
+
+    private Segment active() {
+        return segments.getLast();
+    }
+
+    private void rotate(int minSize) throws IOException {
+        if (!segments.isEmpty()) {
+            active().buffer.force();
+        }
+        long id = segments.isEmpty() ? 1 : active().id + 1;
+        File file = new File(directory, String.format("%020d%s", id, SEGMENT_SUFFIX));
+        segments.add(new Segment(id, file, Math.max(segmentSize, minSize)));
+    }
+
+    /**
+     * @return The offset of the record in the active segment
+     */
+    private int write(byte type, long sequence, byte[] payload) throws IOException {
+        ensureOpen();
+
+        int recordSize = 4 + RECORD_HEADER_SIZE + payload.length;
+        //leave room for the zero length that marks the end of the segment
+        if (active().writePosition + recordSize + 4 > active().buffer.capacity()) {
+            rotate(recordSize + 4);
+        }
+
+        Segment segment = active();
+        int offset = segment.writePosition;
+        ByteBuffer dup = segment.buffer.duplicate();
+        dup.position(offset + 4);
+        dup.put(type);
+        dup.putLong(sequence);
+        dup.putInt(crc(type, sequence, payload));
+        dup.put(payload);
+        //the length is written last, so that a partially written record isn't replayed
+        segment.buffer.putInt(offset, RECORD_HEADER_SIZE + payload.length);
+
+        segment.writePosition += recordSize;
+        return offset;
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("The journal is closed");
+        }
+    }
+
+    /**
+     * Append an update to the journal.
+     *
+     * @return The sequence number of the update, used to acknowledge it
+     */
+    public long append(String transactionId, String body) throws IOException {
+        return append(transactionId, body, false);
+    }
+
+    /**
+     * Append an update to the journal.
+     *
+     * @param partial Whether the update only adds to the transaction, and so mustn't be replaced by later updates
+     * @return The sequence number of the update, used to acknowledge it
+     */
+    public long append(String transactionId, String body, boolean partial) throws IOException {
+        long sequence = nextSequence++;
+        append(sequence, transactionId, body, partial);
+        return sequence;
+    }
+
+    private void append(long sequence, String transactionId, String body, boolean partial) throws IOException {
+        byte[] payload = appendPayload(transactionId, body);
+        int offset = write(partial ? APPEND_PARTIAL : APPEND, sequence, payload);
+        int size = 4 + RECORD_HEADER_SIZE + payload.length;
+        Segment segment = active();
+        segment.live++;
+        segment.liveBytes += size;
+        live.put(sequence, new Location(segment, offset, size, transactionId, partial));
+    }
+
+    /**
+     * Read the body of an unacknowledged update.
+     *
+     * @return The body, or null if the update has been acknowledged
+     */
+    public String read(long sequence) throws IOException {
+        ensureOpen();
+        Location location = live.get(sequence);
+        if (location == null) {
+            return null;
+        }
+
+        ByteBuffer buf = location.segment.buffer;
+        int length = buf.getInt(location.offset);
+        int payloadStart = location.offset + 4 + RECORD_HEADER_SIZE;
+        int idLength = buf.getInt(payloadStart);
+        int bodyStart = payloadStart + 4 + idLength;
+        byte[] body = new byte[location.offset + 4 + length - bodyStart];
+        ByteBuffer dup = buf.duplicate();
+        dup.position(bodyStart);
+        dup.get(body);
+        return new String(body, UTF8);
+    }
+
+    /**
+     * Acknowledge that an update has been sent and no longer needs to be kept.
+     */
+    public void ack(long sequence) throws IOException {
+        Location location = live.remove(sequence);
+        if (location == null) {
+            return;
+        }
+        write(ACK, sequence, new byte[0]);
+        location.segment.live--;
+        location.segment.liveBytes -= location.size;
+        compact();
+    }
+
+    /**
+     * Delete segments that have no unacknowledged updates, starting from the oldest.
+     * If the unacknowledged updates in the oldest segment take up less than a quarter of it, they are copied forward
+     * so that the segment can be deleted. This keeps a long-lived update from holding on to all the segments after it.
+     * <br/><br/>
+     * Only the oldest segments are deleted, as later segments may contain acknowledgements for earlier updates.
+     */
+    private void compact() throws IOException {
+        while (segments.size() > 1) {
+            Segment oldest = segments.getFirst();
+            if (oldest.live > 0) {
+                if (segments.size() <= 2 || oldest.liveBytes * 4 > oldest.buffer.capacity()) {
+                    return;
+                }
+                relocate(oldest);
+            }
+            delete(segments.removeFirst());
+        }
+    }
+
+    private void relocate(Segment segment) throws IOException {
+        List<Entry> toRelocate = new ArrayList<>();
+        for (Map.Entry<Long, Location> entry : live.entrySet()) {
+            if (entry.getValue().segment == segment) {
+                Location location = entry.getValue();
+                toRelocate.add(new Entry(entry.getKey(), location.transactionId, location.partial));
+            }
+        }
+        for (Entry entry : toRelocate) {
+            String body = read(entry.sequence);
+            //keep the same sequence number, so that references to the update remain valid
+            append(entry.sequence, entry.transactionId, body, entry.partial);
+        }
+        segment.live = 0;
+        segment.liveBytes = 0;
+        //the copies must be on disk before the segment is deleted
+        active().buffer.force();
+    }
+
+    private void delete(Segment segment) {
+        if (!segment.file.delete()) {
+            segment.file.deleteOnExit();
+        }
+    }
+
+    /**
+     * @return The unacknowledged updates, in the order they were appended
+     */
+    public List<Entry> getPendingEntries() {
+        List<Entry> entries = new ArrayList<>(live.size());
+        for (Map.Entry<Long, Location> entry : live.entrySet()) {
+            entries.add(new Entry(entry.getKey(), entry.getValue().transactionId, entry.getValue().partial));
+        }
+        return entries;
+    }
+
+    /**
+     * @return The number of unacknowledged updates
+     */
+    public int getPendingCount() {
+        return live.size();
+    }
+
+    /**
+     * @return The number of segment files
+     */
+    public int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * @return The total size of the segment files, in bytes
+     */
+    public long getSize() {
+        long size = 0;
+        for (Segment segment : segments) {
+            size += segment.buffer.capacity();
+        }
+        return size;
+    }
+
+    /**
+     * Flush the active segment to disk
+     */
+    public void force() {
+        if (!closed) {
+            active().buffer.force();
+        }
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        force();
+        closed = true;
+    }
+}
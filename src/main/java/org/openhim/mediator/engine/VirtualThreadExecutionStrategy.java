@@ -0,0 +1,122 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.engine;
+
+import akka.dispatch.ExecutionContexts;
+import org.openhim.mediator.engine.metrics.Gauge;
+import org.openhim.mediator.engine.metrics.MetricsRegistry;
+import scala.concurrent.ExecutionContext;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An execution strategy that runs each blocking task on a new virtual thread.
+ * <br/><br/>
+ * Virtual threads are cheap to create and don't hold an OS thread while they are blocked on I/O, so blocking calls
+ * aren't limited by the size of a thread pool and don't need to be queued. The thread pool configuration of each
+ * connector is ignored. The <code>mediator_connector_io_active_threads{connector}</code> gauge shows the number
+ * of tasks that are running.
+ * <br/><br/>
+ * Virtual threads require Java 21 or later. They are looked up at runtime so that the engine still runs on older
+ * versions, where this strategy falls back to the {@link ThreadPoolExecutionStrategy}.
+ */
+public class VirtualThreadExecutionStrategy implements ExecutionStrategy {
+
+    private static class VirtualThreadExecutor implements Executor, java.util.concurrent.Executor {
+        private final String connector;
+        private final MetricsRegistry metrics;
+        private final ThreadFactory threadFactory;
+        private final ExecutionContext executionContext;
+        private final AtomicInteger active = new AtomicInteger();
+        private volatile boolean shutdown = false;
+
+        VirtualThreadExecutor(String connector, MetricsRegistry metrics, ThreadFactory threadFactory) {
+            this.connector = connector;
+            this.metrics = metrics;
+            this.threadFactory = threadFactory;
+            this.executionContext = ExecutionContexts.fromExecutor(this);
+
+            metrics.register("mediator_connector_io_active_threads", "Threads busy with blocking connector calls, by connector", new Gauge() {
+                @Override
+                public double getValue() {
+                    return active.get();
+                }
+            }, "connector", connector);
+        }
+
+        @Override
+        public void execute(final Runnable task) {
+            if (shutdown) {
+                throw new RejectedExecutionException(connector + " executor has been shut down");
+            }
+            active.incrementAndGet();
+            threadFactory.newThread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        task.run();
+                    } finally {
+                        active.decrementAndGet();
+                    }
+                }
+            }).start();
+        }
+
+        @Override
+        public ExecutionContext getExecutionContext() {
+            return executionContext;
+        }
+
+        @Override
+        public void shutdown() {
+            shutdown = true;
+            metrics.remove("mediator_connector_io_active_threads", "connector", connector);
+        }
+    }
+
+
+    private final ThreadPoolExecutionStrategy fallback = new ThreadPoolExecutionStrategy();
+
+
+    /**
+     * @return a factory for virtual threads named with the prefix, or null if virtual threads are not available
+     */
+    static ThreadFactory virtualThreadFactory(String namePrefix) {
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, namePrefix, 1L);
+            Method factory = builderClass.getMethod("factory");
+            return (ThreadFactory) factory.invoke(builder);
+        } catch (ClassNotFoundException | NoSuchMethodException | IllegalAccessException ex) {
+            return null;
+        } catch (InvocationTargetException ex) {
+            //preview releases throw UnsupportedOperationException unless preview features are enabled
+            return null;
+        }
+    }
+
+    /**
+     * @return true if the JVM supports virtual threads
+     */
+    public static boolean isSupported() {
+        return virtualThreadFactory("probe") != null;
+    }
+
+    @Override
+    public Executor newExecutor(String name, MediatorConfig.ConnectorDispatcher config, MetricsRegistry metrics, ExecutionContext dispatcher) {
+        ThreadFactory threadFactory = virtualThreadFactory(name + "-vt-");
+        if (threadFactory==null) {
+            return fallback.newExecutor(name, config, metrics, dispatcher);
+        }
+        return new VirtualThreadExecutor(name, metrics, threadFactory);
+    }
+}
@@ -0,0 +1,957 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.engine.connectors;
+
+import org.glassfish.grizzly.Buffer;
+import org.glassfish.grizzly.CloseListener;
+import org.glassfish.grizzly.CloseType;
+import org.glassfish.grizzly.Closeable;
+import org.glassfish.grizzly.Connection;
+import org.glassfish.grizzly.EmptyCompletionHandler;
+import org.glassfish.grizzly.Grizzly;
+import org.glassfish.grizzly.WriteResult;
+import org.glassfish.grizzly.attributes.Attribute;
+import org.glassfish.grizzly.filterchain.BaseFilter;
+import org.glassfish.grizzly.filterchain.FilterChainBuilder;
+import org.glassfish.grizzly.filterchain.FilterChainContext;
+import org.glassfish.grizzly.filterchain.NextAction;
+import org.glassfish.grizzly.filterchain.TransportFilter;
+import org.glassfish.grizzly.http.ContentEncoding;
+import org.glassfish.grizzly.http.HttpClientFilter;
+import org.glassfish.grizzly.http.HttpContent;
+import org.glassfish.grizzly.http.HttpRequestPacket;
+import org.glassfish.grizzly.http.HttpResponsePacket;
+import org.glassfish.grizzly.http.Protocol;
+import org.glassfish.grizzly.memory.Buffers;
+import org.glassfish.grizzly.nio.transport.TCPNIOConnectorHandler;
+import org.glassfish.grizzly.nio.transport.TCPNIOTransport;
+import org.glassfish.grizzly.nio.transport.TCPNIOTransportBuilder;
+import org.glassfish.grizzly.ssl.SSLEngineConfigurator;
+import org.glassfish.grizzly.ssl.SSLFilter;
+import org.glassfish.grizzly.strategies.SameThreadIOStrategy;
+import org.glassfish.grizzly.threadpool.ThreadPoolConfig;
+import org.openhim.mediator.engine.MediatorConfig;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.UnknownHostException;
+import java.nio.charset.Charset;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A non-blocking HTTP/1.1 client for the {@link AsyncHTTPConnector}, built on the Grizzly NIO transport.
+ * <br/><br/>
+ * Requests are written and responses are read by a small number of selector threads, and the result of each
+ * request is passed to a {@link Callback}. No thread is held while waiting for a response, so a handful of threads
+ * can serve thousands of concurrent requests.
+ * <br/><br/>
+ * Connections are kept alive and pooled per route (scheme, host and port) within the limits of the
+ * {@link MediatorConfig.HTTPConnectionPool}. Requests wait for a connection if their route is at its limit.
+ * The connect, socket and total timeouts of requests are checked by a background timer.
+ * <br/><br/>
+ * Host names are resolved on a separate pool of resolver threads before connecting, since DNS lookups block.
+ */
+class AsyncHTTPClient {
+
+    /**
+     * Callbacks are run on the client's selector, timer and resolver threads, so they must not block.
+     */
+    interface Callback {
+        void completed(Response response);
+
+        void failed(Throwable throwable);
+    }
+
+    static class Response {
+        private final int status;
+        private final Map<String, String> headers;
+        private final byte[] body;
+
+        Response(int status, Map<String, String> headers, byte[] body) {
+            this.status = status;
+            this.headers = headers;
+            this.body = body;
+        }
+
+        int getStatus() {
+            return status;
+        }
+
+        /**
+         * @return the response headers, keyed case-insensitively
+         */
+        Map<String, String> getHeaders() {
+            return headers;
+        }
+
+        byte[] getBody() {
+            return body;
+        }
+
+        /**
+         * Decode the body using the charset of its content type, or UTF-8 if there isn't one
+         *
+         * @return the body, or null if the response had no body
+         */
+        String getBodyAsString() {
+            if (body.length==0) {
+                return null;
+            }
+            Charset charset = UTF8;
+            String contentType = headers.get("Content-Type");
+            if (contentType!=null) {
+                for (String param : contentType.split(";")) {
+                    String trimmed = param.trim();
+                    if (trimmed.toLowerCase().startsWith("charset=")) {
+                        try {
+                            charset = Charset.forName(trimmed.substring("charset=".length()).replace("\"", ""));
+                        } catch (IllegalArgumentException ex) {
+                            //fall back to UTF-8
+                        }
+                    }
+                }
+            }
+            return new String(body, charset);
+        }
+    }
+
+    static final long TIMEOUT_CHECK_INTERVAL_MILLIS = 50;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    //the methods that may be safely resent if a reused connection was closed before responding (RFC 7231, section 4.2.2)
+    private static final Set<String> IDEMPOTENT_METHODS = new HashSet<>(Arrays.asList(
+            "GET", "HEAD", "OPTIONS", "PUT", "DELETE", "TRACE"
+    ));
+
+    private static final Attribute<Exchange> EXCHANGE =
+            Grizzly.DEFAULT_ATTRIBUTE_BUILDER.createAttribute(AsyncHTTPClient.class.getName() + ".exchange");
+
+    /**
+     * A request and the state of its response
+     */
+    private class Exchange {
+        final Route route;
+        final String method;
+        final URI uri;
+        final Map<String, String> headers;
+        final byte[] body;
+        final Callback callback;
+        final long startedAt = System.currentTimeMillis();
+        //the time by which the whole request must complete, or Long.MAX_VALUE
+        final long deadline;
+
+        //guarded by the exchange
+        boolean done = false;
+        boolean retried = false;
+        Connection<SocketAddress> connection;
+        boolean reusedConnection;
+        //the time by which the current phase (connecting or waiting for data) must complete
+        long phaseTimeoutAt;
+        HttpResponsePacket response;
+        final ByteArrayOutputStream responseBody = new ByteArrayOutputStream();
+
+        Exchange(Route route, String method, URI uri, Map<String, String> headers, byte[] body, long timeAllowed, Callback callback) {
+            this.route = route;
+            this.method = method;
+            this.uri = uri;
+            this.headers = headers;
+            this.body = body;
+            this.callback = callback;
+            this.deadline = timeAllowed==Long.MAX_VALUE ? Long.MAX_VALUE : startedAt + timeAllowed;
+            this.phaseTimeoutAt = afterTimeout(startedAt, timeouts.getConnectTimeoutMillis());
+        }
+
+        boolean isIdempotent() {
+            return IDEMPOTENT_METHODS.contains(method);
+        }
+    }
+
+    /**
+     * The connections to a single scheme, host and port
+     */
+    private static class Route {
+        final String host;
+        final int port;
+        final boolean secure;
+
+        //guarded by the client
+        final Deque<IdleConnection> idle = new ArrayDeque<>();
+        final Deque<Exchange> pending = new ArrayDeque<>();
+        int leased = 0;
+        int connecting = 0;
+
+        Route(String host, int port, boolean secure) {
+            this.host = host;
+            this.port = port;
+            this.secure = secure;
+        }
+
+        int size() {
+            return idle.size() + leased + connecting;
+        }
+    }
+
+    private static class IdleConnection {
+        final Connection<SocketAddress> connection;
+        final long expiresAt;
+
+        IdleConnection(Connection<SocketAddress> connection, long expiresAt) {
+            this.connection = connection;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /**
+     * Passes the response content of a connection to its exchange
+     */
+    private class ResponseFilter extends BaseFilter {
+        @Override
+        public NextAction handleRead(FilterChainContext ctx) throws IOException {
+            HttpContent content = ctx.getMessage();
+            Exchange exchange = EXCHANGE.get(ctx.getConnection());
+            if (exchange!=null) {
+                onContent(exchange, tcpConnection(ctx.getConnection()), content);
+            }
+            return ctx.getStopAction();
+        }
+    }
+
+
+    private final MediatorConfig.HTTPConnectionPool poolConfig;
+    private final MediatorConfig.ConnectorTimeouts timeouts;
+    private final int ioThreads;
+    private final String name;
+
+    //guarded by the client
+    private final Map<String, Route> routes = new HashMap<>();
+    private int totalConnections = 0;
+    private boolean closed = false;
+
+    private final Set<Exchange> active = Collections.newSetFromMap(new ConcurrentHashMap<Exchange, Boolean>());
+
+    private TCPNIOTransport transport;
+    private TCPNIOConnectorHandler plainConnector;
+    private TCPNIOConnectorHandler secureConnector;
+    private SSLFilter sslFilter;
+    private ScheduledExecutorService timer;
+    private ExecutorService resolver;
+    private volatile SSLContext sslContext;
+    private volatile boolean sslTrustAll;
+
+    private final CloseListener<Closeable, CloseType> closeListener = new CloseListener<Closeable, CloseType>() {
+        @Override
+        public void onClosed(Closeable closeable, CloseType type) throws IOException {
+            onConnectionClosed(tcpConnection((Connection<?>) closeable));
+        }
+    };
+
+
+    /**
+     * @param name Used to name the client's threads
+     */
+    AsyncHTTPClient(String name, MediatorConfig.HTTPConnectionPool poolConfig, MediatorConfig.ConnectorTimeouts timeouts, int ioThreads) {
+        this.name = name;
+        this.poolConfig = poolConfig;
+        this.timeouts = timeouts;
+        this.ioThreads = ioThreads;
+    }
+
+
+    /**
+     * Grizzly hands out raw connections, but the connections of a TCP transport are bound to socket addresses
+     */
+    @SuppressWarnings("unchecked")
+    private static Connection<SocketAddress> tcpConnection(Connection<?> connection) {
+        return (Connection<SocketAddress>) connection;
+    }
+
+    private static long afterTimeout(long now, long timeoutMillis) {
+        return timeoutMillis > 0 ? now + timeoutMillis : Long.MAX_VALUE;
+    }
+
+    private static ThreadFactory daemonThreads(final String threadName) {
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, threadName);
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    void start() throws IOException, NoSuchAlgorithmException {
+        transport = TCPNIOTransportBuilder.newInstance()
+                .setIOStrategy(SameThreadIOStrategy.getInstance())
+                .setSelectorRunnersCount(ioThreads)
+                .setSelectorThreadPoolConfig(ThreadPoolConfig.defaultConfig()
+                        .setPoolName(name + "-nio")
+                        .setCorePoolSize(ioThreads)
+                        .setMaxPoolSize(ioThreads)
+                        .setDaemon(true))
+                .setWorkerThreadPoolConfig(null)
+                .setKeepAlive(true)
+                .setTcpNoDelay(true)
+                .build();
+
+        SSLContext defaultContext = SSLContext.getDefault();
+        SSLEngineConfigurator defaultConfigurator = new SSLEngineConfigurator(defaultContext, true, false, false);
+        sslFilter = new SSLFilter(defaultConfigurator, defaultConfigurator);
+
+        plainConnector = TCPNIOConnectorHandler.builder(transport)
+                .processor(FilterChainBuilder.stateless()
+                        .add(new TransportFilter())
+                        .add(httpClientFilter())
+                        .add(new ResponseFilter())
+                        .build())
+                .build();
+        secureConnector = TCPNIOConnectorHandler.builder(transport)
+                .processor(FilterChainBuilder.stateless()
+                        .add(new TransportFilter())
+                        .add(sslFilter)
+                        .add(httpClientFilter())
+                        .add(new ResponseFilter())
+                        .build())
+                .build();
+
+        transport.start();
+
+        resolver = Executors.newCachedThreadPool(daemonThreads(name + "-resolver"));
+        timer = Executors.newSingleThreadScheduledExecutor(daemonThreads(name + "-timeouts"));
+        timer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                checkTimeouts(System.currentTimeMillis());
+            }
+        }, TIMEOUT_CHECK_INTERVAL_MILLIS, TIMEOUT_CHECK_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Use an SSL context for new connections. Idle secure connections are closed.
+     *
+     * @param trustAll If true, host names are not verified
+     */
+    void setSSLContext(SSLContext sslContext, boolean trustAll) {
+        this.sslContext = sslContext;
+        this.sslTrustAll = trustAll;
+
+        List<Connection<SocketAddress>> toClose = new ArrayList<>();
+        synchronized (this) {
+            for (Route route : routes.values()) {
+                if (route.secure) {
+                    for (IdleConnection idle : route.idle) {
+                        toClose.add(idle.connection);
+                    }
+                    totalConnections -= route.idle.size();
+                    route.idle.clear();
+                }
+            }
+        }
+        for (Connection<SocketAddress> connection : toClose) {
+            connection.closeSilently();
+        }
+    }
+
+    /**
+     * Send a request. The callback is called once with the response or the reason the request failed.
+     *
+     * @param headers The request headers. A <code>Host</code> header is added if there isn't one.
+     * @param body The request body, or null if the request has no body
+     * @param timeAllowed The time allowed for the whole request in milliseconds, or Long.MAX_VALUE if it isn't limited
+     */
+    void execute(String method, URI uri, Map<String, String> headers, byte[] body, long timeAllowed, Callback callback) {
+        boolean secure = "https".equalsIgnoreCase(uri.getScheme());
+        int port = uri.getPort()!=-1 ? uri.getPort() : (secure ? 443 : 80);
+        String routeKey = (secure ? "https://" : "http://") + uri.getHost() + ":" + port;
+
+        Route route;
+        synchronized (this) {
+            if (closed) {
+                callback.failed(new IOException("HTTP client is closed"));
+                return;
+            }
+            route = routes.get(routeKey);
+            if (route==null) {
+                route = new Route(uri.getHost(), port, secure);
+                routes.put(routeKey, route);
+            }
+        }
+
+        Exchange exchange = new Exchange(route, method, uri, headers, body, timeAllowed, callback);
+        active.add(exchange);
+        dispatch(exchange);
+    }
+
+    /**
+     * Send an exchange on an idle connection, open a new connection for it, or queue it until a connection is available.
+     */
+    private void dispatch(Exchange exchange) {
+        Route route = exchange.route;
+        Connection<SocketAddress> reused = null;
+        boolean connect = false;
+        List<Connection<SocketAddress>> toClose = new ArrayList<>();
+
+        synchronized (this) {
+            while (!route.idle.isEmpty()) {
+                IdleConnection idle = route.idle.pop();
+                if (idle.connection.isOpen() && idle.expiresAt > System.currentTimeMillis()) {
+                    reused = idle.connection;
+                    route.leased++;
+                    break;
+                }
+                totalConnections--;
+                toClose.add(idle.connection);
+            }
+
+            if (reused==null) {
+                if (route.size() < poolConfig.getMaxPerRoute() && totalConnections >= poolConfig.getMaxTotal()) {
+                    //make room by closing an idle connection to another route
+                    Connection<SocketAddress> evicted = evictIdleConnection();
+                    if (evicted!=null) {
+                        toClose.add(evicted);
+                    }
+                }
+                if (route.size() < poolConfig.getMaxPerRoute() && totalConnections < poolConfig.getMaxTotal()) {
+                    route.connecting++;
+                    totalConnections++;
+                    connect = true;
+                } else {
+                    route.pending.add(exchange);
+                }
+            }
+        }
+
+        for (Connection<SocketAddress> connection : toClose) {
+            connection.closeSilently();
+        }
+        if (reused!=null) {
+            send(exchange, reused, true);
+        } else if (connect) {
+            connect(exchange);
+        }
+    }
+
+    //must be called while holding the client lock
+    private Connection<SocketAddress> evictIdleConnection() {
+        for (Route other : routes.values()) {
+            if (!other.idle.isEmpty()) {
+                totalConnections--;
+                return other.idle.removeLast().connection;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Open a new connection for an exchange. The connection must have been reserved on its route.
+     * The host name is resolved on a resolver thread so that a slow lookup doesn't hold up the caller,
+     * which may be a selector thread.
+     */
+    private void connect(final Exchange exchange) {
+        try {
+            resolver.execute(new Runnable() {
+                @Override
+                public void run() {
+                    InetSocketAddress address = new InetSocketAddress(exchange.route.host, exchange.route.port);
+                    if (address.isUnresolved()) {
+                        connectFailed(exchange, new UnknownHostException(exchange.route.host));
+                    } else {
+                        connect(exchange, address);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            connectFailed(exchange, new IOException("HTTP client was shut down"));
+        }
+    }
+
+    //the connector completes with a raw connection
+    @SuppressWarnings("rawtypes")
+    private void connect(final Exchange exchange, InetSocketAddress address) {
+        final Route route = exchange.route;
+        TCPNIOConnectorHandler connector = route.secure ? secureConnector : plainConnector;
+
+        connector.connect(address, new EmptyCompletionHandler<Connection>() {
+            @Override
+            public void completed(Connection connected) {
+                final Connection<SocketAddress> connection = tcpConnection(connected);
+                synchronized (AsyncHTTPClient.this) {
+                    route.connecting--;
+                    route.leased++;
+                }
+                connection.addCloseListener(closeListener);
+
+                if (!route.secure) {
+                    send(exchange, connection, false);
+                    return;
+                }
+
+                try {
+                    sslFilter.handshake(connection, new EmptyCompletionHandler<SSLEngine>() {
+                        @Override
+                        public void completed(SSLEngine engine) {
+                            send(exchange, connection, false);
+                        }
+
+                        @Override
+                        public void failed(Throwable throwable) {
+                            fail(exchange, throwable);
+                            release(route, connection, false);
+                        }
+                    }, null, sslEngineConfigurator(route));
+                } catch (IOException ex) {
+                    fail(exchange, ex);
+                    release(route, connection, false);
+                }
+            }
+
+            @Override
+            public void failed(Throwable throwable) {
+                connectFailed(exchange, throwable);
+            }
+        });
+    }
+
+    /**
+     * Fail an exchange that a connection couldn't be opened for, and give its reserved connection to the next
+     * waiting exchange
+     */
+    private void connectFailed(Exchange exchange, Throwable throwable) {
+        Exchange next;
+        synchronized (this) {
+            exchange.route.connecting--;
+            totalConnections--;
+            next = nextToConnect();
+        }
+        fail(exchange, throwable);
+        if (next!=null) {
+            connect(next);
+        }
+    }
+
+    /**
+     * The filter decodes gzip content by default but leaves the Content-Encoding header in place, so its content
+     * encodings are removed and bodies are passed through as is. The connector takes care of content encoding.
+     */
+    private static HttpClientFilter httpClientFilter() {
+        HttpClientFilter filter = new HttpClientFilter();
+        for (ContentEncoding encoding : filter.getContentEncodings()) {
+            filter.removeContentEncoding(encoding);
+        }
+        return filter;
+    }
+
+    private SSLEngineConfigurator sslEngineConfigurator(final Route route) throws IOException {
+        final SSLContext context;
+        try {
+            context = sslContext!=null ? sslContext : SSLContext.getDefault();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IOException(ex);
+        }
+        final boolean verifyHostname = !sslTrustAll;
+
+        return new SSLEngineConfigurator(context, true, false, false) {
+            @Override
+            public SSLEngine createSSLEngine() {
+                SSLEngine engine = context.createSSLEngine(route.host, route.port);
+                configure(engine);
+                if (verifyHostname) {
+                    SSLParameters params = engine.getSSLParameters();
+                    params.setEndpointIdentificationAlgorithm("HTTPS");
+                    engine.setSSLParameters(params);
+                }
+                return engine;
+            }
+        };
+    }
+
+    private HttpContent buildRequest(Exchange exchange) {
+        URI uri = exchange.uri;
+        HttpRequestPacket.Builder builder = HttpRequestPacket.builder()
+                .method(exchange.method)
+                .uri(uri.getRawPath()!=null && !uri.getRawPath().isEmpty() ? uri.getRawPath() : "/")
+                .protocol(Protocol.HTTP_1_1);
+        if (uri.getRawQuery()!=null) {
+            builder.query(uri.getRawQuery());
+        }
+
+        boolean hasHost = false;
+        if (exchange.headers!=null) {
+            for (Map.Entry<String, String> header : exchange.headers.entrySet()) {
+                if ("Content-Length".equalsIgnoreCase(header.getKey())) {
+                    continue;
+                }
+                hasHost |= "Host".equalsIgnoreCase(header.getKey());
+                builder.header(header.getKey(), header.getValue());
+            }
+        }
+        if (!hasHost) {
+            boolean defaultPort = exchange.route.port==(exchange.route.secure ? 443 : 80);
+            builder.header("Host", defaultPort ? exchange.route.host : exchange.route.host + ":" + exchange.route.port);
+        }
+
+        Buffer content = Buffers.EMPTY_BUFFER;
+        if (exchange.body!=null) {
+            builder.contentLength(exchange.body.length);
+            content = Buffers.wrap(transport.getMemoryManager(), exchange.body);
+        }
+
+        return HttpContent.builder(builder.build()).content(content).last(true).build();
+    }
+
+    private void send(final Exchange exchange, final Connection<SocketAddress> connection, boolean reused) {
+        synchronized (exchange) {
+            if (exchange.done) {
+                //the exchange timed out while waiting for the connection
+                release(exchange.route, connection, connection.isOpen());
+                return;
+            }
+            exchange.connection = connection;
+            exchange.reusedConnection = reused;
+            exchange.phaseTimeoutAt = afterTimeout(System.currentTimeMillis(), timeouts.getSocketTimeoutMillis());
+        }
+        EXCHANGE.set(connection, exchange);
+
+        connection.write(buildRequest(exchange), new EmptyCompletionHandler<WriteResult<HttpContent, SocketAddress>>() {
+            @Override
+            public void failed(Throwable throwable) {
+                onConnectionLost(exchange, connection, throwable);
+            }
+        });
+    }
+
+    private void onContent(Exchange exchange, Connection<SocketAddress> connection, HttpContent content) {
+        synchronized (exchange) {
+            if (exchange.done || exchange.connection!=connection) {
+                return;
+            }
+            if (exchange.response==null) {
+                exchange.response = (HttpResponsePacket) content.getHttpHeader();
+            }
+            Buffer buffer = content.getContent();
+            if (buffer!=null && buffer.hasRemaining()) {
+                byte[] bytes = new byte[buffer.remaining()];
+                buffer.get(bytes);
+                exchange.responseBody.write(bytes, 0, bytes.length);
+            }
+            exchange.phaseTimeoutAt = afterTimeout(System.currentTimeMillis(), timeouts.getSocketTimeoutMillis());
+            if (!content.isLast()) {
+                return;
+            }
+        }
+        complete(exchange, connection, isKeepAlive(exchange.response));
+    }
+
+    private static boolean isKeepAlive(HttpResponsePacket response) {
+        String connection = response.getHeader("Connection");
+        if (response.getProtocol()==Protocol.HTTP_1_1) {
+            return !"close".equalsIgnoreCase(connection);
+        }
+        return "keep-alive".equalsIgnoreCase(connection);
+    }
+
+    /**
+     * @return how long the server will keep an idle connection open, from its <code>Keep-Alive</code> header
+     */
+    private long keepAliveMillis(HttpResponsePacket response) {
+        String keepAlive = response.getHeader("Keep-Alive");
+        if (keepAlive!=null) {
+            for (String param : keepAlive.split(",")) {
+                String trimmed = param.trim();
+                if (trimmed.toLowerCase().startsWith("timeout=")) {
+                    try {
+                        return Long.parseLong(trimmed.substring("timeout=".length())) * 1000;
+                    } catch (NumberFormatException ex) {
+                        //use the default
+                    }
+                }
+            }
+        }
+        return poolConfig.getKeepAliveMillis();
+    }
+
+    private void complete(Exchange exchange, Connection<SocketAddress> connection, boolean reusable) {
+        Response response;
+        synchronized (exchange) {
+            if (exchange.done) {
+                return;
+            }
+            exchange.done = true;
+
+            Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+            for (String header : exchange.response.getHeaders().names()) {
+                headers.put(header, exchange.response.getHeader(header));
+            }
+            response = new Response(exchange.response.getStatus(), headers, exchange.responseBody.toByteArray());
+        }
+        active.remove(exchange);
+        EXCHANGE.remove(connection);
+
+        long expiresAt = System.currentTimeMillis() + Math.min(keepAliveMillis(exchange.response), poolConfig.getMaxIdleMillis());
+        release(exchange.route, connection, reusable && connection.isOpen(), expiresAt);
+        exchange.callback.completed(response);
+    }
+
+    /**
+     * Fail an exchange. If it has a connection, the connection must be released by the caller.
+     *
+     * @return false if the exchange was already done
+     */
+    private boolean fail(Exchange exchange, Throwable throwable) {
+        synchronized (exchange) {
+            if (exchange.done) {
+                return false;
+            }
+            exchange.done = true;
+        }
+        active.remove(exchange);
+        synchronized (this) {
+            exchange.route.pending.remove(exchange);
+        }
+        exchange.callback.failed(throwable);
+        return true;
+    }
+
+    /**
+     * Handle a connection that was closed or failed while an exchange was using it. If a reused connection
+     * was closed by the server before any response was received, an idempotent request is sent once more
+     * on another connection.
+     */
+    private void onConnectionLost(Exchange exchange, Connection<SocketAddress> connection, Throwable cause) {
+        boolean retry = false;
+        boolean readUntilClose = false;
+        synchronized (exchange) {
+            if (exchange.done || exchange.connection!=connection) {
+                return;
+            }
+            if (exchange.response!=null) {
+                //responses without a length or chunked encoding end when the connection is closed
+                readUntilClose = exchange.response.getContentLength()==-1 && !exchange.response.isChunked() && cause==null;
+            } else if (exchange.reusedConnection && !exchange.retried && exchange.isIdempotent()) {
+                exchange.retried = true;
+                exchange.connection = null;
+                retry = true;
+            }
+        }
+
+        if (readUntilClose) {
+            complete(exchange, connection, false);
+            return;
+        }
+
+        EXCHANGE.remove(connection);
+        release(exchange.route, connection, false);
+        if (retry) {
+            dispatch(exchange);
+        } else {
+            fail(exchange, cause!=null ? cause : new IOException("Connection to " + exchange.route.host + " was closed before the response was received"));
+        }
+    }
+
+    private void onConnectionClosed(Connection<SocketAddress> connection) {
+        Exchange exchange = EXCHANGE.get(connection);
+        if (exchange!=null) {
+            onConnectionLost(exchange, connection, null);
+            return;
+        }
+
+        //an idle connection was closed by the server
+        synchronized (this) {
+            for (Route route : routes.values()) {
+                Iterator<IdleConnection> iter = route.idle.iterator();
+                while (iter.hasNext()) {
+                    if (iter.next().connection==connection) {
+                        iter.remove();
+                        totalConnections--;
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    private void release(Route route, Connection<SocketAddress> connection, boolean reusable) {
+        release(route, connection, reusable, System.currentTimeMillis() + Math.min(poolConfig.getKeepAliveMillis(), poolConfig.getMaxIdleMillis()));
+    }
+
+    /**
+     * Return a leased connection to its route, handing it to the next waiting exchange if there is one.
+     *
+     * @param reusable If false, the connection is closed
+     */
+    private void release(Route route, Connection<SocketAddress> connection, boolean reusable, long expiresAt) {
+        Exchange next;
+        boolean connectNext = false;
+
+        synchronized (this) {
+            route.leased--;
+            if (reusable && !closed) {
+                next = route.pending.poll();
+                if (next!=null) {
+                    route.leased++;
+                } else {
+                    route.idle.push(new IdleConnection(connection, expiresAt));
+                }
+            } else {
+                totalConnections--;
+                next = nextToConnect();
+                connectNext = next!=null;
+            }
+        }
+
+        if (!reusable || closed) {
+            connection.closeSilently();
+        }
+        if (connectNext) {
+            connect(next);
+        } else if (next!=null) {
+            send(next, connection, true);
+        }
+    }
+
+    /**
+     * Take the next waiting exchange that a new connection can be opened for, reserving the connection.
+     * Must be called while holding the client lock.
+     */
+    private Exchange nextToConnect() {
+        if (closed || totalConnections >= poolConfig.getMaxTotal()) {
+            return null;
+        }
+        for (Route route : routes.values()) {
+            if (!route.pending.isEmpty() && route.size() < poolConfig.getMaxPerRoute()) {
+                route.connecting++;
+                totalConnections++;
+                return route.pending.poll();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Fail the exchanges that have passed their deadline or timed out connecting or waiting for data,
+     * and close expired idle connections.
+     */
+    void checkTimeouts(long now) {
+        for (Exchange exchange : active) {
+            Throwable timeout = null;
+            Connection<SocketAddress> connection;
+            synchronized (exchange) {
+                connection = exchange.connection;
+                if (now >= exchange.deadline) {
+                    timeout = new TimeoutException("Request to " + exchange.route.host + " timed out after " +
+                            (exchange.deadline - exchange.startedAt) + "ms");
+                } else if (now >= exchange.phaseTimeoutAt) {
+                    timeout = new SocketTimeoutException(connection==null ? "Connect timed out" : "Read timed out");
+                }
+            }
+
+            if (timeout!=null && fail(exchange, timeout) && connection!=null) {
+                EXCHANGE.remove(connection);
+                release(exchange.route, connection, false);
+            }
+        }
+
+        List<Connection<SocketAddress>> expired = new ArrayList<>();
+        synchronized (this) {
+            for (Route route : routes.values()) {
+                Iterator<IdleConnection> iter = route.idle.iterator();
+                while (iter.hasNext()) {
+                    IdleConnection idle = iter.next();
+                    if (idle.expiresAt <= now) {
+                        iter.remove();
+                        totalConnections--;
+                        expired.add(idle.connection);
+                    }
+                }
+            }
+        }
+        for (Connection<SocketAddress> connection : expired) {
+            connection.closeSilently();
+        }
+    }
+
+    synchronized int getLeased() {
+        int leased = 0;
+        for (Route route : routes.values()) {
+            leased += route.leased + route.connecting;
+        }
+        return leased;
+    }
+
+    synchronized int getAvailable() {
+        int available = 0;
+        for (Route route : routes.values()) {
+            available += route.idle.size();
+        }
+        return available;
+    }
+
+    synchronized int getPending() {
+        int pending = 0;
+        for (Route route : routes.values()) {
+            pending += route.pending.size();
+        }
+        return pending;
+    }
+
+    synchronized int getRoutes() {
+        return routes.size();
+    }
+
+    /**
+     * Close all connections and fail the requests that are still in progress
+     */
+    void shutdown() {
+        synchronized (this) {
+            closed = true;
+        }
+        if (timer!=null) {
+            timer.shutdownNow();
+        }
+        if (resolver!=null) {
+            resolver.shutdownNow();
+        }
+        for (Exchange exchange : active) {
+            fail(exchange, new IOException("HTTP client was shut down"));
+        }
+        if (transport!=null) {
+            try {
+                transport.shutdownNow();
+            } catch (IOException ex) {
+                //the connections are being closed anyway
+            }
+        }
+    }
+}
@@ -0,0 +1,336 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.engine.connectors;
+
+import akka.actor.ActorRef;
+import akka.actor.UntypedActor;
+import akka.event.Logging;
+import akka.event.LoggingAdapter;
+import org.openhim.mediator.engine.CoreResponse;
+import org.openhim.mediator.engine.MediatorConfig;
+import org.openhim.mediator.engine.MediatorRequestHandler;
+import org.openhim.mediator.engine.OrchestrationCaptures;
+import org.openhim.mediator.engine.RequestDeadlines;
+import org.openhim.mediator.engine.StreamingBody;
+import org.openhim.mediator.engine.messages.*;
+import org.openhim.mediator.engine.metrics.Gauge;
+import org.openhim.mediator.engine.metrics.MetricsRegistry;
+import scala.concurrent.ExecutionContext;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * An actor that connects to HTTP services without blocking a thread for each call.
+ * <br/><br/>
+ * Supports the same messages as the {@link HTTPConnector}:
+ * <ul>
+ * <li>{@link MediatorHTTPRequest} - responds with {@link MediatorHTTPResponse}</li>
+ * <li>{@link SetupSSLContext} - responds with {@link SetupSSLContextResponse}</li>
+ * <li>{@link GetHTTPConnectionPoolStats} - responds with {@link HTTPConnectionPoolStats}</li>
+ * </ul>
+ * <br/>
+ * Requests are sent and responses are read by the selector threads of a non-blocking client, and the
+ * {@link MediatorHTTPResponse} is sent from a callback once the response is complete. The connector is used as
+ * the http-connector if {@link MediatorConfig.NonBlockingHTTP} is enabled.
+ * <br/><br/>
+ * Connection pooling, circuit breakers, bulkheads, timeouts and request deadlines are configured in the same way
+ * as for the {@link HTTPConnector}. The response cache and single-flight requests are not supported, and requests
+ * with {@link MediatorHTTPRequest#isSingleFlight()} set are sent individually.
+ * <br/><br/>
+ * Streaming request bodies and {@link MediatorHTTPRequest.BodyMode#BINARY} responses are supported, but the client
+ * sends and receives whole bodies: a streaming request body is read into memory before it's sent, and a binary
+ * response is only copied into a {@link StreamingBody} once it has been received in full.
+ */
+public class AsyncHTTPConnector extends UntypedActor {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    LoggingAdapter log = Logging.getLogger(getContext().system(), this);
+
+    private final MediatorConfig.HTTPConnectionPool poolConfig;
+    private final MetricsRegistry metrics;
+    private final UpstreamGuard guard;
+    private final MediatorConfig.ConnectorTimeouts timeouts;
+    private final RequestDeadlines deadlines;
+    private final int ioThreads;
+    private final MediatorConfig.Compression compression;
+    private final OrchestrationCaptures captures;
+    private final int streamingBodyMemoryThreshold;
+
+    private AsyncHTTPClient client;
+
+
+    public AsyncHTTPConnector(MediatorConfig config) {
+        this.poolConfig = config.getHTTPConnectionPool()!=null ? config.getHTTPConnectionPool() : new MediatorConfig.HTTPConnectionPool();
+        this.metrics = config.getMetricsRegistry()!=null ? config.getMetricsRegistry() : new MetricsRegistry();
+        this.guard = new UpstreamGuard("http-connector", config, metrics);
+        this.timeouts = config.getConnectorTimeouts()!=null ? config.getConnectorTimeouts() : new MediatorConfig.ConnectorTimeouts();
+        this.deadlines = config.getRequestDeadlines()!=null ? config.getRequestDeadlines() : new RequestDeadlines();
+        this.ioThreads = config.getNonBlockingHTTP()!=null ?
+                config.getNonBlockingHTTP().getIOThreads() : new MediatorConfig.NonBlockingHTTP().getIOThreads();
+        this.compression = config.getCompression()!=null ? config.getCompression() : new MediatorConfig.Compression();
+        this.captures = config.getOrchestrationCaptures();
+        this.streamingBodyMemoryThreshold = config.getStreamingBodyMemoryThreshold();
+    }
+
+    public AsyncHTTPConnector() {
+        this(new MediatorConfig());
+    }
+
+
+    /**
+     * Encode the request body in the same way as the {@link HTTPConnector}, using the charset declared in the
+     * Content-Type header or UTF-8
+     *
+     * @return the body, or null if the request method doesn't have one
+     */
+    private byte[] buildBody(MediatorHTTPRequest req, Map<String, String> headers) throws IOException {
+        switch (req.getMethod()) {
+            case "GET":
+            case "DELETE":
+                return null;
+            case "POST":
+            case "PUT":
+                if (req.getStreamingBody()!=null) {
+                    //sent as is, like the streaming entity of the HTTPConnector
+                    return req.getStreamingBody().toByteArray();
+                }
+                if (!headers.containsKey("Content-Type")) {
+                    headers.put("Content-Type", "text/plain; charset=" + UTF8.name());
+                }
+                if (req.getBody()==null) {
+                    return new byte[0];
+                }
+                Charset charset = HTTPSupport.charsetFor(headers.get("Content-Type"), UTF8);
+                return HTTPSupport.encodeBody(req.getBody().getBytes(charset), headers.get("Content-Encoding"));
+            default:
+                throw new UnsupportedOperationException(req.getMethod() + " requests not supported");
+        }
+    }
+
+    /**
+     * Decompress a gzip or deflate response body, since the client passes bodies through as is
+     */
+    private AsyncHTTPClient.Response decodeResponse(AsyncHTTPClient.Response result) throws IOException {
+        String contentEncoding = result.getHeaders().get("Content-Encoding");
+        if (!"gzip".equalsIgnoreCase(contentEncoding) && !"deflate".equalsIgnoreCase(contentEncoding)) {
+            return result;
+        }
+
+        Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        headers.putAll(result.getHeaders());
+        headers.remove("Content-Encoding");
+        headers.remove("Content-Length");
+        return new AsyncHTTPClient.Response(result.getStatus(), headers, HTTPSupport.decodeBody(result.getBody(), contentEncoding));
+    }
+
+    private MediatorHTTPResponse buildResponse(MediatorHTTPRequest req, AsyncHTTPClient.Response result, ActorRef self) throws CoreResponse.ParseException, IOException {
+        if (compression.getUpstreamResponses()) {
+            result = decodeResponse(result);
+        }
+        Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        headers.putAll(result.getHeaders());
+
+        String contentType = headers.get("Content-Type");
+        if (contentType!=null && contentType.contains(MediatorRequestHandler.OPENHIM_MIME_TYPE)) {
+            return HTTPSupport.unpackOpenHIMResponse(req, Collections.singletonList(req), result.getBodyAsString(),
+                    result.getStatus(), headers, self);
+        }
+        if (req.getResponseBodyMode()==MediatorHTTPRequest.BodyMode.BINARY) {
+            return new StreamingHTTPResponse(req, buildStreamingBody(result.getBody()), result.getStatus(), headers);
+        }
+        return new MediatorHTTPResponse(req, result.getBodyAsString(), result.getStatus(), headers);
+    }
+
+    /**
+     * Copy a binary body into a streaming body without decoding it, spilling to disk if it's large
+     *
+     * @return the body, or null if the response had no body
+     */
+    private StreamingBody buildStreamingBody(byte[] bytes) throws IOException {
+        if (bytes.length==0) {
+            return null;
+        }
+        StreamingBody body = new StreamingBody(streamingBodyMemoryThreshold);
+        try {
+            body.write(bytes);
+            body.complete();
+        } catch (IOException ex) {
+            body.release();
+            throw ex;
+        }
+        return body;
+    }
+
+    private void respond(MediatorHTTPRequest req, MediatorHTTPResponse response, UpstreamGuard.State breakerState, ActorRef self) {
+        //enrich engine response
+        CoreResponse.Orchestration orch = HTTPSupport.buildOrchestration(req, response, captures);
+        if (breakerState!=UpstreamGuard.State.CLOSED) {
+            HTTPSupport.putOrchestrationResponseHeader(orch, "X-Circuit-Breaker", breakerState.name());
+        }
+        req.getRequestHandler().tell(new AddOrchestrationToCoreResponse(orch), self);
+
+        //send response
+        req.getRespondTo().tell(response, self);
+    }
+
+    /**
+     * @return the time allowed for the request, limited by the deadline of the request being handled,
+     * or Long.MAX_VALUE if the time isn't limited
+     */
+    private long timeAllowedFor(MediatorHTTPRequest req) {
+        long timeout = req.getTimeoutMillis()!=null ? req.getTimeoutMillis() : Long.MAX_VALUE;
+        return deadlines.remainingMillis(req.getRequestHandler(), timeout);
+    }
+
+    private void sendRequest(final MediatorHTTPRequest req) {
+        try {
+            final URI uri = HTTPSupport.buildURI(req);
+            Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+            if (req.getHeaders()!=null) {
+                headers.putAll(req.getHeaders());
+            }
+            if (compression.getUpstreamResponses() && !headers.containsKey("Accept-Encoding")) {
+                headers.put("Accept-Encoding", "gzip, deflate");
+            }
+            byte[] body = buildBody(req, headers);
+
+            final String host = uri.getPort()!=-1 ? uri.getHost() + ":" + uri.getPort() : uri.getHost();
+
+            final long timeAllowed = timeAllowedFor(req);
+            if (timeAllowed <= 0) {
+                TimeoutException ex = new TimeoutException("The deadline for the request to " + host + " passed before it was sent");
+                req.getRequestHandler().tell(new ExceptError(req, ex), getSelf());
+                return;
+            }
+
+            final UpstreamGuard.Permit permit;
+            try {
+                permit = guard.acquire(host);
+            } catch (UpstreamGuard.RejectedException ex) {
+                req.getRequestHandler().tell(new AddOrchestrationToCoreResponse(HTTPSupport.buildRejectedOrchestration(req, ex, captures)), getSelf());
+                req.getRequestHandler().tell(new ExceptError(req, ex), getSelf());
+                return;
+            }
+
+            final long start = System.nanoTime();
+            final ActorRef self = getSelf();
+            //the client calls back on its selector threads, so hand the response over to the dispatcher
+            final ExecutionContext ec = getContext().dispatcher();
+
+            client.execute(req.getMethod(), uri, headers, body, timeAllowed, new AsyncHTTPClient.Callback() {
+                @Override
+                public void completed(final AsyncHTTPClient.Response result) {
+                    ec.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            permit.release(result.getStatus() >= 500);
+                            metrics.histogram("mediator_http_connector_request_duration_seconds", "Time taken for orchestration requests, by host",
+                                    "host", host).recordNanos(System.nanoTime() - start);
+                            metrics.counter("mediator_http_connector_requests_total", "Orchestration requests, by host and response status",
+                                    "host", host, "status", Integer.toString(result.getStatus())).inc();
+
+                            try {
+                                respond(req, buildResponse(req, result, self), permit.getState(), self);
+                            } catch (CoreResponse.ParseException | IOException ex) {
+                                req.getRequestHandler().tell(new ExceptError(req, ex), self);
+                            }
+                        }
+                    });
+                }
+
+                @Override
+                public void failed(final Throwable throwable) {
+                    ec.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            permit.release(true);
+                            metrics.counter("mediator_http_connector_errors_total", "Orchestration requests that failed without a response, by host", "host", host).inc();
+                            req.getRequestHandler().tell(new ExceptError(req, throwable), self);
+                        }
+                    });
+                }
+            });
+        } catch (URISyntaxException | IOException | UnsupportedOperationException ex) {
+            req.getRequestHandler().tell(new ExceptError(req, ex), getSelf());
+        }
+    }
+
+
+    private void setupSSLContext(SetupSSLContext msg) {
+        try {
+            client.setSSLContext(HTTPSupport.buildSSLContext(msg.getRequestObject(), log), msg.getRequestObject().getTrustAll());
+            msg.getRespondTo().tell(new SetupSSLContextResponse(msg), getSelf());
+        } catch (GeneralSecurityException | IOException ex) {
+            msg.getRespondTo().tell(new SetupSSLContextResponse(msg, ex), getSelf());
+        }
+    }
+
+    private void sendPoolStats(GetHTTPConnectionPoolStats msg) {
+        HTTPConnectionPoolStats response = new HTTPConnectionPoolStats(
+                msg, client.getLeased(), client.getPending(), client.getAvailable(), poolConfig.getMaxTotal(), client.getRoutes()
+        );
+        msg.getRespondTo().tell(response, getSelf());
+    }
+
+    private void registerPoolGauges() {
+        metrics.register("mediator_http_connector_pool_leased", "Connections currently in use", new Gauge() {
+            @Override
+            public double getValue() {
+                return client.getLeased();
+            }
+        });
+        metrics.register("mediator_http_connector_pool_available", "Idle connections available for reuse", new Gauge() {
+            @Override
+            public double getValue() {
+                return client.getAvailable();
+            }
+        });
+        metrics.register("mediator_http_connector_pool_pending", "Requests waiting for a connection", new Gauge() {
+            @Override
+            public double getValue() {
+                return client.getPending();
+            }
+        });
+    }
+
+    @Override
+    public void preStart() throws Exception {
+        client = new AsyncHTTPClient(getSelf().path().name(), poolConfig, timeouts, ioThreads);
+        client.start();
+        registerPoolGauges();
+    }
+
+    @Override
+    public void postStop() throws Exception {
+        metrics.remove("mediator_http_connector_pool_leased");
+        metrics.remove("mediator_http_connector_pool_available");
+        metrics.remove("mediator_http_connector_pool_pending");
+        client.shutdown();
+    }
+
+    @Override
+    public void onReceive(Object msg) throws Exception {
+        if (msg instanceof MediatorHTTPRequest) {
+            sendRequest((MediatorHTTPRequest) msg);
+        } else if (msg instanceof SetupSSLContext) {
+            setupSSLContext((SetupSSLContext) msg);
+        } else if (msg instanceof GetHTTPConnectionPoolStats) {
+            sendPoolStats((GetHTTPConnectionPoolStats) msg);
+        } else {
+            unhandled(msg);
+        }
+    }
+}
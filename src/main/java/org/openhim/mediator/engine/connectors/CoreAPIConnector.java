@@ -7,14 +7,16 @@
 package org.openhim.mediator.engine.connectors;
 
 import akka.actor.ActorSelection;
+import akka.actor.Cancellable;
 import akka.actor.UntypedActor;
 import akka.event.Logging;
 import akka.event.LoggingAdapter;
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
 import com.google.gson.JsonParseException;
+import org.joda.time.format.DateTimeFormatter;
+import org.joda.time.format.ISODateTimeFormat;
 import org.openhim.mediator.engine.MediatorConfig;
 import org.openhim.mediator.engine.RegistrationConfig;
+import org.openhim.mediator.engine.json.JSON;
 import org.openhim.mediator.engine.messages.AddOrchestrationToCoreResponse;
 import org.openhim.mediator.engine.messages.ExceptError;
 import org.openhim.mediator.engine.messages.MediatorHTTPRequest;
@@ -23,12 +25,20 @@ import org.openhim.mediator.engine.messages.RegisterMediatorWithCore;
 import org.openhim.mediator.engine.messages.RegisterMediatorWithCoreResponse;
 import org.openhim.mediator.engine.messages.SendHeartbeatToCore;
 import org.openhim.mediator.engine.messages.SendHeartbeatToCoreResponse;
+import org.openhim.mediator.engine.metrics.MetricsRegistry;
+
+import scala.concurrent.duration.Duration;
 
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
 /**
  * An actor that provides functionality for connecting to the OpenHIM Core API.
@@ -42,6 +52,10 @@ import java.util.UUID;
  * <li>{@link SendHeartbeatToCore}: Send a heartbeat to core and update the dynamic config map with any changes -
  * responds with {@link SendHeartbeatToCoreResponse}</li>
  * </ul>
+ * <br/>
+ * The authentication details fetched from core are cached for {@link MediatorConfig#getCoreAPIAuthCacheSeconds()},
+ * so that the auth round-trip to core doesn't have to be made for every request. Requests that arrive while
+ * the details are being fetched will wait for the same response.
  */
 public class CoreAPIConnector extends UntypedActor {
 
@@ -57,6 +71,35 @@ public class CoreAPIConnector extends UntypedActor {
         }
     }
 
+    /**
+     * The authentication details for the core API user
+     */
+    private static class AuthDetails {
+        final String salt;
+        final String passHash;
+        final String coreTs;
+        final Long clockOffset;
+
+        AuthDetails(String salt, String passHash, String coreTs, Long clockOffset) {
+            this.salt = salt;
+            this.passHash = passHash;
+            this.coreTs = coreTs;
+            this.clockOffset = clockOffset;
+        }
+
+        /**
+         * @return A timestamp for a new request, adjusted to core's clock
+         */
+        String ts() {
+            if (clockOffset==null) {
+                return coreTs;
+            }
+            return TS_FORMAT.print(System.currentTimeMillis() + clockOffset);
+        }
+    }
+
+    private static class RefreshAuthDetails {}
+
     public static class CoreGetAuthenticationDetailsError extends Exception {
         public CoreGetAuthenticationDetailsError(String msg) {
             super(msg);
@@ -66,15 +109,30 @@ public class CoreAPIConnector extends UntypedActor {
     LoggingAdapter log = Logging.getLogger(getContext().system(), this);
 
     private final MediatorConfig config;
+    private final MetricsRegistry metrics;
     private final Map<String, MediatorHTTPRequest> activeRequests = new HashMap<>();
+    private final Map<String, Long> requestStartNanos = new HashMap<>();
 
     private static final String REGISTER_MEDIATOR = "register-mediator";
     private static final String HEARTBEAT = "heartbeat";
     private static final String GET_AUTH_DETAILS = "get-auth-details";
 
+    private static final DateTimeFormatter TS_FORMAT = ISODateTimeFormat.dateTime().withZoneUTC();
+
+    private AuthDetails authDetails;
+    private long authDetailsExpiry;
+    private boolean authDetailsUsed;
+    private Cancellable refreshTask;
+
+    private String authCorrelationId;
+    private long authRequestSentAt;
+    private final List<String> awaitingAuth = new ArrayList<>();
+    private final Set<String> retriedRequests = new HashSet<>();
+
 
     public CoreAPIConnector(MediatorConfig config) {
         this.config = config;
+        this.metrics = config.getMetricsRegistry()!=null ? config.getMetricsRegistry() : new MetricsRegistry();
     }
 
 
@@ -158,47 +216,102 @@ public class CoreAPIConnector extends UntypedActor {
         return sb.toString();
     }
 
-    private MediatorHTTPRequest copyOriginalRequestWithAuthenticationHeaders(MediatorHTTPResponse response) {
-        String correlationId = response.getOriginalRequest().getCorrelationId();
-        MediatorHTTPRequest originalRequest = activeRequests.get(correlationId);
-        MediatorHTTPRequest request;
+    private boolean hasValidAuthDetails() {
+        return authDetails!=null && System.nanoTime() < authDetailsExpiry;
+    }
+
+    private void clearAuthDetails() {
+        authDetails = null;
+        if (refreshTask!=null) {
+            refreshTask.cancel();
+            refreshTask = null;
+        }
+    }
+
+    private void authenticateMessage(MediatorHTTPRequest request) {
+        String correlationId = UUID.randomUUID().toString();
+        activeRequests.put(correlationId, request);
+        requestStartNanos.put(correlationId, System.nanoTime());
+        authenticateMessage(correlationId);
+    }
+
+    private static String operationFor(MediatorHTTPRequest request) {
+        if (REGISTER_MEDIATOR.equals(request.getOrchestration()) || HEARTBEAT.equals(request.getOrchestration())) {
+            return request.getOrchestration();
+        }
+        return "request";
+    }
 
-        //if register-mediator or heartbeat, core-api-connector is the respondTo. Else forward to original caller
-        if (REGISTER_MEDIATOR.equals(originalRequest.getOrchestration()) || HEARTBEAT.equals(originalRequest.getOrchestration())) {
-            request = new MediatorHTTPRequest(getSelf(), correlationId, originalRequest);
+    private void recordRequestMetrics(String correlationId, MediatorHTTPRequest original, String status) {
+        Long start = requestStartNanos.remove(correlationId);
+        String operation = operationFor(original);
+
+        metrics.counter("mediator_core_api_requests_total", "Requests to the OpenHIM core API, by operation and response status",
+                "operation", operation, "status", status).inc();
+        if (start!=null) {
+            metrics.histogram("mediator_core_api_request_duration_seconds", "Time taken for requests to the OpenHIM core API, including authentication",
+                    "operation", operation).recordNanos(System.nanoTime() - start);
+        }
+    }
+
+    private void authenticateMessage(String correlationId) {
+        if (hasValidAuthDetails()) {
+            authDetailsUsed = true;
+            sendAuthenticatedRequest(correlationId, authDetails);
         } else {
-            request = new MediatorHTTPRequest(originalRequest);
-            activeRequests.remove(correlationId);
+            awaitingAuth.add(correlationId);
+            requestAuthDetails();
         }
+    }
 
-        try {
-            if (response.getStatusCode()!=200) {
-                String msg = String.format("Core responded with %s (%s)", response.getStatusCode(), response.getBody());
-                throw new CoreGetAuthenticationDetailsError(msg);
-            }
+    private void requestAuthDetails() {
+        if (authCorrelationId!=null) {
+            //already waiting for core
+            return;
+        }
+        authCorrelationId = UUID.randomUUID().toString();
+        authRequestSentAt = System.currentTimeMillis();
+        metrics.counter("mediator_core_api_auth_requests_total", "Requests for authentication details to the OpenHIM core API").inc();
+        sendToHTTPConnector(buildAuthMessage(authCorrelationId));
+    }
 
-            Gson gson = new GsonBuilder().create();
-            AuthResponse authResponse = gson.fromJson(response.getBody(), AuthResponse.class);
+    private void sendAuthenticatedRequest(String correlationId, AuthDetails auth) {
+        MediatorHTTPRequest originalRequest = activeRequests.get(correlationId);
+        MediatorHTTPRequest request = new MediatorHTTPRequest(getSelf(), getSelf(), correlationId, originalRequest);
 
-            String passHash = hash(authResponse.salt + config.getCoreAPIPassword());
-            String token = hash(passHash + authResponse.salt + authResponse.ts);
+        try {
+            String ts = auth.ts();
+            String token = hash(auth.passHash + auth.salt + ts);
 
             request.getHeaders().put("auth-username", config.getCoreAPIUsername());
-            request.getHeaders().put("auth-ts", authResponse.ts);
-            request.getHeaders().put("auth-salt", authResponse.salt);
+            request.getHeaders().put("auth-ts", ts);
+            request.getHeaders().put("auth-salt", auth.salt);
             request.getHeaders().put("auth-token", token);
 
-            return request;
-        } catch (NoSuchAlgorithmException | CoreGetAuthenticationDetailsError e) {
-            originalRequest.getRequestHandler().tell(new ExceptError(e), getSelf());
+            sendToHTTPConnector(request);
+        } catch (NoSuchAlgorithmException e) {
+            failRequest(correlationId, e);
         }
-        return null;
     }
 
-    private void authenticateMessage(MediatorHTTPRequest request) {
-        String correlationId = UUID.randomUUID().toString();
-        activeRequests.put(correlationId, request);
-        sendToHTTPConnector(buildAuthMessage(correlationId));
+    private void failRequest(String correlationId, Throwable error) {
+        MediatorHTTPRequest original = activeRequests.remove(correlationId);
+        retriedRequests.remove(correlationId);
+        if (original==null) {
+            log.error(error, "http-connector: An error occurred while communicating with core");
+            return;
+        }
+        recordRequestMetrics(correlationId, original, "error");
+
+        if (REGISTER_MEDIATOR.equals(original.getOrchestration())) {
+            original.getRespondTo().tell(new RegisterMediatorWithCoreResponse(false, null, error.getMessage()), getSelf());
+
+        } else if (HEARTBEAT.equals(original.getOrchestration())) {
+            original.getRespondTo().tell(new SendHeartbeatToCoreResponse(false, error.getMessage(), null), getSelf());
+
+        } else {
+            original.getRequestHandler().tell(new ExceptError(original, error), getSelf());
+        }
     }
 
     private void sendToHTTPConnector(MediatorHTTPRequest request) {
@@ -206,25 +319,105 @@ public class CoreAPIConnector extends UntypedActor {
         httpConnector.tell(request, getSelf());
     }
 
-    private void handleRegisterMediatorResponse(MediatorHTTPResponse msg) {
-        boolean success = true;
+    private Long readClockOffset(String coreTs) {
+        try {
+            long now = System.currentTimeMillis();
+            long estimatedCoreTime = TS_FORMAT.parseMillis(coreTs);
+            return estimatedCoreTime - (authRequestSentAt + now) / 2;
+        } catch (IllegalArgumentException | NullPointerException ex) {
+            log.warning("Could not read timestamp from core (" + coreTs + "). The authentication details will not be cached.");
+            return null;
+        }
+    }
 
-        if (msg.getStatusCode() != 201) {
-            success = false;
+    private AuthDetails readAuthDetails(MediatorHTTPResponse response) throws CoreGetAuthenticationDetailsError, NoSuchAlgorithmException {
+        if (response.getStatusCode()!=200) {
+            String msg = String.format("Core responded with %s (%s)", response.getStatusCode(), response.getBody());
+            throw new CoreGetAuthenticationDetailsError(msg);
         }
 
-        MediatorHTTPRequest originalHttp = activeRequests.remove(msg.getOriginalRequest().getCorrelationId());
-        originalHttp.getRespondTo().tell(new RegisterMediatorWithCoreResponse(success, msg.getStatusCode(), msg.getBody()), getSelf());
+        AuthResponse authResponse = JSON.getGson().fromJson(response.getBody(), AuthResponse.class);
+
+        String passHash = hash(authResponse.salt + config.getCoreAPIPassword());
+        return new AuthDetails(authResponse.salt, passHash, authResponse.ts, readClockOffset(authResponse.ts));
+    }
+
+    private void cacheAuthDetails(AuthDetails auth) {
+        clearAuthDetails();
+
+        int ttl = config.getCoreAPIAuthCacheSeconds();
+        if (ttl<=0 || auth.clockOffset==null) {
+            return;
+        }
+
+        authDetails = auth;
+        authDetailsExpiry = System.nanoTime() + TimeUnit.SECONDS.toNanos(ttl);
+        authDetailsUsed = false;
+
+        //refresh the details before they expire
+        refreshTask = getContext().system().scheduler().scheduleOnce(
+                Duration.create(ttl * 800L, TimeUnit.MILLISECONDS),
+                getSelf(),
+                new RefreshAuthDetails(),
+                getContext().dispatcher(),
+                getSelf()
+        );
     }
 
     private void handleAuthenticationResponse(MediatorHTTPResponse msg) {
-        MediatorHTTPRequest originalRequest = copyOriginalRequestWithAuthenticationHeaders(msg);
-        if (originalRequest != null) {
-            sendToHTTPConnector(originalRequest);
+        authCorrelationId = null;
+
+        AuthDetails auth;
+        try {
+            auth = readAuthDetails(msg);
+        } catch (NoSuchAlgorithmException | CoreGetAuthenticationDetailsError | JsonParseException e) {
+            handleAuthenticationFailure(e);
+            return;
+        }
+
+        cacheAuthDetails(auth);
+
+        List<String> requests = new ArrayList<>(awaitingAuth);
+        awaitingAuth.clear();
+        for (String correlationId : requests) {
+            sendAuthenticatedRequest(correlationId, auth);
         }
     }
 
-    private void handleHeartbeatResponse(MediatorHTTPResponse msg) {
+    private void handleAuthenticationFailure(Exception e) {
+        authCorrelationId = null;
+
+        if (awaitingAuth.isEmpty()) {
+            //background refresh, the current details can be used until they expire
+            log.warning("Failed to refresh authentication details from core: " + e.getMessage());
+            return;
+        }
+
+        List<String> requests = new ArrayList<>(awaitingAuth);
+        awaitingAuth.clear();
+        for (String correlationId : requests) {
+            failRequest(correlationId, e);
+        }
+    }
+
+    private void refreshAuthDetails() {
+        refreshTask = null;
+        if (authDetails!=null && authDetailsUsed) {
+            requestAuthDetails();
+        }
+    }
+
+    private void handleRegisterMediatorResponse(MediatorHTTPRequest originalHttp, MediatorHTTPResponse msg) {
+        boolean success = true;
+
+        if (msg.getStatusCode() != 201) {
+            success = false;
+        }
+
+        originalHttp.getRespondTo().tell(new RegisterMediatorWithCoreResponse(success, msg.getStatusCode(), msg.getBody()), getSelf());
+    }
+
+    private void handleHeartbeatResponse(MediatorHTTPRequest originalHttp, MediatorHTTPResponse msg) {
         SendHeartbeatToCoreResponse resp;
 
         if (msg.getStatusCode()==200) {
@@ -232,7 +425,7 @@ public class CoreAPIConnector extends UntypedActor {
                 resp = new SendHeartbeatToCoreResponse(msg.getBody());
             } else {
                 try {
-                    Map<String, Object> config = new GsonBuilder().create().fromJson(msg.getBody(), Map.class);
+                    Map<String, Object> config = JSON.getGson().fromJson(msg.getBody(), Map.class);
                     resp = new SendHeartbeatToCoreResponse(msg.getBody(), config);
                 } catch (JsonParseException ex) {
                     log.error("Invalid JSON config received from the OpenHIM core");
@@ -243,22 +436,47 @@ public class CoreAPIConnector extends UntypedActor {
             resp = new SendHeartbeatToCoreResponse(false, msg.getBody(), null);
         }
 
-        MediatorHTTPRequest originalHttp = activeRequests.remove(msg.getOriginalRequest().getCorrelationId());
         originalHttp.getRespondTo().tell(resp, getSelf());
     }
 
     private void handleHTTPConnectorResponse(MediatorHTTPResponse msg) {
-        if (REGISTER_MEDIATOR.equals(msg.getOriginalRequest().getOrchestration())) {
-            handleRegisterMediatorResponse(msg);
+        String correlationId = msg.getOriginalRequest().getCorrelationId();
+
+        if (GET_AUTH_DETAILS.equals(msg.getOriginalRequest().getOrchestration())) {
+            if (correlationId!=null && correlationId.equals(authCorrelationId)) {
+                handleAuthenticationResponse(msg);
+            }
+            return;
+        }
 
-        } else if (GET_AUTH_DETAILS.equals(msg.getOriginalRequest().getOrchestration())) {
-            handleAuthenticationResponse(msg);
+        MediatorHTTPRequest originalHttp = activeRequests.get(correlationId);
+        if (originalHttp==null) {
+            log.warning("Received a response from core for an unknown request");
+            return;
+        }
 
-        } else if (HEARTBEAT.equals(msg.getOriginalRequest().getOrchestration())) {
-            handleHeartbeatResponse(msg);
+        if (msg.getStatusCode()!=null && msg.getStatusCode()==401 && !retriedRequests.contains(correlationId)) {
+            //the authentication details may have changed on core
+            log.info("Core responded with 401 Unauthorized. Retrying with new authentication details...");
+            clearAuthDetails();
+            retriedRequests.add(correlationId);
+            authenticateMessage(correlationId);
+            return;
+        }
+
+        activeRequests.remove(correlationId);
+        retriedRequests.remove(correlationId);
+        recordRequestMetrics(correlationId, originalHttp, String.valueOf(msg.getStatusCode()));
+
+        if (REGISTER_MEDIATOR.equals(originalHttp.getOrchestration())) {
+            handleRegisterMediatorResponse(originalHttp, msg);
+
+        } else if (HEARTBEAT.equals(originalHttp.getOrchestration())) {
+            handleHeartbeatResponse(originalHttp, msg);
 
         } else {
-            msg.getOriginalRequest().getRespondTo().tell(msg, getSelf());
+            MediatorHTTPResponse response = new MediatorHTTPResponse(originalHttp, msg.getBody(), msg.getStatusCode(), msg.getHeaders());
+            originalHttp.getRespondTo().tell(response, getSelf());
         }
     }
 
@@ -266,18 +484,13 @@ public class CoreAPIConnector extends UntypedActor {
         if (error.getOriginalRequest() instanceof MediatorHTTPRequest) {
             MediatorHTTPRequest original = ((MediatorHTTPRequest) error.getOriginalRequest());
             if (GET_AUTH_DETAILS.equals(original.getOrchestration())) {
-                original = activeRequests.remove(original.getCorrelationId());
+                if (original.getCorrelationId()!=null && original.getCorrelationId().equals(authCorrelationId)) {
+                    handleAuthenticationFailure(new CoreGetAuthenticationDetailsError(error.getError().getMessage()));
+                }
+                return;
             }
 
-            if (REGISTER_MEDIATOR.equals(original.getOrchestration())) {
-                original.getRespondTo().tell(new RegisterMediatorWithCoreResponse(false, null, error.getError().getMessage()), getSelf());
-
-            } else if (HEARTBEAT.equals(original.getOrchestration())) {
-                original.getRespondTo().tell(new SendHeartbeatToCoreResponse(false, error.getError().getMessage(), null), getSelf());
-
-            } else {
-                log.error(error.getError(), "http-connector: An error occurred while communicating with core");
-            }
+            failRequest(original.getCorrelationId(), error.getError());
         } else {
             log.error(error.getError(), "http-connector: An error occurred while communicating with core");
         }
@@ -300,8 +513,16 @@ public class CoreAPIConnector extends UntypedActor {
         } else if (msg instanceof ExceptError) {
             handleExceptError((ExceptError) msg);
 
+        } else if (msg instanceof RefreshAuthDetails) {
+            refreshAuthDetails();
+
         } else if (msg instanceof AddOrchestrationToCoreResponse) {
             //do nothing
         }
     }
+
+    @Override
+    public void postStop() {
+        clearAuthDetails();
+    }
 }
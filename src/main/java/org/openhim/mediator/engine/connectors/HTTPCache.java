@@ -0,0 +1,340 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.engine.connectors;
+
+import org.apache.http.client.utils.DateUtils;
+import org.openhim.mediator.engine.MediatorConfig;
+
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A size bounded, least recently used cache of HTTP responses for the http-connector.
+ * <br/><br/>
+ * Entries are evicted in LRU order, using an access ordered map. There is no frequency based admission policy
+ * (such as W-TinyLFU), since that would need an additional dependency.
+ * <br/><br/>
+ * Responses are keyed on the request method, URI and the configured key headers, and their freshness is
+ * determined from the <code>Cache-Control</code>, <code>Expires</code>, <code>Date</code> and <code>Age</code>
+ * headers. If a response has a <code>Vary</code> header, it's only used for requests with the same values for the
+ * listed headers. Stale responses are kept if they have an <code>ETag</code> or <code>Last-Modified</code> validator so
+ * that they can be revalidated with a conditional request.
+ * <br/><br/>
+ * The cache is accessed from the connector's response callbacks, so all access is synchronized.
+ *
+ * @see MediatorConfig.HTTPResponseCache
+ */
+class HTTPCache {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    static class Entry {
+        private final int status;
+        private final String body;
+        private final Map<String, String> headers;
+        //the values of the request headers listed in the response's Vary header
+        private final Map<String, String> varyValues;
+        private final long expiresAt;
+        private final long size;
+
+        Entry(int status, String body, Map<String, String> headers, Map<String, String> varyValues, long expiresAt) {
+            this.status = status;
+            this.body = body;
+            this.headers = headers;
+            this.varyValues = varyValues;
+            this.expiresAt = expiresAt;
+            //the size of the body when encoded in its declared charset, as the limit is in bytes
+            this.size = (body!=null ? body.getBytes(HTTPSupport.charsetFor(headers.get("Content-Type"), UTF8)).length : 0);
+        }
+
+        int getStatus() {
+            return status;
+        }
+
+        String getBody() {
+            return body;
+        }
+
+        /**
+         * @return a copy of the cached response headers
+         */
+        Map<String, String> getHeaders() {
+            Map<String, String> copy = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+            copy.putAll(headers);
+            return copy;
+        }
+
+        String getETag() {
+            return headers.get("ETag");
+        }
+
+        String getLastModified() {
+            return headers.get("Last-Modified");
+        }
+
+        boolean hasValidators() {
+            return getETag()!=null || getLastModified()!=null;
+        }
+
+        boolean isFresh(long now) {
+            return now < expiresAt;
+        }
+
+        private boolean matches(Map<String, String> requestHeaders) {
+            for (Map.Entry<String, String> vary : varyValues.entrySet()) {
+                String value = getHeader(requestHeaders, vary.getKey());
+                if (value!=null ? !value.equals(vary.getValue()) : vary.getValue()!=null) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private final MediatorConfig.HTTPResponseCache config;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes = 0;
+
+
+    HTTPCache(MediatorConfig.HTTPResponseCache config) {
+        this.config = config;
+    }
+
+
+    private static String getHeader(Map<String, String> headers, String name) {
+        if (headers==null) {
+            return null;
+        }
+        for (Map.Entry<String, String> hdr : headers.entrySet()) {
+            if (name.equalsIgnoreCase(hdr.getKey())) {
+                return hdr.getValue();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Parse a Cache-Control header into its directives. Directives without a value map to an empty string.
+     */
+    static Map<String, String> parseCacheControl(String value) {
+        Map<String, String> directives = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        if (value==null) {
+            return directives;
+        }
+
+        for (String directive : value.split(",")) {
+            String trimmed = directive.trim();
+            if (trimmed.isEmpty()) {
+                continue;
+            }
+            int eq = trimmed.indexOf('=');
+            if (eq < 0) {
+                directives.put(trimmed, "");
+            } else {
+                directives.put(trimmed.substring(0, eq).trim(), trimmed.substring(eq + 1).trim().replace("\"", ""));
+            }
+        }
+        return directives;
+    }
+
+    private static long parseSeconds(String value) {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return the key for a request, or null if the request can't be served from the cache
+     */
+    String keyFor(String method, URI uri, Map<String, String> requestHeaders) {
+        if (!"GET".equals(method)) {
+            return null;
+        }
+        //conditional and range requests are left to the server
+        if (getHeader(requestHeaders, "If-None-Match")!=null || getHeader(requestHeaders, "If-Modified-Since")!=null ||
+                getHeader(requestHeaders, "Range")!=null) {
+            return null;
+        }
+        if (parseCacheControl(getHeader(requestHeaders, "Cache-Control")).containsKey("no-store")) {
+            return null;
+        }
+
+        StringBuilder key = new StringBuilder(method).append(' ').append(uri.toString());
+        for (String header : config.getKeyHeaders()) {
+            String value = getHeader(requestHeaders, header);
+            if (value!=null) {
+                key.append('\n').append(header.toLowerCase()).append(": ").append(value);
+            }
+        }
+        return key.toString();
+    }
+
+    /**
+     * @return true if the request asks for cached responses to be revalidated, even if they are still fresh
+     */
+    static boolean requiresRevalidation(Map<String, String> requestHeaders) {
+        Map<String, String> directives = parseCacheControl(getHeader(requestHeaders, "Cache-Control"));
+        return directives.containsKey("no-cache") || "0".equals(directives.get("max-age"));
+    }
+
+    /**
+     * @return the time until which the response is fresh, or -1 if the response may not be cached
+     */
+    private long expiresAt(int status, Map<String, String> headers, long now) {
+        if (status!=200) {
+            return -1;
+        }
+
+        if ("*".equals(getHeader(headers, "Vary"))) {
+            return -1;
+        }
+
+        Map<String, String> directives = parseCacheControl(getHeader(headers, "Cache-Control"));
+        if (directives.containsKey("no-store") || directives.containsKey("private")) {
+            return -1;
+        }
+
+        boolean hasValidators = getHeader(headers, "ETag")!=null || getHeader(headers, "Last-Modified")!=null;
+        if (directives.containsKey("no-cache")) {
+            return hasValidators ? now : -1;
+        }
+
+        long age = Math.max(parseSeconds(getHeader(headers, "Age")), 0);
+        long lifetime = -1;
+        if (directives.containsKey("s-maxage")) {
+            lifetime = parseSeconds(directives.get("s-maxage"));
+        } else if (directives.containsKey("max-age")) {
+            lifetime = parseSeconds(directives.get("max-age"));
+        } else if (getHeader(headers, "Expires")!=null) {
+            Date expires = DateUtils.parseDate(getHeader(headers, "Expires"));
+            Date date = getHeader(headers, "Date")!=null ? DateUtils.parseDate(getHeader(headers, "Date")) : null;
+            if (expires!=null) {
+                long dateMillis = date!=null ? date.getTime() : now;
+                lifetime = Math.max((expires.getTime() - dateMillis) / 1000, 0);
+            } else {
+                //invalid dates mean that the response has already expired
+                lifetime = 0;
+            }
+        }
+
+        if (lifetime > age) {
+            return now + (lifetime - age) * 1000;
+        }
+        //stale responses are only useful if they can be revalidated
+        return hasValidators ? now : -1;
+    }
+
+    /**
+     * @return the cached entry for a request, or null if there isn't one that matches the request
+     */
+    synchronized Entry get(String key, Map<String, String> requestHeaders) {
+        Entry entry = entries.get(key);
+        return entry!=null && entry.matches(requestHeaders) ? entry : null;
+    }
+
+    /**
+     * Cache a response, if its headers allow it.
+     *
+     * @return the cached entry, or null if the response may not be cached
+     */
+    Entry put(String key, Map<String, String> requestHeaders, int status, String body, Map<String, String> headers, long now) {
+        long expiresAt = expiresAt(status, headers, now);
+        if (expiresAt < 0) {
+            remove(key);
+            return null;
+        }
+
+        Map<String, String> copy = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        copy.putAll(headers);
+        Map<String, String> varyValues = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        if (getHeader(headers, "Vary")!=null) {
+            for (String field : getHeader(headers, "Vary").split(",")) {
+                if (!field.trim().isEmpty()) {
+                    varyValues.put(field.trim(), getHeader(requestHeaders, field.trim()));
+                }
+            }
+        }
+
+        Entry entry = new Entry(status, body, copy, varyValues, expiresAt);
+        if (entry.size > config.getMaxBytes()) {
+            remove(key);
+            return null;
+        }
+
+        synchronized (this) {
+            Entry replaced = entries.put(key, entry);
+            if (replaced!=null) {
+                bytes -= replaced.size;
+            }
+            bytes += entry.size;
+            evict();
+        }
+        return entry;
+    }
+
+    /**
+     * Update a cached entry after the server confirmed that it's still valid with a <code>304 Not Modified</code>.
+     *
+     * @return the updated entry, or null if the entry may no longer be cached
+     */
+    Entry revalidated(String key, Map<String, String> requestHeaders, Entry entry, Map<String, String> notModifiedHeaders, long now) {
+        Map<String, String> headers = entry.getHeaders();
+        for (String header : new String[]{"Cache-Control", "Expires", "Date", "Age", "ETag", "Last-Modified", "Vary"}) {
+            String value = getHeader(notModifiedHeaders, header);
+            if (value!=null) {
+                headers.put(header, value);
+            } else if ("Age".equals(header)) {
+                headers.remove(header);
+            }
+        }
+        return put(key, requestHeaders, entry.getStatus(), entry.getBody(), headers, now);
+    }
+
+    synchronized void remove(String key) {
+        Entry removed = entries.remove(key);
+        if (removed!=null) {
+            bytes -= removed.size;
+        }
+    }
+
+    /**
+     * Remove all cached responses for a URI, e.g. after it was modified by a POST, PUT or DELETE.
+     */
+    synchronized void invalidate(URI uri) {
+        String prefix = "GET " + uri.toString();
+        Iterator<Map.Entry<String, Entry>> iter = entries.entrySet().iterator();
+        while (iter.hasNext()) {
+            Map.Entry<String, Entry> e = iter.next();
+            if (e.getKey().equals(prefix) || e.getKey().startsWith(prefix + "\n")) {
+                bytes -= e.getValue().size;
+                iter.remove();
+            }
+        }
+    }
+
+    private void evict() {
+        Iterator<Entry> iter = entries.values().iterator();
+        while (iter.hasNext() && (entries.size() > config.getMaxEntries() || bytes > config.getMaxBytes())) {
+            bytes -= iter.next().size;
+            iter.remove();
+        }
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    synchronized long getBytes() {
+        return bytes;
+    }
+}
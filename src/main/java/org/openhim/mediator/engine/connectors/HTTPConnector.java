@@ -6,39 +6,65 @@
 
 package org.openhim.mediator.engine.connectors;
 
+import akka.actor.Cancellable;
+import akka.actor.Scheduler;
 import akka.actor.UntypedActor;
 import akka.dispatch.OnComplete;
 import akka.event.Logging;
 import akka.event.LoggingAdapter;
 import org.apache.commons.io.IOUtils;
-import org.apache.commons.lang3.tuple.Pair;
 import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.*;
-import org.apache.http.client.utils.URIBuilder;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
 import org.apache.http.conn.ssl.*;
+import org.apache.http.entity.ByteArrayEntity;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClientBuilder;
 import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
 import org.openhim.mediator.engine.CoreResponse;
+import org.openhim.mediator.engine.ExecutionStrategy;
 import org.openhim.mediator.engine.MediatorConfig;
 import org.openhim.mediator.engine.MediatorRequestHandler;
+import org.openhim.mediator.engine.OrchestrationCaptures;
+import org.openhim.mediator.engine.RequestDeadlines;
+import org.openhim.mediator.engine.StreamingBody;
+import org.openhim.mediator.engine.ThreadPoolExecutionStrategy;
 import org.openhim.mediator.engine.messages.*;
+import org.openhim.mediator.engine.metrics.Gauge;
+import org.openhim.mediator.engine.metrics.MetricsRegistry;
 import scala.concurrent.ExecutionContext;
 import scala.concurrent.Future;
+import scala.concurrent.duration.Duration;
 import javax.net.ssl.SSLContext;
-import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.UnsupportedEncodingException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.charset.Charset;
 import java.security.*;
-import java.security.cert.CertificateException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
 import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import static akka.dispatch.Futures.future;
 
@@ -49,15 +75,79 @@ import static akka.dispatch.Futures.future;
  * <ul>
  * <li>{@link MediatorHTTPRequest} - responds with {@link MediatorHTTPResponse}</li>
  * <li>{@link SetupSSLContext} - responds with {@link SetupSSLContextResponse}</li>
+ * <li>{@link GetHTTPConnectionPoolStats} - responds with {@link HTTPConnectionPoolStats}</li>
  * </ul>
+ * <br/>
+ * Connections are pooled for the lifetime of the connector, see {@link MediatorConfig.HTTPConnectionPool}.
+ * Responses to GET requests can optionally be cached, see {@link MediatorConfig.HTTPResponseCache}, and identical
+ * GET requests can share a single upstream call, see {@link MediatorHTTPRequest#isSingleFlight()}.
+ * Calls to each host can be guarded by a circuit breaker and bulkhead, see {@link MediatorConfig.CircuitBreaker}
+ * and {@link MediatorConfig.Bulkhead}.
+ * <br/><br/>
+ * Streaming request bodies are sent as bytes, and response bodies can be received as bytes, so binary documents are
+ * never decoded into strings. See {@link MediatorHTTPRequest#getStreamingBody()} and
+ * {@link MediatorHTTPRequest#getResponseBodyMode()}.
+ * <br/><br/>
+ * Calls are limited by the timeouts in {@link MediatorConfig.ConnectorTimeouts}, the timeout set on the request,
+ * and the deadline of the request being handled (see {@link RequestDeadlines}). Calls that exceed their time are
+ * aborted, and fail with a {@link TimeoutException}.
  */
 public class HTTPConnector extends UntypedActor {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
 
     LoggingAdapter log = Logging.getLogger(getContext().system(), this);
 
+    private final MediatorConfig.HTTPConnectionPool poolConfig;
+    private final MetricsRegistry metrics;
+    //null if the response cache is disabled
+    private final HTTPCache cache;
+    //single-flight upstream calls in progress, by request key
+    private final Map<String, Flight> flights = new HashMap<>();
+    private final UpstreamGuard guard;
+    private final MediatorConfig.ConnectorTimeouts timeouts;
+    private final RequestDeadlines deadlines;
+    private final MediatorConfig.ConnectorDispatcher dispatcherConfig;
+    private final int streamingBodyMemoryThreshold;
+    private final ExecutionStrategy executionStrategy;
+    private final MediatorConfig.Compression compression;
+    private final OrchestrationCaptures captures;
+    private ExecutionStrategy.Executor ioExecutor;
+
     private SSLContext sslContext;
     private boolean sslTrustAll;
 
+    private volatile PooledClient client;
+
+
+    public HTTPConnector(MediatorConfig config) {
+        this.poolConfig = config.getHTTPConnectionPool()!=null ? config.getHTTPConnectionPool() : new MediatorConfig.HTTPConnectionPool();
+        this.metrics = config.getMetricsRegistry()!=null ? config.getMetricsRegistry() : new MetricsRegistry();
+        this.cache = config.getHTTPResponseCache()!=null && config.getHTTPResponseCache().getEnabled() ?
+                new HTTPCache(config.getHTTPResponseCache()) : null;
+        this.guard = new UpstreamGuard("http-connector", config, metrics);
+        this.timeouts = config.getConnectorTimeouts()!=null ? config.getConnectorTimeouts() : new MediatorConfig.ConnectorTimeouts();
+        this.deadlines = config.getRequestDeadlines()!=null ? config.getRequestDeadlines() : new RequestDeadlines();
+        this.dispatcherConfig = config.getHTTPConnectorDispatcher();
+        this.streamingBodyMemoryThreshold = config.getStreamingBodyMemoryThreshold();
+        this.executionStrategy = config.getExecutionStrategy()!=null ? config.getExecutionStrategy() : new ThreadPoolExecutionStrategy();
+        this.compression = config.getCompression()!=null ? config.getCompression() : new MediatorConfig.Compression();
+        this.captures = config.getOrchestrationCaptures();
+    }
+
+    public HTTPConnector() {
+        this.poolConfig = new MediatorConfig.HTTPConnectionPool();
+        this.metrics = new MetricsRegistry();
+        this.cache = null;
+        this.guard = new UpstreamGuard("http-connector", new MediatorConfig(), metrics);
+        this.timeouts = new MediatorConfig.ConnectorTimeouts();
+        this.deadlines = new RequestDeadlines();
+        this.dispatcherConfig = new MediatorConfig().getHTTPConnectorDispatcher();
+        this.streamingBodyMemoryThreshold = StreamingBody.DEFAULT_MEMORY_THRESHOLD;
+        this.executionStrategy = new ThreadPoolExecutionStrategy();
+        this.compression = new MediatorConfig.Compression();
+        this.captures = null;
+    }
+
 
     private void copyHeaders(MediatorHTTPRequest src, HttpUriRequest dst) {
         if (src.getHeaders()!=null) {
@@ -69,47 +159,44 @@ public class HTTPConnector extends UntypedActor {
         }
     }
 
-    private URI buildURI(MediatorHTTPRequest req) throws URISyntaxException {
-        URIBuilder builder;
+    /**
+     * Streaming bodies are sent as is. String bodies are encoded with the charset declared in the Content-Type
+     * header, or UTF-8, and compressed if the Content-Encoding header is gzip or deflate.
+     */
+    private HttpEntity buildEntity(MediatorHTTPRequest req) throws IOException {
+        String contentType = req.getHeaders()!=null ? req.getHeaders().get("Content-Type") : null;
+        String contentEncoding = req.getHeaders()!=null ? req.getHeaders().get("Content-Encoding") : null;
 
-        if (req.getUri()!=null) {
-            builder = new URIBuilder(req.getUri());
-        } else {
-            builder = new URIBuilder()
-                    .setScheme(req.getScheme())
-                    .setHost(req.getHost())
-                    .setPort(req.getPort())
-                    .setPath(req.getPath());
+        if (req.getStreamingBody()!=null) {
+            return new StreamingBodyEntity(req.getStreamingBody(), contentType);
         }
-
-        if (req.getParams()!=null) {
-            for (Pair<String, String> param : req.getParams()) {
-                builder.addParameter(param.getKey(), param.getValue());
-            }
+        if (req.getBody()==null) {
+            return null;
         }
-
-        return builder.build();
+        if (contentEncoding!=null) {
+            byte[] encoded = HTTPSupport.encodeBody(req.getBody().getBytes(HTTPSupport.charsetFor(contentType, UTF8)), contentEncoding);
+            return new ByteArrayEntity(encoded);
+        }
+        return new StringEntity(req.getBody(), HTTPSupport.charsetFor(contentType, UTF8));
     }
 
-    private HttpUriRequest buildApacheHttpRequest(MediatorHTTPRequest req) throws URISyntaxException, UnsupportedEncodingException {
-        HttpUriRequest uriReq;
+    private HttpRequestBase buildApacheHttpRequest(MediatorHTTPRequest req) throws URISyntaxException, IOException {
+        HttpRequestBase uriReq;
 
         switch (req.getMethod()) {
             case "GET":
-                uriReq = new HttpGet(buildURI(req));
+                uriReq = new HttpGet(HTTPSupport.buildURI(req));
                 break;
             case "POST":
-                uriReq = new HttpPost(buildURI(req));
-                StringEntity entity = new StringEntity(req.getBody());
-                ((HttpPost) uriReq).setEntity(entity);
+                uriReq = new HttpPost(HTTPSupport.buildURI(req));
+                ((HttpPost) uriReq).setEntity(buildEntity(req));
                 break;
             case "PUT":
-                uriReq = new HttpPut(buildURI(req));
-                StringEntity putEntity = new StringEntity(req.getBody());
-                ((HttpPut) uriReq).setEntity(putEntity);
+                uriReq = new HttpPut(HTTPSupport.buildURI(req));
+                ((HttpPut) uriReq).setEntity(buildEntity(req));
                 break;
             case "DELETE":
-                uriReq = new HttpDelete(buildURI(req));
+                uriReq = new HttpDelete(HTTPSupport.buildURI(req));
                 break;
             default:
                 throw new UnsupportedOperationException(req.getMethod() + " requests not supported");
@@ -120,48 +207,51 @@ public class HTTPConnector extends UntypedActor {
     }
 
 
-    private MediatorHTTPResponse buildResponseFromOpenHIMJSONContent(MediatorHTTPRequest req, CloseableHttpResponse apacheResponse) throws IOException, CoreResponse.ParseException {
-        String content = IOUtils.toString(apacheResponse.getEntity().getContent());
-        CoreResponse parsedContent = CoreResponse.parse(content);
-        if (parsedContent.getResponse()==null) {
-            throw new CoreResponse.ParseException(new Exception("No response object found in application/json+openhim content"));
-        }
-
-        int status = apacheResponse.getStatusLine().getStatusCode();
-        if (parsedContent.getResponse().getStatus()!=null) {
-            status = parsedContent.getResponse().getStatus();
-        }
+    private MediatorHTTPResponse buildResponseFromOpenHIMJSONContent(MediatorHTTPRequest req, List<MediatorHTTPRequest> callers,
+                                                                     CloseableHttpResponse apacheResponse) throws IOException, CoreResponse.ParseException {
+        String content = EntityUtils.toString(apacheResponse.getEntity(), UTF8);
 
         Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
         for (Header hdr : apacheResponse.getAllHeaders()) {
             headers.put(hdr.getName(), hdr.getValue());
         }
 
-        if (parsedContent.getResponse().getHeaders()!=null) {
-            for (String hdr : parsedContent.getResponse().getHeaders().keySet()) {
-                headers.put(hdr, parsedContent.getResponse().getHeaders().get(hdr));
-            }
-        }
+        return HTTPSupport.unpackOpenHIMResponse(req, callers, content, apacheResponse.getStatusLine().getStatusCode(), headers, getSelf());
+    }
 
-        if (parsedContent.getOrchestrations()!=null) {
-            for (CoreResponse.Orchestration orch : parsedContent.getOrchestrations()) {
-                req.getRequestHandler().tell(new AddOrchestrationToCoreResponse(orch), getSelf());
-            }
+    /**
+     * The body is decoded using the charset declared in the Content-Type header, or UTF-8.
+     */
+    private MediatorHTTPResponse buildResponseFromContent(MediatorHTTPRequest req, CloseableHttpResponse apacheResponse) throws IOException {
+        String content = null;
+        if (apacheResponse.getEntity()!=null) {
+            content = EntityUtils.toString(apacheResponse.getEntity(), UTF8);
         }
 
-        if (parsedContent.getProperties()!=null) {
-            for (String prop : parsedContent.getProperties().keySet()) {
-                req.getRequestHandler().tell(new PutPropertyInCoreResponse(prop, parsedContent.getProperties().get(prop)), getSelf());
-            }
+        int status = apacheResponse.getStatusLine().getStatusCode();
+
+        Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        for (Header hdr : apacheResponse.getAllHeaders()) {
+            headers.put(hdr.getName(), hdr.getValue());
         }
 
-        return new MediatorHTTPResponse(req, parsedContent.getResponse().getBody(), status, headers);
+        return new MediatorHTTPResponse(req, content, status, headers);
     }
 
-    private MediatorHTTPResponse buildResponseFromContent(MediatorHTTPRequest req, CloseableHttpResponse apacheResponse) throws IOException {
-        String content = null;
+    /**
+     * The body is copied into a streaming body without being decoded, spilling to disk if it's large.
+     */
+    private MediatorHTTPResponse buildResponseFromBinaryContent(MediatorHTTPRequest req, CloseableHttpResponse apacheResponse) throws IOException {
+        StreamingBody body = null;
         if (apacheResponse.getEntity()!=null && apacheResponse.getEntity().getContent()!=null) {
-            content = IOUtils.toString(apacheResponse.getEntity().getContent());
+            body = new StreamingBody(streamingBodyMemoryThreshold);
+            try (InputStream in = apacheResponse.getEntity().getContent()) {
+                body.write(in);
+                body.complete();
+            } catch (IOException ex) {
+                body.release();
+                throw ex;
+            }
         }
 
         int status = apacheResponse.getStatusLine().getStatusCode();
@@ -171,7 +261,7 @@ public class HTTPConnector extends UntypedActor {
             headers.put(hdr.getName(), hdr.getValue());
         }
 
-        return new MediatorHTTPResponse(req, content, status, headers);
+        return new StreamingHTTPResponse(req, body, status, headers);
     }
 
     private String getContentType(CloseableHttpResponse response) {
@@ -188,152 +278,453 @@ public class HTTPConnector extends UntypedActor {
         return null;
     }
 
-    private MediatorHTTPResponse buildResponse(MediatorHTTPRequest req, CloseableHttpResponse apacheResponse) throws IOException, CoreResponse.ParseException {
+    private MediatorHTTPResponse buildResponse(MediatorHTTPRequest req, List<MediatorHTTPRequest> callers,
+                                               CloseableHttpResponse apacheResponse) throws IOException, CoreResponse.ParseException {
         String contentType = getContentType(apacheResponse);
 
         if (contentType!=null && contentType.contains(MediatorRequestHandler.OPENHIM_MIME_TYPE)) {
-            return buildResponseFromOpenHIMJSONContent(req, apacheResponse);
+            return buildResponseFromOpenHIMJSONContent(req, callers, apacheResponse);
+        } else if (req.getResponseBodyMode()==MediatorHTTPRequest.BodyMode.BINARY) {
+            return buildResponseFromBinaryContent(req, apacheResponse);
         } else {
             return buildResponseFromContent(req, apacheResponse);
         }
     }
 
-    private CoreResponse.Orchestration buildHTTPOrchestration(MediatorHTTPRequest req, MediatorHTTPResponse resp) {
-        CoreResponse.Orchestration orch = new CoreResponse.Orchestration();
-        orch.setName(req.getOrchestration());
+    /**
+     * Respond to a request with a cached response. An orchestration is still added for the request,
+     * with an <code>X-Cache</code> header on the orchestration response to show where the response came from.
+     */
+    private void respondFromCache(MediatorHTTPRequest req, HTTPCache.Entry entry, String cacheResult) {
+        MediatorHTTPResponse response = new MediatorHTTPResponse(req, entry.getBody(), entry.getStatus(), entry.getHeaders());
+
+        CoreResponse.Orchestration orch = HTTPSupport.buildOrchestration(req, response, captures);
+        HTTPSupport.putOrchestrationResponseHeader(orch, "X-Cache", cacheResult);
+        req.getRequestHandler().tell(new AddOrchestrationToCoreResponse(orch), getSelf());
+
+        req.getRespondTo().tell(response, getSelf());
+    }
 
-        CoreResponse.Request orchReq = new CoreResponse.Request();
-        if (req.getUri()==null) {
-            orchReq.setHost(req.getHost());
-            orchReq.setPort(Integer.toString(req.getPort()));
-            orchReq.setPath(req.getPath());
+    /**
+     * Respond to a request, adding an orchestration for it. Requests that shared an upstream call with
+     * the request that started it each receive their own copy of the response.
+     */
+    private void respond(MediatorHTTPRequest caller, MediatorHTTPResponse response, UpstreamGuard.State breakerState) {
+        if (caller!=response.getOriginalRequest()) {
+            Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+            headers.putAll(response.getHeaders());
+            response = new MediatorHTTPResponse(caller, response.getBody(), response.getStatusCode(), headers);
         }
-        orchReq.setBody(req.getBody());
-        orchReq.setMethod(req.getMethod());
-        orchReq.setHeaders(req.getHeaders());
-        orch.setRequest(orchReq);
 
-        CoreResponse.Response orchResp = new CoreResponse.Response();
-        orchResp.setBody(resp.getBody());
-        orchResp.setStatus(resp.getStatusCode());
-        orchResp.setHeaders(resp.getHeaders());
-        orch.setResponse(orchResp);
+        //enrich engine response
+        CoreResponse.Orchestration orch = HTTPSupport.buildOrchestration(caller, response, captures);
+        if (breakerState!=UpstreamGuard.State.CLOSED) {
+            HTTPSupport.putOrchestrationResponseHeader(orch, "X-Circuit-Breaker", breakerState.name());
+        }
+        caller.getRequestHandler().tell(new AddOrchestrationToCoreResponse(orch), getSelf());
 
-        return orch;
+        //send response
+        caller.getRespondTo().tell(response, getSelf());
     }
 
+    /**
+     * Fail a request that was rejected by the circuit breaker or bulkhead for its host.
+     *
+     * @see HTTPSupport#buildRejectedOrchestration(MediatorHTTPRequest, UpstreamGuard.RejectedException, OrchestrationCaptures)
+     */
+    private void reject(MediatorHTTPRequest req, UpstreamGuard.RejectedException ex) {
+        CoreResponse.Orchestration orch = HTTPSupport.buildRejectedOrchestration(req, ex, captures);
+        req.getRequestHandler().tell(new AddOrchestrationToCoreResponse(orch), getSelf());
+
+        req.getRequestHandler().tell(new ExceptError(req, ex), getSelf());
+    }
 
-    private CloseableHttpClient getHttpClient(final MediatorHTTPRequest req) {
-        if (sslContext!=null && "https".equalsIgnoreCase(req.getScheme())) {
-            SSLConnectionSocketFactory sslsf;
+    /**
+     * @return the key identifying identical requests, or null if the request shouldn't share an upstream call
+     */
+    private String singleFlightKey(MediatorHTTPRequest req, URI uri) {
+        //binary bodies are owned by the receiver, so they can't be shared
+        if (!req.isSingleFlight() || !"GET".equals(req.getMethod()) || req.getResponseBodyMode()==MediatorHTTPRequest.BodyMode.BINARY) {
+            return null;
+        }
 
-            if (sslTrustAll) {
-                sslsf = new SSLConnectionSocketFactory(sslContext, SSLConnectionSocketFactory.ALLOW_ALL_HOSTNAME_VERIFIER);
+        StringBuilder key = new StringBuilder(uri.toString());
+        if (req.getHeaders()!=null) {
+            //sort the headers so that the key doesn't depend on their order
+            Map<String, String> headers = new TreeMap<>();
+            for (Map.Entry<String, String> hdr : req.getHeaders().entrySet()) {
+                headers.put(hdr.getKey().toLowerCase(), hdr.getValue());
+            }
+            for (Map.Entry<String, String> hdr : headers.entrySet()) {
+                key.append('\n').append(hdr.getKey()).append(": ").append(hdr.getValue());
+            }
+        }
+        return key.toString();
+    }
+
+    /**
+     * Start a flight for a request, or join an identical request in flight.
+     * <br/><br/>
+     * Every request in a flight keeps its own deadline: it times out on its own if the flight hasn't completed by then,
+     * while the flight continues for the other requests. A request with a later deadline than the flight extends the
+     * flight's deadline, so the upstream call is only aborted once no request is waiting on it.
+     *
+     * @param timeAllowed The time allowed for the request, or Long.MAX_VALUE if the time isn't limited
+     * @return the flight, or null if the request joined a flight that is already in progress
+     */
+    private Flight startOrJoinFlight(String flightKey, MediatorHTTPRequest req, long timeAllowed, String host) {
+        long deadline = timeAllowed==Long.MAX_VALUE ? Long.MAX_VALUE : System.currentTimeMillis() + timeAllowed;
+
+        synchronized (flights) {
+            Flight flight = flights.get(flightKey);
+            boolean lead = flight==null;
+            if (lead) {
+                flight = new Flight(deadline, req);
+                flights.put(flightKey, flight);
             } else {
-                sslsf = new SSLConnectionSocketFactory(sslContext);
+                flight.callers.add(req);
+                flight.deadline = Math.max(flight.deadline, deadline);
+                metrics.counter("mediator_http_connector_single_flight_joined_total",
+                        "Requests that shared an upstream call with an identical request in flight").inc();
+            }
+            if (timeAllowed!=Long.MAX_VALUE) {
+                scheduleCallerTimeout(flight, req, timeAllowed, host);
             }
+            return lead ? flight : null;
+        }
+    }
 
-            return HttpClients.custom().setSSLSocketFactory(sslsf).build();
+    /**
+     * Fail a request in a flight if the flight hasn't completed by the request's own deadline
+     */
+    private void scheduleCallerTimeout(final Flight flight, final MediatorHTTPRequest req, final long timeAllowed, final String host) {
+        getContext().system().scheduler().scheduleOnce(
+                Duration.create(timeAllowed, TimeUnit.MILLISECONDS),
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        boolean removed;
+                        synchronized (flights) {
+                            removed = !flight.completed && flight.callers.remove(req);
+                        }
+                        if (removed) {
+                            TimeoutException ex = new TimeoutException("Request to " + host + " timed out after " + timeAllowed + "ms");
+                            req.getRequestHandler().tell(new ExceptError(req, ex), getSelf());
+                        }
+                    }
+                },
+                getContext().dispatcher()
+        );
+    }
+
+    /**
+     * Ends a flight. Identical requests received after this will make a new upstream call.
+     *
+     * @return all the requests that should receive the response
+     */
+    private List<MediatorHTTPRequest> completeFlight(String flightKey, MediatorHTTPRequest req) {
+        if (flightKey==null) {
+            return Collections.singletonList(req);
+        }
+        synchronized (flights) {
+            Flight flight = flights.remove(flightKey);
+            flight.completed = true;
+            return flight.callers;
+        }
+    }
+
+    /**
+     * @return the time until a flight's deadline, which is extended by requests that join it
+     */
+    private long remainingFlightMillis(Flight flight) {
+        synchronized (flights) {
+            return flight.deadline==Long.MAX_VALUE ? Long.MAX_VALUE : flight.deadline - System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * @return the time allowed for the request, limited by the deadline of the request being handled,
+     * or Long.MAX_VALUE if the time isn't limited
+     */
+    private long timeAllowedFor(MediatorHTTPRequest req) {
+        long timeout = req.getTimeoutMillis()!=null ? req.getTimeoutMillis() : Long.MAX_VALUE;
+        return deadlines.remainingMillis(req.getRequestHandler(), timeout);
+    }
+
+    private void recordCacheResult(String result) {
+        metrics.counter("mediator_http_connector_cache_requests_total", "Cacheable orchestration requests, by cache result",
+                "result", result).inc();
+    }
+
+    /**
+     * Updates the cache with the response to a cacheable request.
+     *
+     * @return the entry to respond with if the server confirmed that a cached entry is still valid, else null
+     */
+    private HTTPCache.Entry updateCache(MediatorHTTPRequest req, String cacheKey, HTTPCache.Entry cached, CloseableHttpResponse result) {
+        if (cached==null || result.getStatusLine().getStatusCode()!=304) {
+            return null;
+        }
+
+        Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        for (Header hdr : result.getAllHeaders()) {
+            headers.put(hdr.getName(), hdr.getValue());
+        }
+        HTTPCache.Entry entry = cache.revalidated(cacheKey, req.getHeaders(), cached, headers, System.currentTimeMillis());
+        return entry!=null ? entry : cached;
+    }
+
+
+    private SSLConnectionSocketFactory getSSLSocketFactory() {
+        if (sslContext==null) {
+            return SSLConnectionSocketFactory.getSocketFactory();
+        } else if (sslTrustAll) {
+            return new SSLConnectionSocketFactory(sslContext, NoopHostnameVerifier.INSTANCE);
         } else {
-            return HttpClients.createDefault();
+            return new SSLConnectionSocketFactory(sslContext);
         }
     }
 
+    /**
+     * Use the keep-alive timeout provided by the server, else fallback to the configured default
+     */
+    private ConnectionKeepAliveStrategy buildKeepAliveStrategy() {
+        return new DefaultConnectionKeepAliveStrategy() {
+            @Override
+            public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+                long duration = super.getKeepAliveDuration(response, context);
+                return duration > 0 ? duration : poolConfig.getKeepAliveMillis();
+            }
+        };
+    }
+
+    private PooledClient buildHttpClient() {
+        Registry<ConnectionSocketFactory> registry = RegistryBuilder.<ConnectionSocketFactory>create()
+                .register("http", PlainConnectionSocketFactory.getSocketFactory())
+                .register("https", getSSLSocketFactory())
+                .build();
+
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager(registry);
+        connectionManager.setMaxTotal(poolConfig.getMaxTotal());
+        connectionManager.setDefaultMaxPerRoute(poolConfig.getMaxPerRoute());
+        connectionManager.setValidateAfterInactivity(poolConfig.getValidateAfterInactivityMillis());
+
+        HttpClientBuilder builder = HttpClients.custom();
+        if (!compression.getUpstreamResponses()) {
+            builder.disableContentCompression();
+        }
+
+        CloseableHttpClient client = builder
+                .setConnectionManager(connectionManager)
+                .setKeepAliveStrategy(buildKeepAliveStrategy())
+                .evictExpiredConnections()
+                .evictIdleConnections(poolConfig.getMaxIdleMillis(), TimeUnit.MILLISECONDS)
+                .setDefaultRequestConfig(RequestConfig.custom()
+                        .setConnectTimeout(timeouts.getConnectTimeoutMillis())
+                        .setConnectionRequestTimeout(timeouts.getConnectTimeoutMillis())
+                        .setSocketTimeout(timeouts.getSocketTimeoutMillis())
+                        .build())
+                .build();
+        return new PooledClient(client, connectionManager);
+    }
+
     private void sendRequest(final MediatorHTTPRequest req) {
         try {
-            final CloseableHttpClient client = getHttpClient(req);
-            final HttpUriRequest apacheRequest = buildApacheHttpRequest(req);
+            final HttpRequestBase apacheRequest = buildApacheHttpRequest(req);
+
+            final String cacheKey = cache!=null && req.getResponseBodyMode()!=MediatorHTTPRequest.BodyMode.BINARY ? cache.keyFor(req.getMethod(), apacheRequest.getURI(), req.getHeaders()) : null;
+            final HTTPCache.Entry cached = cacheKey!=null ? cache.get(cacheKey, req.getHeaders()) : null;
+            if (cached!=null && cached.isFresh(System.currentTimeMillis()) && !HTTPCache.requiresRevalidation(req.getHeaders())) {
+                recordCacheResult("hit");
+                respondFromCache(req, cached, "HIT");
+                return;
+            }
+            if (cached!=null && cached.hasValidators()) {
+                if (cached.getETag()!=null) {
+                    apacheRequest.setHeader("If-None-Match", cached.getETag());
+                }
+                if (cached.getLastModified()!=null) {
+                    apacheRequest.setHeader("If-Modified-Since", cached.getLastModified());
+                }
+            }
 
+            final String host = apacheRequest.getURI().getPort()!=-1 ?
+                    apacheRequest.getURI().getHost() + ":" + apacheRequest.getURI().getPort() : apacheRequest.getURI().getHost();
 
-            final ExecutionContext ec = getContext().dispatcher();
+            final long timeAllowed = timeAllowedFor(req);
+            if (timeAllowed <= 0) {
+                TimeoutException ex = new TimeoutException("The deadline for the request to " + host + " passed before it was sent");
+                req.getRequestHandler().tell(new ExceptError(req, ex), getSelf());
+                return;
+            }
+
+            final String flightKey = singleFlightKey(req, apacheRequest.getURI());
+            final Flight flight = flightKey!=null ? startOrJoinFlight(flightKey, req, timeAllowed, host) : null;
+            if (flightKey!=null && flight==null) {
+                //the response will be sent when the identical request completes
+                return;
+            }
+
+            final UpstreamGuard.Permit permit;
+            try {
+                permit = guard.acquire(host);
+            } catch (UpstreamGuard.RejectedException ex) {
+                for (MediatorHTTPRequest caller : completeFlight(flightKey, req)) {
+                    reject(caller, ex);
+                }
+                return;
+            }
+
+            //the socket timeout only limits the time between packets, so abort the request once its time is up
+            final AbortTask abortTask = new AbortTask(apacheRequest, flight);
+            if (timeAllowed!=Long.MAX_VALUE) {
+                abortTask.schedule(timeAllowed);
+            }
+
+            final long start = System.nanoTime();
+            final PooledClient client = this.client;
+            client.acquire();
+
+            //the response entity is read in the callback, so it also runs on the blocking I/O threads
+            final ExecutionContext ec = ioExecutor.getExecutionContext();
             Future<CloseableHttpResponse> f = future(new Callable<CloseableHttpResponse>() {
                 public CloseableHttpResponse call() throws IOException {
-                    return client.execute(apacheRequest);
+                    return client.getClient().execute(apacheRequest);
                 }
             }, ec);
             f.onComplete(new OnComplete<CloseableHttpResponse>() {
                 @Override
                 public void onComplete(Throwable throwable, CloseableHttpResponse result) throws Throwable {
+                    abortTask.cancel();
+                    if (throwable!=null && abortTask.timedOut) {
+                        throwable = new TimeoutException("Request to " + host + " timed out after " + timeAllowed + "ms");
+                    }
+                    permit.release(throwable!=null || result.getStatusLine().getStatusCode() >= 500);
+                    List<MediatorHTTPRequest> callers = completeFlight(flightKey, req);
                     try {
                         if (throwable != null) {
+                            metrics.counter("mediator_http_connector_errors_total", "Orchestration requests that failed without a response, by host", "host", host).inc();
                             throw throwable;
                         }
-                        MediatorHTTPResponse response = buildResponse(req, result);
+                        metrics.histogram("mediator_http_connector_request_duration_seconds", "Time taken for orchestration requests, by host",
+                                "host", host).recordNanos(System.nanoTime() - start);
+                        metrics.counter("mediator_http_connector_requests_total", "Orchestration requests, by host and response status",
+                                "host", host, "status", Integer.toString(result.getStatusLine().getStatusCode())).inc();
+
+                        if (cacheKey!=null) {
+                            HTTPCache.Entry revalidated = updateCache(req, cacheKey, cached, result);
+                            if (revalidated!=null) {
+                                recordCacheResult("revalidated");
+                                for (MediatorHTTPRequest caller : callers) {
+                                    respondFromCache(caller, revalidated, "REVALIDATED");
+                                }
+                                return;
+                            }
+                        }
 
-                        //enrich engine response
-                        CoreResponse.Orchestration orch = buildHTTPOrchestration(req, response);
-                        req.getRequestHandler().tell(new AddOrchestrationToCoreResponse(orch), getSelf());
+                        MediatorHTTPResponse response = buildResponse(req, callers, result);
+
+                        String contentType = getContentType(result);
+                        if (cacheKey!=null && contentType!=null && contentType.contains(MediatorRequestHandler.OPENHIM_MIME_TYPE)) {
+                            //these responses are unpacked into orchestrations and properties, so they can't be replayed
+                            recordCacheResult("miss");
+                            cache.remove(cacheKey);
+                        } else if (cacheKey!=null) {
+                            recordCacheResult("miss");
+                            cache.put(cacheKey, req.getHeaders(), response.getStatusCode(), response.getBody(), response.getHeaders(), System.currentTimeMillis());
+                        } else if (cache!=null && !"GET".equals(req.getMethod()) && response.getStatusCode() < 400) {
+                            //the resource was modified, so cached representations are no longer valid
+                            cache.invalidate(apacheRequest.getURI());
+                        }
 
-                        //send response
-                        req.getRespondTo().tell(response, getSelf());
+                        for (MediatorHTTPRequest caller : callers) {
+                            respond(caller, response, permit.getState());
+                        }
                     } catch (Exception ex) {
-                        req.getRequestHandler().tell(new ExceptError(req, ex), getSelf());
+                        for (MediatorHTTPRequest caller : callers) {
+                            caller.getRequestHandler().tell(new ExceptError(caller, ex), getSelf());
+                        }
                     } finally {
+                        //ensure that the entity is fully consumed so that the connection can be returned to the pool
+                        if (result!=null) {
+                            EntityUtils.consumeQuietly(result.getEntity());
+                        }
                         IOUtils.closeQuietly(result);
+                        client.release();
                     }
                 }
             }, ec);
-        } catch (URISyntaxException | UnsupportedEncodingException | UnsupportedOperationException ex) {
+        } catch (URISyntaxException | IOException | UnsupportedOperationException ex) {
             req.getRequestHandler().tell(new ExceptError(req, ex), getSelf());
         }
     }
 
 
-    private KeyStore loadKeyStore(MediatorConfig.KeyStore inKS) throws KeyStoreException, CertificateException, NoSuchAlgorithmException, IOException {
-        KeyStore ks = KeyStore.getInstance("JKS");
-        InputStream inputStream;
+    private void setupSSLContext(SetupSSLContext msg) {
+        try {
+            sslTrustAll = msg.getRequestObject().getTrustAll();
+            sslContext = HTTPSupport.buildSSLContext(msg.getRequestObject(), log);
 
-        if (inKS.getFilename() != null) {
-            inputStream = new FileInputStream(new File(inKS.getFilename()));
-        } else {
-            inputStream = inKS.getInputStream();
-        }
+            //replace the pool so that new connections will use the context,
+            //and close the old pool once the calls still using it complete
+            PooledClient previous = client;
+            client = buildHttpClient();
+            previous.retire();
 
-        try {
-            if (inKS.getPassword() != null) {
-                ks.load(inputStream, inKS.getPassword().toCharArray());
-            } else {
-                ks.load(inputStream, null);
-            }
-        } finally {
-            IOUtils.closeQuietly(inputStream);
+            msg.getRespondTo().tell(new SetupSSLContextResponse(msg), getSelf());
+        } catch (GeneralSecurityException | IOException ex) {
+            sslContext = null;
+            msg.getRespondTo().tell(new SetupSSLContextResponse(msg, ex), getSelf());
         }
-
-        return ks;
     }
 
-    private void setupSSLContext(SetupSSLContext msg) {
-        try {
-            SSLContextBuilder builder = SSLContexts.custom();
+    private void sendPoolStats(GetHTTPConnectionPoolStats msg) {
+        PoolingHttpClientConnectionManager connectionManager = client.getConnectionManager();
+        PoolStats stats = connectionManager.getTotalStats();
+        HTTPConnectionPoolStats response = new HTTPConnectionPoolStats(
+                msg, stats.getLeased(), stats.getPending(), stats.getAvailable(), stats.getMax(), connectionManager.getRoutes().size()
+        );
+        msg.getRespondTo().tell(response, getSelf());
+    }
 
-            sslTrustAll = msg.getRequestObject().getTrustAll();
-            if (sslTrustAll) {
-                log.warning("SSL: Trusting all certificates. This option should be considered unsecure and should not be enabled in production environments.");
-                builder.loadTrustMaterial(null, new TrustSelfSignedStrategy());
+    private void registerPoolGauges() {
+        metrics.register("mediator_http_connector_pool_leased", "Connections currently in use", new Gauge() {
+            @Override
+            public double getValue() {
+                PooledClient c = client;
+                return c!=null ? c.getConnectionManager().getTotalStats().getLeased() : 0;
             }
-
-            if (msg.getRequestObject().getKeyStore() != null) {
-                KeyStore ks = loadKeyStore(msg.getRequestObject().getKeyStore());
-                if (msg.getRequestObject().getKeyStore().getPassword() != null) {
-                    builder.loadKeyMaterial(ks, msg.getRequestObject().getKeyStore().getPassword().toCharArray());
-                } else {
-                    builder.loadKeyMaterial(ks, null);
-                }
+        });
+        metrics.register("mediator_http_connector_pool_available", "Idle connections available for reuse", new Gauge() {
+            @Override
+            public double getValue() {
+                PooledClient c = client;
+                return c!=null ? c.getConnectionManager().getTotalStats().getAvailable() : 0;
             }
-
-            for (MediatorConfig.KeyStore ts : msg.getRequestObject().getTrustStores()) {
-                KeyStore ks = loadKeyStore(ts);
-                builder.loadTrustMaterial(ks);
+        });
+        metrics.register("mediator_http_connector_pool_pending", "Requests waiting for a connection", new Gauge() {
+            @Override
+            public double getValue() {
+                PooledClient c = client;
+                return c!=null ? c.getConnectionManager().getTotalStats().getPending() : 0;
             }
+        });
+    }
 
-            sslContext = builder.build();
+    @Override
+    public void preStart() throws Exception {
+        client = buildHttpClient();
+        registerPoolGauges();
+        ioExecutor = executionStrategy.newExecutor("http-connector", dispatcherConfig, metrics, getContext().dispatcher());
+    }
 
-            msg.getRespondTo().tell(new SetupSSLContextResponse(msg), getSelf());
-        } catch (NoSuchAlgorithmException | KeyManagementException | UnrecoverableKeyException |
-                KeyStoreException | IOException | CertificateException ex) {
-            sslContext = null;
-            msg.getRespondTo().tell(new SetupSSLContextResponse(msg, ex), getSelf());
-        }
+    @Override
+    public void postStop() throws Exception {
+        metrics.remove("mediator_http_connector_pool_leased");
+        metrics.remove("mediator_http_connector_pool_available");
+        metrics.remove("mediator_http_connector_pool_pending");
+        client.retire();
+        ioExecutor.shutdown();
     }
 
     @Override
@@ -342,8 +733,128 @@ public class HTTPConnector extends UntypedActor {
             sendRequest((MediatorHTTPRequest) msg);
         } else if (msg instanceof SetupSSLContext) {
             setupSSLContext((SetupSSLContext) msg);
+        } else if (msg instanceof GetHTTPConnectionPoolStats) {
+            sendPoolStats((GetHTTPConnectionPoolStats) msg);
         } else {
             unhandled(msg);
         }
     }
+
+
+    /**
+     * Aborts an upstream call once its time is up. A single-flight call is only aborted once the flight's deadline
+     * has passed, so the abort is rescheduled while requests with later deadlines are waiting on it.
+     */
+    private class AbortTask implements Runnable {
+        private final HttpRequestBase request;
+        //null if the call isn't shared
+        private final Flight flight;
+        private final Scheduler scheduler = getContext().system().scheduler();
+        private final ExecutionContext dispatcher = getContext().dispatcher();
+        private volatile Cancellable scheduled;
+        private volatile boolean cancelled = false;
+        volatile boolean timedOut = false;
+
+        AbortTask(HttpRequestBase request, Flight flight) {
+            this.request = request;
+            this.flight = flight;
+        }
+
+        void schedule(long delayMillis) {
+            scheduled = scheduler.scheduleOnce(Duration.create(delayMillis, TimeUnit.MILLISECONDS), this, dispatcher);
+        }
+
+        void cancel() {
+            cancelled = true;
+            if (scheduled!=null) {
+                scheduled.cancel();
+            }
+        }
+
+        @Override
+        public void run() {
+            if (cancelled) {
+                return;
+            }
+            long remaining = flight!=null ? remainingFlightMillis(flight) : 0;
+            if (remaining==Long.MAX_VALUE) {
+                //a request without a time limit is waiting on the call
+                return;
+            }
+            if (remaining > 0) {
+                schedule(remaining);
+                return;
+            }
+            timedOut = true;
+            request.abort();
+        }
+    }
+
+    /**
+     * A single-flight upstream call, and the requests waiting on it, including the request that started it
+     */
+    private static class Flight {
+        //guarded by the flights map; the latest deadline of the requests in the flight
+        long deadline;
+        boolean completed = false;
+        final List<MediatorHTTPRequest> callers = new ArrayList<>();
+
+        Flight(long deadline, MediatorHTTPRequest leader) {
+            this.deadline = deadline;
+            callers.add(leader);
+        }
+    }
+
+    /**
+     * A client and its connection pool. The client is replaced when the SSL context changes, and the previous
+     * client is only closed once the calls that are still using it complete.
+     */
+    private static class PooledClient {
+        private final CloseableHttpClient client;
+        private final PoolingHttpClientConnectionManager connectionManager;
+        private int inFlight;
+        private boolean retired;
+
+        PooledClient(CloseableHttpClient client, PoolingHttpClientConnectionManager connectionManager) {
+            this.client = client;
+            this.connectionManager = connectionManager;
+        }
+
+        CloseableHttpClient getClient() {
+            return client;
+        }
+
+        PoolingHttpClientConnectionManager getConnectionManager() {
+            return connectionManager;
+        }
+
+        synchronized void acquire() {
+            inFlight++;
+        }
+
+        void release() {
+            boolean close;
+            synchronized (this) {
+                inFlight--;
+                close = retired && inFlight==0;
+            }
+            if (close) {
+                IOUtils.closeQuietly(client);
+            }
+        }
+
+        /**
+         * Close the client once no calls are using it
+         */
+        void retire() {
+            boolean close;
+            synchronized (this) {
+                retired = true;
+                close = inFlight==0;
+            }
+            if (close) {
+                IOUtils.closeQuietly(client);
+            }
+        }
+    }
 }
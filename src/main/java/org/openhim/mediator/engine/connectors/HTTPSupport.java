@@ -0,0 +1,279 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.engine.connectors;
+
+import akka.actor.ActorRef;
+import akka.event.LoggingAdapter;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.tuple.Pair;
+import org.apache.http.ParseException;
+import org.apache.http.client.utils.URIBuilder;
+import org.apache.http.conn.ssl.TrustSelfSignedStrategy;
+import org.apache.http.entity.ContentType;
+import org.apache.http.ssl.SSLContextBuilder;
+import org.apache.http.ssl.SSLContexts;
+import org.openhim.mediator.engine.CoreResponse;
+import org.openhim.mediator.engine.MediatorConfig;
+import org.openhim.mediator.engine.OrchestrationCaptures;
+import org.openhim.mediator.engine.messages.AddOrchestrationToCoreResponse;
+import org.openhim.mediator.engine.messages.MediatorHTTPRequest;
+import org.openhim.mediator.engine.messages.MediatorHTTPResponse;
+import org.openhim.mediator.engine.messages.PutPropertyInCoreResponse;
+
+import javax.net.ssl.SSLContext;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Functionality shared by the {@link HTTPConnector} and the {@link AsyncHTTPConnector}.
+ */
+final class HTTPSupport {
+
+    private HTTPSupport() {}
+
+
+    static URI buildURI(MediatorHTTPRequest req) throws URISyntaxException {
+        URIBuilder builder;
+
+        if (req.getUri()!=null) {
+            builder = new URIBuilder(req.getUri());
+        } else {
+            builder = new URIBuilder()
+                    .setScheme(req.getScheme())
+                    .setHost(req.getHost())
+                    .setPort(req.getPort())
+                    .setPath(req.getPath());
+        }
+
+        if (req.getParams()!=null) {
+            for (Pair<String, String> param : req.getParams()) {
+                builder.addParameter(param.getKey(), param.getValue());
+            }
+        }
+
+        return builder.build();
+    }
+
+    /**
+     * @return the charset declared in a Content-Type header, or the default charset if none or an unsupported one is declared
+     */
+    static Charset charsetFor(String contentType, Charset defaultCharset) {
+        if (contentType==null) {
+            return defaultCharset;
+        }
+        try {
+            Charset charset = ContentType.parse(contentType).getCharset();
+            return charset!=null ? charset : defaultCharset;
+        } catch (ParseException | IllegalArgumentException ex) {
+            return defaultCharset;
+        }
+    }
+
+    /**
+     * Compress a body with the gzip or deflate content encoding. Bodies with any other encoding are returned as is.
+     */
+    static byte[] encodeBody(byte[] body, String contentEncoding) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        OutputStream encoder;
+        if ("gzip".equalsIgnoreCase(contentEncoding)) {
+            encoder = new GZIPOutputStream(out);
+        } else if ("deflate".equalsIgnoreCase(contentEncoding)) {
+            encoder = new DeflaterOutputStream(out);
+        } else {
+            return body;
+        }
+        try {
+            encoder.write(body);
+        } finally {
+            encoder.close();
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Decompress a body with the gzip or deflate content encoding. Bodies with any other encoding are returned as is.
+     */
+    static byte[] decodeBody(byte[] body, String contentEncoding) throws IOException {
+        InputStream decoder;
+        if ("gzip".equalsIgnoreCase(contentEncoding)) {
+            decoder = new GZIPInputStream(new ByteArrayInputStream(body));
+        } else if ("deflate".equalsIgnoreCase(contentEncoding)) {
+            decoder = new InflaterInputStream(new ByteArrayInputStream(body));
+        } else {
+            return body;
+        }
+        try {
+            return IOUtils.toByteArray(decoder);
+        } finally {
+            decoder.close();
+        }
+    }
+
+    /**
+     * Build the orchestration for a call, recording as much of it as the capture policy for the call allows
+     *
+     * @param captures The capture policies, or null to record the call in full
+     */
+    static CoreResponse.Orchestration buildOrchestration(MediatorHTTPRequest req, MediatorHTTPResponse resp, OrchestrationCaptures captures) {
+        CoreResponse.Orchestration orch = new CoreResponse.Orchestration();
+        orch.setName(req.getOrchestration());
+
+        CoreResponse.Request orchReq = new CoreResponse.Request();
+        if (req.getUri()==null) {
+            orchReq.setHost(req.getHost());
+            orchReq.setPort(Integer.toString(req.getPort()));
+            orchReq.setPath(req.getPath());
+        }
+        orchReq.setBody(req.getBody());
+        orchReq.setMethod(req.getMethod());
+        orchReq.setHeaders(req.getHeaders());
+        orch.setRequest(orchReq);
+
+        CoreResponse.Response orchResp = new CoreResponse.Response();
+        orchResp.setBody(resp.getBody());
+        orchResp.setStatus(resp.getStatusCode());
+        orchResp.setHeaders(resp.getHeaders());
+        orch.setResponse(orchResp);
+
+        if (captures!=null) {
+            captures.apply(req.getRequestHandler(), orch);
+        }
+        return orch;
+    }
+
+    /**
+     * Add a header to the recorded response of an orchestration, without changing the headers of the response itself
+     */
+    static void putOrchestrationResponseHeader(CoreResponse.Orchestration orch, String name, String value) {
+        Map<String, String> orchHeaders = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        if (orch.getResponse().getHeaders()!=null) {
+            orchHeaders.putAll(orch.getResponse().getHeaders());
+        }
+        orchHeaders.put(name, value);
+        orch.getResponse().setHeaders(orchHeaders);
+    }
+
+    /**
+     * Build the orchestration for a request that was rejected by the circuit breaker or bulkhead for its host.
+     * It records a <code>503</code> response with an <code>X-Circuit-Breaker</code> header for the breaker state.
+     */
+    static CoreResponse.Orchestration buildRejectedOrchestration(MediatorHTTPRequest req, UpstreamGuard.RejectedException ex, OrchestrationCaptures captures) {
+        CoreResponse.Orchestration orch = buildOrchestration(req, new MediatorHTTPResponse(req, ex.getMessage(), 503, null), captures);
+        Map<String, String> orchHeaders = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        orchHeaders.put("Content-Type", "text/plain");
+        orchHeaders.put("X-Circuit-Breaker", ex.getState().name());
+        orch.getResponse().setHeaders(orchHeaders);
+        return orch;
+    }
+
+    /**
+     * Unpack a response with <code>application/json+openhim</code> content. The orchestrations and properties
+     * in the content are sent to the request handler of each caller.
+     *
+     * @param headers The response headers, which are updated with the headers of the unpacked response
+     */
+    static MediatorHTTPResponse unpackOpenHIMResponse(MediatorHTTPRequest req, List<MediatorHTTPRequest> callers, String content,
+                                                      int status, Map<String, String> headers, ActorRef sender) throws CoreResponse.ParseException {
+        CoreResponse parsedContent = CoreResponse.parse(content);
+        if (parsedContent.getResponse()==null) {
+            throw new CoreResponse.ParseException(new Exception("No response object found in application/json+openhim content"));
+        }
+
+        if (parsedContent.getResponse().getStatus()!=null) {
+            status = parsedContent.getResponse().getStatus();
+        }
+
+        if (parsedContent.getResponse().getHeaders()!=null) {
+            for (String hdr : parsedContent.getResponse().getHeaders().keySet()) {
+                headers.put(hdr, parsedContent.getResponse().getHeaders().get(hdr));
+            }
+        }
+
+        if (parsedContent.getOrchestrations()!=null) {
+            for (CoreResponse.Orchestration orch : parsedContent.getOrchestrations()) {
+                for (MediatorHTTPRequest caller : callers) {
+                    caller.getRequestHandler().tell(new AddOrchestrationToCoreResponse(orch), sender);
+                }
+            }
+        }
+
+        if (parsedContent.getProperties()!=null) {
+            for (String prop : parsedContent.getProperties().keySet()) {
+                for (MediatorHTTPRequest caller : callers) {
+                    caller.getRequestHandler().tell(new PutPropertyInCoreResponse(prop, parsedContent.getProperties().get(prop)), sender);
+                }
+            }
+        }
+
+        return new MediatorHTTPResponse(req, parsedContent.getResponse().getBody(), status, headers);
+    }
+
+    private static KeyStore loadKeyStore(MediatorConfig.KeyStore inKS) throws GeneralSecurityException, IOException {
+        KeyStore ks = KeyStore.getInstance("JKS");
+        InputStream inputStream;
+
+        if (inKS.getFilename() != null) {
+            inputStream = new FileInputStream(new File(inKS.getFilename()));
+        } else {
+            inputStream = inKS.getInputStream();
+        }
+
+        try {
+            if (inKS.getPassword() != null) {
+                ks.load(inputStream, inKS.getPassword().toCharArray());
+            } else {
+                ks.load(inputStream, null);
+            }
+        } finally {
+            IOUtils.closeQuietly(inputStream);
+        }
+
+        return ks;
+    }
+
+    static SSLContext buildSSLContext(MediatorConfig.SSLContext config, LoggingAdapter log) throws GeneralSecurityException, IOException {
+        SSLContextBuilder builder = SSLContexts.custom();
+
+        if (config.getTrustAll()) {
+            log.warning("SSL: Trusting all certificates. This option should be considered unsecure and should not be enabled in production environments.");
+            builder.loadTrustMaterial(null, new TrustSelfSignedStrategy());
+        }
+
+        if (config.getKeyStore() != null) {
+            KeyStore ks = loadKeyStore(config.getKeyStore());
+            if (config.getKeyStore().getPassword() != null) {
+                builder.loadKeyMaterial(ks, config.getKeyStore().getPassword().toCharArray());
+            } else {
+                builder.loadKeyMaterial(ks, null);
+            }
+        }
+
+        for (MediatorConfig.KeyStore ts : config.getTrustStores()) {
+            KeyStore ks = loadKeyStore(ts);
+            builder.loadTrustMaterial(ks, null);
+        }
+
+        return builder.build();
+    }
+}
@@ -0,0 +1,379 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.engine.connectors;
+
+import org.apache.commons.io.IOUtils;
+import org.openhim.mediator.engine.MediatorConfig;
+
+import javax.net.ssl.SSLSocketFactory;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Manages persistent MLLP connections for the {@link MLLPConnector}.
+ * <br/><br/>
+ * Connections are pooled per endpoint (host, port and security). Several messages may be in flight on a connection
+ * at once, in which case the responses are read in the order that the messages were written.
+ */
+class MLLPConnectionManager {
+
+    static class Endpoint {
+        final String host;
+        final int port;
+        final boolean secure;
+
+        Endpoint(String host, int port, boolean secure) {
+            this.host = host;
+            this.port = port;
+            this.secure = secure;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Endpoint endpoint = (Endpoint) o;
+            return port == endpoint.port && secure == endpoint.secure && host.equals(endpoint.host);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = host.hashCode();
+            result = 31 * result + port;
+            result = 31 * result + (secure ? 1 : 0);
+            return result;
+        }
+
+        @Override
+        public String toString() {
+            return host + ":" + port;
+        }
+    }
+
+    private static class Connection {
+        final Endpoint endpoint;
+        final Socket socket;
+        final OutputStream out;
+        final MLLPFrameDecoder decoder;
+
+        //guarded by the manager
+        int inFlight = 0;
+        long lastUsed;
+
+        //guarded by the connection
+        long nextWriteTicket = 0;
+        long nextReadTicket = 0;
+        volatile boolean broken = false;
+
+        Connection(Endpoint endpoint, Socket socket) throws IOException {
+            this.endpoint = endpoint;
+            this.socket = socket;
+            this.out = new BufferedOutputStream(socket.getOutputStream(), MLLPFrameDecoder.DEFAULT_BUFFER_SIZE);
+            this.decoder = new MLLPFrameDecoder(socket.getInputStream());
+        }
+    }
+
+    /**
+     * Thrown if a reused connection was lost before the response to a message that was written while the connection
+     * was idle, in which case the server most likely closed the connection before the message arrived
+     */
+    private static class ConnectionLostException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        ConnectionLostException(String msg) {
+            super(msg);
+        }
+    }
+
+
+    private final MediatorConfig.MLLPConnectionPool config;
+    private final Map<Endpoint, List<Connection>> pools = new HashMap<>();
+    private final Map<Endpoint, Integer> pendingConnects = new HashMap<>();
+    private boolean closed = false;
+
+
+    MLLPConnectionManager(MediatorConfig.MLLPConnectionPool config) {
+        this.config = config;
+    }
+
+
+    /**
+     * Write a frame to the endpoint and read the response frame, reusing a pooled connection if possible.
+     * <br/><br/>
+     * If a reused connection turns out to have been closed by the server, the frame is resent once on a new connection.
+     * Frames that time out waiting for a response are not resent.
+     *
+     * @param connectTimeout The maximum time to wait for a connection, in milliseconds
+     * @param readTimeout The maximum time to wait for the response, in milliseconds
+     * @return The response frame
+     */
+    byte[] exchange(Endpoint endpoint, byte[] frame, int connectTimeout, int readTimeout) throws IOException, InterruptedException {
+        Connection conn = acquire(endpoint, true, connectTimeout);
+        try {
+            return exchange(conn, frame, readTimeout);
+        } catch (ConnectionLostException ex) {
+            //retry below
+        } finally {
+            release(conn);
+        }
+
+        Connection fresh = acquire(endpoint, false, connectTimeout);
+        try {
+            return exchange(fresh, frame, readTimeout);
+        } finally {
+            release(fresh);
+        }
+    }
+
+    private byte[] exchange(Connection conn, byte[] frame, int readTimeout) throws IOException, InterruptedException {
+        long ticket;
+        boolean writtenWhileIdle;
+        synchronized (conn) {
+            if (conn.broken) {
+                throw new IOException("Connection to " + conn.endpoint + " was closed");
+            }
+            ticket = conn.nextWriteTicket++;
+            //the connection was reused, and every message written before this one has been answered
+            writtenWhileIdle = ticket > 0 && conn.nextReadTicket == ticket;
+            try {
+                conn.out.write(frame);
+                conn.out.flush();
+            } catch (IOException ex) {
+                markBroken(conn);
+                throw connectionLost(writtenWhileIdle, ex.getMessage());
+            }
+
+            //responses are read in the order that the messages were written
+            while (conn.nextReadTicket != ticket && !conn.broken) {
+                conn.wait();
+            }
+            if (conn.broken) {
+                throw new IOException("Connection to " + conn.endpoint + " was closed before a response was received");
+            }
+        }
+
+        byte[] response;
+        try {
+            //only the connection's current reader gets here, so it's safe to change the timeout for its read
+            conn.socket.setSoTimeout(readTimeout);
+            response = conn.decoder.readFrame();
+        } catch (IOException ex) {
+            markBroken(conn);
+            if (ex instanceof SocketTimeoutException || conn.decoder.hasBufferedBytes()) {
+                throw ex;
+            }
+            throw connectionLost(writtenWhileIdle, ex.getMessage());
+        }
+
+        synchronized (conn) {
+            if (response == null) {
+                markBroken(conn);
+                throw connectionLost(writtenWhileIdle, "Connection to " + conn.endpoint + " was closed by the server");
+            }
+            conn.nextReadTicket++;
+            conn.notifyAll();
+        }
+        return response;
+    }
+
+    /**
+     * A connection that has already been used may have been closed by the server while idle, in which case it is
+     * safe to resend a message that was written while the connection was idle. Messages that were pipelined behind
+     * outstanding messages may already have been processed, so they are never resent.
+     */
+    private static IOException connectionLost(boolean writtenWhileIdle, String msg) {
+        return writtenWhileIdle ? new ConnectionLostException(msg) : new IOException(msg);
+    }
+
+    private void markBroken(Connection conn) {
+        synchronized (conn) {
+            conn.broken = true;
+            conn.notifyAll();
+        }
+        IOUtils.closeQuietly(conn.socket);
+    }
+
+    /**
+     * @param reuse If false, a new connection will always be opened
+     */
+    private Connection acquire(Endpoint endpoint, boolean reuse, int connectTimeout) throws IOException, InterruptedException {
+        synchronized (this) {
+            long deadline = System.currentTimeMillis() + Math.min(config.getAcquireTimeoutMillis(), connectTimeout);
+
+            while (true) {
+                if (closed) {
+                    throw new IOException("Connection manager is closed");
+                }
+
+                Connection best = null;
+                if (reuse) {
+                    for (Connection conn : poolFor(endpoint)) {
+                        if (!conn.broken && conn.inFlight < config.getMaxPipelinedMessages() &&
+                                (best == null || conn.inFlight < best.inFlight)) {
+                            best = conn;
+                        }
+                    }
+                } else if (!canConnect(endpoint)) {
+                    closeIdleConnection(endpoint);
+                }
+
+                //prefer an idle connection, then a new connection, then pipelining on a busy connection
+                if (best != null && (best.inFlight == 0 || !canConnect(endpoint))) {
+                    best.inFlight++;
+                    return best;
+                }
+                if (canConnect(endpoint)) {
+                    Integer pending = pendingConnects.get(endpoint);
+                    pendingConnects.put(endpoint, pending != null ? pending + 1 : 1);
+                    break;
+                }
+
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    throw new IOException("Timed out waiting for a connection to " + endpoint);
+                }
+                wait(remaining);
+            }
+        }
+
+        return connect(endpoint, connectTimeout);
+    }
+
+    private boolean canConnect(Endpoint endpoint) {
+        Integer pending = pendingConnects.get(endpoint);
+        return poolFor(endpoint).size() + (pending != null ? pending : 0) < config.getMaxPerEndpoint();
+    }
+
+    private void closeIdleConnection(Endpoint endpoint) {
+        Iterator<Connection> iter = poolFor(endpoint).iterator();
+        while (iter.hasNext()) {
+            Connection conn = iter.next();
+            if (conn.inFlight == 0) {
+                IOUtils.closeQuietly(conn.socket);
+                iter.remove();
+                return;
+            }
+        }
+    }
+
+    private Connection connect(Endpoint endpoint, int connectTimeout) throws IOException {
+        Socket socket = null;
+        Connection conn = null;
+        try {
+            socket = createSocket(endpoint, connectTimeout);
+            conn = new Connection(endpoint, socket);
+        } finally {
+            synchronized (this) {
+                pendingConnects.put(endpoint, pendingConnects.get(endpoint) - 1);
+                if (conn != null && !closed) {
+                    conn.inFlight = 1;
+                    poolFor(endpoint).add(conn);
+                } else {
+                    IOUtils.closeQuietly(socket);
+                }
+                notifyAll();
+            }
+        }
+        if (conn != null && conn.socket.isClosed()) {
+            throw new IOException("Connection manager is closed");
+        }
+        return conn;
+    }
+
+    /**
+     * @param connectTimeout The maximum time to wait for the connection to be established, in milliseconds
+     */
+    static Socket createSocket(Endpoint endpoint, int connectTimeout) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(endpoint.host, endpoint.port), connectTimeout);
+            if (endpoint.secure) {
+                SSLSocketFactory factory = (SSLSocketFactory) SSLSocketFactory.getDefault();
+                socket = factory.createSocket(socket, endpoint.host, endpoint.port, true);
+            }
+        } catch (IOException ex) {
+            IOUtils.closeQuietly(socket);
+            throw ex;
+        }
+        socket.setKeepAlive(true);
+        socket.setTcpNoDelay(true);
+        return socket;
+    }
+
+    private synchronized void release(Connection conn) {
+        conn.inFlight--;
+        conn.lastUsed = System.currentTimeMillis();
+        if (conn.broken || closed) {
+            poolFor(conn.endpoint).remove(conn);
+            IOUtils.closeQuietly(conn.socket);
+        }
+        notifyAll();
+    }
+
+    private List<Connection> poolFor(Endpoint endpoint) {
+        List<Connection> pool = pools.get(endpoint);
+        if (pool == null) {
+            pool = new ArrayList<>();
+            pools.put(endpoint, pool);
+        }
+        return pool;
+    }
+
+    /**
+     * Close connections that have been idle for longer than the configured maximum
+     */
+    synchronized void evictIdleConnections() {
+        long cutoff = System.currentTimeMillis() - config.getMaxIdleMillis();
+
+        Iterator<Map.Entry<Endpoint, List<Connection>>> poolIter = pools.entrySet().iterator();
+        while (poolIter.hasNext()) {
+            List<Connection> pool = poolIter.next().getValue();
+            Iterator<Connection> iter = pool.iterator();
+            while (iter.hasNext()) {
+                Connection conn = iter.next();
+                if (conn.inFlight == 0 && (conn.lastUsed < cutoff || conn.broken)) {
+                    IOUtils.closeQuietly(conn.socket);
+                    iter.remove();
+                }
+            }
+            if (pool.isEmpty()) {
+                poolIter.remove();
+            }
+        }
+    }
+
+    /**
+     * @return The number of open connections to an endpoint
+     */
+    synchronized int getConnectionCount(Endpoint endpoint) {
+        List<Connection> pool = pools.get(endpoint);
+        return pool != null ? pool.size() : 0;
+    }
+
+    /**
+     * Close all connections. In-flight messages will fail.
+     */
+    synchronized void close() {
+        closed = true;
+        for (List<Connection> pool : pools.values()) {
+            for (Connection conn : pool) {
+                markBroken(conn);
+            }
+        }
+        pools.clear();
+        notifyAll();
+    }
+}
@@ -4,34 +4,35 @@
  * file, You can obtain one at http://mozilla.org/MPL/2.0/.
  */
 
-/*
- * This Source Code Form is subject to the terms of the Mozilla Public
- * License, v. 2.0. If a copy of the MPL was not distributed with this
- * file, You can obtain one at http://mozilla.org/MPL/2.0/.
- */
-
 package org.openhim.mediator.engine.connectors;
 
+import akka.actor.Cancellable;
 import akka.actor.UntypedActor;
 import akka.dispatch.OnComplete;
 import akka.event.Logging;
 import akka.event.LoggingAdapter;
 import org.apache.commons.io.IOUtils;
 import org.openhim.mediator.engine.CoreResponse;
+import org.openhim.mediator.engine.ExecutionStrategy;
+import org.openhim.mediator.engine.MediatorConfig;
+import org.openhim.mediator.engine.OrchestrationCaptures;
+import org.openhim.mediator.engine.RequestDeadlines;
+import org.openhim.mediator.engine.ThreadPoolExecutionStrategy;
 import org.openhim.mediator.engine.messages.AddOrchestrationToCoreResponse;
 import org.openhim.mediator.engine.messages.ExceptError;
 import org.openhim.mediator.engine.messages.MediatorSocketRequest;
 import org.openhim.mediator.engine.messages.MediatorSocketResponse;
+import org.openhim.mediator.engine.metrics.MetricsRegistry;
 import scala.concurrent.ExecutionContext;
 import scala.concurrent.Future;
+import scala.concurrent.duration.Duration;
 
-import javax.net.ssl.SSLSocketFactory;
-import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.Socket;
 import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import static akka.dispatch.Futures.future;
 
@@ -42,14 +43,57 @@ import static akka.dispatch.Futures.future;
  * <ul>
  * <li>{@link MediatorSocketRequest} - responds with {@link MediatorSocketResponse}</li>
  * </ul>
+ * <br/>
+ * By default a new connection is opened for every message. Persistent connections can be enabled
+ * using {@link MediatorConfig.MLLPConnectionPool}. Calls to each endpoint can be guarded by a circuit breaker
+ * and bulkhead, see {@link MediatorConfig.CircuitBreaker} and {@link MediatorConfig.Bulkhead}.
+ * <br/><br/>
+ * Connecting and waiting for responses are limited by the timeouts in {@link MediatorConfig.ConnectorTimeouts},
+ * the timeout set on the request, and the deadline of the request being handled (see {@link RequestDeadlines}).
  */
 public class MLLPConnector extends UntypedActor {
     public static final char MLLP_HEADER_VT = '\013';
     public static final char MLLP_FOOTER_FS = '\034';
     public static final char MLLP_FOOTER_CR = '\r';
 
+    private static class EvictIdleConnections {}
+
     LoggingAdapter log = Logging.getLogger(getContext().system(), this);
 
+    private final MediatorConfig.MLLPConnectionPool poolConfig;
+    private final MetricsRegistry metrics;
+    private final UpstreamGuard guard;
+    private final MediatorConfig.ConnectorTimeouts timeouts;
+    private final RequestDeadlines deadlines;
+    private final MediatorConfig.ConnectorDispatcher dispatcherConfig;
+    private final OrchestrationCaptures captures;
+    private final ExecutionStrategy executionStrategy;
+    private ExecutionStrategy.Executor ioExecutor;
+    private MLLPConnectionManager connectionManager;
+    private Cancellable evictionTask;
+
+
+    public MLLPConnector(MediatorConfig config) {
+        this.poolConfig = config.getMLLPConnectionPool()!=null ? config.getMLLPConnectionPool() : new MediatorConfig.MLLPConnectionPool();
+        this.metrics = config.getMetricsRegistry()!=null ? config.getMetricsRegistry() : new MetricsRegistry();
+        this.guard = new UpstreamGuard("mllp-connector", config, metrics);
+        this.timeouts = config.getConnectorTimeouts()!=null ? config.getConnectorTimeouts() : new MediatorConfig.ConnectorTimeouts();
+        this.deadlines = config.getRequestDeadlines()!=null ? config.getRequestDeadlines() : new RequestDeadlines();
+        this.dispatcherConfig = config.getMLLPConnectorDispatcher();
+        this.executionStrategy = config.getExecutionStrategy()!=null ? config.getExecutionStrategy() : new ThreadPoolExecutionStrategy();
+        this.captures = config.getOrchestrationCaptures();
+    }
+
+    public MLLPConnector() {
+        this.poolConfig = new MediatorConfig.MLLPConnectionPool();
+        this.metrics = new MetricsRegistry();
+        this.guard = new UpstreamGuard("mllp-connector", new MediatorConfig(), metrics);
+        this.timeouts = new MediatorConfig.ConnectorTimeouts();
+        this.deadlines = new RequestDeadlines();
+        this.dispatcherConfig = new MediatorConfig().getMLLPConnectorDispatcher();
+        this.executionStrategy = new ThreadPoolExecutionStrategy();
+        this.captures = null;
+    }
 
     public static String wrapMLLP(String s) {
         return MLLPConnector.MLLP_HEADER_VT + s + MLLPConnector.MLLP_FOOTER_FS + MLLPConnector.MLLP_FOOTER_CR;
@@ -63,7 +107,7 @@ public class MLLPConnector extends UntypedActor {
     }
 
 
-    private CoreResponse.Orchestration buildOrchestration(MediatorSocketRequest req, MediatorSocketResponse resp) {
+    private CoreResponse.Orchestration buildOrchestration(MediatorSocketRequest req, MediatorSocketResponse resp, UpstreamGuard.State breakerState) {
         CoreResponse.Orchestration orch = new CoreResponse.Orchestration();
         orch.setName(req.getOrchestration());
 
@@ -77,76 +121,155 @@ public class MLLPConnector extends UntypedActor {
         orchResp.setBody(wrapMLLP(resp.getBody()));
         orch.setResponse(orchResp);
 
+        if (captures!=null) {
+            captures.apply(req.getRequestHandler(), orch);
+        }
+        if (breakerState!=UpstreamGuard.State.CLOSED) {
+            orchResp.putHeader("X-Circuit-Breaker", breakerState.name());
+        }
         return orch;
     }
 
-    private static String readMLLPStream(InputStream in) throws IOException {
-        ByteArrayOutputStream buffer = new ByteArrayOutputStream(1024*1024);
-        int lastByte = -1;
-        int lastLastByte;
-        do {
-            lastLastByte = lastByte;
-            lastByte = in.read();
-            if (lastByte!=-1) {
-                buffer.write(lastByte);
-            }
-        } while (lastByte!=-1 && (lastLastByte!=MLLP_FOOTER_FS || lastByte!=MLLP_FOOTER_CR));
-
-        return buffer.toString();
+    /**
+     * Encode a message for writing to the socket. Each character is written as a single byte,
+     * as per {@link java.io.DataOutputStream#writeBytes(String)}.
+     */
+    private static byte[] encodeFrame(String s) {
+        String frame = wrapMLLP(s);
+        byte[] bytes = new byte[frame.length()];
+        for (int i=0; i<frame.length(); i++) {
+            bytes[i] = (byte) frame.charAt(i);
+        }
+        return bytes;
     }
 
-    private Socket getSocket(final MediatorSocketRequest req) throws IOException {
-        if (req.isSecure()) {
-            SSLSocketFactory factory = (SSLSocketFactory) SSLSocketFactory.getDefault();
-            return factory.createSocket(req.getHost(), req.getPort());
+    private String decodeFrame(byte[] frame) {
+        String result = frame!=null ? new String(frame) : "";
+        if (isMLLPWrapped(result)) {
+            result = result.substring(1).substring(0, result.length()-3);
         } else {
-            return new Socket(req.getHost(), req.getPort());
+            log.warning("Response from server is not valid MLLP");
         }
+        return result;
+    }
+
+    private byte[] exchange(MediatorSocketRequest req, int connectTimeout, int readTimeout) throws IOException, InterruptedException {
+        MLLPConnectionManager.Endpoint endpoint = new MLLPConnectionManager.Endpoint(req.getHost(), req.getPort(), req.isSecure());
+        byte[] frame = encodeFrame(req.getBody());
+
+        if (connectionManager!=null) {
+            return connectionManager.exchange(endpoint, frame, connectTimeout, readTimeout);
+        }
+
+        Socket socket = MLLPConnectionManager.createSocket(endpoint, connectTimeout);
+        try {
+            socket.setSoTimeout(readTimeout);
+            OutputStream out = socket.getOutputStream();
+            out.write(frame);
+            out.flush();
+            return new MLLPFrameDecoder(socket.getInputStream()).readFrame();
+        } finally {
+            IOUtils.closeQuietly(socket);
+        }
+    }
+
+    /**
+     * Fail a request that was rejected by the circuit breaker or bulkhead for its endpoint. The orchestration
+     * records the error with an <code>X-Circuit-Breaker</code> header for the breaker state.
+     */
+    private void reject(MediatorSocketRequest req, UpstreamGuard.RejectedException ex) {
+        CoreResponse.Orchestration orch = new CoreResponse.Orchestration();
+        orch.setName(req.getOrchestration());
+
+        CoreResponse.Request orchReq = new CoreResponse.Request();
+        orchReq.setBody(wrapMLLP(req.getBody()));
+        orchReq.setHost(req.getHost());
+        orchReq.setPort(Integer.toString(req.getPort()));
+        orch.setRequest(orchReq);
+
+        CoreResponse.Response orchResp = new CoreResponse.Response();
+        orchResp.setBody(ex.getMessage());
+        orch.setResponse(orchResp);
+        if (captures!=null) {
+            captures.apply(req.getRequestHandler(), orch);
+        }
+        orchResp.putHeader("X-Circuit-Breaker", ex.getState().name());
+        req.getRequestHandler().tell(new AddOrchestrationToCoreResponse(orch), getSelf());
+
+        req.getRequestHandler().tell(new ExceptError(req, ex), getSelf());
     }
 
     private void sendRequest(final MediatorSocketRequest req) {
+        final String endpoint = req.getHost() + ":" + req.getPort();
+
+        long timeAllowed = deadlines.remainingMillis(req.getRequestHandler(),
+                req.getTimeoutMillis()!=null ? req.getTimeoutMillis() : Long.MAX_VALUE);
+        if (timeAllowed <= 0) {
+            req.getRequestHandler().tell(new ExceptError(req,
+                    new TimeoutException("The deadline for the request to " + endpoint + " passed before it was sent")), getSelf());
+            return;
+        }
+        final int connectTimeout = (int) Math.min(timeouts.getConnectTimeoutMillis(), timeAllowed);
+        final int readTimeout = (int) Math.min(timeouts.getSocketTimeoutMillis(), timeAllowed);
+
+        final UpstreamGuard.Permit permit;
         try {
-            final Socket socket = getSocket(req);
-
-            ExecutionContext ec = getContext().dispatcher();
-            Future<String> f = future(new Callable<String>() {
-                public String call() throws IOException {
-                    DataOutputStream out = new DataOutputStream(socket.getOutputStream());
-                    out.writeBytes(wrapMLLP(req.getBody()));
-
-                    String result = readMLLPStream(socket.getInputStream());
-                    if (isMLLPWrapped(result)) {
-                        result = result.substring(1).substring(0, result.length()-3);
-                    } else {
-                        log.warning("Response from server is not valid MLLP");
-                    }
+            permit = guard.acquire(endpoint);
+        } catch (UpstreamGuard.RejectedException ex) {
+            reject(req, ex);
+            return;
+        }
 
-                    return result;
-                }
-            }, ec);
-            f.onComplete(new OnComplete<String>() {
-                @Override
-                public void onComplete(Throwable throwable, String result) throws Throwable {
-                    try {
-                        if (throwable != null) {
-                            throw throwable;
-                        }
-
-                        MediatorSocketResponse response = new MediatorSocketResponse(req, result);
-                        req.getRespondTo().tell(response, getSelf());
-
-                        //enrich engine response
-                        CoreResponse.Orchestration orch = buildOrchestration(req, response);
-                        req.getRequestHandler().tell(new AddOrchestrationToCoreResponse(orch), getSelf());
-                    } catch (Exception ex) {
-                        req.getRequestHandler().tell(new ExceptError(ex), getSelf());
-                    } finally {
-                        IOUtils.closeQuietly(socket);
+        final long start = System.nanoTime();
+
+        ExecutionContext ec = getContext().dispatcher();
+        Future<String> f = future(new Callable<String>() {
+            public String call() throws IOException, InterruptedException {
+                return decodeFrame(exchange(req, connectTimeout, readTimeout));
+            }
+        }, ioExecutor.getExecutionContext());
+        f.onComplete(new OnComplete<String>() {
+            @Override
+            public void onComplete(Throwable throwable, String result) throws Throwable {
+                permit.release(throwable!=null);
+                try {
+                    if (throwable != null) {
+                        metrics.counter("mediator_mllp_connector_errors_total", "MLLP orchestration requests that failed, by endpoint", "endpoint", endpoint).inc();
+                        throw throwable;
                     }
+                    metrics.histogram("mediator_mllp_connector_request_duration_seconds", "Time taken for MLLP orchestration requests, by endpoint",
+                            "endpoint", endpoint).recordNanos(System.nanoTime() - start);
+
+                    MediatorSocketResponse response = new MediatorSocketResponse(req, result);
+                    req.getRespondTo().tell(response, getSelf());
+
+                    //enrich engine response
+                    CoreResponse.Orchestration orch = buildOrchestration(req, response, permit.getState());
+                    req.getRequestHandler().tell(new AddOrchestrationToCoreResponse(orch), getSelf());
+                } catch (Exception ex) {
+                    req.getRequestHandler().tell(new ExceptError(ex), getSelf());
                 }
-            }, ec);
-        } catch (IOException | UnsupportedOperationException ex) {
-            req.getRequestHandler().tell(new ExceptError(ex), getSelf());
+            }
+        }, ec);
+    }
+
+    private void scheduleIdleEviction() {
+        long interval = Math.max(1000, poolConfig.getMaxIdleMillis() / 2);
+        evictionTask = getContext().system().scheduler().scheduleOnce(
+                Duration.create(interval, TimeUnit.MILLISECONDS),
+                getSelf(),
+                new EvictIdleConnections(),
+                getContext().dispatcher(),
+                getSelf()
+        );
+    }
+
+    @Override
+    public void preStart() throws Exception {
+        ioExecutor = executionStrategy.newExecutor("mllp-connector", dispatcherConfig, metrics, getContext().dispatcher());
+        if (poolConfig.getEnabled()) {
+            connectionManager = new MLLPConnectionManager(poolConfig);
+            scheduleIdleEviction();
         }
     }
 
@@ -154,8 +277,22 @@ public class MLLPConnector extends UntypedActor {
     public void onReceive(Object msg) throws Exception {
         if (msg instanceof MediatorSocketRequest) {
             sendRequest((MediatorSocketRequest) msg);
+        } else if (msg instanceof EvictIdleConnections) {
+            connectionManager.evictIdleConnections();
+            scheduleIdleEviction();
         } else {
             unhandled(msg);
         }
     }
+
+    @Override
+    public void postStop() {
+        if (evictionTask!=null) {
+            evictionTask.cancel();
+        }
+        if (connectionManager!=null) {
+            connectionManager.close();
+        }
+        ioExecutor.shutdown();
+    }
 }
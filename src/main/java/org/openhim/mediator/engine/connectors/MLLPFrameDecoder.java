@@ -0,0 +1,117 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.engine.connectors;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Splits an MLLP byte stream into frames.
+ * <br/><br/>
+ * The stream is read in bulk into an internal buffer, which is then scanned for the <code>FS CR</code> frame footer.
+ * Any bytes following a footer are kept for the next frame, so several frames may be decoded from a single read,
+ * as happens when messages are pipelined on a persistent connection.
+ * <br/><br/>
+ * The decoder is not thread-safe.
+ */
+public class MLLPFrameDecoder {
+    public static final int DEFAULT_BUFFER_SIZE = 8 * 1024;
+
+    private final InputStream in;
+    private byte[] buffer;
+    private int start = 0;
+    private int end = 0;
+    private int scanPos = 0;
+
+
+    public MLLPFrameDecoder(InputStream in) {
+        this(in, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * @param bufferSize The initial buffer size. The buffer will grow to fit larger frames.
+     */
+    public MLLPFrameDecoder(InputStream in, int bufferSize) {
+        this.in = in;
+        this.buffer = new byte[bufferSize];
+    }
+
+
+    /**
+     * Find the end of the first frame in a byte range.
+     *
+     * @return The index directly after the <code>FS CR</code> footer, or -1 if the range doesn't contain a footer
+     */
+    public static int findFrameEnd(byte[] b, int off, int len) {
+        int last = off + len - 1;
+        for (int i=off; i<last; i++) {
+            if (b[i]==MLLPConnector.MLLP_FOOTER_FS && b[i+1]==MLLPConnector.MLLP_FOOTER_CR) {
+                return i + 2;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Read the next frame from the stream.
+     *
+     * @return The frame bytes, including the MLLP header and footer. If the stream ends before a complete frame
+     * has been read, the remaining bytes are returned as is. Returns null if the stream has ended and no bytes remain.
+     * @throws IOException
+     */
+    public byte[] readFrame() throws IOException {
+        while (true) {
+            int frameEnd = findFrameEnd(buffer, scanPos, end - scanPos);
+            if (frameEnd!=-1) {
+                return takeFrame(frameEnd);
+            }
+            //the last byte could be the start of a footer
+            scanPos = Math.max(start, end - 1);
+
+            makeRoom();
+            int read = in.read(buffer, end, buffer.length - end);
+            if (read==-1) {
+                return end > start ? takeFrame(end) : null;
+            }
+            end += read;
+        }
+    }
+
+    private byte[] takeFrame(int frameEnd) {
+        byte[] frame = Arrays.copyOfRange(buffer, start, frameEnd);
+        start = frameEnd;
+        scanPos = frameEnd;
+        if (start==end) {
+            start = end = scanPos = 0;
+        }
+        return frame;
+    }
+
+    private void makeRoom() {
+        if (end < buffer.length) {
+            return;
+        }
+
+        int len = end - start;
+        if (start > 0) {
+            System.arraycopy(buffer, start, buffer, 0, len);
+        } else {
+            buffer = Arrays.copyOf(buffer, buffer.length * 2);
+        }
+        scanPos -= start;
+        start = 0;
+        end = len;
+    }
+
+    /**
+     * @return true if bytes following the last decoded frame have already been read from the stream
+     */
+    public boolean hasBufferedBytes() {
+        return end > start;
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.engine.connectors;
+
+import org.apache.http.entity.AbstractHttpEntity;
+import org.openhim.mediator.engine.StreamingBody;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * An http entity that sends a {@link StreamingBody} as is.
+ * <br/><br/>
+ * The body is streamed from memory or from its temporary file, so it's never materialized as a string or array.
+ * The entity is repeatable, since the body can be read any number of times.
+ */
+class StreamingBodyEntity extends AbstractHttpEntity {
+    private final StreamingBody body;
+
+    StreamingBodyEntity(StreamingBody body, String contentType) {
+        this.body = body;
+        setContentType(contentType);
+    }
+
+
+    @Override
+    public boolean isRepeatable() {
+        return true;
+    }
+
+    @Override
+    public long getContentLength() {
+        return body.getSize();
+    }
+
+    @Override
+    public InputStream getContent() throws IOException {
+        return body.getInputStream();
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        body.writeTo(out);
+    }
+
+    @Override
+    public boolean isStreaming() {
+        return false;
+    }
+}
@@ -11,7 +11,11 @@ import akka.dispatch.OnComplete;
 import akka.event.Logging;
 import akka.event.LoggingAdapter;
 import org.apache.commons.io.IOUtils;
+import org.openhim.mediator.engine.ExecutionStrategy;
+import org.openhim.mediator.engine.MediatorConfig;
+import org.openhim.mediator.engine.ThreadPoolExecutionStrategy;
 import org.openhim.mediator.engine.messages.MediatorSocketRequest;
+import org.openhim.mediator.engine.metrics.MetricsRegistry;
 import scala.concurrent.ExecutionContext;
 import scala.concurrent.Future;
 
@@ -38,6 +42,24 @@ public class UDPFireForgetConnector extends UntypedActor {
 
     LoggingAdapter log = Logging.getLogger(getContext().system(), this);
 
+    private final MediatorConfig.ConnectorDispatcher dispatcherConfig;
+    private final MetricsRegistry metrics;
+    private final ExecutionStrategy executionStrategy;
+    private ExecutionStrategy.Executor ioExecutor;
+
+
+    public UDPFireForgetConnector(MediatorConfig config) {
+        this.dispatcherConfig = config.getUDPConnectorDispatcher();
+        this.executionStrategy = config.getExecutionStrategy()!=null ? config.getExecutionStrategy() : new ThreadPoolExecutionStrategy();
+        this.metrics = config.getMetricsRegistry()!=null ? config.getMetricsRegistry() : new MetricsRegistry();
+    }
+
+    public UDPFireForgetConnector() {
+        this.dispatcherConfig = new MediatorConfig().getUDPConnectorDispatcher();
+        this.executionStrategy = new ThreadPoolExecutionStrategy();
+        this.metrics = new MetricsRegistry();
+    }
+
 
     private void sendRequest(final MediatorSocketRequest req) {
         try {
@@ -54,7 +76,7 @@ public class UDPFireForgetConnector extends UntypedActor {
 
                     return Boolean.TRUE;
                 }
-            }, ec);
+            }, ioExecutor.getExecutionContext());
             f.onComplete(new OnComplete<Boolean>() {
                 @Override
                 public void onComplete(Throwable throwable, Boolean result) throws Throwable {
@@ -74,6 +96,16 @@ public class UDPFireForgetConnector extends UntypedActor {
         }
     }
 
+    @Override
+    public void preStart() throws Exception {
+        ioExecutor = executionStrategy.newExecutor("udp-fire-forget-connector", dispatcherConfig, metrics, getContext().dispatcher());
+    }
+
+    @Override
+    public void postStop() {
+        ioExecutor.shutdown();
+    }
+
     @Override
     public void onReceive(Object msg) throws Exception {
         if (msg instanceof MediatorSocketRequest) {
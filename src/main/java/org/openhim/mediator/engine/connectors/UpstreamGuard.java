@@ -0,0 +1,259 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.engine.connectors;
+
+import org.openhim.mediator.engine.MediatorConfig;
+import org.openhim.mediator.engine.metrics.MetricsRegistry;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Per-host circuit breakers and bulkheads for a connector.
+ * <br/><br/>
+ * Connectors acquire a {@link Permit} before calling a host and release it with the outcome of the call.
+ * If the host's circuit is open or its bulkhead is full, a {@link RejectedException} is thrown instead,
+ * so that the connector can fail fast.
+ *
+ * @see MediatorConfig.CircuitBreaker
+ * @see MediatorConfig.Bulkhead
+ */
+public class UpstreamGuard {
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    /**
+     * Thrown when a call to a host is rejected by its circuit breaker or bulkhead.
+     */
+    public static class RejectedException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        private final String host;
+        private final State state;
+
+        public RejectedException(String host, State state, String message) {
+            super(message);
+            this.host = host;
+            this.state = state;
+        }
+
+        public String getHost() {
+            return host;
+        }
+
+        /**
+         * @return the state of the host's circuit breaker. If the circuit is closed, the call was rejected by the bulkhead.
+         */
+        public State getState() {
+            return state;
+        }
+    }
+
+    /**
+     * Permission to make a call to a host. Must be released once the call completes.
+     */
+    class Permit {
+        private final Host host;
+        private final State state;
+        private final long start = System.nanoTime();
+
+        Permit(Host host, State state) {
+            this.host = host;
+            this.state = state;
+        }
+
+        /**
+         * @return the state of the circuit breaker when the call was permitted
+         */
+        State getState() {
+            return state;
+        }
+
+        void release(boolean failed) {
+            if (host==null) {
+                return;
+            }
+            if (host.bulkhead!=null) {
+                host.bulkhead.release();
+            }
+            if (breakerConfig.getEnabled()) {
+                long durationMillis = (System.nanoTime() - start) / 1000000;
+                host.record(failed, durationMillis > breakerConfig.getSlowCallDurationMillis(), System.currentTimeMillis());
+            }
+        }
+    }
+
+    /**
+     * The state of the calls to a single host. The outcomes of the most recent calls are kept in a ring buffer.
+     */
+    private class Host {
+        private final String name;
+        private final Semaphore bulkhead;
+        private final boolean[] failures;
+        private final boolean[] slowCalls;
+        private int next = 0;
+        private int calls = 0;
+        private int failureCount = 0;
+        private int slowCount = 0;
+
+        private State state = State.CLOSED;
+        private long openedAt = 0;
+        private int halfOpenPermitted = 0;
+        private int halfOpenSucceeded = 0;
+
+        Host(String name) {
+            this.name = name;
+            this.bulkhead = bulkheadConfig.getEnabled() ? new Semaphore(bulkheadConfig.getMaxConcurrentCalls()) : null;
+            int windowSize = Math.max(breakerConfig.getWindowSize(), 1);
+            this.failures = new boolean[windowSize];
+            this.slowCalls = new boolean[windowSize];
+        }
+
+        /**
+         * @return the state the call was permitted in, or null if the call isn't permitted
+         */
+        synchronized State tryAcquire(long now) {
+            if (state==State.OPEN) {
+                if (now - openedAt < breakerConfig.getOpenDurationMillis()) {
+                    return null;
+                }
+                transition(State.HALF_OPEN);
+            }
+            if (state==State.HALF_OPEN) {
+                if (halfOpenPermitted >= breakerConfig.getHalfOpenCalls()) {
+                    return null;
+                }
+                halfOpenPermitted++;
+            }
+            return state;
+        }
+
+        synchronized void record(boolean failed, boolean slow, long now) {
+            if (state==State.HALF_OPEN) {
+                if (failed || slow) {
+                    openedAt = now;
+                    transition(State.OPEN);
+                } else if (++halfOpenSucceeded >= breakerConfig.getHalfOpenCalls()) {
+                    transition(State.CLOSED);
+                }
+                return;
+            }
+            if (state==State.OPEN) {
+                //a call that was permitted before the circuit opened
+                return;
+            }
+
+            if (calls==failures.length) {
+                failureCount -= failures[next] ? 1 : 0;
+                slowCount -= slowCalls[next] ? 1 : 0;
+            } else {
+                calls++;
+            }
+            failures[next] = failed;
+            slowCalls[next] = slow;
+            failureCount += failed ? 1 : 0;
+            slowCount += slow ? 1 : 0;
+            next = (next + 1) % failures.length;
+
+            if (calls >= breakerConfig.getMinimumCalls() &&
+                    (failureCount * 100 >= breakerConfig.getFailureRateThreshold() * calls ||
+                    slowCount * 100 >= breakerConfig.getSlowCallRateThreshold() * calls)) {
+                openedAt = now;
+                transition(State.OPEN);
+            }
+        }
+
+        synchronized State getState() {
+            return state;
+        }
+
+        private void transition(State newState) {
+            state = newState;
+            calls = 0;
+            next = 0;
+            failureCount = 0;
+            slowCount = 0;
+            halfOpenPermitted = 0;
+            halfOpenSucceeded = 0;
+
+            metrics.gauge("mediator_circuit_breaker_state", "Circuit breaker state per upstream host (0 closed, 1 half-open, 2 open)",
+                    "connector", connector, "host", name).set(newState==State.CLOSED ? 0 : newState==State.HALF_OPEN ? 1 : 2);
+        }
+    }
+
+    private final String connector;
+    private final MediatorConfig.CircuitBreaker breakerConfig;
+    private final MediatorConfig.Bulkhead bulkheadConfig;
+    private final MetricsRegistry metrics;
+    private final ConcurrentMap<String, Host> hosts = new ConcurrentHashMap<>();
+    private final Permit unguarded = new Permit(null, State.CLOSED);
+
+
+    UpstreamGuard(String connector, MediatorConfig config, MetricsRegistry metrics) {
+        this.connector = connector;
+        this.breakerConfig = config.getCircuitBreaker()!=null ? config.getCircuitBreaker() : new MediatorConfig.CircuitBreaker();
+        this.bulkheadConfig = config.getBulkhead()!=null ? config.getBulkhead() : new MediatorConfig.Bulkhead();
+        this.metrics = metrics;
+    }
+
+
+    private Host hostFor(String name) {
+        Host host = hosts.get(name);
+        if (host==null) {
+            Host newHost = new Host(name);
+            host = hosts.putIfAbsent(name, newHost);
+            if (host==null) {
+                host = newHost;
+            }
+        }
+        return host;
+    }
+
+    private RejectedException reject(String host, State state, String reason, String message) {
+        metrics.counter("mediator_upstream_rejected_total", "Calls to upstream hosts rejected without being sent, by reason",
+                "connector", connector, "host", host, "reason", reason).inc();
+        return new RejectedException(host, state, message);
+    }
+
+    /**
+     * @throws RejectedException if the host's circuit is open or its bulkhead is full
+     */
+    Permit acquire(String name) throws RejectedException {
+        if (!breakerConfig.getEnabled() && !bulkheadConfig.getEnabled()) {
+            return unguarded;
+        }
+
+        Host host = hostFor(name);
+        if (host.bulkhead!=null && !host.bulkhead.tryAcquire()) {
+            throw reject(name, host.getState(), "bulkhead-full",
+                    "Too many concurrent calls to " + name + " (max " + bulkheadConfig.getMaxConcurrentCalls() + ")");
+        }
+
+        State state = State.CLOSED;
+        if (breakerConfig.getEnabled()) {
+            state = host.tryAcquire(System.currentTimeMillis());
+            if (state==null) {
+                if (host.bulkhead!=null) {
+                    host.bulkhead.release();
+                }
+                State current = host.getState();
+                throw reject(name, current, "circuit-open", current==State.OPEN ?
+                        "Circuit breaker for " + name + " is open" :
+                        "Circuit breaker for " + name + " is half-open and waiting for the outcome of probe calls");
+            }
+        }
+        return new Permit(host, state);
+    }
+
+    State getState(String name) {
+        Host host = hosts.get(name);
+        return host!=null ? host.getState() : State.CLOSED;
+    }
+}
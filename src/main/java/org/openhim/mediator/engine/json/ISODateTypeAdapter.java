@@ -0,0 +1,264 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.engine.json;
+
+import com.google.gson.JsonParseException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import org.joda.time.format.DateTimeFormatter;
+import org.joda.time.format.ISODateTimeFormat;
+
+import java.io.IOException;
+import java.util.Date;
+
+/**
+ * A Gson type adapter for dates.
+ * <br/><br/>
+ * Dates are written as ISO 8601 timestamps in UTC, e.g. <code>2015-01-15T12:51:00.000Z</code>.
+ * Dates can be read from timestamps in milliseconds or ISO 8601 timestamps with a time zone offset.
+ * <br/><br/>
+ * The common formats are handled without any intermediate objects;
+ * any other ISO 8601 variants are handed off to Joda.
+ */
+public class ISODateTypeAdapter extends TypeAdapter<Date> {
+
+    private static final DateTimeFormatter FALLBACK_PARSER = ISODateTimeFormat.dateTime();
+
+    private static final long MILLIS_PER_MINUTE = 60 * 1000L;
+    private static final long MILLIS_PER_DAY = 24 * 60 * MILLIS_PER_MINUTE;
+
+
+    @Override
+    public void write(JsonWriter out, Date value) throws IOException {
+        if (value==null) {
+            out.nullValue();
+        } else {
+            out.value(format(value.getTime()));
+        }
+    }
+
+    @Override
+    public Date read(JsonReader in) throws IOException {
+        JsonToken token = in.peek();
+        if (token==JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+
+        String value = in.nextString();
+        try {
+            return new Date(parse(value));
+        } catch (IllegalArgumentException ex) {
+            throw new JsonParseException("Invalid date: " + value, ex);
+        }
+    }
+
+
+    /**
+     * Format a timestamp as an ISO 8601 string in UTC, e.g. <code>2015-01-15T12:51:00.000Z</code>
+     */
+    public static String format(long millis) {
+        long days = millis / MILLIS_PER_DAY;
+        int millisOfDay = (int) (millis % MILLIS_PER_DAY);
+        if (millisOfDay < 0) {
+            millisOfDay += MILLIS_PER_DAY;
+            days--;
+        }
+
+        //civil from days - see http://howardhinnant.github.io/date_algorithms.html
+        long z = days + 719468;
+        long era = (z >= 0 ? z : z - 146096) / 146097;
+        long doe = z - era * 146097;
+        long yoe = (doe - doe/1460 + doe/36524 - doe/146096) / 365;
+        long doy = doe - (365*yoe + yoe/4 - yoe/100);
+        long mp = (5*doy + 2) / 153;
+        int day = (int) (doy - (153*mp + 2)/5 + 1);
+        int month = (int) (mp < 10 ? mp + 3 : mp - 9);
+        long year = yoe + era * 400 + (month <= 2 ? 1 : 0);
+
+        if (year < 0 || year > 9999) {
+            return FALLBACK_PARSER.withZoneUTC().print(millis);
+        }
+
+        char[] buf = new char[24];
+        put(buf, 0, (int) year, 4);
+        buf[4] = '-';
+        put(buf, 5, month, 2);
+        buf[7] = '-';
+        put(buf, 8, day, 2);
+        buf[10] = 'T';
+        put(buf, 11, millisOfDay / 3600000, 2);
+        buf[13] = ':';
+        put(buf, 14, (millisOfDay / 60000) % 60, 2);
+        buf[16] = ':';
+        put(buf, 17, (millisOfDay / 1000) % 60, 2);
+        buf[19] = '.';
+        put(buf, 20, millisOfDay % 1000, 3);
+        buf[23] = 'Z';
+        return new String(buf);
+    }
+
+    private static void put(char[] buf, int pos, int value, int digits) {
+        for (int i=pos+digits-1; i>=pos; i--) {
+            buf[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+    }
+
+    /**
+     * Parse a timestamp in milliseconds or an ISO 8601 date-time with a time zone offset.
+     *
+     * @return The timestamp in milliseconds
+     * @throws IllegalArgumentException if the value isn't a valid timestamp
+     */
+    public static long parse(String value) {
+        if (isMillis(value)) {
+            return Long.parseLong(value);
+        }
+
+        Long millis = parseISO(value);
+        if (millis!=null) {
+            return millis;
+        }
+        return FALLBACK_PARSER.parseMillis(value);
+    }
+
+    private static boolean isMillis(String value) {
+        int len = value.length();
+        if (len==0) {
+            return false;
+        }
+        int start = value.charAt(0)=='-' ? 1 : 0;
+        if (start==len) {
+            return false;
+        }
+        for (int i=start; i<len; i++) {
+            char c = value.charAt(i);
+            if (c<'0' || c>'9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Parses yyyy-MM-ddTHH:mm:ss[.S+](Z|+HH:mm|+HHmm|+HH)
+     *
+     * @return null if the value isn't in a supported format
+     */
+    private static Long parseISO(String s) {
+        int len = s.length();
+        if (len < 20 || s.charAt(4)!='-' || s.charAt(7)!='-' || s.charAt(10)!='T' || s.charAt(13)!=':' || s.charAt(16)!=':') {
+            return null;
+        }
+
+        int year = digits(s, 0, 4);
+        int month = digits(s, 5, 2);
+        int day = digits(s, 8, 2);
+        int hour = digits(s, 11, 2);
+        int minute = digits(s, 14, 2);
+        int second = digits(s, 17, 2);
+        if (year<0 || month<1 || month>12 || day<1 || day>31 || hour<0 || hour>23 || minute<0 || minute>59 || second<0 || second>59) {
+            return null;
+        }
+
+        int pos = 19;
+        int millis = 0;
+        if (s.charAt(pos)=='.') {
+            pos++;
+            int start = pos;
+            while (pos<len && s.charAt(pos)>='0' && s.charAt(pos)<='9') {
+                if (pos - start < 3) {
+                    millis = millis*10 + (s.charAt(pos) - '0');
+                }
+                pos++;
+            }
+            if (pos==start) {
+                return null;
+            }
+            for (int i=pos-start; i<3; i++) {
+                millis *= 10;
+            }
+        }
+
+        if (pos>=len) {
+            return null;
+        }
+
+        int offsetMinutes;
+        char sign = s.charAt(pos);
+        if (sign=='Z') {
+            if (pos+1!=len) {
+                return null;
+            }
+            offsetMinutes = 0;
+        } else if (sign=='+' || sign=='-') {
+            int remaining = len - pos - 1;
+            int offsetHours = remaining>=2 ? digits(s, pos+1, 2) : -1;
+            int offsetMins;
+            if (remaining==2) {
+                offsetMins = 0;
+            } else if (remaining==4) {
+                offsetMins = digits(s, pos+3, 2);
+            } else if (remaining==5 && s.charAt(pos+3)==':') {
+                offsetMins = digits(s, pos+4, 2);
+            } else {
+                return null;
+            }
+            if (offsetHours<0 || offsetHours>23 || offsetMins<0 || offsetMins>59) {
+                return null;
+            }
+            offsetMinutes = (offsetHours*60 + offsetMins) * (sign=='-' ? -1 : 1);
+        } else {
+            return null;
+        }
+
+        if (day > daysInMonth(year, month)) {
+            return null;
+        }
+
+        long epochDay = daysFromCivil(year, month, day);
+        long result = epochDay * MILLIS_PER_DAY + ((hour*60L + minute)*60L + second)*1000L + millis;
+        return result - offsetMinutes * MILLIS_PER_MINUTE;
+    }
+
+    private static int digits(String s, int pos, int count) {
+        int value = 0;
+        for (int i=pos; i<pos+count; i++) {
+            char c = s.charAt(i);
+            if (c<'0' || c>'9') {
+                return -1;
+            }
+            value = value*10 + (c - '0');
+        }
+        return value;
+    }
+
+    private static int daysInMonth(int year, int month) {
+        switch (month) {
+            case 2:
+                boolean leap = (year % 4 == 0 && year % 100 != 0) || year % 400 == 0;
+                return leap ? 29 : 28;
+            case 4: case 6: case 9: case 11:
+                return 30;
+            default:
+                return 31;
+        }
+    }
+
+    //see http://howardhinnant.github.io/date_algorithms.html
+    private static long daysFromCivil(int y, int m, int d) {
+        y -= m <= 2 ? 1 : 0;
+        long era = (y >= 0 ? y : y - 399) / 400;
+        long yoe = y - era * 400;
+        long doy = (153 * (m > 2 ? m - 3 : m + 9) + 2) / 5 + d - 1;
+        long doe = yoe * 365 + yoe/4 - yoe/100 + doy;
+        return era * 146097 + doe - 719468;
+    }
+}
@@ -0,0 +1,39 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.engine.json;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import java.util.Date;
+
+/**
+ * Shared JSON serialization for the engine.
+ * <br/><br/>
+ * Gson instances are thread-safe and cache the type adapters they build,
+ * so the engine reuses a single instance rather than creating a new one per message.
+ */
+public final class JSON {
+    private static final Gson GSON = configure(new GsonBuilder()).create();
+
+    private JSON() {}
+
+    /**
+     * @return The shared Gson instance used by the engine
+     */
+    public static Gson getGson() {
+        return GSON;
+    }
+
+    /**
+     * Apply the engine's serialization settings to a Gson builder,
+     * e.g. for mediators that want to use the same date handling with their own settings.
+     */
+    public static GsonBuilder configure(GsonBuilder builder) {
+        return builder.registerTypeAdapter(Date.class, new ISODateTypeAdapter());
+    }
+}
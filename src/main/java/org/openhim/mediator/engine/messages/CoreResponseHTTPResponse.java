@@ -0,0 +1,53 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.engine.messages;
+
+import org.openhim.mediator.engine.CoreResponse;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+/**
+ * An http response with an OpenHIM core response as body.
+ * <br/><br/>
+ * The body is only serialized when it's needed, and is serialized straight to UTF-8 by {@link #getEncodedBody()}
+ * without building an intermediate string.
+ */
+public class CoreResponseHTTPResponse extends MediatorHTTPResponse {
+    private final CoreResponse coreResponse;
+    private volatile String body;
+
+    public CoreResponseHTTPResponse(MediatorHTTPRequest originalRequest, CoreResponse coreResponse, Integer statusCode, Map<String, String> headers) {
+        super(originalRequest, null, statusCode, headers);
+        this.coreResponse = coreResponse;
+    }
+
+    public CoreResponseHTTPResponse(CoreResponse coreResponse, Integer statusCode, Map<String, String> headers) {
+        this(null, coreResponse, statusCode, headers);
+    }
+
+
+    public CoreResponse getCoreResponse() {
+        return coreResponse;
+    }
+
+    @Override
+    public String getBody() {
+        if (body==null) {
+            body = coreResponse.toJSON();
+        }
+        return body;
+    }
+
+    @Override
+    protected ByteBuffer encodeBody() {
+        if (body!=null) {
+            return super.encodeBody();
+        }
+        return coreResponse.toJSONBytes();
+    }
+}
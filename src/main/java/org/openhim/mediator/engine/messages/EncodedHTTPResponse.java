@@ -0,0 +1,44 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.engine.messages;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+/**
+ * An http response with a body that has already been encoded as UTF-8.
+ * <br/><br/>
+ * The bytes are written to the client as is. The body string is only decoded if {@link #getBody()} is called.
+ * The buffer must not be modified once the response has been sent.
+ */
+public class EncodedHTTPResponse extends MediatorHTTPResponse {
+    private final ByteBuffer encodedBody;
+    private volatile String body;
+
+    public EncodedHTTPResponse(MediatorHTTPRequest originalRequest, ByteBuffer encodedBody, Integer statusCode, Map<String, String> headers) {
+        super(originalRequest, null, statusCode, headers);
+        this.encodedBody = encodedBody;
+    }
+
+    public EncodedHTTPResponse(ByteBuffer encodedBody, Integer statusCode, Map<String, String> headers) {
+        this(null, encodedBody, statusCode, headers);
+    }
+
+
+    @Override
+    public String getBody() {
+        if (body==null && encodedBody!=null) {
+            body = UTF8.decode(encodedBody.duplicate()).toString();
+        }
+        return body;
+    }
+
+    @Override
+    protected ByteBuffer encodeBody() {
+        return encodedBody;
+    }
+}
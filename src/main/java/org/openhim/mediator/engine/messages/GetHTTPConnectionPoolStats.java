@@ -0,0 +1,20 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.engine.messages;
+
+import akka.actor.ActorRef;
+
+/**
+ * Request the current connection pool statistics from the {@link org.openhim.mediator.engine.connectors.HTTPConnector}.
+ *
+ * @see HTTPConnectionPoolStats
+ */
+public class GetHTTPConnectionPoolStats extends MediatorRequestMessage {
+    public GetHTTPConnectionPoolStats(ActorRef requestHandler, ActorRef respondTo) {
+        super(requestHandler, respondTo);
+    }
+}
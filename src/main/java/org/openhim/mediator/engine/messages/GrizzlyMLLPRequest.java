@@ -0,0 +1,52 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.engine.messages;
+
+/**
+ * A message received on the inbound MLLP listener.
+ *
+ * @see org.openhim.mediator.engine.MediatorConfig.MLLPListener
+ */
+public class GrizzlyMLLPRequest {
+    /**
+     * Sends a response message back to the sender
+     */
+    public interface ResponseHandle {
+        void respond(String message);
+    }
+
+    private final String message;
+    private final String localHost;
+    private final int localPort;
+    private final ResponseHandle responseHandle;
+
+    public GrizzlyMLLPRequest(String message, String localHost, int localPort, ResponseHandle responseHandle) {
+        this.message = message;
+        this.localHost = localHost;
+        this.localPort = localPort;
+        this.responseHandle = responseHandle;
+    }
+
+    /**
+     * @return The received message, without the MLLP header and footer
+     */
+    public String getMessage() {
+        return message;
+    }
+
+    public String getLocalHost() {
+        return localHost;
+    }
+
+    public int getLocalPort() {
+        return localPort;
+    }
+
+    public ResponseHandle getResponseHandle() {
+        return responseHandle;
+    }
+}
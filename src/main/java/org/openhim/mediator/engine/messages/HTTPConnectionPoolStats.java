@@ -0,0 +1,64 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.engine.messages;
+
+/**
+ * A snapshot of the http-connector connection pool.
+ *
+ * @see GetHTTPConnectionPoolStats
+ */
+public class HTTPConnectionPoolStats extends MediatorResponseMessage {
+    private final int leased;
+    private final int pending;
+    private final int available;
+    private final int max;
+    private final int routes;
+
+    public HTTPConnectionPoolStats(MediatorRequestMessage originalRequest, int leased, int pending, int available, int max, int routes) {
+        super(originalRequest);
+        this.leased = leased;
+        this.pending = pending;
+        this.available = available;
+        this.max = max;
+        this.routes = routes;
+    }
+
+    /**
+     * The number of connections currently in use
+     */
+    public int getLeased() {
+        return leased;
+    }
+
+    /**
+     * The number of requests waiting for a connection
+     */
+    public int getPending() {
+        return pending;
+    }
+
+    /**
+     * The number of idle connections available for reuse
+     */
+    public int getAvailable() {
+        return available;
+    }
+
+    /**
+     * The maximum number of connections allowed
+     */
+    public int getMax() {
+        return max;
+    }
+
+    /**
+     * The number of routes (scheme, host and port) that currently have pooled connections
+     */
+    public int getRoutes() {
+        return routes;
+    }
+}
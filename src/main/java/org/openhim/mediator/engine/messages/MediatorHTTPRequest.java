@@ -8,6 +8,7 @@ package org.openhim.mediator.engine.messages;
 
 import akka.actor.ActorRef;
 import org.apache.commons.lang3.tuple.Pair;
+import org.openhim.mediator.engine.StreamingBody;
 
 import java.util.ArrayList;
 import java.util.Collections;
@@ -25,11 +26,31 @@ public class MediatorHTTPRequest extends MediatorRequestMessage {
     private final String body;
     private final Map<String, String> headers;
     private final List<Pair<String, String>> params;
+    private final StreamingBody streamingBody;
+    private final boolean singleFlight;
+    private final BodyMode responseBodyMode;
+
+    /**
+     * How the http-connector reads a response body
+     *
+     * @see #getResponseBodyMode()
+     */
+    public enum BodyMode {
+        /**
+         * Decode the body as a string, using the charset declared in the Content-Type header or UTF-8
+         */
+        STRING,
+        /**
+         * Read the body as bytes into a {@link StreamingBody}, without decoding it
+         */
+        BINARY
+    }
 
     private MediatorHTTPRequest(ActorRef requestHandler, ActorRef respondTo, String orchestration,
                                String method, String uri, String scheme, String host, Integer port, String path, String body,
-                               Map<String, String> headers, List<Pair<String, String>> params, String correlationId) {
-        super(requestHandler, respondTo, orchestration, correlationId);
+                               Map<String, String> headers, List<Pair<String, String>> params, String correlationId,
+                               StreamingBody streamingBody, boolean singleFlight, Integer timeoutMillis, BodyMode responseBodyMode) {
+        super(requestHandler, respondTo, orchestration, correlationId, timeoutMillis);
         this.method = method;
         this.uri = uri;
         this.scheme = scheme;
@@ -39,6 +60,9 @@ public class MediatorHTTPRequest extends MediatorRequestMessage {
         this.body = body;
         this.headers = headers;
         this.params = params;
+        this.streamingBody = streamingBody;
+        this.singleFlight = singleFlight;
+        this.responseBodyMode = responseBodyMode;
     }
 
     /**
@@ -47,7 +71,7 @@ public class MediatorHTTPRequest extends MediatorRequestMessage {
     public MediatorHTTPRequest(ActorRef requestHandler, ActorRef respondTo, String orchestration,
                                String method, String uri, String body, Map<String, String> headers, List<Pair<String, String>> params, String correlationId) {
         this(
-                requestHandler, respondTo, orchestration, method, uri, null, null, null, null, body, headers, params, correlationId
+                requestHandler, respondTo, orchestration, method, uri, null, null, null, null, body, headers, params, correlationId, null, false, null, BodyMode.STRING
         );
     }
 
@@ -58,7 +82,7 @@ public class MediatorHTTPRequest extends MediatorRequestMessage {
                                String method, String scheme, String host, Integer port, String path, String body,
                                Map<String, String> headers, List<Pair<String, String>> params, String correlationId) {
         this(
-                requestHandler, respondTo, orchestration, method, null, scheme, host, port, path, body, headers, params, correlationId
+                requestHandler, respondTo, orchestration, method, null, scheme, host, port, path, body, headers, params, correlationId, null, false, null, BodyMode.STRING
         );
     }
 
@@ -68,7 +92,7 @@ public class MediatorHTTPRequest extends MediatorRequestMessage {
     public MediatorHTTPRequest(ActorRef requestHandler, ActorRef respondTo, String orchestration,
                                String method, String uri, String body, Map<String, String> headers, List<Pair<String, String>> params) {
         this(
-                requestHandler, respondTo, orchestration, method, uri, null, null, null, null, body, headers, params, null
+                requestHandler, respondTo, orchestration, method, uri, null, null, null, null, body, headers, params, null, null, false, null, BodyMode.STRING
         );
     }
 
@@ -79,7 +103,7 @@ public class MediatorHTTPRequest extends MediatorRequestMessage {
                                String method, String scheme, String host, Integer port, String path, String body,
                                Map<String, String> headers, List<Pair<String, String>> params) {
         this(
-                requestHandler, respondTo, orchestration, method, null, scheme, host, port, path, body, headers, params, null
+                requestHandler, respondTo, orchestration, method, null, scheme, host, port, path, body, headers, params, null, null, false, null, BodyMode.STRING
         );
     }
 
@@ -89,7 +113,7 @@ public class MediatorHTTPRequest extends MediatorRequestMessage {
     public MediatorHTTPRequest(ActorRef requestHandler, ActorRef respondTo, String orchestration, String method, String uri) {
         this(
                 requestHandler, respondTo, orchestration, method, uri, null, null, null, null,
-                null, Collections.<String, String>emptyMap(), Collections.<Pair<String, String>>emptyList(), null
+                null, Collections.<String, String>emptyMap(), Collections.<Pair<String, String>>emptyList(), null, null, false, null, BodyMode.STRING
         );
     }
 
@@ -100,7 +124,7 @@ public class MediatorHTTPRequest extends MediatorRequestMessage {
                                String method, String scheme, String host, Integer port, String path) {
         this(
                 requestHandler, respondTo, orchestration, method, null, scheme, host, port, path,
-                null, Collections.<String, String>emptyMap(), Collections.<Pair<String, String>>emptyList(), null
+                null, Collections.<String, String>emptyMap(), Collections.<Pair<String, String>>emptyList(), null, null, false, null, BodyMode.STRING
         );
     }
 
@@ -121,7 +145,38 @@ public class MediatorHTTPRequest extends MediatorRequestMessage {
                 requestToCopy.getBody(),
                 copyOfHeaders(requestToCopy.getHeaders()),
                 requestToCopy.getParams()!=null ? new ArrayList<>(requestToCopy.getParams()) : null,
-                requestToCopy.getCorrelationId()
+                requestToCopy.getCorrelationId(),
+                requestToCopy.getStreamingBody(),
+                requestToCopy.isSingleFlight(),
+                requestToCopy.getTimeoutMillis(),
+                requestToCopy.getResponseBodyMode()
+        );
+    }
+
+    /**
+     * Copy constructor with a streaming body
+     *
+     * @see #getStreamingBody()
+     */
+    public MediatorHTTPRequest(MediatorHTTPRequest requestToCopy, StreamingBody streamingBody) {
+        this(
+                requestToCopy.getRequestHandler(),
+                requestToCopy.getRespondTo(),
+                requestToCopy.getOrchestration(),
+                requestToCopy.getMethod(),
+                requestToCopy.getUri(),
+                requestToCopy.getScheme(),
+                requestToCopy.getHost(),
+                requestToCopy.getPort(),
+                requestToCopy.getPath(),
+                requestToCopy.getBody(),
+                copyOfHeaders(requestToCopy.getHeaders()),
+                requestToCopy.getParams()!=null ? new ArrayList<>(requestToCopy.getParams()) : null,
+                requestToCopy.getCorrelationId(),
+                streamingBody,
+                requestToCopy.isSingleFlight(),
+                requestToCopy.getTimeoutMillis(),
+                requestToCopy.getResponseBodyMode()
         );
     }
 
@@ -142,7 +197,117 @@ public class MediatorHTTPRequest extends MediatorRequestMessage {
                 requestToCopy.getBody(),
                 copyOfHeaders(requestToCopy.getHeaders()),
                 requestToCopy.getParams()!=null ? new ArrayList<>(requestToCopy.getParams()) : null,
-                correlationId
+                correlationId,
+                requestToCopy.getStreamingBody(),
+                requestToCopy.isSingleFlight(),
+                requestToCopy.getTimeoutMillis(),
+                requestToCopy.getResponseBodyMode()
+        );
+    }
+
+    /**
+     * Copy constructor with a different requestHandler, respondTo and correlationId
+     */
+    public MediatorHTTPRequest(ActorRef requestHandler, ActorRef respondTo, String correlationId, MediatorHTTPRequest requestToCopy) {
+        this(
+                requestHandler,
+                respondTo,
+                requestToCopy.getOrchestration(),
+                requestToCopy.getMethod(),
+                requestToCopy.getUri(),
+                requestToCopy.getScheme(),
+                requestToCopy.getHost(),
+                requestToCopy.getPort(),
+                requestToCopy.getPath(),
+                requestToCopy.getBody(),
+                copyOfHeaders(requestToCopy.getHeaders()),
+                requestToCopy.getParams()!=null ? new ArrayList<>(requestToCopy.getParams()) : null,
+                correlationId,
+                requestToCopy.getStreamingBody(),
+                requestToCopy.isSingleFlight(),
+                requestToCopy.getTimeoutMillis(),
+                requestToCopy.getResponseBodyMode()
+        );
+    }
+
+    /**
+     * Copy constructor with single-flight enabled or disabled
+     *
+     * @see #isSingleFlight()
+     */
+    public MediatorHTTPRequest(MediatorHTTPRequest requestToCopy, boolean singleFlight) {
+        this(
+                requestToCopy.getRequestHandler(),
+                requestToCopy.getRespondTo(),
+                requestToCopy.getOrchestration(),
+                requestToCopy.getMethod(),
+                requestToCopy.getUri(),
+                requestToCopy.getScheme(),
+                requestToCopy.getHost(),
+                requestToCopy.getPort(),
+                requestToCopy.getPath(),
+                requestToCopy.getBody(),
+                copyOfHeaders(requestToCopy.getHeaders()),
+                requestToCopy.getParams()!=null ? new ArrayList<>(requestToCopy.getParams()) : null,
+                requestToCopy.getCorrelationId(),
+                requestToCopy.getStreamingBody(),
+                singleFlight,
+                requestToCopy.getTimeoutMillis(),
+                requestToCopy.getResponseBodyMode()
+        );
+    }
+
+    /**
+     * Copy constructor with a timeout
+     *
+     * @see #getTimeoutMillis()
+     */
+    public MediatorHTTPRequest(MediatorHTTPRequest requestToCopy, int timeoutMillis) {
+        this(
+                requestToCopy.getRequestHandler(),
+                requestToCopy.getRespondTo(),
+                requestToCopy.getOrchestration(),
+                requestToCopy.getMethod(),
+                requestToCopy.getUri(),
+                requestToCopy.getScheme(),
+                requestToCopy.getHost(),
+                requestToCopy.getPort(),
+                requestToCopy.getPath(),
+                requestToCopy.getBody(),
+                copyOfHeaders(requestToCopy.getHeaders()),
+                requestToCopy.getParams()!=null ? new ArrayList<>(requestToCopy.getParams()) : null,
+                requestToCopy.getCorrelationId(),
+                requestToCopy.getStreamingBody(),
+                requestToCopy.isSingleFlight(),
+                timeoutMillis,
+                requestToCopy.getResponseBodyMode()
+        );
+    }
+
+    /**
+     * Copy constructor with a response body mode
+     *
+     * @see #getResponseBodyMode()
+     */
+    public MediatorHTTPRequest(MediatorHTTPRequest requestToCopy, BodyMode responseBodyMode) {
+        this(
+                requestToCopy.getRequestHandler(),
+                requestToCopy.getRespondTo(),
+                requestToCopy.getOrchestration(),
+                requestToCopy.getMethod(),
+                requestToCopy.getUri(),
+                requestToCopy.getScheme(),
+                requestToCopy.getHost(),
+                requestToCopy.getPort(),
+                requestToCopy.getPath(),
+                requestToCopy.getBody(),
+                copyOfHeaders(requestToCopy.getHeaders()),
+                requestToCopy.getParams()!=null ? new ArrayList<>(requestToCopy.getParams()) : null,
+                requestToCopy.getCorrelationId(),
+                requestToCopy.getStreamingBody(),
+                requestToCopy.isSingleFlight(),
+                requestToCopy.getTimeoutMillis(),
+                responseBodyMode
         );
     }
 
@@ -183,6 +348,19 @@ public class MediatorHTTPRequest extends MediatorRequestMessage {
         return body;
     }
 
+    /**
+     * The request body as bytes, for routes that have streaming bodies enabled.
+     * For these requests {@link #getBody()} will be null.
+     * <br/><br/>
+     * The http-connector sends a streaming body as is, so binary documents can be sent upstream without being
+     * decoded. Use {@link StreamingBody#wrap(byte[])} to send a byte array.
+     *
+     * @see org.openhim.mediator.engine.RoutingTable.RouteOptions#setStreamingBody(boolean)
+     */
+    public StreamingBody getStreamingBody() {
+        return streamingBody;
+    }
+
     public Map<String, String> getHeaders() {
         return headers;
     }
@@ -190,4 +368,28 @@ public class MediatorHTTPRequest extends MediatorRequestMessage {
     public List<Pair<String,String>> getParams() {
         return params;
     }
+
+    /**
+     * If true, the http-connector will share a single upstream call between this request and any identical
+     * requests that are in flight at the same time, and all of the requests will receive the same response.
+     * Only applies to GET requests; requests are identical if they have the same URI, parameters and headers.
+     * Each request still times out at its own deadline, and the shared call continues until the latest deadline of
+     * the requests waiting on it.
+     * Disabled by default.
+     */
+    public boolean isSingleFlight() {
+        return singleFlight;
+    }
+
+    /**
+     * If {@link BodyMode#BINARY}, the http-connector responds with a {@link StreamingHTTPResponse}, with the
+     * response body read as bytes. Large bodies are spilled to disk, so binary documents such as PDFs or images
+     * can be received with constant memory. Defaults to {@link BodyMode#STRING}.
+     * <br/><br/>
+     * Binary responses are never cached or shared between single-flight requests, and their bodies aren't
+     * recorded in orchestrations.
+     */
+    public BodyMode getResponseBodyMode() {
+        return responseBodyMode;
+    }
 }
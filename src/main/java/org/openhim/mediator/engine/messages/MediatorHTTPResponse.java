@@ -6,13 +6,18 @@
 
 package org.openhim.mediator.engine.messages;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import java.util.Map;
 import java.util.TreeMap;
 
 public class MediatorHTTPResponse extends MediatorResponseMessage {
+    protected static final Charset UTF8 = Charset.forName("UTF-8");
+
     private final String body;
     private final Integer statusCode;
     private final Map<String, String> headers;
+    private volatile ByteBuffer encodedBody;
 
     public MediatorHTTPResponse(MediatorHTTPRequest originalRequest, String body, Integer statusCode, Map<String, String> headers) {
         super(originalRequest);
@@ -30,6 +35,28 @@ public class MediatorHTTPResponse extends MediatorResponseMessage {
         return body;
     }
 
+    /**
+     * The body encoded as UTF-8, or null if there is no body.
+     * <br/><br/>
+     * The body is only encoded once. Each call returns a new view of the same bytes, so that it can be written
+     * straight into an output buffer.
+     */
+    public ByteBuffer getEncodedBody() {
+        if (encodedBody==null) {
+            encodedBody = encodeBody();
+        }
+        return encodedBody!=null ? encodedBody.duplicate() : null;
+    }
+
+    /**
+     * Encode the body as UTF-8. Subclasses with a different representation of the body can override this
+     * to avoid building the body string.
+     */
+    protected ByteBuffer encodeBody() {
+        String body = getBody();
+        return body!=null ? ByteBuffer.wrap(body.getBytes(UTF8)) : null;
+    }
+
     public Integer getStatusCode() {
         return statusCode;
     }
@@ -56,8 +83,9 @@ public class MediatorHTTPResponse extends MediatorResponseMessage {
      */
     public FinishRequest toFinishRequest(boolean includeHeaders) {
         if (includeHeaders) {
-            return new FinishRequest(body, copyHeaders(headers), statusCode);
+            return new FinishRequest(getBody(), copyHeaders(headers), statusCode);
         } else {
+            String body = getBody();
             String mime = null;
             if (body!=null) {
                 mime = "text/plain";
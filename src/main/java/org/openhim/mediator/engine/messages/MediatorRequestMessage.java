@@ -16,12 +16,18 @@ public abstract class MediatorRequestMessage {
     private final ActorRef respondTo;
     private final String correlationId;
     private final String orchestration;
+    private final Integer timeoutMillis;
 
-    public MediatorRequestMessage(ActorRef requestHandler, ActorRef respondTo, String orchestration, String correlationId) {
+    public MediatorRequestMessage(ActorRef requestHandler, ActorRef respondTo, String orchestration, String correlationId, Integer timeoutMillis) {
         this.requestHandler = requestHandler;
         this.respondTo = respondTo;
         this.orchestration = orchestration;
         this.correlationId = correlationId;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    public MediatorRequestMessage(ActorRef requestHandler, ActorRef respondTo, String orchestration, String correlationId) {
+        this(requestHandler, respondTo, orchestration, correlationId, null);
     }
 
     public MediatorRequestMessage(ActorRef requestHandler, ActorRef respondTo, String orchestration) {
@@ -47,4 +53,14 @@ public abstract class MediatorRequestMessage {
     public String getCorrelationId() {
         return correlationId;
     }
+
+    /**
+     * The maximum time that a connector may take to complete the request, or null to use the connector defaults.
+     * The time is also limited by the time remaining before the deadline of the request being handled, if any.
+     *
+     * @see org.openhim.mediator.engine.RequestDeadlines
+     */
+    public Integer getTimeoutMillis() {
+        return timeoutMillis;
+    }
 }
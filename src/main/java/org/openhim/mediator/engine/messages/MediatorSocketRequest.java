@@ -14,14 +14,21 @@ public class MediatorSocketRequest extends MediatorRequestMessage {
     private final String body;
     private final boolean secure;
 
-    public MediatorSocketRequest(ActorRef requestHandler, ActorRef respondTo, String orchestration, String correlationId, String host, Integer port, String body, boolean secure) {
-        super(requestHandler, respondTo, orchestration, correlationId);
+    /**
+     * @param timeoutMillis The maximum time to wait for the connection and the response, or null to use the connector defaults
+     */
+    public MediatorSocketRequest(ActorRef requestHandler, ActorRef respondTo, String orchestration, String correlationId, String host, Integer port, String body, boolean secure, Integer timeoutMillis) {
+        super(requestHandler, respondTo, orchestration, correlationId, timeoutMillis);
         this.host = host;
         this.port = port;
         this.body = body;
         this.secure = secure;
     }
 
+    public MediatorSocketRequest(ActorRef requestHandler, ActorRef respondTo, String orchestration, String correlationId, String host, Integer port, String body, boolean secure) {
+        this(requestHandler, respondTo, orchestration, correlationId, host, port, body, secure, null);
+    }
+
     public MediatorSocketRequest(ActorRef requestHandler, ActorRef respondTo, String orchestration, String correlationId, String host, Integer port, String body) {
         this(requestHandler, respondTo, orchestration, correlationId, host, port, body, false);
     }
@@ -0,0 +1,50 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.engine.messages;
+
+/**
+ * Queue an update for a transaction in core with the transaction-update-dispatcher.
+ * <br/><br/>
+ * The dispatcher responds with {@link QueueTransactionUpdateResponse}.
+ */
+public class QueueTransactionUpdate {
+    private final String transactionId;
+    private final String body;
+    private final boolean partial;
+
+    /**
+     * @param transactionId The core transaction ID
+     * @param body The serialized {@link org.openhim.mediator.engine.CoreResponse}
+     */
+    public QueueTransactionUpdate(String transactionId, String body) {
+        this(transactionId, body, false);
+    }
+
+    /**
+     * @param transactionId The core transaction ID
+     * @param body The serialized {@link org.openhim.mediator.engine.CoreResponse}
+     * @param partial Whether the update only adds to the transaction, e.g. a single orchestration.
+     *                Partial updates are sent as is rather than being coalesced with other updates for the transaction.
+     */
+    public QueueTransactionUpdate(String transactionId, String body, boolean partial) {
+        this.transactionId = transactionId;
+        this.body = body;
+        this.partial = partial;
+    }
+
+    public String getTransactionId() {
+        return transactionId;
+    }
+
+    public String getBody() {
+        return body;
+    }
+
+    public boolean isPartial() {
+        return partial;
+    }
+}
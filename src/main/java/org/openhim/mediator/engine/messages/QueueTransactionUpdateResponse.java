@@ -0,0 +1,31 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.engine.messages;
+
+/**
+ * The response to {@link QueueTransactionUpdate}.
+ * <br/><br/>
+ * If the update wasn't queued because the queue is full, it should be offered again after
+ * {@link #getRetryAfterMillis()}.
+ */
+public class QueueTransactionUpdateResponse {
+    private final boolean queued;
+    private final long retryAfterMillis;
+
+    public QueueTransactionUpdateResponse(boolean queued, long retryAfterMillis) {
+        this.queued = queued;
+        this.retryAfterMillis = retryAfterMillis;
+    }
+
+    public boolean isQueued() {
+        return queued;
+    }
+
+    public long getRetryAfterMillis() {
+        return retryAfterMillis;
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.engine.messages;
+
+import org.openhim.mediator.engine.StreamingBody;
+
+import java.util.Map;
+
+/**
+ * An http response with a body that is kept as bytes, for requests with a binary response body mode.
+ * {@link #getBody()} is always null.
+ * <br/><br/>
+ * The receiver owns the body, and must release it using {@link StreamingBody#release()} when it's no longer needed.
+ *
+ * @see MediatorHTTPRequest#getResponseBodyMode()
+ */
+public class StreamingHTTPResponse extends MediatorHTTPResponse {
+    private final StreamingBody streamingBody;
+
+    public StreamingHTTPResponse(MediatorHTTPRequest originalRequest, StreamingBody streamingBody, Integer statusCode, Map<String, String> headers) {
+        super(originalRequest, null, statusCode, headers);
+        this.streamingBody = streamingBody;
+    }
+
+    public StreamingHTTPResponse(StreamingBody streamingBody, Integer statusCode, Map<String, String> headers) {
+        this(null, streamingBody, statusCode, headers);
+    }
+
+
+    /**
+     * The response body, or null if the response has no body
+     */
+    public StreamingBody getStreamingBody() {
+        return streamingBody;
+    }
+}
@@ -0,0 +1,31 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.engine.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A monotonically increasing count
+ */
+public class Counter implements Metric {
+    private final AtomicLong count = new AtomicLong();
+
+    public void inc() {
+        count.incrementAndGet();
+    }
+
+    public void inc(long n) {
+        if (n < 0) {
+            throw new IllegalArgumentException("Counters can only be increased");
+        }
+        count.addAndGet(n);
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.engine.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A value that can go up and down.
+ * <br/><br/>
+ * The value can either be set directly, or {@link #getValue()} can be overridden to sample a value
+ * when the metrics are read, e.g.
+ * <pre>
+ * registry.register("queue_size", "The queue size", new Gauge() {
+ *     public double getValue() {
+ *         return queue.size();
+ *     }
+ * });
+ * </pre>
+ */
+public class Gauge implements Metric {
+    private final AtomicLong value = new AtomicLong();
+
+    public void set(long value) {
+        this.value.set(value);
+    }
+
+    public void inc() {
+        value.incrementAndGet();
+    }
+
+    public void dec() {
+        value.decrementAndGet();
+    }
+
+    public double getValue() {
+        return value.get();
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.engine.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of non-negative values, using HDR-style log-linear buckets.
+ * <br/><br/>
+ * Values below 128 are counted exactly. Larger values are counted in buckets of which the width doubles with every
+ * power of two, with 64 buckets per power of two, so that quantiles are accurate to within 1.6%.
+ * Values larger than the highest trackable value are counted as the highest trackable value.
+ * <br/><br/>
+ * Latencies are recorded in microseconds, see {@link #recordNanos(long)}.
+ */
+public class Histogram implements Metric {
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int SUB_BUCKET_HALF = SUB_BUCKET_COUNT / 2;
+
+    /**
+     * One hour in microseconds
+     */
+    public static final long DEFAULT_HIGHEST_TRACKABLE_VALUE = TimeUnit.HOURS.toMicros(1);
+
+    private final long highestTrackableValue;
+    private final AtomicLongArray counts;
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+
+    public Histogram() {
+        this(DEFAULT_HIGHEST_TRACKABLE_VALUE);
+    }
+
+    public Histogram(long highestTrackableValue) {
+        if (highestTrackableValue < SUB_BUCKET_COUNT) {
+            throw new IllegalArgumentException("Highest trackable value must be at least " + SUB_BUCKET_COUNT);
+        }
+        this.highestTrackableValue = highestTrackableValue;
+        this.counts = new AtomicLongArray(bucketIndex(highestTrackableValue) + 1);
+    }
+
+
+    static int bucketIndex(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        int shift = (63 - Long.numberOfLeadingZeros(value)) - (SUB_BUCKET_BITS - 1);
+        return shift * SUB_BUCKET_HALF + (int) (value >>> shift);
+    }
+
+    /**
+     * @return The highest value that is counted in a bucket
+     */
+    static long highestValueInBucket(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int shift = index / SUB_BUCKET_HALF - 1;
+        long subBucket = index - shift * SUB_BUCKET_HALF;
+        return ((subBucket + 1) << shift) - 1;
+    }
+
+    public void record(long value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("Histograms only accept non-negative values");
+        }
+        long v = Math.min(value, highestTrackableValue);
+
+        counts.incrementAndGet(bucketIndex(v));
+        count.incrementAndGet();
+        sum.addAndGet(v);
+
+        long currentMax = max.get();
+        while (v > currentMax && !max.compareAndSet(currentMax, v)) {
+            currentMax = max.get();
+        }
+    }
+
+    /**
+     * Record a duration in microseconds
+     */
+    public void recordNanos(long nanos) {
+        record(TimeUnit.NANOSECONDS.toMicros(Math.max(0, nanos)));
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getSum() {
+        return sum.get();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * @param quantile A value between 0 and 1
+     * @return The value below which the given fraction of recorded values fall, or 0 if nothing has been recorded
+     */
+    public long getValueAtQuantile(double quantile) {
+        long total = count.get();
+        if (total == 0) {
+            return 0;
+        }
+
+        long target = Math.max(1, (long) Math.ceil(Math.min(1.0, Math.max(0.0, quantile)) * total));
+        long cumulative = 0;
+        for (int i=0; i<counts.length(); i++) {
+            cumulative += counts.get(i);
+            if (cumulative >= target) {
+                return Math.min(highestValueInBucket(i), max.get());
+            }
+        }
+        return max.get();
+    }
+}
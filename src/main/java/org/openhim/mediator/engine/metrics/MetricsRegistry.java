@@ -0,0 +1,247 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.engine.metrics;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * A registry of named metrics.
+ * <br/><br/>
+ * Metrics are identified by a name and an optional set of labels, passed as alternating label names and values:
+ * <pre>
+ * registry.counter("mediator_requests_total", "Requests received", "route", "/patients", "status", "200").inc();
+ * </pre>
+ * All metrics with the same name form a family, which must be of a single type.
+ * The registry can be written in the Prometheus text exposition format using {@link #writePrometheus(Appendable)}.
+ * <br/><br/>
+ * The registry is thread-safe.
+ */
+public class MetricsRegistry {
+    public static final String PROMETHEUS_CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+    private enum Type {
+        COUNTER("counter"), GAUGE("gauge"), HISTOGRAM("summary");
+
+        final String prometheusType;
+
+        Type(String prometheusType) {
+            this.prometheusType = prometheusType;
+        }
+    }
+
+    private static class Family {
+        final String name;
+        final String help;
+        final Type type;
+        //ordered by labels for stable output
+        final ConcurrentMap<String, Metric> metrics = new ConcurrentSkipListMap<>();
+
+        Family(String name, String help, Type type) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+        }
+    }
+
+    private final ConcurrentMap<String, Family> families = new ConcurrentSkipListMap<>();
+
+
+    /**
+     * Get or create a counter
+     */
+    public Counter counter(String name, String help, String... labels) {
+        Counter counter = (Counter) get(name, Type.COUNTER, labels);
+        if (counter == null) {
+            counter = (Counter) register(name, help, Type.COUNTER, new Counter(), labels);
+        }
+        return counter;
+    }
+
+    /**
+     * Get or create a gauge
+     */
+    public Gauge gauge(String name, String help, String... labels) {
+        Gauge gauge = (Gauge) get(name, Type.GAUGE, labels);
+        if (gauge == null) {
+            gauge = (Gauge) register(name, help, Type.GAUGE, new Gauge(), labels);
+        }
+        return gauge;
+    }
+
+    /**
+     * Get or create a histogram for recording latencies, using {@link Histogram#recordNanos(long)}.
+     * The latencies are exported in seconds.
+     */
+    public Histogram histogram(String name, String help, String... labels) {
+        Histogram histogram = (Histogram) get(name, Type.HISTOGRAM, labels);
+        if (histogram == null) {
+            histogram = (Histogram) register(name, help, Type.HISTOGRAM, new Histogram(), labels);
+        }
+        return histogram;
+    }
+
+    /**
+     * Register a gauge, replacing any existing gauge with the same name and labels.
+     * This can be used for gauges that sample their value when read.
+     *
+     * @see Gauge
+     */
+    public void register(String name, String help, Gauge gauge, String... labels) {
+        family(name, help, Type.GAUGE).metrics.put(renderLabels(labels), gauge);
+    }
+
+    /**
+     * Remove a metric
+     */
+    public void remove(String name, String... labels) {
+        Family family = families.get(name);
+        if (family != null) {
+            family.metrics.remove(renderLabels(labels));
+        }
+    }
+
+    private Metric get(String name, Type type, String[] labels) {
+        Family family = families.get(name);
+        if (family == null) {
+            return null;
+        }
+        checkType(family, type);
+        return family.metrics.get(renderLabels(labels));
+    }
+
+    private Metric register(String name, String help, Type type, Metric metric, String[] labels) {
+        Metric existing = family(name, help, type).metrics.putIfAbsent(renderLabels(labels), metric);
+        return existing != null ? existing : metric;
+    }
+
+    private Family family(String name, String help, Type type) {
+        Family family = families.get(name);
+        if (family == null) {
+            Family newFamily = new Family(name, help, type);
+            family = families.putIfAbsent(name, newFamily);
+            if (family == null) {
+                family = newFamily;
+            }
+        }
+        checkType(family, type);
+        return family;
+    }
+
+    private static void checkType(Family family, Type type) {
+        if (family.type != type) {
+            throw new IllegalArgumentException("Metric " + family.name + " is already registered as a " + family.type.prometheusType);
+        }
+    }
+
+    private static String renderLabels(String[] labels) {
+        if (labels == null || labels.length == 0) {
+            return "";
+        }
+        if (labels.length % 2 != 0) {
+            throw new IllegalArgumentException("Labels must be specified as name and value pairs");
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for (int i=0; i<labels.length; i+=2) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(labels[i]).append("=\"");
+            escapeLabelValue(labels[i+1] != null ? labels[i+1] : "", sb);
+            sb.append('"');
+        }
+        return sb.toString();
+    }
+
+    private static void escapeLabelValue(String value, StringBuilder sb) {
+        for (int i=0; i<value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '"':
+                    sb.append("\\\"");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                default:
+                    sb.append(c);
+            }
+        }
+    }
+
+
+    /**
+     * Write all metrics in the Prometheus text exposition format (version 0.0.4).
+     * Histograms are written as summaries.
+     */
+    public void writePrometheus(Appendable out) throws IOException {
+        for (Family family : families.values()) {
+            if (family.metrics.isEmpty()) {
+                continue;
+            }
+
+            out.append("# HELP ").append(family.name).append(' ').append(escapeHelp(family.help)).append('\n');
+            out.append("# TYPE ").append(family.name).append(' ').append(family.type.prometheusType).append('\n');
+
+            for (Map.Entry<String, Metric> entry : family.metrics.entrySet()) {
+                String labels = entry.getKey();
+                Metric metric = entry.getValue();
+
+                if (metric instanceof Counter) {
+                    writeSample(out, family.name, labels, null, Long.toString(((Counter) metric).getCount()));
+                } else if (metric instanceof Gauge) {
+                    writeSample(out, family.name, labels, null, formatDouble(((Gauge) metric).getValue()));
+                } else if (metric instanceof Histogram) {
+                    Histogram histogram = (Histogram) metric;
+                    for (double q : QUANTILES) {
+                        writeSample(out, family.name, labels, "quantile=\"" + q + "\"", microsToSeconds(histogram.getValueAtQuantile(q)));
+                    }
+                    writeSample(out, family.name + "_sum", labels, null, microsToSeconds(histogram.getSum()));
+                    writeSample(out, family.name + "_count", labels, null, Long.toString(histogram.getCount()));
+                }
+            }
+        }
+    }
+
+    private static void writeSample(Appendable out, String name, String labels, String extraLabel, String value) throws IOException {
+        out.append(name);
+        if (!labels.isEmpty() || extraLabel != null) {
+            out.append('{').append(labels);
+            if (extraLabel != null) {
+                if (!labels.isEmpty()) {
+                    out.append(',');
+                }
+                out.append(extraLabel);
+            }
+            out.append('}');
+        }
+        out.append(' ').append(value).append('\n');
+    }
+
+    private static String microsToSeconds(long micros) {
+        return formatDouble(micros / 1000000.0);
+    }
+
+    private static String formatDouble(double value) {
+        if (value == Math.rint(value) && !Double.isInfinite(value) && Math.abs(value) < 1e15) {
+            return Long.toString((long) value);
+        }
+        return Double.toString(value);
+    }
+
+    private static String escapeHelp(String help) {
+        return help == null ? "" : help.replace("\\", "\\\\").replace("\n", "\\n");
+    }
+}
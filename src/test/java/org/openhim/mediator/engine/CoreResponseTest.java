@@ -10,6 +10,8 @@ import org.apache.commons.io.IOUtils;
 import org.junit.Test;
 
 import java.io.InputStream;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
 import java.text.SimpleDateFormat;
 import java.util.TimeZone;
 
@@ -87,4 +89,38 @@ public class CoreResponseTest {
             //expected
         }
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testWriteJSON() throws Exception {
+        InputStream in = CoreResponseTest.class.getClassLoader().getResourceAsStream("core-response.json");
+        CoreResponse response = CoreResponse.parse(IOUtils.toString(in));
+
+        StringWriter writer = new StringWriter();
+        response.writeJSON(writer);
+        assertEquals(response.toJSON(), writer.toString());
+
+        CoreResponse parsed = CoreResponse.parse(writer.toString());
+        assertEquals(response.getUrn(), parsed.getUrn());
+        assertEquals(response.getResponse().getTimestamp(), parsed.getResponse().getTimestamp());
+        assertEquals(2, parsed.getOrchestrations().size());
+        assertEquals(
+                response.getOrchestrations().get(1).getResponse().getTimestamp(),
+                parsed.getOrchestrations().get(1).getResponse().getTimestamp()
+        );
+    }
+
+    @Test
+    public void testToJSONBytes() throws Exception {
+        InputStream in = CoreResponseTest.class.getClassLoader().getResourceAsStream("core-response.json");
+        CoreResponse response = CoreResponse.parse(IOUtils.toString(in));
+        response.getResponse().setBody("caf\u00e9 \u2713");
+
+        ByteBuffer bytes = response.toJSONBytes();
+        byte[] expected = response.toJSON().getBytes("UTF-8");
+        assertEquals(expected.length, bytes.remaining());
+
+        byte[] actual = new byte[bytes.remaining()];
+        bytes.get(actual);
+        assertArrayEquals(expected, actual);
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.engine;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class HL7AcknowledgementTest {
+    private static final String MESSAGE =
+            "MSH#^~\\&#APP#FAC#OTHER_APP#OTHER_FAC#20160101120000##ORU^R01^ORU_R01#CTRL42#T#2.3.1\r" +
+            "PID###12345\r";
+
+    @Test
+    public void testGenerate() throws Exception {
+        String[] ack = HL7Acknowledgement.generate(MESSAGE, HL7Acknowledgement.AA, null).split("\r");
+
+        assertEquals(2, ack.length);
+        String[] msh = ack[0].split("#", -1);
+        assertEquals("MSH", msh[0]);
+        assertEquals("^~\\&", msh[1]);
+        assertEquals("OTHER_APP", msh[2]);
+        assertEquals("OTHER_FAC", msh[3]);
+        assertEquals("APP", msh[4]);
+        assertEquals("FAC", msh[5]);
+        assertEquals("ACK^R01^ACK", msh[8]);
+        assertEquals("T", msh[10]);
+        assertEquals("2.3.1", msh[11]);
+        assertEquals("MSA#AA#CTRL42", ack[1]);
+    }
+
+    @Test
+    public void testGenerate_EscapesText() throws Exception {
+        String[] ack = HL7Acknowledgement.generate(MESSAGE, HL7Acknowledgement.AE, "bad field # and ^ component").split("\r");
+        assertEquals("MSA#AE#CTRL42#bad field \\F\\ and \\S\\ component", ack[1]);
+    }
+
+    @Test
+    public void testGenerate_NotHL7() throws Exception {
+        String[] ack = HL7Acknowledgement.generate("not hl7", HL7Acknowledgement.AR, "error").split("\r");
+        assertTrue(ack[0].startsWith("MSH|^~\\&|"));
+        assertEquals("MSA|AR||error", ack[1]);
+    }
+
+    @Test
+    public void testCodeForStatus() throws Exception {
+        assertEquals(HL7Acknowledgement.AA, HL7Acknowledgement.codeForStatus(200));
+        assertEquals(HL7Acknowledgement.AA, HL7Acknowledgement.codeForStatus(202));
+        assertEquals(HL7Acknowledgement.AE, HL7Acknowledgement.codeForStatus(400));
+        assertEquals(HL7Acknowledgement.AR, HL7Acknowledgement.codeForStatus(500));
+        assertEquals(HL7Acknowledgement.AR, HL7Acknowledgement.codeForStatus(null));
+    }
+}
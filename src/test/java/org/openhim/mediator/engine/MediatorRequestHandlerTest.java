@@ -187,6 +187,61 @@ public class MediatorRequestHandlerTest {
         }};
     }
 
+    private static class MockTransactionUpdateDispatcher extends UntypedActor {
+        static volatile QueueTransactionUpdate received;
+        private boolean rejectedOnce = false;
+
+        @Override
+        public void onReceive(Object msg) throws Exception {
+            if (msg instanceof QueueTransactionUpdate) {
+                //simulate a full queue on the first attempt
+                if (!rejectedOnce) {
+                    rejectedOnce = true;
+                    getSender().tell(new QueueTransactionUpdateResponse(false, 100), getSelf());
+                } else {
+                    received = (QueueTransactionUpdate) msg;
+                    getSender().tell(new QueueTransactionUpdateResponse(true, 0), getSelf());
+                }
+            } else {
+                unhandled(msg);
+            }
+        }
+    }
+
+    @Test
+    public void testMessage_AsyncRoutingWithTransactionUpdateDispatcher() throws Exception {
+        new JavaTestKit(system) {{
+            testConfig.getTransactionUpdates().setEnabled(true);
+            MockLauncher.ActorToLaunch mockDispatcher = new MockLauncher.ActorToLaunch("transaction-update-dispatcher", MockTransactionUpdateDispatcher.class);
+            TestingUtils.launchActors(system, testConfig.getName(), Collections.singletonList(mockDispatcher));
+
+            RoutingTable table = new RoutingTable();
+            table.addRoute("/test", AsyncRoutingMock.class);
+            testConfig.setRoutingTable(table);
+
+            TestActorRef<MediatorRequestHandler> actor = TestActorRef.create(system, Props.create(MediatorRequestHandler.class, testConfig));
+            watch(actor);
+
+            MediatorHTTPRequest testSession = new MediatorHTTPRequest(
+                    actor, getRef(), "/test", "GET", "http", "localhost", 1234, "/test", null, Collections.singletonMap("X-OpenHIM-TransactionID", "test-async"), null
+            );
+            actor.tell(testSession, getRef());
+
+            MediatorHTTPResponse response = expectMsgClass(Duration.create(1, TimeUnit.SECONDS), MediatorHTTPResponse.class);
+            assertTrue(response.getBody().contains("\"status\":202"));
+
+            //the handler should offer the update again after being rejected and stop once it's queued
+            expectTerminated(Duration.create(2, TimeUnit.SECONDS), actor);
+
+            QueueTransactionUpdate update = MockTransactionUpdateDispatcher.received;
+            assertNotNull(update);
+            assertEquals("test-async", update.getTransactionId());
+            assertTrue(update.getBody().contains("\"body\":\"async-routing\""));
+
+            TestingUtils.clearRootContext(system, testConfig.getName());
+        }};
+    }
+
     private static class ErrorRoutingMock extends MockRouteActor {
         public static class TestException extends Exception {
             public TestException() {
@@ -223,6 +278,46 @@ public class MediatorRequestHandlerTest {
         }};
     }
 
+    private static class UnresponsiveRoutingMock extends MockRouteActor {
+        @Override
+        public void executeOnReceive(MediatorHTTPRequest msg) {
+            //never finishes the request
+        }
+    }
+
+    @Test
+    public void testMessage_RouteTimeout() throws Exception {
+        new JavaTestKit(system) {{
+            RoutingTable.RouteOptions options = new RoutingTable.RouteOptions();
+            options.setTimeoutMillis(200);
+            RoutingTable table = new RoutingTable();
+            table.addRoute("/test", UnresponsiveRoutingMock.class, options);
+            testConfig.setRoutingTable(table);
+
+            TestActorRef<MediatorRequestHandler> actor = TestActorRef.create(system, Props.create(MediatorRequestHandler.class, testConfig));
+            MediatorHTTPRequest testSession = new MediatorHTTPRequest(actor, getRef(), "/test", "GET", "http", "localhost", 1234, "/test");
+            actor.tell(testSession, getRef());
+
+            Long deadline = testConfig.getRequestDeadlines().get(actor);
+            assertNotNull("The deadline should be registered for outbound calls", deadline);
+            assertTrue(deadline <= System.currentTimeMillis() + 200);
+
+            MediatorHTTPResponse response = expectMsgClass(Duration.create(1, TimeUnit.SECONDS), MediatorHTTPResponse.class);
+
+            String body = response.getBody();
+            assertTrue("Expect status 504 Gateway Timeout", body.contains("\"status\":504"));
+            assertTrue(body.contains("Request timed out after 200ms"));
+
+            final TestActorRef<MediatorRequestHandler> handler = actor;
+            new AwaitCond(duration("1 second")) {
+                @Override
+                protected boolean cond() {
+                    return testConfig.getRequestDeadlines().get(handler)==null;
+                }
+            };
+        }};
+    }
+
     @Test
     public void testMessage_AddOrchestrationToCoreResponse() throws Exception {
         new JavaTestKit(system) {{
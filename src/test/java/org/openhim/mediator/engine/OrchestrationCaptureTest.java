@@ -0,0 +1,140 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.engine;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.Assert.*;
+
+public class OrchestrationCaptureTest {
+
+    private static CoreResponse.Orchestration orchestration(String name, String body, int status) {
+        Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        headers.put("Content-Type", "text/plain");
+        headers.put("Authorization", "Basic secret");
+
+        CoreResponse.Orchestration orch = new CoreResponse.Orchestration();
+        orch.setName(name);
+        CoreResponse.Request request = new CoreResponse.Request();
+        request.setBody(body);
+        request.setHeaders(headers);
+        orch.setRequest(request);
+        CoreResponse.Response response = new CoreResponse.Response();
+        response.setBody(body);
+        response.setStatus(status);
+        response.setHeaders(headers);
+        orch.setResponse(response);
+        return orch;
+    }
+
+    @Test
+    public void testBodyTruncation() throws Exception {
+        OrchestrationCapture capture = new OrchestrationCapture();
+        capture.setMaxBodyBytes(4);
+
+        assertEquals("abcd", capture.captureBody("abcd"));
+        assertEquals("abcd" + OrchestrationCapture.TRUNCATED_MARKER, capture.captureBody("abcdef"));
+        //multi-byte characters are never split
+        assertEquals("ab\u00e9" + OrchestrationCapture.TRUNCATED_MARKER, capture.captureBody("ab\u00e9\u00e9"));
+        assertEquals("a" + OrchestrationCapture.TRUNCATED_MARKER, capture.captureBody("a\ud83d\ude00"));
+        assertEquals("\ud83d\ude00", capture.captureBody("\ud83d\ude00"));
+        assertNull(capture.captureBody(null));
+
+        capture.setMaxBodyBytes(0);
+        assertNull(capture.captureBody("abcd"));
+
+        capture.setMaxBodyBytes(-1);
+        assertEquals("abcdef", capture.captureBody("abcdef"));
+    }
+
+    @Test
+    public void testApply() throws Exception {
+        OrchestrationCapture capture = new OrchestrationCapture();
+        capture.setMaxBodyBytes(3);
+        capture.setHeaders(Arrays.asList("content-type"));
+
+        CoreResponse.Orchestration orch = orchestration("test", "abcdef", 200);
+        Map<String, String> originalHeaders = orch.getRequest().getHeaders();
+        capture.apply(orch, null);
+
+        assertEquals("abc" + OrchestrationCapture.TRUNCATED_MARKER, orch.getRequest().getBody());
+        assertEquals("abc" + OrchestrationCapture.TRUNCATED_MARKER, orch.getResponse().getBody());
+        assertEquals(1, orch.getRequest().getHeaders().size());
+        assertEquals("text/plain", orch.getResponse().getHeaders().get("Content-Type"));
+        assertFalse(orch.getResponse().getHeaders().containsKey("Authorization"));
+        assertEquals("the original headers must not be changed", 2, originalHeaders.size());
+    }
+
+    @Test
+    public void testFullCaptureOnError() throws Exception {
+        OrchestrationCapture capture = new OrchestrationCapture();
+        capture.setMaxBodyBytes(3);
+
+        CoreResponse.Orchestration orch = orchestration("test", "abcdef", 500);
+        capture.apply(orch, null);
+        assertEquals("abcdef", orch.getResponse().getBody());
+
+        capture.setFullCaptureOnError(false);
+        capture.apply(orch, null);
+        assertEquals("abc" + OrchestrationCapture.TRUNCATED_MARKER, orch.getResponse().getBody());
+    }
+
+    @Test
+    public void testFullCaptureSample() throws Exception {
+        OrchestrationCapture capture = new OrchestrationCapture();
+        capture.setMaxBodyBytes(3);
+        capture.setFullCapturePercent(25);
+
+        int full = 0;
+        for (int i=0; i<10000; i++) {
+            String transaction = "transaction-" + i;
+            CoreResponse.Orchestration first = orchestration("first", "abcdef", 200);
+            CoreResponse.Orchestration second = orchestration("second", "abcdef", 200);
+            capture.apply(first, transaction);
+            capture.apply(second, transaction);
+
+            assertEquals("all calls of a transaction are sampled together", first.getResponse().getBody(), second.getResponse().getBody());
+            if ("abcdef".equals(first.getResponse().getBody())) {
+                full++;
+            }
+        }
+        assertTrue("expected about 25% of transactions, got " + full, full > 2000 && full < 3000);
+
+        capture.setFullCapturePercent(100);
+        CoreResponse.Orchestration orch = orchestration("test", "abcdef", 200);
+        capture.apply(orch, "transaction");
+        assertEquals("abcdef", orch.getResponse().getBody());
+    }
+
+    @Test
+    public void testPolicyPrecedence() throws Exception {
+        OrchestrationCaptures captures = new OrchestrationCaptures();
+        CoreResponse.Orchestration orch = orchestration("lookup", "abcdef", 200);
+        captures.apply(null, orch);
+        assertEquals("orchestrations are recorded in full without a policy", "abcdef", orch.getResponse().getBody());
+
+        OrchestrationCapture defaultCapture = new OrchestrationCapture();
+        defaultCapture.setMaxBodyBytes(0);
+        captures.setDefault(defaultCapture);
+        OrchestrationCapture lookupCapture = new OrchestrationCapture();
+        lookupCapture.setMaxBodyBytes(-1);
+        captures.put("lookup", lookupCapture);
+
+        assertSame(lookupCapture, captures.get(null, "lookup"));
+        assertSame(defaultCapture, captures.get(null, "other"));
+
+        captures.apply(null, orch);
+        assertEquals("abcdef", orch.getResponse().getBody());
+        CoreResponse.Orchestration other = orchestration("other", "abcdef", 200);
+        captures.apply(null, other);
+        assertNull(other.getResponse().getBody());
+    }
+}
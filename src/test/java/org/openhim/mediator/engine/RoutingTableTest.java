@@ -6,9 +6,17 @@
 
 package org.openhim.mediator.engine;
 
+import akka.actor.Props;
 import akka.actor.UntypedActor;
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
 import static org.junit.Assert.*;
 
 public class RoutingTableTest {
@@ -63,6 +71,160 @@ public class RoutingTableTest {
     }
 
 
+    @Test
+    public void testAddTemplateRoute() throws Exception {
+        RoutingTable table = new RoutingTable();
+        table.addTemplateRoute("/patients/{id}/encounters/{eid}", TestActor1.class);
+        assertEquals(TestActor1.class, table.getActorClassForPath("/patients/123/encounters/abc"));
+        assertNull("variables should only match a single segment", table.getActorClassForPath("/patients/1/2/encounters/abc"));
+        assertNull("variables should not match empty segments", table.getActorClassForPath("/patients//encounters/abc"));
+        assertNull(table.getActorClassForPath("/patients/123/encounters"));
+
+        RoutingTable table2 = new RoutingTable();
+        table2.addTemplateRoute("/fhir/Patient.{format}", TestActor1.class);
+        assertEquals(TestActor1.class, table2.getActorClassForPath("/fhir/Patient.json"));
+        assertNull("literal parts of the template should not be treated as regex", table2.getActorClassForPath("/fhir/PatientXjson"));
+
+        table2.removeRoute("/fhir/Patient.{format}");
+        assertNull(table2.getActorClassForPath("/fhir/Patient.json"));
+    }
+
+    @Test
+    public void testMappingFIFOWithTemplates() throws Exception {
+        RoutingTable table = new RoutingTable();
+        table.addTemplateRoute("/patients/{id}", TestActor1.class);
+        table.addRoute("/patients/search", TestActor2.class);
+        assertEquals(TestActor1.class, table.getActorClassForPath("/patients/search"));
+
+        RoutingTable table2 = new RoutingTable();
+        table2.addRoute("/patients/search", TestActor2.class);
+        table2.addTemplateRoute("/patients/{id}", TestActor1.class);
+        assertEquals(TestActor2.class, table2.getActorClassForPath("/patients/search"));
+        assertEquals(TestActor1.class, table2.getActorClassForPath("/patients/123"));
+    }
+
+    @Test
+    public void testRouteAlreadyMapped() throws Exception {
+        RoutingTable table = new RoutingTable();
+        table.addRoute("/test", TestActor1.class);
+        try {
+            table.addRegexRoute("/test", TestActor2.class);
+            fail("RouteAlreadyMappedException expected");
+        } catch (RoutingTable.RouteAlreadyMappedException ex) {
+            //expected
+        }
+        assertEquals(TestActor1.class, table.getActorClassForPath("/test"));
+    }
+
+    @Test
+    public void testCachedLookupsInvalidatedOnChange() throws Exception {
+        RoutingTable table = new RoutingTable(2);
+        table.addRegexRoute("/test/\\d+", TestActor1.class);
+        table.addRegexRoute("/other/.*", TestActor2.class);
+
+        //lookups more than the cache size
+        for (int i=0; i<10; i++) {
+            assertEquals(TestActor1.class, table.getActorClassForPath("/test/" + i));
+            assertEquals(TestActor2.class, table.getActorClassForPath("/other/" + i));
+            assertNull(table.getActorClassForPath("/none/" + i));
+        }
+
+        //cached resolutions should not survive changes to the table
+        table.addRoute("/none/1", TestActor2.class);
+        assertEquals(TestActor2.class, table.getActorClassForPath("/none/1"));
+        table.removeRoute("/test/\\d+");
+        assertNull(table.getActorClassForPath("/test/1"));
+        table.addRegexRoute("/none/.*", TestActor1.class);
+        assertEquals(TestActor2.class, table.getActorClassForPath("/none/1"));
+        assertEquals(TestActor1.class, table.getActorClassForPath("/none/2"));
+    }
+
+    @Test
+    public void testConcurrentCachedLookups() throws Exception {
+        final RoutingTable table = new RoutingTable(64);
+        table.addRegexRoute("/test/\\d+", TestActor1.class);
+        table.addRegexRoute("/other/.*", TestActor2.class);
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Boolean>> results = new ArrayList<>();
+            for (int t=0; t<8; t++) {
+                results.add(executor.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws Exception {
+                        for (int i=0; i<10000; i++) {
+                            int n = i % 200;
+                            if (table.getActorClassForPath("/test/" + n)!=TestActor1.class ||
+                                    table.getActorClassForPath("/other/" + n)!=TestActor2.class ||
+                                    table.getActorClassForPath("/none/" + n)!=null) {
+                                return false;
+                            }
+                        }
+                        return true;
+                    }
+                }));
+            }
+            for (Future<Boolean> result : results) {
+                assertTrue(result.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testRouteOptions() throws Exception {
+        RoutingTable table = new RoutingTable();
+        RoutingTable.RouteOptions streaming = new RoutingTable.RouteOptions();
+        streaming.setStreamingBody(true);
+
+        table.addRoute("/test", TestActor1.class);
+        table.addTemplateRoute("/upload/{id}", TestActor2.class, streaming);
+
+        assertNotNull(table.getRouteOptionsForPath("/test"));
+        assertFalse(table.getRouteOptionsForPath("/test").getStreamingBody());
+        assertTrue(table.getRouteOptionsForPath("/upload/1").getStreamingBody());
+        assertNull(table.getRouteOptionsForPath("/none"));
+    }
+
+    @Test
+    public void testPropsForPath() throws Exception {
+        RoutingTable table = new RoutingTable();
+        table.addRoute("/test", TestActor1.class);
+        table.addTemplateRoute("/config/{id}", ConfigTestActor.class);
+
+        MediatorConfig config = new MediatorConfig();
+
+        Props props = table.getPropsForPath("/test", config);
+        assertEquals(TestActor1.class, props.actorClass());
+        assertEquals(0, props.args().size());
+        assertSame(props, table.getPropsForPath("/test", config));
+
+        Props configProps = table.getPropsForPath("/config/1", config);
+        assertEquals(ConfigTestActor.class, configProps.actorClass());
+        assertSame(config, configProps.args().head());
+
+        assertEquals("/config/{id}", table.getRouteForPath("/config/1"));
+        assertNull(table.getRouteForPath("/none"));
+        assertNull(table.getPropsForPath("/none", config));
+    }
+
+    @Test
+    public void testPassthroughRoutes() throws Exception {
+        RoutingTable table = new RoutingTable();
+        RoutingTable.Passthrough upstream = new RoutingTable.Passthrough("http", "upstream", 8080);
+        table.addRoute("/test", TestActor1.class);
+        table.addRegexPassthroughRoute("/fhir/.*", upstream);
+
+        assertSame(upstream, table.getPassthroughForPath("/fhir/Patient/1"));
+        assertNull(table.getActorClassForPath("/fhir/Patient/1"));
+        assertNull(table.getPropsForPath("/fhir/Patient/1", new MediatorConfig()));
+        assertEquals("/fhir/.*", table.getRouteForPath("/fhir/Patient/1"));
+
+        assertNull(table.getPassthroughForPath("/test"));
+        assertNull(table.getPassthroughForPath("/none"));
+    }
+
     private static class TestActor1 extends UntypedActor {
         @Override public void onReceive(Object o) throws Exception {}
     }
@@ -70,4 +232,9 @@ public class RoutingTableTest {
     private static class TestActor2 extends UntypedActor {
         @Override public void onReceive(Object o) throws Exception {}
     }
-}
\ No newline at end of file
+
+    private static class ConfigTestActor extends UntypedActor {
+        public ConfigTestActor(MediatorConfig config) {}
+        @Override public void onReceive(Object o) throws Exception {}
+    }
+}
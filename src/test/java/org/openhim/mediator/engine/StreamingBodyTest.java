@@ -0,0 +1,115 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.engine;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class StreamingBodyTest {
+
+    private static byte[] randomBytes(int size) {
+        byte[] bytes = new byte[size];
+        new Random(42).nextBytes(bytes);
+        return bytes;
+    }
+
+    private static void writeInPieces(StreamingBody body, byte[] bytes, int pieceSize) throws Exception {
+        for (int i=0; i<bytes.length; i+=pieceSize) {
+            body.write(bytes, i, Math.min(pieceSize, bytes.length - i));
+        }
+        body.complete();
+    }
+
+    @Test
+    public void testInMemory() throws Exception {
+        byte[] bytes = randomBytes(100*1024 + 17);
+        StreamingBody body = new StreamingBody(1024*1024);
+        writeInPieces(body, bytes, 1000);
+
+        assertTrue(body.isInMemory());
+        assertEquals(bytes.length, body.getSize());
+        assertArrayEquals(bytes, body.toByteArray());
+
+        //should be able to read more than once
+        try (InputStream in = body.getInputStream()) {
+            assertArrayEquals(bytes, IOUtils.toByteArray(in));
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        body.writeTo(out);
+        assertArrayEquals(bytes, out.toByteArray());
+
+        body.release();
+    }
+
+    @Test
+    public void testSpillToDisk() throws Exception {
+        byte[] bytes = randomBytes(3*1024*1024 + 5);
+        StreamingBody body = new StreamingBody(1024*1024);
+        writeInPieces(body, bytes, 8192);
+
+        assertFalse(body.isInMemory());
+        assertEquals(bytes.length, body.getSize());
+        assertArrayEquals(bytes, body.toByteArray());
+
+        body.release();
+        try {
+            body.getInputStream();
+            fail("IllegalStateException expected");
+        } catch (IllegalStateException ex) {
+            //expected
+        }
+    }
+
+    @Test
+    public void testSingleByteReads() throws Exception {
+        byte[] bytes = randomBytes(20000);
+        StreamingBody body = new StreamingBody();
+        writeInPieces(body, bytes, 20000);
+
+        byte[] read = new byte[bytes.length];
+        try (InputStream in = body.getInputStream()) {
+            for (int i=0; i<read.length; i++) {
+                int b = in.read();
+                assertTrue(b >= 0);
+                read[i] = (byte) b;
+            }
+            assertEquals(-1, in.read());
+        }
+        assertTrue(Arrays.equals(bytes, read));
+    }
+
+    @Test
+    public void testToString() throws Exception {
+        String text = "héllo wörld";
+        StreamingBody body = StreamingBody.wrap(text.getBytes("UTF-8"));
+        assertEquals(text, body.toString(Charset.forName("UTF-8")));
+    }
+
+    @Test
+    public void testEmpty() throws Exception {
+        StreamingBody body = new StreamingBody();
+        body.complete();
+        assertEquals(0, body.getSize());
+        assertEquals(0, body.toByteArray().length);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testWriteAfterComplete() throws Exception {
+        StreamingBody body = new StreamingBody();
+        body.complete();
+        body.write(new byte[]{1});
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.engine;
+
+import akka.dispatch.ExecutionContexts;
+import org.junit.Test;
+import org.openhim.mediator.engine.metrics.MetricsRegistry;
+import scala.concurrent.ExecutionContext;
+
+import java.io.StringWriter;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class ThreadPoolExecutionStrategyTest {
+
+    private static String writeMetrics(MetricsRegistry metrics) throws Exception {
+        StringWriter out = new StringWriter();
+        metrics.writePrometheus(out);
+        return out.toString();
+    }
+
+    @Test
+    public void testDedicatedThreads() throws Exception {
+        MetricsRegistry metrics = new MetricsRegistry();
+        ExecutionStrategy.Executor executor = new ThreadPoolExecutionStrategy().newExecutor(
+                "test-connector", new MediatorConfig.ConnectorDispatcher(1), metrics, null);
+
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(2);
+        final AtomicReference<String> threadName = new AtomicReference<>();
+        Runnable blockingCall = new Runnable() {
+            @Override
+            public void run() {
+                threadName.set(Thread.currentThread().getName());
+                try {
+                    release.await(1, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {}
+                done.countDown();
+            }
+        };
+
+        executor.getExecutionContext().execute(blockingCall);
+        executor.getExecutionContext().execute(blockingCall);
+        Thread.sleep(100);
+
+        //one call is running and the other is queued
+        String out = writeMetrics(metrics);
+        assertTrue(out.contains("mediator_connector_io_active_threads{connector=\"test-connector\"} 1"));
+        assertTrue(out.contains("mediator_connector_io_queue_depth{connector=\"test-connector\"} 1"));
+
+        release.countDown();
+        assertTrue(done.await(1, TimeUnit.SECONDS));
+        assertEquals("test-connector-io-1", threadName.get());
+
+        executor.shutdown();
+        assertFalse(writeMetrics(metrics).contains("mediator_connector_io_"));
+    }
+
+    @Test
+    public void testDisabled() throws Exception {
+        MetricsRegistry metrics = new MetricsRegistry();
+        MediatorConfig.ConnectorDispatcher config = new MediatorConfig.ConnectorDispatcher();
+        config.setEnabled(false);
+        ExecutionContext dispatcher = ExecutionContexts.global();
+
+        ExecutionStrategy.Executor executor = new ThreadPoolExecutionStrategy().newExecutor("test-connector", config, metrics, dispatcher);
+        assertSame(dispatcher, executor.getExecutionContext());
+        assertFalse(writeMetrics(metrics).contains("mediator_connector_io_"));
+        executor.shutdown();
+    }
+}
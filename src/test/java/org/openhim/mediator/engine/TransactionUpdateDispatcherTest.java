@@ -0,0 +1,319 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.engine;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.Props;
+import akka.testkit.JavaTestKit;
+import org.apache.commons.lang3.StringUtils;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.openhim.mediator.engine.messages.MediatorHTTPRequest;
+import org.openhim.mediator.engine.messages.QueueTransactionUpdate;
+import org.openhim.mediator.engine.messages.QueueTransactionUpdateResponse;
+import org.openhim.mediator.engine.testing.MockHTTPConnector;
+import org.openhim.mediator.engine.testing.MockLauncher;
+import org.openhim.mediator.engine.testing.TestingUtils;
+import scala.concurrent.duration.Duration;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class TransactionUpdateDispatcherTest {
+
+    static ActorSystem system;
+    MediatorConfig testConfig;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final List<MediatorHTTPRequest> receivedUpdates = new CopyOnWriteArrayList<>();
+    private static final AtomicInteger failuresToSimulate = new AtomicInteger();
+    private static final AtomicInteger testCount = new AtomicInteger();
+
+    /**
+     * Mocks the core-api-connector. Responds with a 503 while failuresToSimulate is positive.
+     */
+    private static class MockCoreAPI extends MockHTTPConnector {
+        private boolean fail;
+
+        @Override
+        public String getResponse() {
+            return fail ? "Unavailable" : "Updated";
+        }
+
+        @Override
+        public Integer getStatus() {
+            return fail ? 503 : 200;
+        }
+
+        @Override
+        public Map<String, String> getHeaders() {
+            return Collections.emptyMap();
+        }
+
+        @Override
+        public void executeOnReceive(MediatorHTTPRequest req) {
+            assertEquals("PUT", req.getMethod());
+            receivedUpdates.add(req);
+            fail = failuresToSimulate.getAndDecrement() > 0;
+        }
+    }
+
+    @BeforeClass
+    public static void setup() {
+        system = ActorSystem.create();
+    }
+
+    @AfterClass
+    public static void teardown() {
+        JavaTestKit.shutdownActorSystem(system);
+        system = null;
+    }
+
+    @Before
+    public void before() {
+        testConfig = new MediatorConfig();
+        //the mock root context is stopped asynchronously, so use a new one for every test
+        testConfig.setName("transaction-update-dispatcher-tests-" + testCount.incrementAndGet());
+        testConfig.setCoreHost("localhost");
+        testConfig.getTransactionUpdates().setEnabled(true);
+        testConfig.getTransactionUpdates().setFlushIntervalMillis(50);
+        testConfig.getTransactionUpdates().setInitialBackoffMillis(50);
+
+        receivedUpdates.clear();
+        failuresToSimulate.set(0);
+    }
+
+    private void launchMockCoreAPI() {
+        MockLauncher.ActorToLaunch mockCoreAPI = new MockLauncher.ActorToLaunch("core-api-connector", MockCoreAPI.class);
+        TestingUtils.launchActors(system, testConfig.getName(), Collections.singletonList(mockCoreAPI));
+    }
+
+    private void waitForUpdates(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (receivedUpdates.size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void testUpdatesAreSentAndCoalesced() throws Exception {
+        new JavaTestKit(system) {{
+            launchMockCoreAPI();
+            ActorRef dispatcher = system.actorOf(Props.create(TransactionUpdateDispatcher.class, testConfig));
+
+            dispatcher.tell(new QueueTransactionUpdate("tx1", "{\"status\":\"Processing\"}"), getRef());
+            dispatcher.tell(new QueueTransactionUpdate("tx2", "{\"status\":\"Successful\"}"), getRef());
+            dispatcher.tell(new QueueTransactionUpdate("tx1", "{\"status\":\"Successful\"}"), getRef());
+
+            for (int i=0; i<3; i++) {
+                QueueTransactionUpdateResponse response = expectMsgClass(Duration.create(1, TimeUnit.SECONDS), QueueTransactionUpdateResponse.class);
+                assertTrue(response.isQueued());
+            }
+
+            waitForUpdates(2);
+            expectNoMsg(Duration.create(200, TimeUnit.MILLISECONDS));
+
+            assertEquals(2, receivedUpdates.size());
+            assertEquals("/transactions/tx1", receivedUpdates.get(0).getPath());
+            assertEquals("{\"status\":\"Successful\"}", receivedUpdates.get(0).getBody());
+            assertEquals("/transactions/tx2", receivedUpdates.get(1).getPath());
+            assertEquals("application/json", receivedUpdates.get(0).getHeaders().get("Content-Type"));
+
+            system.stop(dispatcher);
+            TestingUtils.clearRootContext(system, testConfig.getName());
+        }};
+    }
+
+    @Test
+    public void testPartialUpdatesAreNotCoalesced() throws Exception {
+        new JavaTestKit(system) {{
+            launchMockCoreAPI();
+            ActorRef dispatcher = system.actorOf(Props.create(TransactionUpdateDispatcher.class, testConfig));
+
+            dispatcher.tell(new QueueTransactionUpdate("tx1", "{\"status\":\"Processing\"}"), getRef());
+            dispatcher.tell(new QueueTransactionUpdate("tx1", "{\"orchestrations\":[\"a\"]}", true), getRef());
+            dispatcher.tell(new QueueTransactionUpdate("tx1", "{\"orchestrations\":[\"b\"]}", true), getRef());
+            dispatcher.tell(new QueueTransactionUpdate("tx1", "{\"status\":\"Successful\"}"), getRef());
+
+            for (int i=0; i<4; i++) {
+                assertTrue(expectMsgClass(Duration.create(1, TimeUnit.SECONDS), QueueTransactionUpdateResponse.class).isQueued());
+            }
+
+            waitForUpdates(3);
+            expectNoMsg(Duration.create(200, TimeUnit.MILLISECONDS));
+
+            //only the full updates are coalesced, and updates for the transaction are sent one at a time in order
+            assertEquals(3, receivedUpdates.size());
+            assertEquals("{\"status\":\"Successful\"}", receivedUpdates.get(0).getBody());
+            assertEquals("{\"orchestrations\":[\"a\"]}", receivedUpdates.get(1).getBody());
+            assertEquals("{\"orchestrations\":[\"b\"]}", receivedUpdates.get(2).getBody());
+            for (MediatorHTTPRequest update : receivedUpdates) {
+                assertEquals("/transactions/tx1", update.getPath());
+            }
+
+            system.stop(dispatcher);
+            TestingUtils.clearRootContext(system, testConfig.getName());
+        }};
+    }
+
+    @Test
+    public void testFailedUpdatesAreRetried() throws Exception {
+        new JavaTestKit(system) {{
+            launchMockCoreAPI();
+            ActorRef dispatcher = system.actorOf(Props.create(TransactionUpdateDispatcher.class, testConfig));
+            failuresToSimulate.set(2);
+
+            dispatcher.tell(new QueueTransactionUpdate("tx1", "{}"), getRef());
+            expectMsgClass(Duration.create(1, TimeUnit.SECONDS), QueueTransactionUpdateResponse.class);
+
+            waitForUpdates(3);
+            expectNoMsg(Duration.create(300, TimeUnit.MILLISECONDS));
+
+            assertEquals(3, receivedUpdates.size());
+            for (MediatorHTTPRequest update : receivedUpdates) {
+                assertEquals("/transactions/tx1", update.getPath());
+            }
+
+            system.stop(dispatcher);
+            TestingUtils.clearRootContext(system, testConfig.getName());
+        }};
+    }
+
+    @Test
+    public void testUpdatesAreDroppedAfterMaxRetries() throws Exception {
+        new JavaTestKit(system) {{
+            launchMockCoreAPI();
+            testConfig.getTransactionUpdates().setMaxRetries(1);
+            ActorRef dispatcher = system.actorOf(Props.create(TransactionUpdateDispatcher.class, testConfig));
+            failuresToSimulate.set(10);
+
+            dispatcher.tell(new QueueTransactionUpdate("tx1", "{}"), getRef());
+            expectMsgClass(Duration.create(1, TimeUnit.SECONDS), QueueTransactionUpdateResponse.class);
+
+            waitForUpdates(2);
+            expectNoMsg(Duration.create(500, TimeUnit.MILLISECONDS));
+
+            assertEquals(2, receivedUpdates.size());
+
+            system.stop(dispatcher);
+            TestingUtils.clearRootContext(system, testConfig.getName());
+        }};
+    }
+
+    @Test
+    public void testFullQueueRejectsUpdates() throws Exception {
+        new JavaTestKit(system) {{
+            launchMockCoreAPI();
+            testConfig.getTransactionUpdates().setMaxQueueSize(1);
+            testConfig.getTransactionUpdates().setFlushIntervalMillis(10000);
+            ActorRef dispatcher = system.actorOf(Props.create(TransactionUpdateDispatcher.class, testConfig));
+
+            dispatcher.tell(new QueueTransactionUpdate("tx1", "{}"), getRef());
+            assertTrue(expectMsgClass(Duration.create(1, TimeUnit.SECONDS), QueueTransactionUpdateResponse.class).isQueued());
+
+            dispatcher.tell(new QueueTransactionUpdate("tx2", "{}"), getRef());
+            QueueTransactionUpdateResponse rejected = expectMsgClass(Duration.create(1, TimeUnit.SECONDS), QueueTransactionUpdateResponse.class);
+            assertFalse(rejected.isQueued());
+            assertEquals(10000, rejected.getRetryAfterMillis());
+
+            //updates for queued transactions are coalesced rather than rejected
+            dispatcher.tell(new QueueTransactionUpdate("tx1", "{\"status\":\"Successful\"}"), getRef());
+            assertTrue(expectMsgClass(Duration.create(1, TimeUnit.SECONDS), QueueTransactionUpdateResponse.class).isQueued());
+
+            assertEquals(0, receivedUpdates.size());
+
+            system.stop(dispatcher);
+            TestingUtils.clearRootContext(system, testConfig.getName());
+        }};
+    }
+
+    @Test
+    public void testJournaledUpdatesAreLimitedByJournalSize() throws Exception {
+        new JavaTestKit(system) {{
+            launchMockCoreAPI();
+            testConfig.getTransactionUpdates().setJournalDirectory(folder.newFolder().getAbsolutePath());
+            testConfig.getTransactionUpdates().setMaxQueueSize(1);
+            testConfig.getTransactionUpdates().setFlushIntervalMillis(10000);
+            //two updates fit in each segment
+            testConfig.getTransactionUpdates().setJournalSegmentSize(4096);
+            testConfig.getTransactionUpdates().setMaxJournalSize(8192);
+            ActorRef dispatcher = system.actorOf(Props.create(TransactionUpdateDispatcher.class, testConfig));
+
+            String body = "{\"response\":\"" + StringUtils.repeat('x', 1500) + "\"}";
+
+            //journaled updates don't count towards the max queue size
+            for (int i=1; i<=3; i++) {
+                dispatcher.tell(new QueueTransactionUpdate("tx" + i, body), getRef());
+                assertTrue(expectMsgClass(Duration.create(1, TimeUnit.SECONDS), QueueTransactionUpdateResponse.class).isQueued());
+            }
+
+            dispatcher.tell(new QueueTransactionUpdate("tx4", body), getRef());
+            assertFalse(expectMsgClass(Duration.create(1, TimeUnit.SECONDS), QueueTransactionUpdateResponse.class).isQueued());
+
+            assertEquals(0, receivedUpdates.size());
+
+            system.stop(dispatcher);
+            TestingUtils.clearRootContext(system, testConfig.getName());
+        }};
+    }
+
+    @Test
+    public void testJournaledUpdatesAreReplayed() throws Exception {
+        new JavaTestKit(system) {{
+            launchMockCoreAPI();
+            testConfig.getTransactionUpdates().setJournalDirectory(folder.newFolder().getAbsolutePath());
+            testConfig.getTransactionUpdates().setMaxRetries(0);
+            testConfig.getTransactionUpdates().setInitialBackoffMillis(10000);
+
+            //core is unavailable
+            failuresToSimulate.set(1);
+            ActorRef dispatcher = system.actorOf(Props.create(TransactionUpdateDispatcher.class, testConfig));
+            watch(dispatcher);
+            dispatcher.tell(new QueueTransactionUpdate("tx1", "{\"status\":\"Successful\"}"), getRef());
+            expectMsgClass(Duration.create(1, TimeUnit.SECONDS), QueueTransactionUpdateResponse.class);
+            waitForUpdates(1);
+
+            //journaled updates aren't dropped after the max retries, so the update must still be in the journal
+            system.stop(dispatcher);
+            expectTerminated(Duration.create(1, TimeUnit.SECONDS), dispatcher);
+            receivedUpdates.clear();
+
+            //restart with core available
+            dispatcher = system.actorOf(Props.create(TransactionUpdateDispatcher.class, testConfig));
+            waitForUpdates(1);
+            expectNoMsg(Duration.create(200, TimeUnit.MILLISECONDS));
+
+            assertEquals(1, receivedUpdates.size());
+            assertEquals("/transactions/tx1", receivedUpdates.get(0).getPath());
+            assertEquals("{\"status\":\"Successful\"}", receivedUpdates.get(0).getBody());
+
+            //the update was acknowledged, so it shouldn't be replayed again
+            watch(dispatcher);
+            system.stop(dispatcher);
+            expectTerminated(Duration.create(1, TimeUnit.SECONDS), dispatcher);
+            TransactionUpdateJournal journal = new TransactionUpdateJournal(new File(testConfig.getTransactionUpdates().getJournalDirectory()));
+            assertEquals(0, journal.getPendingCount());
+            journal.close();
+
+            TestingUtils.clearRootContext(system, testConfig.getName());
+        }};
+    }
+}
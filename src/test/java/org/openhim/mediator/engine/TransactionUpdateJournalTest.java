@@ -0,0 +1,128 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.engine;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TransactionUpdateJournalTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testAppendAndReplay() throws Exception {
+        File dir = folder.newFolder();
+
+        TransactionUpdateJournal journal = new TransactionUpdateJournal(dir);
+        long seq1 = journal.append("tx1", "{\"status\":\"Successful\"}");
+        long seq2 = journal.append("tx2", "{\"body\":\"é\"}");
+        long seq3 = journal.append("tx3", "{}", true);
+        journal.ack(seq2);
+        assertEquals("{\"status\":\"Successful\"}", journal.read(seq1));
+        assertNull(journal.read(seq2));
+        journal.close();
+
+        journal = new TransactionUpdateJournal(dir);
+        List<TransactionUpdateJournal.Entry> pending = journal.getPendingEntries();
+        assertEquals(2, pending.size());
+        assertEquals(seq1, pending.get(0).getSequence());
+        assertEquals("tx1", pending.get(0).getTransactionId());
+        assertFalse(pending.get(0).isPartial());
+        assertEquals(seq3, pending.get(1).getSequence());
+        assertEquals("tx3", pending.get(1).getTransactionId());
+        assertTrue(pending.get(1).isPartial());
+        assertEquals("{}", journal.read(seq3));
+
+        //sequence numbers continue after a replay
+        assertTrue(journal.append("tx4", "{}") > seq3);
+        journal.close();
+    }
+
+    @Test
+    public void testRotationAndCompaction() throws Exception {
+        File dir = folder.newFolder();
+        TransactionUpdateJournal journal = new TransactionUpdateJournal(dir, 256);
+
+        List<Long> sequences = new ArrayList<>();
+        for (int i=0; i<50; i++) {
+            sequences.add(journal.append("tx" + i, "{\"status\":\"Successful\",\"i\":" + i + "}", i==0));
+        }
+        assertTrue(journal.getSegmentCount() > 5);
+
+        //keep one update from the first segment; the rest of it should be copied forward
+        for (int i=1; i<50; i++) {
+            journal.ack(sequences.get(i));
+        }
+        assertEquals(1, journal.getPendingCount());
+        assertTrue("Acknowledged segments should be deleted", journal.getSegmentCount() <= 2);
+        assertEquals(journal.getSegmentCount(), dir.listFiles().length);
+        assertEquals("{\"status\":\"Successful\",\"i\":0}", journal.read(sequences.get(0)));
+        journal.close();
+
+        journal = new TransactionUpdateJournal(dir, 256);
+        assertEquals(1, journal.getPendingCount());
+        assertEquals("tx0", journal.getPendingEntries().get(0).getTransactionId());
+        //relocated updates stay partial
+        assertTrue(journal.getPendingEntries().get(0).isPartial());
+        assertEquals("{\"status\":\"Successful\",\"i\":0}", journal.read(sequences.get(0)));
+        journal.close();
+    }
+
+    @Test
+    public void testLargeUpdate() throws Exception {
+        File dir = folder.newFolder();
+        TransactionUpdateJournal journal = new TransactionUpdateJournal(dir, 256);
+
+        char[] chars = new char[10000];
+        Arrays.fill(chars, 'a');
+        String body = new String(chars);
+
+        long seq = journal.append("tx1", body);
+        assertEquals(body, journal.read(seq));
+        journal.close();
+
+        journal = new TransactionUpdateJournal(dir, 256);
+        assertEquals(body, journal.read(seq));
+        journal.close();
+    }
+
+    @Test
+    public void testPartiallyWrittenRecordIsIgnored() throws Exception {
+        File dir = folder.newFolder();
+
+        TransactionUpdateJournal journal = new TransactionUpdateJournal(dir, 1024);
+        journal.append("tx1", "{}");
+        long seq2 = journal.append("tx2", "{\"status\":\"Successful\"}");
+        journal.close();
+
+        //corrupt the body of the second record
+        File segment = dir.listFiles()[0];
+        try (RandomAccessFile raf = new RandomAccessFile(segment, "rw")) {
+            byte[] contents = new byte[(int) raf.length()];
+            raf.readFully(contents);
+            int pos = new String(contents, "UTF-8").indexOf("Successful");
+            raf.seek(pos);
+            raf.write('X');
+        }
+
+        journal = new TransactionUpdateJournal(dir, 1024);
+        assertEquals(1, journal.getPendingCount());
+        assertEquals("tx1", journal.getPendingEntries().get(0).getTransactionId());
+        assertNull(journal.read(seq2));
+        journal.close();
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.engine;
+
+import akka.dispatch.ExecutionContexts;
+import org.junit.Test;
+import org.openhim.mediator.engine.metrics.MetricsRegistry;
+
+import java.io.StringWriter;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class VirtualThreadExecutionStrategyTest {
+
+    private static String writeMetrics(MetricsRegistry metrics) throws Exception {
+        StringWriter out = new StringWriter();
+        metrics.writePrometheus(out);
+        return out.toString();
+    }
+
+    /**
+     * Blocking tasks shouldn't be limited by the thread pool configuration. If the JVM doesn't support
+     * virtual threads, the tasks are run on the connector's thread pool instead.
+     */
+    @Test
+    public void testBlockingTasks() throws Exception {
+        final int tasks = 50;
+        MetricsRegistry metrics = new MetricsRegistry();
+        MediatorConfig.ConnectorDispatcher config = new MediatorConfig.ConnectorDispatcher(tasks);
+        ExecutionStrategy.Executor executor = new VirtualThreadExecutionStrategy().newExecutor(
+                "test-connector", config, metrics, ExecutionContexts.global());
+
+        final CountDownLatch started = new CountDownLatch(tasks);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(tasks);
+        final Set<String> threadNames = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        for (int i=0; i<tasks; i++) {
+            executor.getExecutionContext().execute(new Runnable() {
+                @Override
+                public void run() {
+                    threadNames.add(Thread.currentThread().getName());
+                    started.countDown();
+                    try {
+                        release.await(1, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {}
+                    done.countDown();
+                }
+            });
+        }
+
+        //all the tasks block at the same time
+        assertTrue(started.await(1, TimeUnit.SECONDS));
+        assertTrue(writeMetrics(metrics).contains("mediator_connector_io_active_threads{connector=\"test-connector\"} " + tasks));
+        release.countDown();
+        assertTrue(done.await(1, TimeUnit.SECONDS));
+
+        assertEquals(tasks, threadNames.size());
+        String prefix = VirtualThreadExecutionStrategy.isSupported() ? "test-connector-vt-" : "test-connector-io-";
+        for (String name : threadNames) {
+            assertTrue(name, name.startsWith(prefix));
+        }
+
+        executor.shutdown();
+        assertFalse(writeMetrics(metrics).contains("mediator_connector_io_"));
+    }
+
+    @Test
+    public void testVirtualThreadFactory() throws Exception {
+        if (!VirtualThreadExecutionStrategy.isSupported()) {
+            assertNull(VirtualThreadExecutionStrategy.virtualThreadFactory("test-"));
+            return;
+        }
+
+        Thread thread = VirtualThreadExecutionStrategy.virtualThreadFactory("test-").newThread(new Runnable() {
+            @Override
+            public void run() {}
+        });
+        assertEquals("test-1", thread.getName());
+        assertEquals(Boolean.TRUE, Thread.class.getMethod("isVirtual").invoke(thread));
+    }
+}
@@ -0,0 +1,463 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.engine.connectors;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.Props;
+import akka.testkit.JavaTestKit;
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+import com.github.tomakehurst.wiremock.verification.LoggedRequest;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.openhim.mediator.engine.CoreResponse;
+import org.openhim.mediator.engine.MediatorConfig;
+import org.openhim.mediator.engine.StreamingBody;
+import org.openhim.mediator.engine.messages.AddOrchestrationToCoreResponse;
+import org.openhim.mediator.engine.messages.ExceptError;
+import org.openhim.mediator.engine.messages.GetHTTPConnectionPoolStats;
+import org.openhim.mediator.engine.messages.HTTPConnectionPoolStats;
+import org.openhim.mediator.engine.messages.MediatorHTTPRequest;
+import org.openhim.mediator.engine.messages.MediatorHTTPResponse;
+import org.openhim.mediator.engine.messages.SetupSSLContext;
+import org.openhim.mediator.engine.messages.SetupSSLContextResponse;
+import org.openhim.mediator.engine.messages.StreamingHTTPResponse;
+
+import java.io.ByteArrayOutputStream;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeoutException;
+import java.util.zip.GZIPOutputStream;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.equalTo;
+import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.getRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.post;
+import static com.github.tomakehurst.wiremock.client.WireMock.postRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
+import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.wireMockConfig;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class AsyncHTTPConnectorTest {
+    @Rule
+    public WireMockRule wireMockRule = new WireMockRule(wireMockConfig().dynamicPort());
+    @Rule
+    public WireMockRule wireMockRuleHTTPS = new WireMockRule(
+            wireMockConfig()
+                    .dynamicPort()
+                    .dynamicHttpsPort()
+                    .keystorePath("src/test/resources/certs/localhost.jks")
+                    .needClientAuth(true)
+                    .trustStorePath("src/test/resources/certs/client.jks")
+    );
+
+    private abstract class AsyncHTTPConnectorTestKit extends JavaTestKit {
+        protected final ActorRef httpConnector;
+
+        public AsyncHTTPConnectorTestKit(ActorSystem actorSystem) {
+            this(actorSystem, new MediatorConfig());
+        }
+
+        public AsyncHTTPConnectorTestKit(ActorSystem actorSystem, MediatorConfig config) {
+            super(actorSystem);
+
+            httpConnector = system.actorOf(Props.create(AsyncHTTPConnector.class, config));
+        }
+
+        protected MediatorHTTPRequest request(String method, String scheme, int port, String path) {
+            return new MediatorHTTPRequest(getRef(), getRef(), "unit-test", method, scheme, "localhost", port, path);
+        }
+
+        protected CoreResponse.Orchestration testHTTPMessage(MediatorHTTPRequest msg, int expectedStatus, String expectedContentType, String expectedBody) {
+            httpConnector.tell(msg, getRef());
+
+            final Object[] out =
+                    new ReceiveWhile<Object>(Object.class, dilated(duration("1 second")), 2) {
+                        @Override
+                        protected Object match(Object msg) throws Exception {
+                            if (msg instanceof MediatorHTTPResponse ||
+                                    msg instanceof AddOrchestrationToCoreResponse ||
+                                    msg instanceof ExceptError) {
+                                return msg;
+                            }
+                            throw noMatch();
+                        }
+                    }.get();
+
+            boolean foundResponse = false;
+            CoreResponse.Orchestration foundOrchestration = null;
+
+            for (Object o : out) {
+                if (o instanceof MediatorHTTPResponse) {
+                    assertEquals(expectedStatus, ((MediatorHTTPResponse) o).getStatusCode().intValue());
+                    assertEquals(expectedBody, ((MediatorHTTPResponse) o).getBody());
+                    assertEquals(expectedContentType, ((MediatorHTTPResponse) o).getHeaders().get("Content-Type"));
+                    assertSame(msg, ((MediatorHTTPResponse) o).getOriginalRequest());
+                    foundResponse = true;
+                } else if (o instanceof AddOrchestrationToCoreResponse) {
+                    assertEquals("unit-test", ((AddOrchestrationToCoreResponse) o).getOrchestration().getName());
+                    assertNotNull(((AddOrchestrationToCoreResponse) o).getOrchestration().getResponse());
+                    foundOrchestration = ((AddOrchestrationToCoreResponse) o).getOrchestration();
+                } else if (o instanceof ExceptError) {
+                    ((ExceptError) o).getError().printStackTrace();
+                    fail("Unexpected error: " + ((ExceptError) o).getError().getMessage());
+                }
+            }
+
+            assertTrue("http-connector must send MediatorHTTPResponse", foundResponse);
+            assertTrue("http-connector must send AddOrchestrationToCoreResponse", foundOrchestration!=null);
+            return foundOrchestration;
+        }
+    }
+
+    static ActorSystem system;
+
+
+    @BeforeClass
+    public static void setup() {
+        system = ActorSystem.create();
+    }
+
+    @AfterClass
+    public static void teardown() {
+        JavaTestKit.shutdownActorSystem(system);
+        system = null;
+    }
+
+    @Test
+    public void testGETRequest() throws Exception {
+        wireMockRule.stubFor(get(urlEqualTo("/test/get?name=value"))
+                .willReturn(aResponse().withStatus(200).withHeader("Content-Type", "text/plain").withBody("test"))
+        );
+
+        new AsyncHTTPConnectorTestKit(system) {{
+            MediatorHTTPRequest request = new MediatorHTTPRequest(
+                    getRef(), getRef(), "unit-test", "GET", "http://localhost:" + wireMockRule.port() + "/test/get?name=value"
+            );
+            CoreResponse.Orchestration orch = testHTTPMessage(request, 200, "text/plain", "test");
+            assertEquals("test", orch.getResponse().getBody());
+
+            wireMockRule.verify(getRequestedFor(urlEqualTo("/test/get?name=value")));
+        }};
+    }
+
+    @Test
+    public void testPOSTRequest() throws Exception {
+        wireMockRule.stubFor(post(urlEqualTo("/test/post"))
+                .willReturn(aResponse().withStatus(201).withHeader("Content-Type", "text/plain").withBody("Created"))
+        );
+
+        new AsyncHTTPConnectorTestKit(system) {{
+            testHTTPMessage(new MediatorHTTPRequest(
+                    getRef(),
+                    getRef(),
+                    "unit-test",
+                    "POST",
+                    "http",
+                    "localhost",
+                    wireMockRule.port(),
+                    "/test/post",
+                    "<message>a test message for post</message>",
+                    Collections.singletonMap("Content-Type", "text/xml"),
+                    null
+            ), 201, "text/plain", "Created");
+
+            wireMockRule.verify(
+                    postRequestedFor(urlEqualTo("/test/post"))
+                    .withHeader("Content-Type", equalTo("text/xml"))
+                    .withHeader("Content-Length", equalTo("42"))
+                    .withRequestBody(equalTo("<message>a test message for post</message>"))
+            );
+        }};
+    }
+
+    @Test
+    public void testBinaryBodies() throws Exception {
+        final byte[] document = new byte[64 * 1024];
+        for (int i=0; i<document.length; i++) {
+            document[i] = (byte) i;
+        }
+        wireMockRule.stubFor(post(urlEqualTo("/test/binary"))
+                        .willReturn(aResponse().withStatus(200).withHeader("Content-Type", "application/pdf").withBody(document))
+        );
+
+        MediatorConfig config = new MediatorConfig();
+        //spill the response to disk
+        config.setStreamingBodyMemoryThreshold(1024);
+
+        new AsyncHTTPConnectorTestKit(system, config) {{
+            MediatorHTTPRequest request = new MediatorHTTPRequest(
+                    getRef(), getRef(), "unit-test", "POST", "http", "localhost", wireMockRule.port(), "/test/binary",
+                    null, Collections.singletonMap("Content-Type", "application/pdf"), null
+            );
+            request = new MediatorHTTPRequest(request, StreamingBody.wrap(document));
+            request = new MediatorHTTPRequest(request, MediatorHTTPRequest.BodyMode.BINARY);
+            httpConnector.tell(request, getRef());
+
+            StreamingHTTPResponse response = null;
+            for (Object o : receiveN(2, duration("1 second"))) {
+                if (o instanceof StreamingHTTPResponse) {
+                    response = (StreamingHTTPResponse) o;
+                }
+            }
+            assertNotNull(response);
+            assertEquals(200, response.getStatusCode().intValue());
+            assertNull(response.getBody());
+            assertFalse(response.getStreamingBody().isInMemory());
+            assertArrayEquals(document, response.getStreamingBody().toByteArray());
+            response.getStreamingBody().release();
+
+            LoggedRequest upstreamRequest = wireMockRule.findAll(postRequestedFor(urlEqualTo("/test/binary"))).get(0);
+            assertEquals("application/pdf", upstreamRequest.getHeader("Content-Type"));
+            assertArrayEquals(document, upstreamRequest.getBody());
+        }};
+    }
+
+    @Test
+    public void testRequestBodyCharset() throws Exception {
+        wireMockRule.stubFor(post(urlEqualTo("/test/charset"))
+                .willReturn(aResponse().withStatus(201).withHeader("Content-Type", "text/plain").withBody("Created"))
+        );
+
+        new AsyncHTTPConnectorTestKit(system) {{
+            String json = "{\"name\":\"Zo\u00eb \u4e16\u754c\"}";
+            testHTTPMessage(new MediatorHTTPRequest(
+                    getRef(), getRef(), "unit-test", "POST", "http", "localhost", wireMockRule.port(), "/test/charset",
+                    json, Collections.singletonMap("Content-Type", "application/json"), null
+            ), 201, "text/plain", "Created");
+            testHTTPMessage(new MediatorHTTPRequest(
+                    getRef(), getRef(), "unit-test", "POST", "http", "localhost", wireMockRule.port(), "/test/charset",
+                    "Zo\u00eb", Collections.singletonMap("Content-Type", "text/plain; charset=ISO-8859-1"), null
+            ), 201, "text/plain", "Created");
+
+            List<LoggedRequest> requests = wireMockRule.findAll(postRequestedFor(urlEqualTo("/test/charset")));
+            assertEquals(2, requests.size());
+            //UTF-8 is used if the content type doesn't declare a charset
+            assertArrayEquals(json.getBytes("UTF-8"), requests.get(0).getBody());
+            assertArrayEquals("Zo\u00eb".getBytes("ISO-8859-1"), requests.get(1).getBody());
+        }};
+    }
+
+    @Test
+    public void testBodyWithoutCharsetIsDecodedAsUTF8() throws Exception {
+        wireMockRule.stubFor(get(urlEqualTo("/test/utf8"))
+                .willReturn(aResponse().withStatus(200).withHeader("Content-Type", "text/plain").withBody("h\u00e9llo \u4e16\u754c".getBytes("UTF-8")))
+        );
+
+        new AsyncHTTPConnectorTestKit(system) {{
+            testHTTPMessage(request("GET", "http", wireMockRule.port(), "/test/utf8"), 200, "text/plain", "h\u00e9llo \u4e16\u754c");
+        }};
+    }
+
+    @Test
+    public void testCompression() throws Exception {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+            gzip.write("compressed response".getBytes("UTF-8"));
+        }
+        wireMockRule.stubFor(get(urlEqualTo("/test/gzip"))
+                .willReturn(aResponse().withStatus(200).withHeader("Content-Type", "text/plain")
+                        .withHeader("Content-Encoding", "gzip").withBody(compressed.toByteArray()))
+        );
+
+        new AsyncHTTPConnectorTestKit(system) {{
+            CoreResponse.Orchestration orch = testHTTPMessage(request("GET", "http", wireMockRule.port(), "/test/gzip"),
+                    200, "text/plain", "compressed response");
+            assertNull(orch.getResponse().getHeaders().get("Content-Encoding"));
+
+            wireMockRule.verify(getRequestedFor(urlEqualTo("/test/gzip")).withHeader("Accept-Encoding", equalTo("gzip, deflate")));
+        }};
+    }
+
+    /**
+     * Connections should be kept alive and reused across requests
+     */
+    @Test
+    public void testConnectionPoolReuse() throws Exception {
+        wireMockRule.stubFor(get(urlEqualTo("/test/get"))
+                .willReturn(aResponse().withStatus(200).withHeader("Content-Type", "text/plain").withBody("test"))
+        );
+
+        new AsyncHTTPConnectorTestKit(system) {{
+            for (int i=0; i<3; i++) {
+                testHTTPMessage(request("GET", "http", wireMockRule.port(), "/test/get"), 200, "text/plain", "test");
+            }
+
+            httpConnector.tell(new GetHTTPConnectionPoolStats(getRef(), getRef()), getRef());
+            HTTPConnectionPoolStats stats = expectMsgClass(HTTPConnectionPoolStats.class);
+
+            assertEquals("All connections should be released", 0, stats.getLeased());
+            assertEquals("A single connection should have been reused", 1, stats.getAvailable());
+            assertEquals(1, stats.getRoutes());
+            assertEquals(200, stats.getMax());
+        }};
+    }
+
+    /**
+     * Requests beyond the pool limit should wait for a connection rather than fail
+     */
+    @Test
+    public void testConcurrentRequestsShareTheRouteLimit() throws Exception {
+        wireMockRule.stubFor(get(urlEqualTo("/test/slow"))
+                .willReturn(aResponse().withStatus(200).withHeader("Content-Type", "text/plain").withBody("Slow")
+                        .withFixedDelay(100))
+        );
+
+        MediatorConfig config = new MediatorConfig();
+        config.getHTTPConnectionPool().setMaxPerRoute(2);
+
+        new AsyncHTTPConnectorTestKit(system, config) {{
+            for (int i=0; i<10; i++) {
+                httpConnector.tell(request("GET", "http", wireMockRule.port(), "/test/slow"), getRef());
+            }
+
+            int responses = 0;
+            for (Object o : receiveN(20, duration("5 seconds"))) {
+                if (o instanceof MediatorHTTPResponse) {
+                    assertEquals(200, ((MediatorHTTPResponse) o).getStatusCode().intValue());
+                    responses++;
+                } else if (o instanceof ExceptError) {
+                    fail("Unexpected error: " + ((ExceptError) o).getError().getMessage());
+                }
+            }
+            assertEquals(10, responses);
+
+            httpConnector.tell(new GetHTTPConnectionPoolStats(getRef(), getRef()), getRef());
+            HTTPConnectionPoolStats stats = expectMsgClass(HTTPConnectionPoolStats.class);
+            assertEquals(0, stats.getLeased());
+            assertEquals(0, stats.getPending());
+            assertEquals(2, stats.getAvailable());
+        }};
+    }
+
+    @Test
+    public void testRequestTimeout() throws Exception {
+        wireMockRule.stubFor(get(urlEqualTo("/test/slow"))
+                .willReturn(aResponse().withStatus(200).withHeader("Content-Type", "text/plain").withBody("Slow")
+                        .withFixedDelay(2000))
+        );
+
+        new AsyncHTTPConnectorTestKit(system) {{
+            MediatorHTTPRequest request = new MediatorHTTPRequest(request("GET", "http", wireMockRule.port(), "/test/slow"), 200);
+
+            httpConnector.tell(request, getRef());
+            ExceptError error = expectMsgClass(duration("1 second"), ExceptError.class);
+            assertTrue(error.getError() instanceof TimeoutException);
+            assertSame(request, error.getOriginalRequest());
+        }};
+    }
+
+    @Test
+    public void testSocketTimeout() throws Exception {
+        wireMockRule.stubFor(get(urlEqualTo("/test/slow"))
+                .willReturn(aResponse().withStatus(200).withHeader("Content-Type", "text/plain").withBody("Slow")
+                        .withFixedDelay(2000))
+        );
+
+        MediatorConfig config = new MediatorConfig();
+        config.getConnectorTimeouts().setSocketTimeoutMillis(200);
+
+        new AsyncHTTPConnectorTestKit(system, config) {{
+            httpConnector.tell(request("GET", "http", wireMockRule.port(), "/test/slow"), getRef());
+            ExceptError error = expectMsgClass(duration("1 second"), ExceptError.class);
+            assertTrue(error.getError() instanceof SocketTimeoutException);
+        }};
+    }
+
+    @Test
+    public void testUnknownHost() throws Exception {
+        new AsyncHTTPConnectorTestKit(system) {{
+            MediatorHTTPRequest request = new MediatorHTTPRequest(
+                    getRef(), getRef(), "unit-test", "GET", "http", "unknown-host.invalid", 80, "/test/get"
+            );
+            httpConnector.tell(request, getRef());
+            ExceptError error = expectMsgClass(duration("5 seconds"), ExceptError.class);
+            assertTrue(error.getError() instanceof UnknownHostException);
+
+            httpConnector.tell(new GetHTTPConnectionPoolStats(getRef(), getRef()), getRef());
+            HTTPConnectionPoolStats stats = expectMsgClass(HTTPConnectionPoolStats.class);
+            assertEquals("The connection reserved for the request should be released", 0, stats.getLeased());
+        }};
+    }
+
+    @Test
+    public void testExpiredDeadlineFailsFast() throws Exception {
+        final MediatorConfig config = new MediatorConfig();
+
+        new AsyncHTTPConnectorTestKit(system, config) {{
+            config.getRequestDeadlines().register(getRef(), System.currentTimeMillis() - 1);
+            httpConnector.tell(request("GET", "http", wireMockRule.port(), "/test/deadline"), getRef());
+            ExceptError error = expectMsgClass(ExceptError.class);
+            assertTrue(error.getError() instanceof TimeoutException);
+
+            wireMockRule.verify(0, getRequestedFor(urlEqualTo("/test/deadline")));
+        }};
+    }
+
+    @Test
+    public void testMutualAuthHTTPS() throws Exception {
+        wireMockRuleHTTPS.stubFor(get(urlEqualTo("/test/get"))
+                .willReturn(aResponse().withStatus(200).withHeader("Content-Type", "text/plain").withBody("test"))
+        );
+
+        new AsyncHTTPConnectorTestKit(system) {{
+            SetupSSLContext setupSSLContext = new SetupSSLContext(
+                    getRef(),
+                    getRef(),
+                    new MediatorConfig.SSLContext(
+                            new MediatorConfig.KeyStore("src/test/resources/certs/client.jks", "password"),
+                            new MediatorConfig.KeyStore("src/test/resources/certs/localhost.jks", "password")
+                    )
+            );
+
+            httpConnector.tell(setupSSLContext, getRef());
+            SetupSSLContextResponse setupSSLContextResponse = expectMsgClass(SetupSSLContextResponse.class);
+            assertTrue(setupSSLContextResponse.isSuccessful());
+
+            testHTTPMessage(request("GET", "https", wireMockRuleHTTPS.httpsPort(), "/test/get"), 200, "text/plain", "test");
+
+            wireMockRuleHTTPS.verify(getRequestedFor(urlEqualTo("/test/get")));
+        }};
+    }
+
+    /**
+     * Should fail if the server's cert is not in the truststore
+     */
+    @Test
+    public void testHTTPS_Untrusted() throws Exception {
+        new AsyncHTTPConnectorTestKit(system) {{
+            SetupSSLContext setupSSLContext = new SetupSSLContext(
+                    getRef(),
+                    getRef(),
+                    new MediatorConfig.SSLContext(
+                            new MediatorConfig.KeyStore("src/test/resources/certs/client.jks", "password"),
+                            new MediatorConfig.KeyStore("src/test/resources/certs/other.jks", "password")
+                    )
+            );
+
+            httpConnector.tell(setupSSLContext, getRef());
+            SetupSSLContextResponse setupSSLContextResponse = expectMsgClass(SetupSSLContextResponse.class);
+            assertTrue(setupSSLContextResponse.isSuccessful());
+
+            httpConnector.tell(request("GET", "https", wireMockRuleHTTPS.httpsPort(), "/test/get"), getRef());
+            ExceptError error = expectMsgClass(ExceptError.class);
+            assertNotNull(error.getError());
+        }};
+    }
+}
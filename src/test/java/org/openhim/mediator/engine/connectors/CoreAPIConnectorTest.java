@@ -6,11 +6,16 @@
 
 package org.openhim.mediator.engine.connectors;
 
+import akka.actor.ActorIdentity;
+import akka.actor.ActorRef;
 import akka.actor.ActorSystem;
+import akka.actor.Identify;
 import akka.actor.Props;
+import akka.pattern.Patterns;
 import akka.testkit.JavaTestKit;
 import akka.testkit.TestActorRef;
 import com.google.gson.GsonBuilder;
+import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Before;
 import org.junit.BeforeClass;
@@ -21,7 +26,9 @@ import org.openhim.mediator.engine.RegistrationConfigTest;
 import org.openhim.mediator.engine.messages.*;
 import org.openhim.mediator.engine.testing.MockHTTPConnector;
 import org.openhim.mediator.engine.testing.TestingUtils;
+import scala.concurrent.Await;
 import scala.concurrent.duration.Duration;
+import scala.concurrent.duration.FiniteDuration;
 
 import java.io.IOException;
 import java.io.InputStream;
@@ -29,6 +36,7 @@ import java.security.NoSuchAlgorithmException;
 import java.util.Collections;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.*;
 
@@ -39,6 +47,9 @@ public class CoreAPIConnectorTest {
     }
 
     private static class CoreAPITestMock extends MockHTTPConnector {
+        static final AtomicInteger authRequests = new AtomicInteger();
+        static final AtomicInteger unauthorizedResponses = new AtomicInteger();
+
         String response;
         Integer status;
         Map<String, String> headers;
@@ -59,6 +70,7 @@ public class CoreAPIConnectorTest {
         }
 
         private void handleAuth() {
+            authRequests.incrementAndGet();
             response = "{\"salt\":\"theSaltUsedForTheTest\",\"ts\":\"2015-01-16T13:00:53.418Z\"}";
             status = 200;
             headers = Collections.singletonMap("Content-Type", "application/json");
@@ -80,7 +92,19 @@ public class CoreAPIConnectorTest {
             headers = Collections.singletonMap("Content-Type", "application/json");
         }
 
+        private void handleUnauthorized() {
+            response = "Unauthorized";
+            status = 401;
+            headers = Collections.singletonMap("Content-Type", "text/plain");
+        }
+
         private void handleDestination(MediatorHTTPRequest req) {
+            if (unauthorizedResponses.getAndDecrement() > 0) {
+                handleUnauthorized();
+                return;
+            }
+            unauthorizedResponses.set(0);
+
             response = "a test response";
             status = 200;
             headers = Collections.singletonMap("Content-Type", "text/plain");
@@ -122,6 +146,7 @@ public class CoreAPIConnectorTest {
     }
 
     static ActorSystem system;
+    static final AtomicInteger testCount = new AtomicInteger();
     MediatorConfig testConfig;
 
     @BeforeClass
@@ -138,20 +163,71 @@ public class CoreAPIConnectorTest {
     @Before
     public void before() throws IOException {
         testConfig = new MediatorConfig();
-        testConfig.setName("request-actor-tests");
+        //use a new root context for each test, the previous one might still be shutting down
+        testConfig.setName("request-actor-tests-" + testCount.incrementAndGet());
         testConfig.setCoreAPIUsername("test@openhim.org");
         testConfig.setCoreAPIPassword("password");
 
         InputStream regConf = RegistrationConfigTest.class.getClassLoader().getResourceAsStream("test-registration-info-w-config.json");
         RegistrationConfig config = new RegistrationConfig(regConf);
         testConfig.setRegistrationConfig(config);
+
+        CoreAPITestMock.authRequests.set(0);
+        CoreAPITestMock.unauthorizedResponses.set(0);
+        launchMockCore();
+    }
+
+    @After
+    public void after() throws Exception {
+        ActorRef root = identify("/user/" + testConfig.getName());
+        if (root!=null) {
+            FiniteDuration timeout = Duration.create(5, TimeUnit.SECONDS);
+            Await.result(Patterns.gracefulStop(root, timeout), timeout);
+        }
+    }
+
+    private ActorRef identify(final String path) {
+        return new JavaTestKit(system) {
+            ActorRef ref;
+            {
+                system.actorSelection(path).tell(new Identify(path), getRef());
+                ref = expectMsgClass(ActorIdentity.class).getRef();
+            }
+        }.ref;
+    }
+
+    private void launchMockCore() {
+        TestingUtils.launchMockHTTPConnector(system, testConfig.getName(), CoreAPITestMock.class);
+
+        //the mock is launched asynchronously, so wait for it to be available before sending any requests
+        final String path = "/user/" + testConfig.getName() + "/http-connector";
+        new JavaTestKit(system) {{
+            new AwaitCond(duration("5 seconds"), duration("10 millis")) {
+                @Override
+                protected boolean cond() {
+                    return identify(path)!=null;
+                }
+            };
+        }};
+    }
+
+    private MediatorHTTPRequest buildDestinationRequest(ActorRef ref) {
+        return new MediatorHTTPRequest(
+                ref,
+                ref,
+                "core-api-connector-test",
+                "GET",
+                "https",
+                "localhost",
+                8080,
+                "/destination"
+        );
     }
 
 
     @Test
     public void testCoreAPIConnector() {
         new JavaTestKit(system) {{
-            TestingUtils.launchMockHTTPConnector(system, testConfig.getName(), CoreAPITestMock.class);
             TestActorRef<CoreAPIConnector> actor = TestActorRef.create(system, Props.create(CoreAPIConnector.class, testConfig));
 
             MediatorHTTPRequest testMsg = new MediatorHTTPRequest(
@@ -171,15 +247,12 @@ public class CoreAPIConnectorTest {
             assertEquals(new Integer(200), response.getStatusCode());
             assertEquals("a test response", response.getBody());
             assertEquals("text/plain", response.getHeaders().get("Content-Type"));
-
-            TestingUtils.clearRootContext(system, testConfig.getName());
         }};
     }
 
     @Test
     public void testInvalidUser() {
         new JavaTestKit(system) {{
-            TestingUtils.launchMockHTTPConnector(system, testConfig.getName(), CoreAPITestMock.class);
             testConfig.setCoreAPIUsername("nosuchuser@openhim.org");
 
             TestActorRef<CoreAPIConnector> actor = TestActorRef.create(system, Props.create(CoreAPIConnector.class, testConfig));
@@ -199,15 +272,12 @@ public class CoreAPIConnectorTest {
             ExceptError response = expectMsgClass(Duration.create(1, TimeUnit.SECONDS), ExceptError.class);
             assertNotNull(response.getError());
             assertTrue(response.getError() instanceof CoreAPIConnector.CoreGetAuthenticationDetailsError);
-
-            TestingUtils.clearRootContext(system, testConfig.getName());
         }};
     }
 
     @Test
     public void testSendHeartbeatToCore() {
         new JavaTestKit(system) {{
-            TestingUtils.launchMockHTTPConnector(system, testConfig.getName(), CoreAPITestMock.class);
             TestActorRef<CoreAPIConnector> actor = TestActorRef.create(system, Props.create(CoreAPIConnector.class, testConfig));
 
             SendHeartbeatToCore testMsg = new SendHeartbeatToCore(3600);
@@ -218,15 +288,12 @@ public class CoreAPIConnectorTest {
             assertFalse(response.receivedConfigUpdate());
             assertEquals("", response.getRawResponse());
             assertNull(response.getConfig());
-
-            TestingUtils.clearRootContext(system, testConfig.getName());
         }};
     }
 
     @Test
     public void testSendHeartbeatToCore_wConfigForce() {
         new JavaTestKit(system) {{
-            TestingUtils.launchMockHTTPConnector(system, testConfig.getName(), CoreAPITestMock.class);
             TestActorRef<CoreAPIConnector> actor = TestActorRef.create(system, Props.create(CoreAPIConnector.class, testConfig));
 
             SendHeartbeatToCore testMsg = new SendHeartbeatToCore(3600, true);
@@ -238,8 +305,71 @@ public class CoreAPIConnectorTest {
             assertNotNull(response.getConfig());
             assertTrue(response.getConfig().containsKey("Setting 1"));
             assertEquals("New Setting 1", response.getConfig().get("Setting 1"));
+        }};
+    }
+
+    @Test
+    public void testAuthDetailsAreCached() {
+        new JavaTestKit(system) {{
+            TestActorRef<CoreAPIConnector> actor = TestActorRef.create(system, Props.create(CoreAPIConnector.class, testConfig));
+
+            //concurrent requests should share a single auth request
+            for (int i=0; i<5; i++) {
+                actor.tell(buildDestinationRequest(getRef()), getRef());
+            }
+            for (int i=0; i<5; i++) {
+                MediatorHTTPResponse response = expectMsgClass(Duration.create(1, TimeUnit.SECONDS), MediatorHTTPResponse.class);
+                assertEquals(new Integer(200), response.getStatusCode());
+            }
+
+            //subsequent requests should reuse the cached details
+            actor.tell(buildDestinationRequest(getRef()), getRef());
+            MediatorHTTPResponse response = expectMsgClass(Duration.create(1, TimeUnit.SECONDS), MediatorHTTPResponse.class);
+            assertEquals(new Integer(200), response.getStatusCode());
+            assertEquals("core-api-connector-test", response.getOriginalRequest().getOrchestration());
+
+            assertEquals(1, CoreAPITestMock.authRequests.get());
+        }};
+    }
 
-            TestingUtils.clearRootContext(system, testConfig.getName());
+    @Test
+    public void testAuthDetailsCacheDisabled() {
+        new JavaTestKit(system) {{
+            testConfig.setCoreAPIAuthCacheSeconds(0);
+            TestActorRef<CoreAPIConnector> actor = TestActorRef.create(system, Props.create(CoreAPIConnector.class, testConfig));
+
+            for (int i=0; i<3; i++) {
+                actor.tell(buildDestinationRequest(getRef()), getRef());
+                MediatorHTTPResponse response = expectMsgClass(Duration.create(1, TimeUnit.SECONDS), MediatorHTTPResponse.class);
+                assertEquals(new Integer(200), response.getStatusCode());
+            }
+
+            assertEquals(3, CoreAPITestMock.authRequests.get());
+        }};
+    }
+
+    @Test
+    public void testUnauthorizedResponseRefreshesAuthDetails() {
+        new JavaTestKit(system) {{
+            TestActorRef<CoreAPIConnector> actor = TestActorRef.create(system, Props.create(CoreAPIConnector.class, testConfig));
+
+            actor.tell(buildDestinationRequest(getRef()), getRef());
+            expectMsgClass(Duration.create(1, TimeUnit.SECONDS), MediatorHTTPResponse.class);
+            assertEquals(1, CoreAPITestMock.authRequests.get());
+
+            //a 401 should discard the cached details and retry the request once
+            CoreAPITestMock.unauthorizedResponses.set(1);
+            actor.tell(buildDestinationRequest(getRef()), getRef());
+            MediatorHTTPResponse response = expectMsgClass(Duration.create(1, TimeUnit.SECONDS), MediatorHTTPResponse.class);
+            assertEquals(new Integer(200), response.getStatusCode());
+            assertEquals(2, CoreAPITestMock.authRequests.get());
+
+            //but not more than once
+            CoreAPITestMock.unauthorizedResponses.set(2);
+            actor.tell(buildDestinationRequest(getRef()), getRef());
+            response = expectMsgClass(Duration.create(1, TimeUnit.SECONDS), MediatorHTTPResponse.class);
+            assertEquals(new Integer(401), response.getStatusCode());
+            assertEquals(3, CoreAPITestMock.authRequests.get());
         }};
     }
-}
\ No newline at end of file
+}
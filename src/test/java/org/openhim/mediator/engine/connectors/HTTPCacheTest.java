@@ -0,0 +1,163 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.engine.connectors;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.openhim.mediator.engine.MediatorConfig;
+
+import java.net.URI;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class HTTPCacheTest {
+
+    private MediatorConfig.HTTPResponseCache config;
+    private HTTPCache cache;
+
+    @Before
+    public void before() {
+        config = new MediatorConfig.HTTPResponseCache();
+        config.setEnabled(true);
+        cache = new HTTPCache(config);
+    }
+
+    private static Map<String, String> headers(String... namesAndValues) {
+        Map<String, String> headers = new HashMap<>();
+        for (int i=0; i<namesAndValues.length; i+=2) {
+            headers.put(namesAndValues[i], namesAndValues[i+1]);
+        }
+        return headers;
+    }
+
+    @Test
+    public void testKeyFor() throws Exception {
+        URI uri = new URI("http://localhost/patients/1");
+
+        assertEquals("GET http://localhost/patients/1", cache.keyFor("GET", uri, null));
+        assertEquals("GET http://localhost/patients/1\naccept: application/json",
+                cache.keyFor("GET", uri, headers("accept", "application/json", "X-Other", "ignored")));
+
+        assertNull(cache.keyFor("POST", uri, null));
+        assertNull(cache.keyFor("GET", uri, headers("Cache-Control", "no-store")));
+        assertNull(cache.keyFor("GET", uri, headers("If-None-Match", "\"v1\"")));
+    }
+
+    @Test
+    public void testFreshness() throws Exception {
+        long now = System.currentTimeMillis();
+
+        HTTPCache.Entry maxAge = cache.put("a", null, 200, "a", headers("Cache-Control", "public, max-age=60", "Age", "30"), now);
+        assertTrue(maxAge.isFresh(now + 29000));
+        assertFalse(maxAge.isFresh(now + 31000));
+
+        HTTPCache.Entry sMaxAge = cache.put("b", null, 200, "b", headers("Cache-Control", "max-age=0, s-maxage=60"), now);
+        assertTrue(sMaxAge.isFresh(now + 1000));
+
+        HTTPCache.Entry expires = cache.put("c", null, 200, "c", headers(
+                "Date", "Tue, 15 Nov 1994 08:12:31 GMT", "Expires", "Tue, 15 Nov 1994 08:13:31 GMT"), now);
+        assertTrue(expires.isFresh(now + 59000));
+        assertFalse(expires.isFresh(now + 61000));
+
+        //stale responses are only kept if they can be revalidated
+        HTTPCache.Entry noCache = cache.put("d", null, 200, "d", headers("Cache-Control", "no-cache", "ETag", "\"v1\""), now);
+        assertFalse(noCache.isFresh(now));
+        assertTrue(noCache.hasValidators());
+        assertNull(cache.put("e", null, 200, "e", headers("Cache-Control", "no-cache"), now));
+        assertNull(cache.put("f", null, 200, "f", Collections.<String, String>emptyMap(), now));
+
+        assertEquals(4, cache.size());
+    }
+
+    @Test
+    public void testUncacheableResponses() throws Exception {
+        long now = System.currentTimeMillis();
+
+        assertNull(cache.put("a", null, 200, "a", headers("Cache-Control", "no-store"), now));
+        assertNull(cache.put("a", null, 200, "a", headers("Cache-Control", "private, max-age=60"), now));
+        assertNull(cache.put("a", null, 404, "a", headers("Cache-Control", "max-age=60"), now));
+        assertNull(cache.put("a", null, 200, "a", headers("Cache-Control", "max-age=60", "Vary", "*"), now));
+        assertNotNull(cache.put("a", null, 200, "a", headers("Cache-Control", "max-age=60"), now));
+
+        //an uncacheable response replaces the cached one
+        assertNull(cache.put("a", null, 200, "a", headers("Cache-Control", "no-store"), now));
+        assertNull(cache.get("a", null));
+        assertEquals(0, cache.getBytes());
+    }
+
+    @Test
+    public void testVary() throws Exception {
+        long now = System.currentTimeMillis();
+
+        cache.put("a", headers("User-Agent", "test"), 200, "a", headers("Cache-Control", "max-age=60", "Vary", "Accept-Encoding, User-Agent"), now);
+        assertNotNull(cache.get("a", headers("user-agent", "test")));
+        assertNull(cache.get("a", headers("User-Agent", "other")));
+        assertNull(cache.get("a", headers("User-Agent", "test", "Accept-Encoding", "gzip")));
+    }
+
+    @Test
+    public void testRevalidated() throws Exception {
+        long now = System.currentTimeMillis();
+
+        HTTPCache.Entry entry = cache.put("a", null, 200, "body", headers("Cache-Control", "max-age=0", "ETag", "\"v1\"", "Content-Type", "text/plain"), now);
+        assertFalse(entry.isFresh(now));
+
+        HTTPCache.Entry revalidated = cache.revalidated("a", null, entry, headers("Cache-Control", "max-age=60", "ETag", "\"v1\""), now);
+        assertTrue(revalidated.isFresh(now));
+        assertEquals("body", revalidated.getBody());
+        assertEquals("text/plain", revalidated.getHeaders().get("Content-Type"));
+        assertSame(revalidated, cache.get("a", null));
+    }
+
+    @Test
+    public void testEviction() throws Exception {
+        long now = System.currentTimeMillis();
+        Map<String, String> cacheable = headers("Cache-Control", "max-age=60");
+
+        config.setMaxEntries(2);
+        cache.put("a", null, 200, "a", cacheable, now);
+        cache.put("b", null, 200, "b", cacheable, now);
+        cache.get("a", null);
+        cache.put("c", null, 200, "c", cacheable, now);
+
+        //b was the least recently used entry
+        assertNotNull(cache.get("a", null));
+        assertNull(cache.get("b", null));
+        assertNotNull(cache.get("c", null));
+
+        config.setMaxEntries(100);
+        config.setMaxBytes(8);
+        cache.put("d", null, 200, "12345678", cacheable, now);
+        assertEquals(1, cache.size());
+        assertEquals(8, cache.getBytes());
+        assertNull(cache.put("e", null, 200, "12345678901", cacheable, now));
+
+        //the limit is in encoded bytes, not characters
+        assertNull(cache.put("f", null, 200, "\u00e9\u00e9\u00e9\u00e9\u00e9", cacheable, now));
+        assertNotNull(cache.put("g", null, 200, "\u00e9\u00e9\u00e9\u00e9\u00e9",
+                headers("Cache-Control", "max-age=60", "Content-Type", "text/plain; charset=ISO-8859-1"), now));
+        assertEquals(5, cache.getBytes());
+    }
+
+    @Test
+    public void testInvalidate() throws Exception {
+        long now = System.currentTimeMillis();
+        Map<String, String> cacheable = headers("Cache-Control", "max-age=60");
+        URI uri = new URI("http://localhost/patients/1");
+
+        cache.put(cache.keyFor("GET", uri, null), null, 200, "a", cacheable, now);
+        cache.put(cache.keyFor("GET", uri, headers("Accept", "text/xml")), null, 200, "b", cacheable, now);
+        cache.put(cache.keyFor("GET", new URI("http://localhost/patients/10"), null), null, 200, "c", cacheable, now);
+
+        cache.invalidate(uri);
+        assertEquals(1, cache.size());
+        assertEquals(1, cache.getBytes());
+    }
+}
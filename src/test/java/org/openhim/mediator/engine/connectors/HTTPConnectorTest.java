@@ -9,8 +9,10 @@ package org.openhim.mediator.engine.connectors;
 import akka.actor.ActorRef;
 import akka.actor.ActorSystem;
 import akka.actor.Props;
+import akka.actor.UntypedActor;
 import akka.testkit.JavaTestKit;
 import com.github.tomakehurst.wiremock.junit.WireMockRule;
+import com.github.tomakehurst.wiremock.verification.LoggedRequest;
 import org.apache.commons.io.IOUtils;
 import org.junit.After;
 import org.junit.AfterClass;
@@ -18,18 +20,35 @@ import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Rule;
 import org.junit.Test;
+import org.openhim.mediator.engine.CoreResponse;
 import org.openhim.mediator.engine.MediatorConfig;
 import org.openhim.mediator.engine.MediatorRequestHandler;
+import org.openhim.mediator.engine.OrchestrationCapture;
+import org.openhim.mediator.engine.RegistrationConfig;
+import org.openhim.mediator.engine.RoutingTable;
+import org.openhim.mediator.engine.StreamingBody;
 import org.openhim.mediator.engine.messages.AddOrchestrationToCoreResponse;
 import org.openhim.mediator.engine.messages.ExceptError;
+import org.openhim.mediator.engine.messages.FinishRequest;
+import org.openhim.mediator.engine.messages.GetHTTPConnectionPoolStats;
+import org.openhim.mediator.engine.messages.HTTPConnectionPoolStats;
 import org.openhim.mediator.engine.messages.MediatorHTTPRequest;
 import org.openhim.mediator.engine.messages.MediatorHTTPResponse;
 import org.openhim.mediator.engine.messages.PutPropertyInCoreResponse;
 import org.openhim.mediator.engine.messages.SetupSSLContext;
 import org.openhim.mediator.engine.messages.SetupSSLContextResponse;
+import org.openhim.mediator.engine.messages.StreamingHTTPResponse;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeoutException;
+import java.util.zip.GZIPOutputStream;
 
 import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
 import static com.github.tomakehurst.wiremock.client.WireMock.equalTo;
@@ -39,8 +58,12 @@ import static com.github.tomakehurst.wiremock.client.WireMock.post;
 import static com.github.tomakehurst.wiremock.client.WireMock.postRequestedFor;
 import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
 import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.wireMockConfig;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
@@ -73,7 +96,13 @@ public class HTTPConnectorTest {
             httpConnector = system.actorOf(Props.create(HTTPConnector.class));
         }
 
-        protected void testHTTPMessage(MediatorHTTPRequest msg, int expectedStatus, String expectedContentType, String expectedBody) {
+        public HTTPConnectorTestKit(ActorSystem actorSystem, MediatorConfig config) {
+            super(actorSystem);
+
+            httpConnector = system.actorOf(Props.create(HTTPConnector.class, config));
+        }
+
+        protected CoreResponse.Orchestration testHTTPMessage(MediatorHTTPRequest msg, int expectedStatus, String expectedContentType, String expectedBody) {
             httpConnector.tell(msg, getRef());
 
             final Object[] out =
@@ -90,7 +119,7 @@ public class HTTPConnectorTest {
                     }.get();
 
             boolean foundResponse = false;
-            boolean foundAddOrchestration = false;
+            CoreResponse.Orchestration foundOrchestration = null;
 
             for (Object o : out) {
                 if (o instanceof MediatorHTTPResponse) {
@@ -103,7 +132,7 @@ public class HTTPConnectorTest {
                     assertEquals("unit-test", ((AddOrchestrationToCoreResponse) o).getOrchestration().getName());
                     assertNotNull(((AddOrchestrationToCoreResponse) o).getOrchestration().getRequest());
                     assertNotNull(((AddOrchestrationToCoreResponse) o).getOrchestration().getResponse());
-                    foundAddOrchestration = true;
+                    foundOrchestration = ((AddOrchestrationToCoreResponse) o).getOrchestration();
                 } else if (o instanceof ExceptError) {
                     ((ExceptError) o).getError().printStackTrace();
                     fail("Unexpected error: " + ((ExceptError) o).getError().getMessage());
@@ -111,7 +140,8 @@ public class HTTPConnectorTest {
             }
 
             assertTrue("http-connector must send MediatorHTTPResponse", foundResponse);
-            assertTrue("http-connector must send AddOrchestrationToCoreResponse", foundAddOrchestration);
+            assertTrue("http-connector must send AddOrchestrationToCoreResponse", foundOrchestration!=null);
+            return foundOrchestration;
         }
     }
 
@@ -188,6 +218,152 @@ public class HTTPConnectorTest {
         }};
     }
 
+    @Test
+    public void testDeclaredCharsets() throws Exception {
+        wireMockRule.stubFor(post(urlEqualTo("/test/charset"))
+                        .willReturn(aResponse().withStatus(200).withHeader("Content-Type", "text/plain; charset=ISO-8859-1")
+                                .withBody("r\u00e9ponse".getBytes("ISO-8859-1")))
+        );
+
+        new HTTPConnectorTestKit(system) {{
+            testHTTPMessage(new MediatorHTTPRequest(
+                    getRef(),
+                    getRef(),
+                    "unit-test",
+                    "POST",
+                    "http",
+                    "localhost",
+                    wireMockRule.port(),
+                    "/test/charset",
+                    "caf\u00e9 \u2713",
+                    Collections.singletonMap("Content-Type", "text/plain; charset=UTF-8"),
+                    null
+            ), 200, "text/plain; charset=ISO-8859-1", "r\u00e9ponse");
+
+            LoggedRequest request = wireMockRule.findAll(postRequestedFor(urlEqualTo("/test/charset"))).get(0);
+            assertArrayEquals("caf\u00e9 \u2713".getBytes("UTF-8"), request.getBody());
+        }};
+    }
+
+    @Test
+    public void testCompression() throws Exception {
+        wireMockRule.stubFor(post(urlEqualTo("/test/gzip"))
+                        .willReturn(aResponse().withStatus(200).withHeader("Content-Type", "text/plain")
+                                .withHeader("Content-Encoding", "gzip").withBody(gzip("compressed response")))
+        );
+
+        new HTTPConnectorTestKit(system) {{
+            Map<String, String> headers = new HashMap<>();
+            headers.put("Content-Type", "text/plain");
+            headers.put("Content-Encoding", "gzip");
+
+            testHTTPMessage(new MediatorHTTPRequest(
+                    getRef(),
+                    getRef(),
+                    "unit-test",
+                    "POST",
+                    "http",
+                    "localhost",
+                    wireMockRule.port(),
+                    "/test/gzip",
+                    "compressed request",
+                    headers,
+                    null
+            ), 200, "text/plain", "compressed response");
+
+            LoggedRequest request = wireMockRule.findAll(postRequestedFor(urlEqualTo("/test/gzip"))).get(0);
+            assertTrue(request.getHeader("Accept-Encoding").contains("gzip"));
+            assertEquals("gzip", request.getHeader("Content-Encoding"));
+            assertEquals(Integer.toString(gzip("compressed request").length), request.getHeader("Content-Length"));
+            //wiremock decompresses gzip request bodies
+            assertEquals("compressed request", request.getBodyAsString());
+        }};
+    }
+
+    @Test
+    public void testOrchestrationCapture() throws Exception {
+        wireMockRule.stubFor(get(urlEqualTo("/test/capture"))
+                        .willReturn(aResponse().withStatus(200).withHeader("Content-Type", "text/plain")
+                                .withHeader("X-Internal", "yes").withBody("a large response"))
+        );
+
+        OrchestrationCapture capture = new OrchestrationCapture();
+        capture.setMaxBodyBytes(7);
+        capture.setHeaders(Collections.singletonList("Content-Type"));
+        MediatorConfig config = new MediatorConfig();
+        config.getOrchestrationCaptures().setDefault(capture);
+
+        new HTTPConnectorTestKit(system, config) {{
+            MediatorHTTPRequest request = new MediatorHTTPRequest(
+                    getRef(), getRef(), "unit-test", "GET", "http", "localhost", wireMockRule.port(), "/test/capture");
+            //the response itself is complete
+            CoreResponse.Orchestration orch = testHTTPMessage(request, 200, "text/plain", "a large response");
+
+            assertEquals("a large" + OrchestrationCapture.TRUNCATED_MARKER, orch.getResponse().getBody());
+            assertEquals("text/plain", orch.getResponse().getHeaders().get("Content-Type"));
+            assertNull(orch.getResponse().getHeaders().get("X-Internal"));
+        }};
+    }
+
+    private static byte[] gzip(String content) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+            gzip.write(content.getBytes("UTF-8"));
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testBinaryBodies() throws Exception {
+        final byte[] document = new byte[64 * 1024];
+        for (int i=0; i<document.length; i++) {
+            document[i] = (byte) i;
+        }
+        wireMockRule.stubFor(post(urlEqualTo("/test/binary"))
+                        .willReturn(aResponse().withStatus(200).withHeader("Content-Type", "application/pdf").withBody(document))
+        );
+
+        MediatorConfig config = new MediatorConfig();
+        //spill the response to disk
+        config.setStreamingBodyMemoryThreshold(1024);
+
+        new HTTPConnectorTestKit(system, config) {{
+            MediatorHTTPRequest request = new MediatorHTTPRequest(
+                    getRef(),
+                    getRef(),
+                    "unit-test",
+                    "POST",
+                    "http",
+                    "localhost",
+                    wireMockRule.port(),
+                    "/test/binary",
+                    null,
+                    Collections.singletonMap("Content-Type", "application/pdf"),
+                    null
+            );
+            request = new MediatorHTTPRequest(request, StreamingBody.wrap(document));
+            request = new MediatorHTTPRequest(request, MediatorHTTPRequest.BodyMode.BINARY);
+            httpConnector.tell(request, getRef());
+
+            StreamingHTTPResponse response = null;
+            for (Object o : receiveN(2, duration("1 second"))) {
+                if (o instanceof StreamingHTTPResponse) {
+                    response = (StreamingHTTPResponse) o;
+                }
+            }
+            assertNotNull(response);
+            assertEquals(200, response.getStatusCode().intValue());
+            assertNull(response.getBody());
+            assertFalse(response.getStreamingBody().isInMemory());
+            assertArrayEquals(document, response.getStreamingBody().toByteArray());
+            response.getStreamingBody().release();
+
+            LoggedRequest upstreamRequest = wireMockRule.findAll(postRequestedFor(urlEqualTo("/test/binary"))).get(0);
+            assertEquals("application/pdf", upstreamRequest.getHeader("Content-Type"));
+            assertArrayEquals(document, upstreamRequest.getBody());
+        }};
+    }
+
     /**
      * Test that application/json+openhim responses from servers are processed correctly
      */
@@ -283,6 +459,331 @@ public class HTTPConnectorTest {
         }};
     }
 
+    /**
+     * Connections should be returned to the pool and reused across requests
+     */
+    @Test
+    public void testConnectionPoolReuse() throws Exception {
+        wireMockRule.stubFor(get(urlEqualTo("/test/get"))
+                .willReturn(aResponse().withStatus(200).withHeader("Content-Type", "text/plain").withBody("test"))
+        );
+
+        new HTTPConnectorTestKit(system) {{
+            for (int i=0; i<3; i++) {
+                testHTTPMessage(new MediatorHTTPRequest(
+                        getRef(),
+                        getRef(),
+                        "unit-test",
+                        "GET",
+                        "http",
+                        "localhost",
+                        wireMockRule.port(),
+                        "/test/get"
+                ), 200, "text/plain", "test");
+            }
+
+            httpConnector.tell(new GetHTTPConnectionPoolStats(getRef(), getRef()), getRef());
+            HTTPConnectionPoolStats stats = expectMsgClass(HTTPConnectionPoolStats.class);
+
+            assertEquals("All connections should be released", 0, stats.getLeased());
+            assertEquals("A single connection should have been reused", 1, stats.getAvailable());
+            assertEquals(1, stats.getRoutes());
+            assertEquals(200, stats.getMax());
+        }};
+    }
+
+    private MediatorConfig responseCacheConfig() {
+        MediatorConfig config = new MediatorConfig();
+        config.getHTTPResponseCache().setEnabled(true);
+        return config;
+    }
+
+    @Test
+    public void testResponseCacheHit() throws Exception {
+        wireMockRule.stubFor(get(urlEqualTo("/test/cached"))
+                .willReturn(aResponse().withStatus(200).withHeader("Content-Type", "text/plain")
+                        .withHeader("Cache-Control", "max-age=60").withBody("cached"))
+        );
+
+        new HTTPConnectorTestKit(system, responseCacheConfig()) {{
+            MediatorHTTPRequest request = new MediatorHTTPRequest(
+                    getRef(), getRef(), "unit-test", "GET", "http", "localhost", wireMockRule.port(), "/test/cached"
+            );
+
+            CoreResponse.Orchestration first = testHTTPMessage(request, 200, "text/plain", "cached");
+            assertNull(first.getResponse().getHeaders().get("X-Cache"));
+
+            CoreResponse.Orchestration second = testHTTPMessage(request, 200, "text/plain", "cached");
+            assertEquals("HIT", second.getResponse().getHeaders().get("X-Cache"));
+
+            wireMockRule.verify(1, getRequestedFor(urlEqualTo("/test/cached")));
+        }};
+    }
+
+    @Test
+    public void testResponseCacheRevalidation() throws Exception {
+        final String lastModified = "Tue, 15 Nov 1994 12:45:26 GMT";
+        wireMockRule.stubFor(get(urlEqualTo("/test/revalidated"))
+                .willReturn(aResponse().withStatus(200).withHeader("Content-Type", "text/plain")
+                        .withHeader("Cache-Control", "no-cache").withHeader("Last-Modified", lastModified).withBody("cached"))
+        );
+        wireMockRule.stubFor(get(urlEqualTo("/test/revalidated"))
+                .withHeader("If-Modified-Since", equalTo(lastModified))
+                .willReturn(aResponse().withStatus(304))
+        );
+
+        new HTTPConnectorTestKit(system, responseCacheConfig()) {{
+            MediatorHTTPRequest request = new MediatorHTTPRequest(
+                    getRef(), getRef(), "unit-test", "GET", "http", "localhost", wireMockRule.port(), "/test/revalidated"
+            );
+
+            testHTTPMessage(request, 200, "text/plain", "cached");
+            CoreResponse.Orchestration revalidated = testHTTPMessage(request, 200, "text/plain", "cached");
+            assertEquals("REVALIDATED", revalidated.getResponse().getHeaders().get("X-Cache"));
+
+            wireMockRule.verify(2, getRequestedFor(urlEqualTo("/test/revalidated")));
+            wireMockRule.verify(1, getRequestedFor(urlEqualTo("/test/revalidated")).withHeader("If-Modified-Since", equalTo(lastModified)));
+        }};
+    }
+
+    /**
+     * Identical single-flight requests that are in flight at the same time should share one upstream call
+     */
+    @Test
+    public void testSingleFlightRequests() throws Exception {
+        wireMockRule.stubFor(get(urlEqualTo("/test/single-flight"))
+                .willReturn(aResponse().withStatus(200).withHeader("Content-Type", "text/plain").withBody("shared")
+                        .withFixedDelay(500))
+        );
+
+        new HTTPConnectorTestKit(system) {{
+            for (int i=0; i<3; i++) {
+                MediatorHTTPRequest request = new MediatorHTTPRequest(
+                        getRef(), getRef(), "unit-test", "GET", "http", "localhost", wireMockRule.port(), "/test/single-flight",
+                        null, Collections.singletonMap("Accept", "text/plain"), null, "request-" + i
+                );
+                httpConnector.tell(new MediatorHTTPRequest(request, true), getRef());
+            }
+
+            final Object[] out =
+                    new ReceiveWhile<Object>(Object.class, dilated(duration("2 seconds")), 6) {
+                        @Override
+                        protected Object match(Object msg) throws Exception {
+                            if (msg instanceof MediatorHTTPResponse || msg instanceof AddOrchestrationToCoreResponse) {
+                                return msg;
+                            }
+                            throw noMatch();
+                        }
+                    }.get();
+
+            Set<String> correlationIds = new HashSet<>();
+            int orchestrations = 0;
+            for (Object o : out) {
+                if (o instanceof MediatorHTTPResponse) {
+                    assertEquals("shared", ((MediatorHTTPResponse) o).getBody());
+                    correlationIds.add(((MediatorHTTPResponse) o).getOriginalRequest().getCorrelationId());
+                } else {
+                    orchestrations++;
+                }
+            }
+
+            assertEquals("Every request must receive its own response", 3, correlationIds.size());
+            assertEquals(3, orchestrations);
+            wireMockRule.verify(1, getRequestedFor(urlEqualTo("/test/single-flight")));
+
+            //a later request makes a new upstream call
+            testHTTPMessage(new MediatorHTTPRequest(new MediatorHTTPRequest(
+                    getRef(), getRef(), "unit-test", "GET", "http", "localhost", wireMockRule.port(), "/test/single-flight"
+            ), true), 200, "text/plain", "shared");
+            wireMockRule.verify(2, getRequestedFor(urlEqualTo("/test/single-flight")));
+        }};
+    }
+
+    /**
+     * Single-flight requests should keep their own deadlines
+     */
+    @Test
+    public void testSingleFlightDeadlines() throws Exception {
+        wireMockRule.stubFor(get(urlEqualTo("/test/single-flight-deadline"))
+                .willReturn(aResponse().withStatus(200).withHeader("Content-Type", "text/plain").withBody("shared")
+                        .withFixedDelay(500))
+        );
+
+        new HTTPConnectorTestKit(system) {{
+            MediatorHTTPRequest base = new MediatorHTTPRequest(new MediatorHTTPRequest(
+                    getRef(), getRef(), "unit-test", "GET", "http", "localhost", wireMockRule.port(), "/test/single-flight-deadline"
+            ), true);
+
+            //a request with a shorter deadline joins the call, but times out on its own
+            httpConnector.tell(base, getRef());
+            MediatorHTTPRequest shorter = new MediatorHTTPRequest(base, 100);
+            httpConnector.tell(shorter, getRef());
+
+            ExceptError error = expectMsgClass(duration("400 milliseconds"), ExceptError.class);
+            assertTrue(error.getError() instanceof TimeoutException);
+            assertSame(shorter, error.getOriginalRequest());
+            expectMsgClass(duration("1 second"), AddOrchestrationToCoreResponse.class);
+            assertEquals("shared", expectMsgClass(MediatorHTTPResponse.class).getBody());
+            expectNoMsg(duration("200 milliseconds"));
+            wireMockRule.verify(1, getRequestedFor(urlEqualTo("/test/single-flight-deadline")));
+
+            //a request with a longer deadline joins the call too, which continues after the first request times out
+            MediatorHTTPRequest leader = new MediatorHTTPRequest(base, 200);
+            MediatorHTTPRequest longer = new MediatorHTTPRequest(base, 1000);
+            httpConnector.tell(leader, getRef());
+            httpConnector.tell(longer, getRef());
+
+            error = expectMsgClass(duration("400 milliseconds"), ExceptError.class);
+            assertTrue(error.getError() instanceof TimeoutException);
+            assertSame(leader, error.getOriginalRequest());
+            expectMsgClass(duration("1 second"), AddOrchestrationToCoreResponse.class);
+            MediatorHTTPResponse response = expectMsgClass(MediatorHTTPResponse.class);
+            assertSame(longer, response.getOriginalRequest());
+            expectNoMsg(duration("200 milliseconds"));
+            wireMockRule.verify(2, getRequestedFor(urlEqualTo("/test/single-flight-deadline")));
+        }};
+    }
+
+    /**
+     * Sends a single-flight lookup to the http-connector and finishes the request with its response
+     */
+    private static class SingleFlightRouteActor extends UntypedActor {
+        static ActorRef httpConnector;
+        private MediatorHTTPRequest request;
+
+        @Override
+        public void onReceive(Object msg) throws Exception {
+            if (msg instanceof MediatorHTTPRequest) {
+                request = (MediatorHTTPRequest) msg;
+                MediatorHTTPRequest lookup = new MediatorHTTPRequest(
+                        request.getRequestHandler(), getSelf(), "unit-test", "GET", "http", "localhost", lookupPort, "/test/single-flight-lookup"
+                );
+                httpConnector.tell(new MediatorHTTPRequest(lookup, true), getSelf());
+            } else if (msg instanceof MediatorHTTPResponse) {
+                FinishRequest fr = new FinishRequest(((MediatorHTTPResponse) msg).getBody(), "text/plain", 200);
+                request.getRequestHandler().tell(fr, getSelf());
+            } else {
+                unhandled(msg);
+            }
+        }
+    }
+
+    private static int lookupPort;
+
+    /**
+     * Request handlers register a deadline for every request, so requests that arrive later have later deadlines.
+     * They should still share the upstream call.
+     */
+    @Test
+    public void testSingleFlightRequestsWithHandlerDeadlines() throws Exception {
+        wireMockRule.stubFor(get(urlEqualTo("/test/single-flight-lookup"))
+                .willReturn(aResponse().withStatus(200).withHeader("Content-Type", "text/plain").withBody("shared")
+                        .withFixedDelay(500))
+        );
+        lookupPort = wireMockRule.port();
+
+        final MediatorConfig config = new MediatorConfig();
+        config.setName("single-flight-deadline-tests");
+        config.setRegistrationConfig(new RegistrationConfig(getClass().getClassLoader().getResourceAsStream("test-registration-info.json")));
+        RoutingTable table = new RoutingTable();
+        table.addRoute("/lookup", SingleFlightRouteActor.class);
+        config.setRoutingTable(table);
+
+        new HTTPConnectorTestKit(system, config) {{
+            SingleFlightRouteActor.httpConnector = httpConnector;
+
+            for (int i=0; i<3; i++) {
+                ActorRef handler = system.actorOf(Props.create(MediatorRequestHandler.class, config));
+                handler.tell(new MediatorHTTPRequest(handler, getRef(), "/lookup", "GET", "http", "localhost", 1234, "/lookup"), getRef());
+                //each request has a later deadline than the one before it
+                Thread.sleep(50);
+            }
+
+            for (int i=0; i<3; i++) {
+                MediatorHTTPResponse response = expectMsgClass(duration("2 seconds"), MediatorHTTPResponse.class);
+                assertTrue(response.getBody().contains("\"body\":\"shared\""));
+            }
+            wireMockRule.verify(1, getRequestedFor(urlEqualTo("/test/single-flight-lookup")));
+        }};
+    }
+
+    /**
+     * Once the circuit breaker for a host opens, requests to the host should fail fast
+     */
+    @Test
+    public void testCircuitBreakerFailsFast() throws Exception {
+        wireMockRule.stubFor(get(urlEqualTo("/test/unavailable"))
+                .willReturn(aResponse().withStatus(503).withHeader("Content-Type", "text/plain").withBody("Unavailable"))
+        );
+
+        MediatorConfig config = new MediatorConfig();
+        config.getCircuitBreaker().setEnabled(true);
+        config.getCircuitBreaker().setMinimumCalls(2);
+
+        new HTTPConnectorTestKit(system, config) {{
+            MediatorHTTPRequest request = new MediatorHTTPRequest(
+                    getRef(), getRef(), "unit-test", "GET", "http", "localhost", wireMockRule.port(), "/test/unavailable"
+            );
+            testHTTPMessage(request, 503, "text/plain", "Unavailable");
+            testHTTPMessage(request, 503, "text/plain", "Unavailable");
+
+            httpConnector.tell(request, getRef());
+            AddOrchestrationToCoreResponse orch = expectMsgClass(AddOrchestrationToCoreResponse.class);
+            assertEquals(new Integer(503), orch.getOrchestration().getResponse().getStatus());
+            assertEquals("OPEN", orch.getOrchestration().getResponse().getHeaders().get("X-Circuit-Breaker"));
+            ExceptError error = expectMsgClass(ExceptError.class);
+            assertTrue(error.getError() instanceof UpstreamGuard.RejectedException);
+            assertEquals("localhost:" + wireMockRule.port(), ((UpstreamGuard.RejectedException) error.getError()).getHost());
+
+            wireMockRule.verify(2, getRequestedFor(urlEqualTo("/test/unavailable")));
+        }};
+    }
+
+    @Test
+    public void testRequestTimeout() throws Exception {
+        wireMockRule.stubFor(get(urlEqualTo("/test/slow"))
+                .willReturn(aResponse().withStatus(200).withHeader("Content-Type", "text/plain").withBody("Slow")
+                        .withFixedDelay(2000))
+        );
+
+        new HTTPConnectorTestKit(system) {{
+            MediatorHTTPRequest request = new MediatorHTTPRequest(new MediatorHTTPRequest(
+                    getRef(), getRef(), "unit-test", "GET", "http", "localhost", wireMockRule.port(), "/test/slow"
+            ), 200);
+
+            httpConnector.tell(request, getRef());
+            ExceptError error = expectMsgClass(duration("1 second"), ExceptError.class);
+            assertTrue(error.getError() instanceof TimeoutException);
+            assertSame(request, error.getOriginalRequest());
+        }};
+    }
+
+    @Test
+    public void testExpiredDeadlineFailsFast() throws Exception {
+        wireMockRule.stubFor(get(urlEqualTo("/test/deadline"))
+                .willReturn(aResponse().withStatus(200).withHeader("Content-Type", "text/plain").withBody("Deadline"))
+        );
+
+        final MediatorConfig config = new MediatorConfig();
+
+        new HTTPConnectorTestKit(system, config) {{
+            MediatorHTTPRequest request = new MediatorHTTPRequest(
+                    getRef(), getRef(), "unit-test", "GET", "http", "localhost", wireMockRule.port(), "/test/deadline"
+            );
+
+            config.getRequestDeadlines().register(getRef(), System.currentTimeMillis() - 1);
+            httpConnector.tell(request, getRef());
+            ExceptError error = expectMsgClass(ExceptError.class);
+            assertTrue(error.getError() instanceof TimeoutException);
+
+            //the deadline no longer applies once the request handler is done
+            config.getRequestDeadlines().remove(getRef());
+            testHTTPMessage(request, 200, "text/plain", "Deadline");
+
+            wireMockRule.verify(1, getRequestedFor(urlEqualTo("/test/deadline")));
+        }};
+    }
+
     @Test
     public void testBasicHTTPS() throws Exception {
         wireMockRuleHTTPS1.stubFor(get(urlEqualTo("/test/get"))
@@ -317,6 +818,38 @@ public class HTTPConnectorTest {
         }};
     }
 
+    /**
+     * Requests in flight when the SSL context changes should complete on the previous connection pool
+     */
+    @Test
+    public void testSSLContextChangeDuringRequest() throws Exception {
+        wireMockRule.stubFor(get(urlEqualTo("/test/ssl-change"))
+                .willReturn(aResponse().withStatus(200).withHeader("Content-Type", "text/plain").withBody("test")
+                        .withFixedDelay(500))
+        );
+
+        new HTTPConnectorTestKit(system) {{
+            httpConnector.tell(new MediatorHTTPRequest(
+                    getRef(), getRef(), "unit-test", "GET", "http", "localhost", wireMockRule.port(), "/test/ssl-change"
+            ), getRef());
+
+            SetupSSLContext setupSSLContext = new SetupSSLContext(
+                    getRef(),
+                    getRef(),
+                    new MediatorConfig.SSLContext(
+                            new MediatorConfig.KeyStore("src/test/resources/certs/localhost.jks", "password")
+                    )
+            );
+            httpConnector.tell(setupSSLContext, getRef());
+            assertTrue(expectMsgClass(SetupSSLContextResponse.class).isSuccessful());
+
+            expectMsgClass(duration("2 seconds"), AddOrchestrationToCoreResponse.class);
+            MediatorHTTPResponse response = expectMsgClass(MediatorHTTPResponse.class);
+            assertEquals(new Integer(200), response.getStatusCode());
+            assertEquals("test", response.getBody());
+        }};
+    }
+
     /**
      * Should fail if cert not in truststore
      */
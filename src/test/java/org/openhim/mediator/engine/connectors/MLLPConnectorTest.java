@@ -12,15 +12,25 @@ import akka.actor.Props;
 import akka.testkit.JavaTestKit;
 import org.apache.commons.io.IOUtils;
 import org.junit.*;
+import org.openhim.mediator.engine.MediatorConfig;
 import org.openhim.mediator.engine.messages.AddOrchestrationToCoreResponse;
+import org.openhim.mediator.engine.messages.ExceptError;
 import org.openhim.mediator.engine.messages.MediatorSocketRequest;
 import org.openhim.mediator.engine.messages.MediatorSocketResponse;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.*;
 
@@ -32,8 +42,10 @@ public class MLLPConnectorTest {
             socket = new ServerSocket(8501);
         }
 
-        public void kill() {
+        public void kill() throws InterruptedException {
             IOUtils.closeQuietly(socket);
+            //the socket is only released once the accepting thread has returned
+            join();
         }
 
         @Override
@@ -69,6 +81,66 @@ public class MLLPConnectorTest {
     }
 
 
+    /**
+     * Handles persistent connections, responding to every frame on a connection
+     */
+    private static class MockPersistentMLLPServer extends Thread {
+        final ServerSocket socket;
+        final boolean closeAfterResponse;
+        final AtomicInteger connections = new AtomicInteger();
+
+        public MockPersistentMLLPServer(boolean closeAfterResponse) throws IOException {
+            this.socket = new ServerSocket(8502);
+            this.closeAfterResponse = closeAfterResponse;
+        }
+
+        public void kill() throws InterruptedException {
+            IOUtils.closeQuietly(socket);
+            //the socket is only released once the accepting thread has returned
+            join();
+        }
+
+        @Override
+        public void run() {
+            while (!socket.isClosed()) {
+                try {
+                    final Socket conn = socket.accept();
+                    connections.incrementAndGet();
+                    new Thread() {
+                        @Override
+                        public void run() {
+                            handle(conn);
+                        }
+                    }.start();
+                } catch (IOException ex) {
+                    //closed
+                }
+            }
+        }
+
+        private void handle(Socket conn) {
+            try {
+                MLLPFrameDecoder decoder = new MLLPFrameDecoder(conn.getInputStream());
+                OutputStream out = conn.getOutputStream();
+                byte[] frame;
+                while ((frame = decoder.readFrame()) != null) {
+                    String msg = new String(frame);
+                    String body = msg.substring(1, msg.length()-2);
+                    out.write(MLLPConnector.wrapMLLP("ack:" + body).getBytes());
+                    out.flush();
+                    if (closeAfterResponse) {
+                        break;
+                    }
+                }
+            } catch (IOException ex) {
+                //connection closed
+            } finally {
+                IOUtils.closeQuietly(conn);
+            }
+        }
+    }
+
+
     static ActorSystem system;
 
     private MockMLLPServer mockServer;
@@ -138,4 +210,234 @@ public class MLLPConnectorTest {
         }};
     }
 
-}
\ No newline at end of file
+    private static MediatorConfig pooledConfig(int maxPerEndpoint, int maxPipelinedMessages) {
+        final MediatorConfig config = new MediatorConfig();
+        MediatorConfig.MLLPConnectionPool pool = new MediatorConfig.MLLPConnectionPool();
+        pool.setEnabled(true);
+        pool.setMaxPerEndpoint(maxPerEndpoint);
+        pool.setMaxPipelinedMessages(maxPipelinedMessages);
+        config.setMLLPConnectionPool(pool);
+        return config;
+    }
+
+    private static Map<String, String> sendAndCollectResponses(JavaTestKit kit, ActorRef tcpConnector, int port, String... bodies) {
+        for (String body : bodies) {
+            MediatorSocketRequest request = new MediatorSocketRequest(
+                    kit.getRef(), kit.getRef(), "unit-test", body, "localhost", port, body
+            );
+            tcpConnector.tell(request, kit.getRef());
+        }
+
+        Map<String, String> responses = new HashMap<>();
+        for (Object msg : kit.receiveN(bodies.length * 2, kit.duration("5 seconds"))) {
+            if (msg instanceof MediatorSocketResponse) {
+                MediatorSocketResponse response = (MediatorSocketResponse) msg;
+                responses.put(response.getOriginalRequest().getCorrelationId(), response.getBody());
+            } else {
+                assertTrue(msg instanceof AddOrchestrationToCoreResponse);
+            }
+        }
+        return responses;
+    }
+
+    @Test
+    public void testPooledConnectionIsReused() throws Exception {
+        final MockPersistentMLLPServer server = new MockPersistentMLLPServer(false);
+        server.start();
+
+        try {
+            new JavaTestKit(system) {{
+                final ActorRef tcpConnector = system.actorOf(Props.create(MLLPConnector.class, pooledConfig(4, 1)));
+
+                for (int i=0; i<5; i++) {
+                    Map<String, String> responses = sendAndCollectResponses(this, tcpConnector, 8502, "msg" + i);
+                    assertEquals("ack:msg" + i, responses.get("msg" + i));
+                }
+
+                assertEquals(1, server.connections.get());
+                system.stop(tcpConnector);
+            }};
+        } finally {
+            server.kill();
+        }
+    }
+
+    @Test
+    public void testPipelinedMessages() throws Exception {
+        final MockPersistentMLLPServer server = new MockPersistentMLLPServer(false);
+        server.start();
+
+        try {
+            new JavaTestKit(system) {{
+                final ActorRef tcpConnector = system.actorOf(Props.create(MLLPConnector.class, pooledConfig(1, 5)));
+
+                Map<String, String> responses = sendAndCollectResponses(this, tcpConnector, 8502, "a", "b", "c", "d", "e");
+                assertEquals(5, responses.size());
+                for (String body : responses.keySet()) {
+                    assertEquals("ack:" + body, responses.get(body));
+                }
+
+                assertEquals(1, server.connections.get());
+                system.stop(tcpConnector);
+            }};
+        } finally {
+            server.kill();
+        }
+    }
+
+    @Test
+    public void testPooledConnectionClosedByServer() throws Exception {
+        final MockPersistentMLLPServer server = new MockPersistentMLLPServer(true);
+        server.start();
+
+        try {
+            new JavaTestKit(system) {{
+                final ActorRef tcpConnector = system.actorOf(Props.create(MLLPConnector.class, pooledConfig(1, 1)));
+
+                for (int i=0; i<3; i++) {
+                    Map<String, String> responses = sendAndCollectResponses(this, tcpConnector, 8502, "msg" + i);
+                    assertEquals("ack:msg" + i, responses.get("msg" + i));
+                }
+
+                assertEquals(3, server.connections.get());
+                system.stop(tcpConnector);
+            }};
+        } finally {
+            server.kill();
+        }
+    }
+
+    @Test
+    public void testCircuitBreakerFailsFast() throws Exception {
+        final MediatorConfig config = new MediatorConfig();
+        config.getCircuitBreaker().setEnabled(true);
+        config.getCircuitBreaker().setMinimumCalls(2);
+
+        new JavaTestKit(system) {{
+            final ActorRef tcpConnector = system.actorOf(Props.create(MLLPConnector.class, config));
+
+            //nothing is listening on the port, so the connections will be refused
+            MediatorSocketRequest request = new MediatorSocketRequest(getRef(), getRef(), "unit-test", "localhost", 8509, "test");
+            for (int i=0; i<2; i++) {
+                tcpConnector.tell(request, getRef());
+                ExceptError error = expectMsgClass(duration("2 seconds"), ExceptError.class);
+                assertTrue(error.getError() instanceof IOException);
+            }
+
+            tcpConnector.tell(request, getRef());
+            AddOrchestrationToCoreResponse orch = expectMsgClass(AddOrchestrationToCoreResponse.class);
+            assertEquals("OPEN", orch.getOrchestration().getResponse().getHeaders().get("X-Circuit-Breaker"));
+            ExceptError error = expectMsgClass(ExceptError.class);
+            assertTrue(error.getError() instanceof UpstreamGuard.RejectedException);
+
+            system.stop(tcpConnector);
+        }};
+    }
+
+    @Test
+    public void testReadTimeout() throws Exception {
+        //accepts connections but never responds
+        final ServerSocket server = new ServerSocket(8510);
+
+        try {
+            new JavaTestKit(system) {{
+                final ActorRef tcpConnector = system.actorOf(Props.create(MLLPConnector.class));
+
+                MediatorSocketRequest request = new MediatorSocketRequest(
+                        getRef(), getRef(), "unit-test", "timeout", "localhost", 8510, "test", false, 200
+                );
+                tcpConnector.tell(request, getRef());
+                ExceptError error = expectMsgClass(duration("1 second"), ExceptError.class);
+                assertTrue(error.getError() instanceof SocketTimeoutException);
+
+                system.stop(tcpConnector);
+            }};
+        } finally {
+            server.close();
+        }
+    }
+
+    /**
+     * A message pipelined behind an outstanding message may already have been processed when the connection drops,
+     * so it must fail rather than be resent
+     */
+    @Test
+    public void testPipelinedMessageNotResentWhenConnectionLost() throws Exception {
+        final ServerSocket server = new ServerSocket(8511);
+        final List<String> received = Collections.synchronizedList(new ArrayList<String>());
+
+        //the first connection answers the first message, reads two more, answers the first of them and then drops
+        Thread serverThread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    for (int n=0; !server.isClosed(); n++) {
+                        Socket conn = server.accept();
+                        MLLPFrameDecoder decoder = new MLLPFrameDecoder(conn.getInputStream());
+                        OutputStream out = conn.getOutputStream();
+                        int frames = 0;
+                        String unanswered = null;
+                        byte[] frame;
+                        while ((frame = decoder.readFrame()) != null) {
+                            String msg = new String(frame);
+                            String body = msg.substring(1, msg.length()-2);
+                            received.add(body);
+                            frames++;
+                            if (n==0 && frames==2) {
+                                unanswered = body;
+                                continue;
+                            }
+                            if (n==0 && frames==3) {
+                                out.write(MLLPConnector.wrapMLLP("ack:" + unanswered).getBytes());
+                                out.flush();
+                                break;
+                            }
+                            out.write(MLLPConnector.wrapMLLP("ack:" + body).getBytes());
+                            out.flush();
+                        }
+                        IOUtils.closeQuietly(conn);
+                    }
+                } catch (IOException ex) {
+                    //closed
+                }
+            }
+        };
+        serverThread.start();
+
+        try {
+            new JavaTestKit(system) {{
+                final ActorRef tcpConnector = system.actorOf(Props.create(MLLPConnector.class, pooledConfig(1, 5)));
+
+                assertEquals("ack:warm", sendAndCollectResponses(this, tcpConnector, 8511, "warm").get("warm"));
+
+                //the messages may be written in either order; the first is written while the connection is idle
+                for (String body : new String[]{"a", "b"}) {
+                    tcpConnector.tell(new MediatorSocketRequest(
+                            getRef(), getRef(), "unit-test", body, "localhost", 8511, body
+                    ), getRef());
+                }
+
+                boolean idleAnswered = false;
+                boolean pipelinedFailed = false;
+                for (Object msg : receiveN(3, duration("5 seconds"))) {
+                    if (msg instanceof MediatorSocketResponse) {
+                        assertEquals("ack:" + received.get(1), ((MediatorSocketResponse) msg).getBody());
+                        idleAnswered = true;
+                    } else if (msg instanceof ExceptError) {
+                        assertTrue(((ExceptError) msg).getError() instanceof IOException);
+                        pipelinedFailed = true;
+                    }
+                }
+
+                assertTrue(idleAnswered);
+                assertTrue("the pipelined message should fail", pipelinedFailed);
+                assertEquals(1, Collections.frequency(received, "a"));
+                assertEquals(1, Collections.frequency(received, "b"));
+                system.stop(tcpConnector);
+            }};
+        } finally {
+            server.close();
+            serverThread.join(5000);
+        }
+    }
+}
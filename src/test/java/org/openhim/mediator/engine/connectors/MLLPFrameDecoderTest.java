@@ -0,0 +1,90 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.engine.connectors;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import static org.junit.Assert.*;
+
+public class MLLPFrameDecoderTest {
+
+    /**
+     * Returns at most a few bytes per read, to test frames that are split across reads
+     */
+    private static class TrickleInputStream extends ByteArrayInputStream {
+        TrickleInputStream(byte[] buf) {
+            super(buf);
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) {
+            return super.read(b, off, Math.min(len, 3));
+        }
+    }
+
+    private static String read(MLLPFrameDecoder decoder) throws IOException {
+        byte[] frame = decoder.readFrame();
+        return frame!=null ? new String(frame) : null;
+    }
+
+    @Test
+    public void testReadFrame_MultipleFrames() throws Exception {
+        String stream = MLLPConnector.wrapMLLP("MSH|1\rPID|1") + MLLPConnector.wrapMLLP("MSH|2") + MLLPConnector.wrapMLLP("MSH|3");
+        MLLPFrameDecoder decoder = new MLLPFrameDecoder(new ByteArrayInputStream(stream.getBytes()));
+
+        assertEquals(MLLPConnector.wrapMLLP("MSH|1\rPID|1"), read(decoder));
+        assertEquals(MLLPConnector.wrapMLLP("MSH|2"), read(decoder));
+        assertEquals(MLLPConnector.wrapMLLP("MSH|3"), read(decoder));
+        assertNull(read(decoder));
+    }
+
+    @Test
+    public void testReadFrame_SplitAcrossReads() throws Exception {
+        String stream = MLLPConnector.wrapMLLP("MSH|1\rPID|1") + MLLPConnector.wrapMLLP("MSH|2");
+        InputStream in = new TrickleInputStream(stream.getBytes());
+        MLLPFrameDecoder decoder = new MLLPFrameDecoder(in, 4);
+
+        assertEquals(MLLPConnector.wrapMLLP("MSH|1\rPID|1"), read(decoder));
+        assertEquals(MLLPConnector.wrapMLLP("MSH|2"), read(decoder));
+        assertNull(read(decoder));
+    }
+
+    @Test
+    public void testReadFrame_LargeFrame() throws Exception {
+        StringBuilder body = new StringBuilder();
+        for (int i=0; i<10000; i++) {
+            body.append("OBX|").append(i).append("\r");
+        }
+        String stream = MLLPConnector.wrapMLLP(body.toString()) + MLLPConnector.wrapMLLP("MSH|2");
+        MLLPFrameDecoder decoder = new MLLPFrameDecoder(new ByteArrayInputStream(stream.getBytes()));
+
+        assertEquals(MLLPConnector.wrapMLLP(body.toString()), read(decoder));
+        assertEquals(MLLPConnector.wrapMLLP("MSH|2"), read(decoder));
+    }
+
+    @Test
+    public void testReadFrame_IncompleteFrame() throws Exception {
+        String stream = MLLPConnector.wrapMLLP("MSH|1") + MLLPConnector.MLLP_HEADER_VT + "MSH|2";
+        MLLPFrameDecoder decoder = new MLLPFrameDecoder(new ByteArrayInputStream(stream.getBytes()));
+
+        assertEquals(MLLPConnector.wrapMLLP("MSH|1"), read(decoder));
+        assertEquals(MLLPConnector.MLLP_HEADER_VT + "MSH|2", read(decoder));
+        assertNull(read(decoder));
+    }
+
+    @Test
+    public void testFindFrameEnd() throws Exception {
+        byte[] b = ("abc" + MLLPConnector.MLLP_FOOTER_FS + MLLPConnector.MLLP_FOOTER_CR + "def").getBytes();
+        assertEquals(5, MLLPFrameDecoder.findFrameEnd(b, 0, b.length));
+        assertEquals(-1, MLLPFrameDecoder.findFrameEnd(b, 0, 4));
+        assertEquals(-1, MLLPFrameDecoder.findFrameEnd(b, 5, 3));
+    }
+}
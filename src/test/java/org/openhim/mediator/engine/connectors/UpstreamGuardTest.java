@@ -0,0 +1,145 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.engine.connectors;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.openhim.mediator.engine.MediatorConfig;
+import org.openhim.mediator.engine.metrics.MetricsRegistry;
+
+import java.io.StringWriter;
+
+import static org.junit.Assert.*;
+
+public class UpstreamGuardTest {
+
+    private MediatorConfig config;
+    private MetricsRegistry metrics;
+
+    @Before
+    public void before() {
+        config = new MediatorConfig();
+        config.getCircuitBreaker().setWindowSize(4);
+        config.getCircuitBreaker().setMinimumCalls(4);
+        config.getCircuitBreaker().setFailureRateThreshold(50);
+        config.getCircuitBreaker().setOpenDurationMillis(100);
+        config.getCircuitBreaker().setHalfOpenCalls(2);
+        metrics = new MetricsRegistry();
+    }
+
+    private void call(UpstreamGuard guard, String host, boolean failed) throws UpstreamGuard.RejectedException {
+        guard.acquire(host).release(failed);
+    }
+
+    @Test
+    public void testDisabled() throws Exception {
+        UpstreamGuard guard = new UpstreamGuard("test", config, metrics);
+        for (int i=0; i<10; i++) {
+            call(guard, "host", true);
+        }
+        assertEquals(UpstreamGuard.State.CLOSED, guard.getState("host"));
+    }
+
+    @Test
+    public void testCircuitOpensAndCloses() throws Exception {
+        config.getCircuitBreaker().setEnabled(true);
+        UpstreamGuard guard = new UpstreamGuard("test", config, metrics);
+
+        //below the minimum number of calls
+        call(guard, "host", true);
+        call(guard, "host", true);
+        call(guard, "host", false);
+        assertEquals(UpstreamGuard.State.CLOSED, guard.getState("host"));
+
+        //2 of the last 4 calls failed
+        call(guard, "host", false);
+        assertEquals(UpstreamGuard.State.OPEN, guard.getState("host"));
+        assertEquals(UpstreamGuard.State.CLOSED, guard.getState("other-host"));
+
+        try {
+            guard.acquire("host");
+            fail("Calls must be rejected while the circuit is open");
+        } catch (UpstreamGuard.RejectedException ex) {
+            assertEquals("host", ex.getHost());
+            assertEquals(UpstreamGuard.State.OPEN, ex.getState());
+        }
+
+        Thread.sleep(150);
+
+        //only the configured number of probe calls are let through
+        UpstreamGuard.Permit probe1 = guard.acquire("host");
+        UpstreamGuard.Permit probe2 = guard.acquire("host");
+        assertEquals(UpstreamGuard.State.HALF_OPEN, probe1.getState());
+        try {
+            guard.acquire("host");
+            fail("Only 2 probe calls should be permitted");
+        } catch (UpstreamGuard.RejectedException ex) {
+            assertEquals(UpstreamGuard.State.HALF_OPEN, ex.getState());
+        }
+
+        probe1.release(false);
+        probe2.release(false);
+        assertEquals(UpstreamGuard.State.CLOSED, guard.getState("host"));
+
+        StringWriter out = new StringWriter();
+        metrics.writePrometheus(out);
+        assertTrue(out.toString().contains("mediator_circuit_breaker_state{connector=\"test\",host=\"host\"} 0"));
+        assertTrue(out.toString().contains("mediator_upstream_rejected_total{connector=\"test\",host=\"host\",reason=\"circuit-open\"} 2"));
+    }
+
+    @Test
+    public void testFailedProbeReopensCircuit() throws Exception {
+        config.getCircuitBreaker().setEnabled(true);
+        UpstreamGuard guard = new UpstreamGuard("test", config, metrics);
+
+        for (int i=0; i<4; i++) {
+            call(guard, "host", true);
+        }
+        assertEquals(UpstreamGuard.State.OPEN, guard.getState("host"));
+
+        Thread.sleep(150);
+        call(guard, "host", true);
+        assertEquals(UpstreamGuard.State.OPEN, guard.getState("host"));
+    }
+
+    @Test
+    public void testSlowCallsOpenCircuit() throws Exception {
+        config.getCircuitBreaker().setEnabled(true);
+        config.getCircuitBreaker().setSlowCallDurationMillis(10);
+        config.getCircuitBreaker().setSlowCallRateThreshold(75);
+        UpstreamGuard guard = new UpstreamGuard("test", config, metrics);
+
+        for (int i=0; i<4; i++) {
+            UpstreamGuard.Permit permit = guard.acquire("host");
+            Thread.sleep(20);
+            permit.release(false);
+        }
+        assertEquals(UpstreamGuard.State.OPEN, guard.getState("host"));
+    }
+
+    @Test
+    public void testBulkhead() throws Exception {
+        config.getBulkhead().setEnabled(true);
+        config.getBulkhead().setMaxConcurrentCalls(2);
+        UpstreamGuard guard = new UpstreamGuard("test", config, metrics);
+
+        UpstreamGuard.Permit permit1 = guard.acquire("host");
+        guard.acquire("host");
+        try {
+            guard.acquire("host");
+            fail("The bulkhead should be full");
+        } catch (UpstreamGuard.RejectedException ex) {
+            assertEquals(UpstreamGuard.State.CLOSED, ex.getState());
+        }
+
+        //other hosts have their own bulkheads
+        guard.acquire("other-host");
+
+        permit1.release(false);
+        guard.acquire("host");
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.engine.json;
+
+import com.google.gson.JsonParseException;
+import org.joda.time.format.ISODateTimeFormat;
+import org.junit.Test;
+
+import java.util.Date;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ISODateTypeAdapterTest {
+
+    private static class DateHolder {
+        Date date;
+    }
+
+    @Test
+    public void testFormat() throws Exception {
+        assertEquals("1970-01-01T00:00:00.000Z", ISODateTypeAdapter.format(0));
+        assertEquals("2015-01-15T12:51:00.000Z", ISODateTypeAdapter.format(1421326260000L));
+        assertEquals("2016-02-29T23:59:59.999Z", ISODateTypeAdapter.format(1456790399999L));
+        assertEquals("1969-12-31T23:59:59.999Z", ISODateTypeAdapter.format(-1));
+    }
+
+    @Test
+    public void testFormatMatchesJoda() throws Exception {
+        Random random = new Random(42);
+        for (int i=0; i<10000; i++) {
+            //between 1900 and 2100
+            long millis = -2208988800000L + (long) (random.nextDouble() * 6311433600000L);
+            assertEquals(ISODateTimeFormat.dateTime().withZoneUTC().print(millis), ISODateTypeAdapter.format(millis));
+        }
+    }
+
+    @Test
+    public void testParse() throws Exception {
+        assertEquals(1421326260000L, ISODateTypeAdapter.parse("2015-01-15T12:51:00.000Z"));
+        assertEquals(1421326260000L, ISODateTypeAdapter.parse("2015-01-15T14:51:00.000+02:00"));
+        assertEquals(1421326260000L, ISODateTypeAdapter.parse("2015-01-15T14:51:00.000+0200"));
+        assertEquals(1421326260000L, ISODateTypeAdapter.parse("2015-01-15T10:51:00.000-02"));
+        assertEquals(1421326260000L, ISODateTypeAdapter.parse("2015-01-15T12:51:00Z"));
+        assertEquals(1421326260123L, ISODateTypeAdapter.parse("2015-01-15T12:51:00.123456Z"));
+        assertEquals(1421326260100L, ISODateTypeAdapter.parse("2015-01-15T12:51:00.1Z"));
+        assertEquals(1421326260000L, ISODateTypeAdapter.parse("1421326260000"));
+        assertEquals(-1L, ISODateTypeAdapter.parse("-1"));
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        Random random = new Random(42);
+        for (int i=0; i<10000; i++) {
+            long millis = (long) (random.nextDouble() * 4102444800000L);
+            assertEquals(millis, ISODateTypeAdapter.parse(ISODateTypeAdapter.format(millis)));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testParse_InvalidDate() throws Exception {
+        ISODateTypeAdapter.parse("2015-02-30T12:51:00.000Z");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testParse_BadContent() throws Exception {
+        ISODateTypeAdapter.parse("not a date");
+    }
+
+    @Test
+    public void testGson() throws Exception {
+        DateHolder holder = JSON.getGson().fromJson("{\"date\":1421326260000}", DateHolder.class);
+        assertEquals(1421326260000L, holder.date.getTime());
+
+        holder = JSON.getGson().fromJson("{\"date\":\"2015-01-15T14:51:00.000+02:00\"}", DateHolder.class);
+        assertEquals(1421326260000L, holder.date.getTime());
+        assertEquals("{\"date\":\"2015-01-15T12:51:00.000Z\"}", JSON.getGson().toJson(holder));
+
+        holder = JSON.getGson().fromJson("{\"date\":null}", DateHolder.class);
+        assertNull(holder.date);
+
+        try {
+            JSON.getGson().fromJson("{\"date\":\"yesterday\"}", DateHolder.class);
+            fail("JsonParseException expected");
+        } catch (JsonParseException ex) {
+            //expected
+        }
+    }
+}
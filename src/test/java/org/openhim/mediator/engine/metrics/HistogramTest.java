@@ -0,0 +1,69 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.engine.metrics;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class HistogramTest {
+
+    @Test
+    public void testBucketIndex() throws Exception {
+        //buckets must be contiguous and each value must be within its bucket
+        int lastIndex = -1;
+        for (long v=0; v<100000; v++) {
+            int index = Histogram.bucketIndex(v);
+            assertTrue(index==lastIndex || index==lastIndex+1);
+            assertTrue(Histogram.highestValueInBucket(index) >= v);
+            if (index > 0) {
+                assertTrue(Histogram.highestValueInBucket(index-1) < v);
+            }
+            lastIndex = index;
+        }
+    }
+
+    @Test
+    public void testQuantiles() throws Exception {
+        Histogram histogram = new Histogram();
+        for (int i=1; i<=10000; i++) {
+            histogram.record(i);
+        }
+
+        assertEquals(10000, histogram.getCount());
+        assertEquals(10000L * 10001 / 2, histogram.getSum());
+        assertEquals(10000, histogram.getMax());
+        assertEquals(5000, histogram.getValueAtQuantile(0.5), 5000 * 0.016);
+        assertEquals(9900, histogram.getValueAtQuantile(0.99), 9900 * 0.016);
+        assertEquals(10000, histogram.getValueAtQuantile(1.0));
+        assertEquals(1, histogram.getValueAtQuantile(0.0));
+    }
+
+    @Test
+    public void testEmpty() throws Exception {
+        Histogram histogram = new Histogram();
+        assertEquals(0, histogram.getValueAtQuantile(0.99));
+        assertEquals(0, histogram.getCount());
+    }
+
+    @Test
+    public void testHighestTrackableValue() throws Exception {
+        Histogram histogram = new Histogram(1000);
+        histogram.record(5000);
+        assertEquals(1000, histogram.getMax());
+        assertEquals(1000, histogram.getValueAtQuantile(0.5));
+    }
+
+    @Test
+    public void testRecordNanos() throws Exception {
+        Histogram histogram = new Histogram();
+        histogram.recordNanos(TimeUnit.MILLISECONDS.toNanos(250));
+        assertEquals(250000, histogram.getSum());
+    }
+}
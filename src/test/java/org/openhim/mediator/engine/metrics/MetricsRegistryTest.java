@@ -0,0 +1,73 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.engine.metrics;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class MetricsRegistryTest {
+
+    @Test
+    public void testMetricsAreReused() throws Exception {
+        MetricsRegistry registry = new MetricsRegistry();
+        registry.counter("requests_total", "Requests", "route", "/a").inc();
+        registry.counter("requests_total", "Requests", "route", "/a").inc();
+        registry.counter("requests_total", "Requests", "route", "/b").inc();
+
+        assertEquals(2, registry.counter("requests_total", "Requests", "route", "/a").getCount());
+        assertEquals(1, registry.counter("requests_total", "Requests", "route", "/b").getCount());
+        assertSame(registry.histogram("latency", "Latency"), registry.histogram("latency", "Latency"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTypeMismatch() throws Exception {
+        MetricsRegistry registry = new MetricsRegistry();
+        registry.counter("metric", "A metric");
+        registry.gauge("metric", "A metric");
+    }
+
+    @Test
+    public void testWritePrometheus() throws Exception {
+        MetricsRegistry registry = new MetricsRegistry();
+        registry.counter("requests_total", "Requests received", "route", "/a\"b", "status", "200").inc(3);
+        registry.gauge("in_flight", "In flight").set(2);
+        registry.register("sampled", "A sampled gauge", new Gauge() {
+            @Override
+            public double getValue() {
+                return 0.5;
+            }
+        });
+        Histogram histogram = registry.histogram("duration_seconds", "Durations", "route", "/a");
+        histogram.record(1000);
+        histogram.record(2000);
+
+        StringBuilder out = new StringBuilder();
+        registry.writePrometheus(out);
+        String text = out.toString();
+
+        assertTrue(text.contains("# HELP requests_total Requests received\n# TYPE requests_total counter\n"));
+        assertTrue(text.contains("requests_total{route=\"/a\\\"b\",status=\"200\"} 3\n"));
+        assertTrue(text.contains("# TYPE in_flight gauge\nin_flight 2\n"));
+        assertTrue(text.contains("sampled 0.5\n"));
+        assertTrue(text.contains("# TYPE duration_seconds summary\n"));
+        assertTrue(text.contains("duration_seconds{route=\"/a\",quantile=\"0.99\"} 0.002\n"));
+        assertTrue(text.contains("duration_seconds_sum{route=\"/a\"} 0.003\n"));
+        assertTrue(text.contains("duration_seconds_count{route=\"/a\"} 2\n"));
+    }
+
+    @Test
+    public void testRemove() throws Exception {
+        MetricsRegistry registry = new MetricsRegistry();
+        registry.counter("requests_total", "Requests", "route", "/a").inc();
+        registry.remove("requests_total", "route", "/a");
+
+        StringBuilder out = new StringBuilder();
+        registry.writePrometheus(out);
+        assertEquals("", out.toString());
+    }
+}